@@ -2,7 +2,7 @@ package general
 
 import java.io.File
 
-import general.common.{Common, JatosUpdater}
+import general.common.{Common, JatosUpdater, ResultDataCompressor, ResultDataStore, ResultUploadIndex}
 import javax.inject.Inject
 import play.api.Logger
 import play.api.inject.ApplicationLifecycle
@@ -15,12 +15,17 @@ import scala.concurrent.Future
   *
   * @author Kristian Lange
   */
-class OnStartStop @Inject()(lifecycle: ApplicationLifecycle, environment: play.Environment, jatosUpdater: JatosUpdater) {
+class OnStartStop @Inject()(lifecycle: ApplicationLifecycle, environment: play.Environment, jatosUpdater: JatosUpdater,
+                            resultUploadIndex: ResultUploadIndex, resultDataCompressor: ResultDataCompressor,
+                            resultDataStore: ResultDataStore) {
 
   private val logger = Logger(this.getClass)
 
   checkUpdate()
   checkStudyAssetsRootDir()
+  resultUploadIndex.buildOnce()
+  resultDataCompressor.compressStoredDataIfEnabled()
+  resultDataStore.collectAllGarbageLater()
 
   logger.info("JATOS started")
   if (environment.isProd) {
@@ -3,9 +3,12 @@ package daos.common;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import general.common.GroupMatchmaker;
 import models.common.Batch;
 import play.db.jpa.JPAApi;
 
+import java.util.List;
+
 /**
  * DAO of Batch entity
  * 
@@ -14,9 +17,12 @@ import play.db.jpa.JPAApi;
 @Singleton
 public class BatchDao extends AbstractDao {
 
+	private final GroupMatchmaker groupMatchmaker;
+
 	@Inject
-	BatchDao(JPAApi jpa) {
+	BatchDao(JPAApi jpa, GroupMatchmaker groupMatchmaker) {
 		super(jpa);
+		this.groupMatchmaker = groupMatchmaker;
 	}
 
 	public void create(Batch batch) {
@@ -29,10 +35,43 @@ public class BatchDao extends AbstractDao {
 
 	public void remove(Batch batch) {
 		super.remove(batch);
+		groupMatchmaker.removeBatch(batch.getId());
 	}
 
 	public Batch findById(Long id) {
 		return jpa.em().find(Batch.class, id);
 	}
 
+	/**
+	 * Writes the given batch session data and version - but only if the
+	 * stored batch session version is still the expected one (otherwise
+	 * someone else changed the batch session meanwhile). Returns true if the
+	 * batch was updated.
+	 */
+	public boolean updateBatchSession(Long batchId, String batchSessionData,
+			Long batchSessionVersion, Long expectedVersion) {
+		String queryStr = "UPDATE Batch b SET "
+				+ "b.batchSessionData=:batchSessionData, "
+				+ "b.batchSessionVersion=:batchSessionVersion "
+				+ "WHERE b.id=:id AND b.batchSessionVersion=:expectedVersion";
+		int updated = jpa.em().createQuery(queryStr)
+				.setParameter("batchSessionData", batchSessionData)
+				.setParameter("batchSessionVersion", batchSessionVersion)
+				.setParameter("id", batchId)
+				.setParameter("expectedVersion", expectedVersion)
+				.executeUpdate();
+		return updated > 0;
+	}
+
+	/**
+	 * Returns the stored batch session version of the batch with the given ID
+	 * or null if the batch doesn't exist
+	 */
+	public Long findBatchSessionVersion(Long batchId) {
+		String queryStr = "SELECT b.batchSessionVersion FROM Batch b WHERE b.id=:id";
+		List<Long> result = jpa.em().createQuery(queryStr, Long.class)
+				.setParameter("id", batchId).getResultList();
+		return result.isEmpty() ? null : result.get(0);
+	}
+
 }
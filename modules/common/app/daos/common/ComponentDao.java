@@ -1,5 +1,6 @@
 package daos.common;
 
+import general.common.StudyCache;
 import models.common.Component;
 import models.common.Study;
 import play.db.jpa.JPAApi;
@@ -18,17 +19,22 @@ import java.util.Optional;
 @Singleton
 public class ComponentDao extends AbstractDao {
 
+    private final StudyCache studyCache;
+
     @Inject
-    ComponentDao(JPAApi jpa) {
+    ComponentDao(JPAApi jpa, StudyCache studyCache) {
         super(jpa);
+        this.studyCache = studyCache;
     }
 
     public void create(Component component) {
         persist(component);
+        invalidateStudyCache(component);
     }
 
     public void update(Component component) {
         merge(component);
+        invalidateStudyCache(component);
     }
 
     /**
@@ -37,10 +43,19 @@ public class ComponentDao extends AbstractDao {
     public void changeActive(Component component, boolean active) {
         component.setActive(active);
         merge(component);
+        invalidateStudyCache(component);
     }
 
     public void remove(Component component) {
         super.remove(component);
+        invalidateStudyCache(component);
+    }
+
+    /**
+     * Components are cached together with their study
+     */
+    private void invalidateStudyCache(Component component) {
+        if (component.getStudy() != null) studyCache.invalidate(component.getStudy().getId());
     }
 
     public Component findById(Long id) {
@@ -2,13 +2,20 @@ package daos.common;
 
 import models.common.Component;
 import models.common.ComponentResult;
+import models.common.ComponentResultChunk;
 import models.common.StudyResult;
 import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.persistence.Query;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * DAO for ComponentResult entity
@@ -31,6 +38,21 @@ public class ComponentResultDao extends AbstractDao {
         merge(componentResult);
     }
 
+    /**
+     * Appends the given result data to the ComponentResult's data. The data are persisted as a new
+     * ComponentResultChunk and the running data size is increased - the already stored result data are neither loaded
+     * nor rewritten. The chunk is added to the ComponentResult's chunk list too, so getData() includes it within the
+     * same transaction (Hibernate queues the addition if the list isn't loaded yet).
+     */
+    public void appendData(ComponentResult componentResult, String data) {
+        long size = componentResult.getDataSize() + data.getBytes(StandardCharsets.UTF_8).length;
+        ComponentResultChunk chunk = new ComponentResultChunk(componentResult, data);
+        persist(chunk);
+        componentResult.getDataChunkList().add(chunk);
+        componentResult.setDataSize(size);
+        merge(componentResult);
+    }
+
     public void remove(ComponentResult componentResult) {
         super.remove(componentResult);
     }
@@ -85,4 +107,97 @@ public class ComponentResultDao extends AbstractDao {
                 .getResultList();
     }
 
+    /**
+     * Returns up to max ComponentResults that belong to the given Component and have an ID greater than lastId,
+     * ordered by ID (keyset pagination). The StudyResult, its Batch and Worker, and the Component with its Study are
+     * fetched in the same query since they are all needed to render a results table row.
+     */
+    public List<ComponentResult> findAllByComponentAfterId(Component component, long lastId, int max) {
+        return jpa.em().createQuery("SELECT cr FROM ComponentResult cr "
+                + "JOIN FETCH cr.studyResult sr JOIN FETCH sr.batch JOIN FETCH sr.worker "
+                + "JOIN FETCH cr.component c JOIN FETCH c.study "
+                + "WHERE cr.component=:component AND cr.id > :lastId ORDER BY cr.id", ComponentResult.class)
+                .setMaxResults(max)
+                .setParameter("component", component)
+                .setParameter("lastId", lastId)
+                .getResultList();
+    }
+
+    /**
+     * Returns the ComponentResults with the given IDs (in no particular order) together with their Component, Study
+     * and appended result data chunks - everything needed to export their result data.
+     */
+    public List<ComponentResult> findAllByIdsWithData(Collection<Long> ids) {
+        if (ids.isEmpty()) return new ArrayList<>();
+        return jpa.em().createQuery("SELECT DISTINCT cr FROM ComponentResult cr "
+                + "JOIN FETCH cr.studyResult JOIN FETCH cr.component c JOIN FETCH c.study "
+                + "LEFT JOIN FETCH cr.dataChunkList WHERE cr.id IN :ids", ComponentResult.class)
+                .setParameter("ids", ids)
+                .getResultList();
+    }
+
+    /**
+     * Returns the result data sizes (in bytes, null for ComponentResults stored before the size was recorded) of the
+     * ComponentResults with the given IDs mapped by their IDs (in no particular order) - without loading their result
+     * data
+     */
+    public Map<Long, Long> findDataSizesByIds(Collection<Long> ids) {
+        Map<Long, Long> dataSizes = new HashMap<>();
+        if (ids.isEmpty()) return dataSizes;
+        List<?> rows = jpa.em().createQuery("SELECT cr.id, cr.dataSize FROM ComponentResult cr WHERE cr.id IN :ids")
+                .setParameter("ids", ids)
+                .getResultList();
+        for (Object result : rows) {
+            Object[] row = (Object[]) result;
+            dataSizes.put((Long) row[0], (Long) row[1]);
+        }
+        return dataSizes;
+    }
+
+    /**
+     * Returns the result data sizes (in bytes, null for ComponentResults stored before the size was recorded) of all
+     * ComponentResults of the StudyResults with the given IDs - without loading their result data. They are mapped by
+     * StudyResult ID and then by ComponentResult ID (ordered by ID).
+     */
+    public Map<Long, Map<Long, Long>> findDataSizesByStudyResultIds(Collection<Long> studyResultIds) {
+        Map<Long, Map<Long, Long>> dataSizes = new HashMap<>();
+        if (studyResultIds.isEmpty()) return dataSizes;
+        List<?> rows = jpa.em().createQuery("SELECT cr.studyResult.id, cr.id, cr.dataSize FROM ComponentResult cr "
+                + "WHERE cr.studyResult.id IN :studyResultIds ORDER BY cr.id")
+                .setParameter("studyResultIds", studyResultIds)
+                .getResultList();
+        for (Object result : rows) {
+            Object[] row = (Object[]) result;
+            dataSizes.computeIfAbsent((Long) row[0], id -> new LinkedHashMap<>()).put((Long) row[1], (Long) row[2]);
+        }
+        return dataSizes;
+    }
+
+    /**
+     * Returns up to max ComponentResults with an ID greater than lastId, ordered by ID (keyset pagination), that have
+     * result data stored as plain text of at least minDataSize bytes that weren't tried to compress yet (no
+     * dataFormat) and whose study run is already finished (their result data won't change anymore).
+     */
+    public List<ComponentResult> findAllWithPlainDataOfFinishedStudyResultsAfterId(long lastId, long minDataSize,
+            int max) {
+        return jpa.em().createQuery("SELECT cr FROM ComponentResult cr JOIN cr.studyResult sr "
+                + "WHERE cr.id > :lastId AND cr.data IS NOT NULL AND cr.dataFormat IS NULL "
+                + "AND sr.endDate IS NOT NULL AND (cr.dataSize IS NULL OR cr.dataSize >= :minDataSize) ORDER BY cr.id",
+                ComponentResult.class)
+                .setMaxResults(max)
+                .setParameter("lastId", lastId)
+                .setParameter("minDataSize", minDataSize)
+                .getResultList();
+    }
+
+    /**
+     * Returns the number of ComponentResults that have result data stored under the given data pointer
+     */
+    public long countByDataPointer(String dataPointer) {
+        return jpa.em().createQuery("SELECT COUNT(cr) FROM ComponentResult cr WHERE cr.dataPointer = :dataPointer",
+                Long.class)
+                .setParameter("dataPointer", dataPointer)
+                .getSingleResult();
+    }
+
 }
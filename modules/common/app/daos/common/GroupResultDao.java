@@ -1,5 +1,6 @@
 package daos.common;
 
+import general.common.GroupMatchmaker;
 import models.common.Batch;
 import models.common.GroupResult;
 import models.common.GroupResult.GroupState;
@@ -7,35 +8,40 @@ import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import javax.persistence.LockModeType;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import java.util.List;
 
 /**
- * DAO for GroupResult
+ * DAO for GroupResult. All changes are passed on to the GroupMatchmaker to keep its index of open groups up to date.
  *
  * @author Kristian Lange
  */
 @Singleton
 public class GroupResultDao extends AbstractDao {
 
+    private final GroupMatchmaker groupMatchmaker;
+
     @Inject
-    GroupResultDao(JPAApi jpa) {
+    GroupResultDao(JPAApi jpa, GroupMatchmaker groupMatchmaker) {
         super(jpa);
+        this.groupMatchmaker = groupMatchmaker;
     }
 
     public GroupResult create(GroupResult groupResult) {
         persist(groupResult);
+        groupMatchmaker.update(groupResult);
         return groupResult;
     }
 
     public void update(GroupResult groupResult) {
         merge(groupResult);
+        groupMatchmaker.update(groupResult);
     }
 
     public void remove(GroupResult groupResult) {
         super.remove(groupResult);
+        groupMatchmaker.remove(groupResult);
     }
 
     public void refresh(GroupResult groupResult) {
@@ -60,26 +66,54 @@ public class GroupResultDao extends AbstractDao {
     }
 
     /**
-     * Searches the database for GroupResults that fit the criteria: 1) are in the given batch, 2) are in state STARTED,
-     * 3) where the activeMemberCount < Batch's maxActiveMembers, 3) activeMemberCount + historyMemberCount < Batch's
-     * maxTotalMembers. Additionally the results are ordered by the activeMemberCount (highest first) and as a secondary
-     * sorting criteria it orders by historyMemberCount (highest first).
-     *
-     * We use a PESSIMISTIC_WRITE lock to let GroupResults always have the current activeMemberCount and
-     * historyMemberCount.
+     * Writes the given group session data and version - but only if the stored group session version is still the
+     * expected one (otherwise someone else changed the group session meanwhile) and the group isn't FINISHED (the
+     * session data of a finished group are deleted and a late write from a GroupDispatcher must not restore them).
+     * Returns true if the GroupResult was updated.
+     */
+    public boolean updateGroupSession(Long groupResultId, String groupSessionData, Long groupSessionVersion,
+            Long expectedVersion) {
+        return updateGroupSession(groupResultId, groupSessionData, groupSessionVersion, expectedVersion, false);
+    }
+
+    /**
+     * Like updateGroupSession(Long, String, Long, Long) but with evenIfFinished the group session of a FINISHED group
+     * is written too (e.g. a deliberate edit in the GUI).
+     */
+    public boolean updateGroupSession(Long groupResultId, String groupSessionData, Long groupSessionVersion,
+            Long expectedVersion, boolean evenIfFinished) {
+        String queryStr = "UPDATE GroupResult gr SET "
+                + "gr.groupSessionData=:groupSessionData, "
+                + "gr.groupSessionVersion=:groupSessionVersion "
+                + "WHERE gr.id=:id AND gr.groupSessionVersion=:expectedVersion";
+        if (!evenIfFinished) queryStr += " AND gr.groupState<>:finished";
+        Query query = jpa.em().createQuery(queryStr)
+                .setParameter("groupSessionData", groupSessionData)
+                .setParameter("groupSessionVersion", groupSessionVersion)
+                .setParameter("id", groupResultId)
+                .setParameter("expectedVersion", expectedVersion);
+        if (!evenIfFinished) query.setParameter("finished", GroupState.FINISHED);
+        return query.executeUpdate() > 0;
+    }
+
+    /**
+     * Deletes the group session data of the given GroupResult (e.g. when the group is finished)
+     */
+    public void removeGroupSessionData(GroupResult groupResult) {
+        String queryStr = "UPDATE GroupResult gr SET gr.groupSessionData=NULL WHERE gr.id=:id";
+        jpa.em().createQuery(queryStr).setParameter("id", groupResult.getId()).executeUpdate();
+        groupResult.setGroupSessionData(null);
+    }
+
+    /**
+     * Returns all GroupResults of the given batch that are in state STARTED (open groups). No locking - the member
+     * counts are only used to fill the GroupMatchmaker's index.
      */
-    public List<GroupResult> findAllMaxNotReached(Batch batch) {
-        String queryStr = "SELECT gr FROM GroupResult gr, Batch b "
-                + "WHERE gr.batch=:batch "
-                + "AND b.id=:batch "
-                + "AND gr.groupState=:groupState "
-                + "AND (b.maxActiveMembers is null OR gr.activeMemberCount < b.maxActiveMembers) "
-                + "AND (b.maxTotalMembers is null OR (gr.activeMemberCount + gr.historyMemberCount) < b.maxTotalMembers) "
-                + "ORDER BY gr.activeMemberCount DESC, gr.historyMemberCount DESC";
+    public List<GroupResult> findAllStartedByBatch(Batch batch) {
+        String queryStr = "SELECT gr FROM GroupResult gr WHERE gr.batch=:batch AND gr.groupState=:groupState";
         TypedQuery<GroupResult> query = jpa.em().createQuery(queryStr, GroupResult.class);
         query.setParameter("batch", batch);
         query.setParameter("groupState", GroupState.STARTED);
-        query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
         return query.getResultList();
     }
 
@@ -0,0 +1,112 @@
+package daos.common;
+
+import models.common.ResultUploadFile;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.*;
+
+/**
+ * DAO for ResultUploadFile entity (index of the uploaded result files)
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultUploadFileDao extends AbstractDao {
+
+    @Inject
+    ResultUploadFileDao(JPAApi jpa) {
+        super(jpa);
+    }
+
+    public void create(ResultUploadFile resultUploadFile) {
+        persist(resultUploadFile);
+    }
+
+    public void update(ResultUploadFile resultUploadFile) {
+        merge(resultUploadFile);
+    }
+
+    /**
+     * Returns the ResultUploadFile with this filename of the given component result - or null if it doesn't exist
+     */
+    public ResultUploadFile findByComponentResultIdAndFilename(Long componentResultId, String filename) {
+        List<ResultUploadFile> list = jpa.em().createQuery("SELECT ruf FROM ResultUploadFile ruf "
+                + "WHERE ruf.componentResultId = :componentResultId AND ruf.filename = :filename",
+                ResultUploadFile.class)
+                .setParameter("componentResultId", componentResultId)
+                .setParameter("filename", filename)
+                .setMaxResults(1)
+                .getResultList();
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    public List<ResultUploadFile> findAllByComponentResultId(Long componentResultId) {
+        return jpa.em().createQuery("SELECT ruf FROM ResultUploadFile ruf "
+                + "WHERE ruf.componentResultId = :componentResultId ORDER BY ruf.filename", ResultUploadFile.class)
+                .setParameter("componentResultId", componentResultId)
+                .getResultList();
+    }
+
+    public List<ResultUploadFile> findAllByStudyResultId(Long studyResultId) {
+        return jpa.em().createQuery("SELECT ruf FROM ResultUploadFile ruf "
+                + "WHERE ruf.studyResultId = :studyResultId ORDER BY ruf.componentResultId, ruf.filename",
+                ResultUploadFile.class)
+                .setParameter("studyResultId", studyResultId)
+                .getResultList();
+    }
+
+    public List<ResultUploadFile> findAllByStudyResultIds(Collection<Long> studyResultIds) {
+        if (studyResultIds.isEmpty()) return new ArrayList<>();
+        return jpa.em().createQuery("SELECT ruf FROM ResultUploadFile ruf WHERE ruf.studyResultId IN :studyResultIds "
+                + "ORDER BY ruf.studyResultId, ruf.componentResultId, ruf.filename", ResultUploadFile.class)
+                .setParameter("studyResultIds", studyResultIds)
+                .getResultList();
+    }
+
+    public List<ResultUploadFile> findAllByComponentResultIds(Collection<Long> componentResultIds) {
+        if (componentResultIds.isEmpty()) return new ArrayList<>();
+        return jpa.em().createQuery("SELECT ruf FROM ResultUploadFile ruf "
+                + "WHERE ruf.componentResultId IN :componentResultIds "
+                + "ORDER BY ruf.studyResultId, ruf.componentResultId, ruf.filename", ResultUploadFile.class)
+                .setParameter("componentResultIds", componentResultIds)
+                .getResultList();
+    }
+
+    /**
+     * Returns the size of all files (in bytes) that were uploaded by the given study result
+     */
+    public long sumFileSizeByStudyResultId(Long studyResultId) {
+        Number result = (Number) jpa.em().createQuery("SELECT SUM(ruf.fileSize) FROM ResultUploadFile ruf "
+                + "WHERE ruf.studyResultId = :studyResultId")
+                .setParameter("studyResultId", studyResultId)
+                .getSingleResult();
+        return result != null ? result.longValue() : 0;
+    }
+
+    /**
+     * Returns those of the given study result IDs that have uploaded files
+     */
+    public Set<Long> findStudyResultIdsWithFiles(Collection<Long> studyResultIds) {
+        if (studyResultIds.isEmpty()) return new HashSet<>();
+        List<Long> list = jpa.em().createQuery("SELECT DISTINCT ruf.studyResultId FROM ResultUploadFile ruf "
+                + "WHERE ruf.studyResultId IN :studyResultIds", Long.class)
+                .setParameter("studyResultIds", studyResultIds)
+                .getResultList();
+        return new HashSet<>(list);
+    }
+
+    public void removeAllByStudyResultId(Long studyResultId) {
+        jpa.em().createQuery("DELETE FROM ResultUploadFile ruf WHERE ruf.studyResultId = :studyResultId")
+                .setParameter("studyResultId", studyResultId)
+                .executeUpdate();
+    }
+
+    public void removeAllByComponentResultId(Long componentResultId) {
+        jpa.em().createQuery("DELETE FROM ResultUploadFile ruf WHERE ruf.componentResultId = :componentResultId")
+                .setParameter("componentResultId", componentResultId)
+                .executeUpdate();
+    }
+
+}
@@ -1,7 +1,9 @@
 package daos.common;
 
+import general.common.StudyCache;
 import models.common.Study;
 import models.common.User;
+import org.hibernate.Hibernate;
 import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
@@ -18,9 +20,12 @@ import java.util.Optional;
 @Singleton
 public class StudyDao extends AbstractDao {
 
+    private final StudyCache studyCache;
+
     @Inject
-    StudyDao(JPAApi jpa) {
+    StudyDao(JPAApi jpa, StudyCache studyCache) {
         super(jpa);
+        this.studyCache = studyCache;
     }
 
     public void create(Study study) {
@@ -29,16 +34,33 @@ public class StudyDao extends AbstractDao {
 
     public void remove(Study study) {
         super.remove(study);
+        studyCache.remove(study.getId());
     }
 
     public void update(Study study) {
         merge(study);
+        studyCache.invalidate(study.getId());
     }
 
     public Study findById(Long id) {
         return jpa.em().find(Study.class, id);
     }
 
+    /**
+     * Like {@link #findById(Long)} but the returned study is detached from the persistence context and has its
+     * components, users and batches already loaded. It's meant to be cached (e.g. by the StudyCache) and shared
+     * between requests and therefore must not be changed. Returns null if the study doesn't exist.
+     */
+    public Study findByIdDetached(Long id) {
+        Study study = findById(id);
+        if (study == null) return null;
+        Hibernate.initialize(study.getComponentList());
+        Hibernate.initialize(study.getUserList());
+        Hibernate.initialize(study.getBatchList());
+        jpa.em().detach(study);
+        return study;
+    }
+
     public Optional<Study> findByUuid(String uuid) {
         String queryStr = "SELECT s FROM Study s WHERE " + "s.uuid=:uuid";
         List<Study> studyList = jpa.em().createQuery(queryStr, Study.class)
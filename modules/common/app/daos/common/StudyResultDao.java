@@ -8,9 +8,12 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import static models.common.StudyResult.StudyState;
 
@@ -47,6 +50,17 @@ public class StudyResultDao extends AbstractDao {
         return jpa.em().find(StudyResult.class, id);
     }
 
+    /**
+     * Returns the StudyResults with the given IDs (in no particular order) together with their Study
+     */
+    public List<StudyResult> findAllByIds(Collection<Long> ids) {
+        if (ids.isEmpty()) return new ArrayList<>();
+        return jpa.em().createQuery("SELECT sr FROM StudyResult sr JOIN FETCH sr.study WHERE sr.id IN :ids",
+                StudyResult.class)
+                .setParameter("ids", ids)
+                .getResultList();
+    }
+
     /**
      * Returns the number of StudyResult rows
      */
@@ -198,6 +212,96 @@ public class StudyResultDao extends AbstractDao {
                 .getResultList();
     }
 
+    /**
+     * Returns up to max StudyResultRows of StudyResults that belong to the given Study and have an ID greater than
+     * lastId, ordered by ID. Used for keyset pagination: unlike OFFSET pagination every page is a cheap index range
+     * scan, no matter how deep into the results it is.
+     */
+    public List<StudyResultRow> findAllRowsByStudyAfterId(Study study, long lastId, int max) {
+        return findRows("sr.study=:study", lastId, max, q -> q.setParameter("study", study));
+    }
+
+    /**
+     * Returns up to max StudyResultRows of StudyResults that belong to the given Batch and have an ID greater than
+     * lastId, ordered by ID (keyset pagination).
+     */
+    public List<StudyResultRow> findAllRowsByBatchAfterId(Batch batch, long lastId, int max) {
+        return findRows("sr.batch=:batch", lastId, max, q -> q.setParameter("batch", batch));
+    }
+
+    /**
+     * Returns up to max StudyResultRows of StudyResults that belong to the given Batch and worker type and have an ID
+     * greater than lastId, ordered by ID (keyset pagination).
+     */
+    public List<StudyResultRow> findAllRowsByBatchAndWorkerTypeAfterId(Batch batch, String workerType, long lastId,
+            int max) {
+        return findRows("sr.batch=:batch AND sr.worker IN (SELECT w FROM Worker w WHERE w.class=:workerType)",
+                lastId, max, q -> q.setParameter("batch", batch).setParameter("workerType", workerType));
+    }
+
+    /**
+     * Returns up to max StudyResultRows of StudyResults that belong to the given Worker and User and have an ID
+     * greater than lastId, ordered by ID (keyset pagination). It checks for each StudyResult if its Study has the
+     * given User as a member.
+     */
+    public List<StudyResultRow> findAllRowsByWorkerAfterId(Worker worker, User user, long lastId, int max) {
+        return findRows("sr.worker = :worker AND sr.study IN "
+                        + "(SELECT s FROM Study s JOIN s.userList ul where ul.username = :username)", lastId, max,
+                q -> q.setParameter("worker", worker).setParameter("username", user.getUsername()));
+    }
+
+    /**
+     * Returns up to max StudyResultRows of StudyResults that belong to the given group (active or history member)
+     * and have an ID greater than lastId, ordered by ID (keyset pagination).
+     */
+    public List<StudyResultRow> findAllRowsByGroupAfterId(GroupResult groupResult, long lastId, int max) {
+        return findRows("(sr.activeGroupResult = :group OR sr.historyGroupResult = :group)", lastId, max,
+                q -> q.setParameter("group", groupResult));
+    }
+
+    /**
+     * Fetches a page of StudyResultRows in one query: the StudyResults together with their Study, Batch and Worker
+     * (fetch joins) and the number of their ComponentResults (subquery). This way rendering a row doesn't need any
+     * further queries (group result IDs are taken from the uninitialised proxies).
+     */
+    private List<StudyResultRow> findRows(String where, long lastId, int max, Consumer<Query> parameterSetter) {
+        Query query = jpa.em().createQuery("SELECT sr, "
+                + "(SELECT COUNT(cr) FROM ComponentResult cr WHERE cr.studyResult = sr) "
+                + "FROM StudyResult sr JOIN FETCH sr.study JOIN FETCH sr.batch JOIN FETCH sr.worker "
+                + "WHERE " + where + " AND sr.id > :lastId ORDER BY sr.id")
+                .setMaxResults(max)
+                .setParameter("lastId", lastId);
+        parameterSetter.accept(query);
+        List<StudyResultRow> rows = new ArrayList<>();
+        for (Object result : query.getResultList()) {
+            Object[] row = (Object[]) result;
+            rows.add(new StudyResultRow((StudyResult) row[0], ((Number) row[1]).intValue()));
+        }
+        return rows;
+    }
+
+    /**
+     * A StudyResult together with the number of its ComponentResults - one row of a results table
+     */
+    public static class StudyResultRow {
+
+        private final StudyResult studyResult;
+        private final int componentResultCount;
+
+        StudyResultRow(StudyResult studyResult, int componentResultCount) {
+            this.studyResult = studyResult;
+            this.componentResultCount = componentResultCount;
+        }
+
+        public StudyResult getStudyResult() {
+            return studyResult;
+        }
+
+        public int getComponentResultCount() {
+            return componentResultCount;
+        }
+    }
+
     public List<StudyResultStatus> findLastUnfinished(int count) {
         String queryStr = "SELECT srs FROM StudyResultStatus srs "
                 + "WHERE srs.studyState in :studyStates "
@@ -12,6 +12,7 @@ import javax.inject.Singleton;
 import java.io.File;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
@@ -37,6 +38,12 @@ public class Common {
      */
     private static final String PROPERTY_STUDY_ASSETS_ROOT_PATH = "jatos.studyAssetsRootPath";
 
+    /**
+     * Property name in application config - path (file system) to precompressed study assets
+     */
+    private static final String PROPERTY_JATOS_STUDY_ASSETS_PRECOMPRESSION_PATH =
+            "jatos.studyAssets.precompression.path";
+
     /**
      * Property name in application config - path (file system) to study logs
      */
@@ -47,17 +54,33 @@ public class Common {
      */
     private static final String PROPERTY_JATOS_RESULT_UPLOADS_PATH = "jatos.resultUploads.path";
 
+    /**
+     * Property name in application config - path (file system) to result data stored outside the database
+     */
+    private static final String PROPERTY_JATOS_RESULT_DATA_STORAGE_PATH = "jatos.resultData.storage.path";
+
     private static String jatosVersion;
     private static String basepath;
     private static String studyAssetsRootPath;
+    private static boolean studyAssetsPrecompressionEnabled;
+    private static String studyAssetsPrecompressionPath;
     private static boolean studyLogsEnabled;
     private static String studyLogsPath;
+    private static boolean studyLogsFsync;
+    private static long studyLogsRotationMaxSize;
+    private static Duration studyLogsRotationMaxAge;
     private static boolean resultUploadsEnabled;
     private static String resultUploadsPath;
     private static long resultUploadsMaxFileSize;
     private static long resultUploadsLimitPerStudyRun;
     private static long resultDataMaxSize;
+    private static boolean resultDataCompressionEnabled;
+    private static String resultDataStorageType;
+    private static String resultDataStoragePath;
     private static int maxResultsDbQuerySize;
+    private static Duration heartbeatFlushInterval;
+    private static Duration channelSessionFlushInterval;
+    private static int channelSessionFlushAfterVersions;
     private static boolean inMemoryDb;
     private static int userSessionTimeout;
     private static int userSessionInactivity;
@@ -98,14 +121,25 @@ public class Common {
         jatosVersion = BuildInfo.version();
         basepath = fillBasePath(application);
         studyAssetsRootPath = fillStudyAssetsRootPath(config);
+        studyAssetsPrecompressionEnabled = config.getBoolean("jatos.studyAssets.precompression.enabled");
+        studyAssetsPrecompressionPath = fillStudyAssetsPrecompressionPath(config);
         studyLogsEnabled = config.getBoolean("jatos.studyLogs.enabled");
         studyLogsPath = fillStudyLogsPath(config);
+        studyLogsFsync = config.getBoolean("jatos.studyLogs.fsync");
+        studyLogsRotationMaxSize = config.getBytes("jatos.studyLogs.rotation.maxSize");
+        studyLogsRotationMaxAge = config.getDuration("jatos.studyLogs.rotation.maxAge");
         resultUploadsEnabled = config.getBoolean("jatos.resultUploads.enabled");
         resultUploadsPath = fillResultUploadsPath(config);
         resultUploadsMaxFileSize = config.getBytes("jatos.resultUploads.maxFileSize");
         resultUploadsLimitPerStudyRun = config.getBytes("jatos.resultUploads.limitPerStudyRun");
         resultDataMaxSize = config.getBytes("jatos.resultData.maxSize");
+        resultDataCompressionEnabled = config.getBoolean("jatos.resultData.compression.enabled");
+        resultDataStorageType = config.getString("jatos.resultData.storage.type");
+        resultDataStoragePath = fillResultDataStoragePath(config);
         maxResultsDbQuerySize = config.getInt("jatos.maxResultsDbQuerySize");
+        heartbeatFlushInterval = config.getDuration("jatos.heartbeat.flushInterval");
+        channelSessionFlushInterval = config.getDuration("jatos.channelSession.flushInterval");
+        channelSessionFlushAfterVersions = config.getInt("jatos.channelSession.flushAfterVersions");
         inMemoryDb = config.getString("db.default.url").contains("jdbc:h2:mem:");
         userSessionTimeout = config.getInt("jatos.userSession.timeout");
         userSessionInactivity = config.getInt("jatos.userSession.inactivity");
@@ -155,6 +189,17 @@ public class Common {
         return tempStudyAssetsRootPath;
     }
 
+    private String fillStudyAssetsPrecompressionPath(Config config) {
+        String tmpPrecompressionPath = obtainPath(config, PROPERTY_JATOS_STUDY_ASSETS_PRECOMPRESSION_PATH).orElseThrow(
+                () -> new RuntimeException("Missing configuration of path to precompressed study assets directory: "
+                        + "It must be set in application.conf under "
+                        + PROPERTY_JATOS_STUDY_ASSETS_PRECOMPRESSION_PATH + "."));
+        if (studyAssetsPrecompressionEnabled) {
+            LOGGER.info("Path to precompressed study assets directory is " + tmpPrecompressionPath);
+        }
+        return tmpPrecompressionPath;
+    }
+
     private String fillStudyLogsPath(Config config) {
         String tmpStudyLogPath = obtainPath(config, PROPERTY_JATOS_STUDY_LOGS_PATH).orElseThrow(() ->
                 new RuntimeException("Missing configuration of path to study logs directory: "
@@ -171,6 +216,16 @@ public class Common {
         return tmpResultUploadsPath;
     }
 
+    private String fillResultDataStoragePath(Config config) {
+        String tmpResultDataStoragePath = obtainPath(config, PROPERTY_JATOS_RESULT_DATA_STORAGE_PATH).orElseThrow(
+                () -> new RuntimeException("Missing configuration of path to result data directory: "
+                        + "It must be set in application.conf under " + PROPERTY_JATOS_RESULT_DATA_STORAGE_PATH + "."));
+        if (resultDataStorageType.equals("file")) {
+            LOGGER.info("Path to result data directory is " + tmpResultDataStoragePath);
+        }
+        return tmpResultDataStoragePath;
+    }
+
     private Optional<String> obtainPath(Config config, String property) {
         String path = config.getString(property);
         if (Strings.isNullOrEmpty(path)) return Optional.empty();
@@ -231,6 +286,20 @@ public class Common {
         return studyAssetsRootPath;
     }
 
+    /**
+     * Should study assets be served compressed (if the browser accepts it)?
+     */
+    public static boolean isStudyAssetsPrecompressionEnabled() {
+        return studyAssetsPrecompressionEnabled;
+    }
+
+    /**
+     * Path in the file system where JATOS stores the compressed variants of the study assets files
+     */
+    public static String getStudyAssetsPrecompressionPath() {
+        return studyAssetsPrecompressionPath;
+    }
+
     /**
      * Is study logging enabled
      */
@@ -245,6 +314,27 @@ public class Common {
         return studyLogsPath;
     }
 
+    /**
+     * Should the study logs be forced to the disk after each write?
+     */
+    public static boolean isStudyLogsFsync() {
+        return studyLogsFsync;
+    }
+
+    /**
+     * A study log's active segment is rotated if it gets bigger than this (in bytes, 0 means never)
+     */
+    public static long getStudyLogsRotationMaxSize() {
+        return studyLogsRotationMaxSize;
+    }
+
+    /**
+     * A study log's active segment is rotated if its first entry is older than this (0 means never)
+     */
+    public static Duration getStudyLogsRotationMaxAge() {
+        return studyLogsRotationMaxAge;
+    }
+
     /**
      * Are file uploads via jatos.js allowed?
      */
@@ -280,6 +370,27 @@ public class Common {
         return resultDataMaxSize;
     }
 
+    /**
+     * Should result data be stored compressed (gzip) in the database?
+     */
+    public static boolean isResultDataCompressionEnabled() {
+        return resultDataCompressionEnabled;
+    }
+
+    /**
+     * Where new result data are stored: 'db' (in the database) or 'file' (in the file system)
+     */
+    public static String getResultDataStorageType() {
+        return resultDataStorageType;
+    }
+
+    /**
+     * Path in the file system where JATOS stores result data (only used with storage type 'file')
+     */
+    public static String getResultDataStoragePath() {
+        return resultDataStoragePath;
+    }
+
     /**
      * Maximal number of results to be fetched from the DB at once
      */
@@ -287,6 +398,28 @@ public class Common {
         return maxResultsDbQuerySize;
     }
 
+    /**
+     * Interval in which the last seen dates of study results (from heartbeats) are written to the DB
+     */
+    public static Duration getHeartbeatFlushInterval() {
+        return heartbeatFlushInterval;
+    }
+
+    /**
+     * Interval in which the batch and group session data that are kept in memory are written to the DB
+     */
+    public static Duration getChannelSessionFlushInterval() {
+        return channelSessionFlushInterval;
+    }
+
+    /**
+     * Number of batch or group session versions after which the session data are written to the DB (regardless of the
+     * flush interval)
+     */
+    public static int getChannelSessionFlushAfterVersions() {
+        return channelSessionFlushAfterVersions;
+    }
+
     /**
      * Is true if an in-memory database is used.
      */
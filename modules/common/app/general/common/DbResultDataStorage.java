@@ -0,0 +1,40 @@
+package general.common;
+
+import models.common.ComponentResult;
+import models.common.ComponentResult.DataFormat;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Stores the result data in the database (in the ComponentResult itself), compressed if result data compression is
+ * enabled
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class DbResultDataStorage implements ResultDataStorage {
+
+    @Override
+    public void store(ComponentResult componentResult, Path dataFile, long dataSize, String dataHash)
+            throws IOException {
+        String data = new String(Files.readAllBytes(dataFile), StandardCharsets.UTF_8);
+        DataFormat dataFormat = Common.isResultDataCompressionEnabled() ? DataFormat.GZIP : DataFormat.PLAIN;
+        componentResult.setData(data, dataFormat);
+    }
+
+    @Override
+    public InputStream read(ComponentResult componentResult) {
+        return componentResult.getDataAsStream();
+    }
+
+    @Override
+    public void delete(String dataPointer) {
+        // Nothing to do: the result data are removed together with their ComponentResult
+    }
+
+}
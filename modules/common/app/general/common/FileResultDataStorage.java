@@ -0,0 +1,152 @@
+package general.common;
+
+import com.google.common.util.concurrent.Striped;
+import models.common.ComponentResult;
+import play.Logger;
+import utils.common.CompressionUtils;
+
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stores the result data in the file system under the result data storage path. The files are content-addressed: the
+ * file name is the SHA-256 hash of the result data and the first two characters of the hash are used as a
+ * sub-directory (e.g. 'ab/ab12...ef'). This way identical result data are stored only once. If result data
+ * compression is enabled the files are gzipped and get the suffix '.gz'. The ComponentResult keeps the relative path
+ * as its data pointer. Appended result data chunks are still stored in the database.
+ * <p>
+ * Since a file can be shared by several ComponentResults it must only be deleted if no ComponentResult points to it
+ * anymore - and the ComponentResult that is about to point to it might not be committed yet. Therefore storing
+ * identical result data again touches the file (last modified time) and {@link #deleteIfUnused} doesn't delete files
+ * that were touched recently. Both run under a lock per data pointer.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class FileResultDataStorage implements ResultDataStorage {
+
+    private static final Logger.ALogger LOGGER = Logger.of(FileResultDataStorage.class);
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    @Override
+    public void store(ComponentResult componentResult, Path dataFile, long dataSize, String dataHash)
+            throws IOException {
+        boolean compress = Common.isResultDataCompressionEnabled();
+        String dataPointer = dataHash.substring(0, 2) + "/" + dataHash + (compress ? GZIP_SUFFIX : "");
+        Path file = getPath(dataPointer);
+        Lock lock = locks.get(dataPointer);
+        lock.lock();
+        try {
+            writeIfNotExists(file, dataFile, dataHash, compress);
+        } finally {
+            lock.unlock();
+        }
+        componentResult.setDataPointer(dataPointer, dataHash, dataSize);
+    }
+
+    private void writeIfNotExists(Path file, Path dataFile, String dataHash, boolean compress) throws IOException {
+        // Identical result data might be already stored
+        if (!Files.exists(file)) {
+            Files.createDirectories(file.getParent());
+            // Write into a temporary file next to the target first and then rename it so that no one ever sees a
+            // half written file. Without compression the data file is just moved (no copy on the same file system).
+            Path tmpFile = Files.createTempFile(file.getParent(), dataHash, ".tmp");
+            try {
+                if (compress) {
+                    CompressionUtils.gzip(dataFile, tmpFile);
+                } else {
+                    Files.move(dataFile, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+        // Mark the file as used so it isn't deleted before the ComponentResult pointing to it is committed
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    @Override
+    public InputStream read(ComponentResult componentResult) throws IOException {
+        String dataPointer = componentResult.getDataPointer();
+        InputStream in = Files.newInputStream(getPath(dataPointer));
+        if (dataPointer.endsWith(GZIP_SUFFIX)) in = new GZIPInputStream(in);
+        // Appended chunks are still in the database
+        InputStream chunks = componentResult.getDataAsStream();
+        return chunks != null ? new SequenceInputStream(in, chunks) : in;
+    }
+
+    @Override
+    public void delete(String dataPointer) throws IOException {
+        Path file = getPath(dataPointer);
+        if (Files.deleteIfExists(file)) {
+            LOGGER.debug(".delete: deleted result data file " + file);
+        }
+    }
+
+    /**
+     * Deletes the result data file with the given data pointer if it wasn't used within the given time and isn't
+     * referenced (checked by the given BooleanSupplier). Returns false if the file was used too recently to decide -
+     * then it should be checked again later. Returns true otherwise (deleted, still referenced or already gone).
+     */
+    public boolean deleteIfUnused(String dataPointer, Duration minUnusedTime, BooleanSupplier isReferenced)
+            throws IOException {
+        Path file = getPath(dataPointer);
+        Lock lock = locks.get(dataPointer);
+        lock.lock();
+        try {
+            if (!Files.exists(file)) return true;
+            long lastUsed = Files.getLastModifiedTime(file).toMillis();
+            if (System.currentTimeMillis() - lastUsed < minUnusedTime.toMillis()) return false;
+            if (!isReferenced.getAsBoolean()) delete(dataPointer);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the data pointers of all result data files in the result data storage directory
+     */
+    public List<String> getAllDataPointers() throws IOException {
+        Path root = Paths.get(Common.getResultDataStoragePath()).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) return Collections.emptyList();
+        try (Stream<Path> files = Files.walk(root, 2)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().endsWith(".tmp"))
+                    .map(file -> root.relativize(file).toString().replace(File.separatorChar, '/'))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns the path of the file with the given data pointer. Throws an IOException if the pointer points outside
+     * of the result data storage directory.
+     */
+    private Path getPath(String dataPointer) throws IOException {
+        Path root = Paths.get(Common.getResultDataStoragePath()).toAbsolutePath().normalize();
+        Path file = root.resolve(dataPointer).normalize();
+        if (!file.startsWith(root)) throw new IOException("Invalid result data pointer " + dataPointer);
+        return file;
+    }
+
+}
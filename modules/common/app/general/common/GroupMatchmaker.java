@@ -0,0 +1,229 @@
+package general.common;
+
+import models.common.Batch;
+import models.common.GroupResult;
+import models.common.GroupResult.GroupState;
+
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * In-memory index of the open groups (GroupResults in state STARTED) of each batch. It's used to find a group for a
+ * joining group member without scanning and locking all GroupResults of the batch in the database.
+ *
+ * The index of a batch is loaded from the database the first time it's used (e.g. after a restart of JATOS) and kept
+ * up to date by the GroupResultDao afterwards. Since changes of GroupResults can be rolled back the index is only a
+ * hint: a group that is picked from the index has to be checked against the database (see
+ * {@link OpenGroups#isUpToDate(GroupResult)}).
+ *
+ * The OpenGroups of a batch are only read and changed by the group assignments (join, reassign, leave) which are
+ * serialized per batch by the caller (BatchLocks in GroupChannel and PublixUtils). Changes of GroupResults that happen
+ * outside of this lock (e.g. in JATOS' GUI) aren't applied directly: they are queued in the OpenGroups and applied by
+ * the next group assignment of the batch.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class GroupMatchmaker {
+
+    private final Map<Long, OpenGroups> openGroupsByBatch = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the open groups of the batch with the given ID. The returned OpenGroups must only be used while holding
+     * the batch's lock (BatchLocks).
+     */
+    public OpenGroups get(Long batchId) {
+        return openGroupsByBatch.computeIfAbsent(batchId, id -> new OpenGroups());
+    }
+
+    /**
+     * Queues the current state of the given GroupResult for the index. Does nothing if the index of the GroupResult's
+     * batch isn't loaded yet. Thread-safe: can be called without the batch's lock.
+     */
+    public void update(GroupResult groupResult) {
+        OpenGroups openGroups = getLoaded(groupResult);
+        if (openGroups == null) return;
+        openGroups.pendingChanges.add(new Change(groupResult.getId(),
+                groupResult.getGroupState() == GroupState.STARTED ? new Entry(groupResult) : null));
+    }
+
+    /**
+     * Queues the removal of the given GroupResult from the index. Thread-safe: can be called without the batch's lock.
+     */
+    public void remove(GroupResult groupResult) {
+        OpenGroups openGroups = getLoaded(groupResult);
+        if (openGroups == null) return;
+        openGroups.pendingChanges.add(new Change(groupResult.getId(), null));
+    }
+
+    /**
+     * Forgets the index of the batch with the given ID, e.g. if the batch was removed
+     */
+    public void removeBatch(Long batchId) {
+        openGroupsByBatch.remove(batchId);
+    }
+
+    private OpenGroups getLoaded(GroupResult groupResult) {
+        if (groupResult.getId() == null || groupResult.getBatch() == null) return null;
+        OpenGroups openGroups = openGroupsByBatch.get(groupResult.getBatch().getId());
+        return openGroups != null && openGroups.isLoaded() ? openGroups : null;
+    }
+
+    /**
+     * Open groups of one batch ordered the same way the groups were ordered by the database before: the group with the
+     * most active members first, then the one with the most history members. Not thread-safe: only to be used while
+     * holding the batch's lock - except for the queue of pending changes.
+     */
+    public static class OpenGroups {
+
+        private static final Comparator<Entry> ORDER = Comparator
+                .comparingInt((Entry e) -> e.activeMemberCount).reversed()
+                .thenComparing(Comparator.comparingInt((Entry e) -> e.historyMemberCount).reversed())
+                .thenComparingLong(e -> e.id);
+
+        private final NavigableSet<Entry> ordered = new TreeSet<>(ORDER);
+
+        private final Map<Long, Entry> entries = new HashMap<>();
+
+        /**
+         * Changes from GroupResultDao that are applied before the index is used the next time
+         */
+        private final Queue<Change> pendingChanges = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean loaded = false;
+
+        public boolean isLoaded() {
+            return loaded;
+        }
+
+        /**
+         * Fills the index with the given GroupResults (all open groups of this batch from the database)
+         */
+        public void load(Collection<GroupResult> groupResults) {
+            ordered.clear();
+            entries.clear();
+            pendingChanges.clear();
+            groupResults.forEach(this::update);
+            loaded = true;
+        }
+
+        /**
+         * Returns the ID of the first group that hasn't reached the batch's maxActiveMembers and maxTotalMembers (the
+         * batch's limits can change any time so they are always taken from the given batch). The group with the given
+         * excluded ID is skipped (can be null).
+         */
+        public Optional<Long> findFirstMaxNotReached(Batch batch, Long excludedId) {
+            applyPendingChanges();
+            for (Entry entry : ordered) {
+                if (entry.id.equals(excludedId)) continue;
+                if (batch.getMaxActiveMembers() != null && entry.activeMemberCount >= batch.getMaxActiveMembers()) {
+                    continue;
+                }
+                if (batch.getMaxTotalMembers() != null
+                        && entry.activeMemberCount + entry.historyMemberCount >= batch.getMaxTotalMembers()) {
+                    continue;
+                }
+                return Optional.of(entry.id);
+            }
+            return Optional.empty();
+        }
+
+        /**
+         * Returns true if the given GroupResult is in this index with the same state and member counts
+         */
+        public boolean isUpToDate(GroupResult groupResult) {
+            applyPendingChanges();
+            Entry entry = entries.get(groupResult.getId());
+            return entry != null && groupResult.getGroupState() == GroupState.STARTED
+                    && entry.equals(new Entry(groupResult));
+        }
+
+        /**
+         * Puts the given GroupResult into the index if it's open (state STARTED) or removes it otherwise
+         */
+        public void update(GroupResult groupResult) {
+            applyPendingChanges();
+            put(groupResult.getId(),
+                    groupResult.getGroupState() == GroupState.STARTED ? new Entry(groupResult) : null);
+        }
+
+        public void remove(Long groupResultId) {
+            applyPendingChanges();
+            put(groupResultId, null);
+        }
+
+        public int size() {
+            applyPendingChanges();
+            return entries.size();
+        }
+
+        private void applyPendingChanges() {
+            Change change;
+            while ((change = pendingChanges.poll()) != null) {
+                put(change.id, change.entry);
+            }
+        }
+
+        /**
+         * Replaces the entry of the group with the given ID (removes it if the new entry is null)
+         */
+        private void put(Long groupResultId, Entry entry) {
+            Entry oldEntry = entries.remove(groupResultId);
+            if (oldEntry != null) ordered.remove(oldEntry);
+            if (entry == null) return;
+            entries.put(groupResultId, entry);
+            ordered.add(entry);
+        }
+
+    }
+
+    /**
+     * Queued change of the index: the new entry of the group with the given ID or null if it has to be removed
+     */
+    private static class Change {
+
+        private final Long id;
+        private final Entry entry;
+
+        private Change(Long id, Entry entry) {
+            this.id = id;
+            this.entry = entry;
+        }
+
+    }
+
+    /**
+     * Immutable snapshot of a GroupResult's member counts
+     */
+    private static class Entry {
+
+        private final Long id;
+        private final int activeMemberCount;
+        private final int historyMemberCount;
+
+        private Entry(GroupResult groupResult) {
+            this.id = groupResult.getId();
+            this.activeMemberCount = groupResult.getActiveMemberCount();
+            this.historyMemberCount = groupResult.getHistoryMemberCount();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
+            Entry entry = (Entry) o;
+            return activeMemberCount == entry.activeMemberCount
+                    && historyMemberCount == entry.historyMemberCount
+                    && id.equals(entry.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, activeMemberCount, historyMemberCount);
+        }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+package general.common;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import models.common.StudyResult;
+import org.hibernate.Session;
+import play.Logger;
+import play.db.jpa.JPAApi;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the heartbeats that jatos.js sends periodically during a study run. Instead of merging the whole
+ * StudyResult for every single heartbeat the last seen dates are kept in memory and written to the DB periodically
+ * (interval is configured via 'jatos.heartbeat.flushInterval') in one JDBC batch. Several heartbeats of the same
+ * StudyResult between two flushes are coalesced into one UPDATE.
+ *
+ * Since the last seen date in the DB can lag behind, everything that reads it should use
+ * {@link #getLastSeenDate(StudyResult)}.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class HeartbeatAggregator {
+
+    private static final Logger.ALogger LOGGER = Logger.of(HeartbeatAggregator.class);
+
+    private static final String UPDATE_LAST_SEEN_DATE = "UPDATE StudyResult SET lastSeenDate = ? WHERE id = ?";
+
+    private final JPAApi jpa;
+
+    /**
+     * Maps study result ID -> last seen date that isn't written to the DB yet
+     */
+    private final Map<Long, Timestamp> pending = new ConcurrentHashMap<>();
+
+    @Inject
+    HeartbeatAggregator(JPAApi jpa, ActorSystem actorSystem, ApplicationLifecycle applicationLifecycle) {
+        this.jpa = jpa;
+        Cancellable flushTask = actorSystem.scheduler().schedule(Common.getHeartbeatFlushInterval(),
+                Common.getHeartbeatFlushInterval(), this::flush, actorSystem.dispatcher());
+        applicationLifecycle.addStopHook(() -> {
+            flushTask.cancel();
+            flush();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Records a heartbeat of the StudyResult with the given ID that happened at the given time
+     */
+    public void heartbeat(Long studyResultId, Timestamp timestamp) {
+        pending.merge(studyResultId, timestamp, (oldTs, newTs) -> newTs.after(oldTs) ? newTs : oldTs);
+    }
+
+    /**
+     * Returns the last seen date of the given StudyResult: the one that is still waiting to be written to the DB, or
+     * if there is none the one from the StudyResult itself.
+     */
+    public Timestamp getLastSeenDate(StudyResult studyResult) {
+        return getLastSeenDate(studyResult.getId(), studyResult.getLastSeenDate());
+    }
+
+    /**
+     * Returns the pending last seen date of the StudyResult with the given ID or the stored one if there is no
+     * pending one.
+     */
+    public Timestamp getLastSeenDate(Long studyResultId, Timestamp stored) {
+        Timestamp lastSeenDate = pending.get(studyResultId);
+        return lastSeenDate != null ? lastSeenDate : stored;
+    }
+
+    /**
+     * Writes all pending last seen dates to the DB in one JDBC batch. An entry is only removed from the pending ones
+     * if it wasn't updated by a heartbeat meanwhile - otherwise it's written with the next flush.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) return;
+
+        Map<Long, Timestamp> batch = new HashMap<>(pending);
+        try {
+            jpa.withTransaction(em -> {
+                em.unwrap(Session.class).doWork(connection -> {
+                    try (PreparedStatement statement = connection.prepareStatement(UPDATE_LAST_SEEN_DATE)) {
+                        for (Map.Entry<Long, Timestamp> entry : batch.entrySet()) {
+                            statement.setTimestamp(1, entry.getValue());
+                            statement.setLong(2, entry.getKey());
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                });
+                return null;
+            });
+            batch.forEach(pending::remove);
+        } catch (Exception e) {
+            LOGGER.error(".flush: couldn't write last seen dates of " + batch.size() + " study results", e);
+        }
+    }
+
+}
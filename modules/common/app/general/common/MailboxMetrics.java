@@ -0,0 +1,42 @@
+package general.common;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+
+/**
+ * Keeps track of the mailbox depths (number of messages waiting to be processed) of Akka actors that use a metered
+ * mailbox (e.g. the shards of the batch and group dispatcher registries). The mailboxes register themselves when
+ * they are created - since Akka creates mailboxes itself (not via Guice) this is a static registry.
+ *
+ * @author Kristian Lange
+ */
+public class MailboxMetrics {
+
+    /**
+     * Maps actor path -> function that returns the current number of messages in its mailbox
+     */
+    private static final Map<String, IntSupplier> MAILBOXES = new ConcurrentHashMap<>();
+
+    private MailboxMetrics() {
+    }
+
+    public static void register(String actorPath, IntSupplier numberOfMessages) {
+        MAILBOXES.put(actorPath, numberOfMessages);
+    }
+
+    public static void unregister(String actorPath) {
+        MAILBOXES.remove(actorPath);
+    }
+
+    /**
+     * Returns the current mailbox depth of every registered actor ordered by the actor's path
+     */
+    public static Map<String, Integer> getMailboxDepths() {
+        Map<String, Integer> depths = new TreeMap<>();
+        MAILBOXES.forEach((actorPath, numberOfMessages) -> depths.put(actorPath, numberOfMessages.getAsInt()));
+        return depths;
+    }
+
+}
@@ -112,6 +112,10 @@ public class MessagesStrings {
             + "but does not include any metadata";
     public static final String RESULTS_EXPORT_SELECTED_DATA = "Export selected results as a text file to your local file system";
     public static final String RESULTS_EXPORT_ALL_DATA = "Export all results as a text file to your local file system";
+    public static final String RESULTS_EXPORT_SELECTED_DATA_CSV = "Export selected results as a CSV file to your local "
+            + "file system - JSON result data are flattened into columns";
+    public static final String RESULTS_EXPORT_ALL_DATA_CSV = "Export all results as a CSV file to your local file "
+            + "system - JSON result data are flattened into columns";
     public static final String RESULTS_EXPORT_FILES = "Result files that were uploaded during a study run";
     public static final String RESULTS_EXPORT_SELECTED_FILES = "Export selected result files as a .zip to your local file system";
     public static final String RESULTS_EXPORT_ALL_FILES = "Export all result files as a .zip to your local file system";
@@ -0,0 +1,80 @@
+package general.common;
+
+import daos.common.ComponentResultDao;
+import models.common.ComponentResult;
+import play.Logger;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Compresses result data that were stored as plain text before result data compression was enabled. It runs in the
+ * background after JATOS started and goes through the ComponentResults in batches (keyset pagination over their IDs),
+ * each batch in its own transaction. Only result data of finished study runs are touched since they can't change
+ * anymore. Every ComponentResult that was tried gets a dataFormat (GZIP or PLAIN if compression wasn't worth it), so
+ * it's not read again with the next start.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultDataCompressor {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ResultDataCompressor.class);
+
+    /**
+     * Max number of ComponentResults that are compressed in one transaction
+     */
+    private static final int BATCH_SIZE = 50;
+
+    private final ComponentResultDao componentResultDao;
+    private final JPAApi jpa;
+
+    @Inject
+    ResultDataCompressor(ComponentResultDao componentResultDao, JPAApi jpa) {
+        this.componentResultDao = componentResultDao;
+        this.jpa = jpa;
+    }
+
+    /**
+     * Starts the compression of already stored result data in the background - only if compression is enabled. The
+     * returned CompletionStage completes when it's done.
+     */
+    public CompletionStage<Void> compressStoredDataIfEnabled() {
+        if (!Common.isResultDataCompressionEnabled()) return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> {
+            long lastId = 0;
+            int compressedCount = 0;
+            try {
+                while (true) {
+                    final long afterId = lastId;
+                    List<ComponentResult> batch = jpa.withTransaction(entityManager -> {
+                        List<ComponentResult> componentResults = componentResultDao
+                                .findAllWithPlainDataOfFinishedStudyResultsAfterId(afterId,
+                                        ComponentResult.MIN_SIZE_FOR_COMPRESSION, BATCH_SIZE);
+                        for (ComponentResult componentResult : componentResults) {
+                            componentResult.compressData();
+                            componentResultDao.update(componentResult);
+                        }
+                        return componentResults;
+                    });
+                    if (batch.isEmpty()) break;
+                    compressedCount += batch.stream()
+                            .filter(cr -> cr.getDataFormat() == ComponentResult.DataFormat.GZIP).count();
+                    lastId = batch.get(batch.size() - 1).getId();
+                }
+            } catch (Exception e) {
+                LOGGER.error(".compressStoredDataIfEnabled: couldn't compress result data after component result "
+                        + "with ID " + lastId, e);
+            }
+            if (compressedCount > 0) {
+                LOGGER.info(".compressStoredDataIfEnabled: compressed result data of " + compressedCount
+                        + " component results");
+            }
+        });
+    }
+
+}
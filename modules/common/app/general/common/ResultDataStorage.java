@@ -0,0 +1,40 @@
+package general.common;
+
+import models.common.ComponentResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Interface for the storages of result data. A storage stores the result data of a ComponentResult either in the
+ * ComponentResult itself (database) or somewhere else and puts only a pointer into the ComponentResult. Use
+ * ResultDataStore to access the result data - it picks the right storage.
+ *
+ * @author Kristian Lange
+ */
+public interface ResultDataStorage {
+
+    /**
+     * Stores the result data in the given file as the result data of the given ComponentResult. Removes result data
+     * that were stored or appended before in the database. The file might be moved.
+     *
+     * @param componentResult The ComponentResult the result data belong to
+     * @param dataFile        File with the result data (UTF-8)
+     * @param dataSize        Size of the file in bytes
+     * @param dataHash        SHA-256 hash of the file
+     */
+    void store(ComponentResult componentResult, Path dataFile, long dataSize, String dataHash) throws IOException;
+
+    /**
+     * Returns the whole result data of the given ComponentResult (including appended chunks) as an InputStream
+     * (UTF-8) or null if there are no result data
+     */
+    InputStream read(ComponentResult componentResult) throws IOException;
+
+    /**
+     * Deletes the result data stored under the given pointer. Storages that don't use pointers do nothing.
+     */
+    void delete(String dataPointer) throws IOException;
+
+}
@@ -0,0 +1,170 @@
+package general.common;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import daos.common.ComponentResultDao;
+import models.common.ComponentResult;
+import play.Logger;
+import play.db.jpa.JPAApi;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entry point for storing and reading result data. New result data are stored with the storage configured in
+ * jatos.resultData.storage.type ('db' or 'file'). Result data are always read from the storage they were stored
+ * with - switching the storage type doesn't move already stored result data.
+ *
+ * All methods have to be called within a transaction.
+ * <p>
+ * Externally stored result data that aren't used anymore are deleted by a garbage collection that runs periodically in
+ * its own transactions - never within the transaction that removed the last reference (it might still roll back, or
+ * another transaction might be about to reference the same result data).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultDataStore {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ResultDataStore.class);
+
+    private static final Duration GARBAGE_COLLECTION_INTERVAL = Duration.ofMinutes(10);
+
+    /**
+     * Result data files that were used within this time are never deleted - a transaction that references them might
+     * not be committed yet
+     */
+    private static final Duration MIN_UNUSED_TIME = Duration.ofHours(1);
+
+    private final DbResultDataStorage dbStorage;
+    private final FileResultDataStorage fileStorage;
+    private final ComponentResultDao componentResultDao;
+    private final JPAApi jpa;
+
+    /**
+     * Data pointers of externally stored result data that might not be referenced anymore
+     */
+    private final Set<String> deletionCandidates = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    ResultDataStore(DbResultDataStorage dbStorage, FileResultDataStorage fileStorage,
+            ComponentResultDao componentResultDao, JPAApi jpa, ActorSystem actorSystem,
+            ApplicationLifecycle applicationLifecycle) {
+        this.dbStorage = dbStorage;
+        this.fileStorage = fileStorage;
+        this.componentResultDao = componentResultDao;
+        this.jpa = jpa;
+        Cancellable garbageCollection = actorSystem.scheduler().schedule(GARBAGE_COLLECTION_INTERVAL,
+                GARBAGE_COLLECTION_INTERVAL, this::collectGarbage, actorSystem.dispatcher());
+        applicationLifecycle.addStopHook(() -> {
+            garbageCollection.cancel();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Stores the result data in the given file (UTF-8) in the given ComponentResult and removes all result data that
+     * were stored or appended before. The file might be moved. The ComponentResult still has to be persisted
+     * afterwards.
+     *
+     * @param dataSize Size of the file in bytes
+     * @param dataHash SHA-256 hash of the file
+     */
+    public void store(ComponentResult componentResult, Path dataFile, long dataSize, String dataHash)
+            throws IOException {
+        String oldDataPointer = componentResult.getDataPointer();
+        getStorageForWriting().store(componentResult, dataFile, dataSize, dataHash);
+        if (oldDataPointer != null && !oldDataPointer.equals(componentResult.getDataPointer())) {
+            deleteIfUnreferenced(oldDataPointer);
+        }
+    }
+
+    /**
+     * Returns the whole result data of the given ComponentResult (UTF-8) as an InputStream or null if there are no
+     * result data
+     */
+    public InputStream getDataAsStream(ComponentResult componentResult) throws IOException {
+        return getStorageForReading(componentResult).read(componentResult);
+    }
+
+    /**
+     * Returns the whole result data of the given ComponentResult or null if there are no result data
+     */
+    public String getData(ComponentResult componentResult) throws IOException {
+        if (!componentResult.isDataStoredExternally()) return componentResult.getData();
+        try (InputStream in = getDataAsStream(componentResult)) {
+            if (in == null) return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Marks the externally stored result data with the given pointers for deletion. They are deleted later by the
+     * garbage collection if they aren't used by any ComponentResult anymore (the same result data can be shared by
+     * several ComponentResults). Has to be called after the ComponentResults were removed or changed.
+     */
+    public void deleteIfUnreferenced(Collection<String> dataPointers) {
+        dataPointers.stream().filter(Objects::nonNull).forEach(deletionCandidates::add);
+    }
+
+    /**
+     * Checks all result data files in the result data storage directory in the background and deletes the ones that
+     * aren't referenced anymore, e.g. because JATOS stopped before the garbage collection ran. Called during start-up.
+     */
+    public void collectAllGarbageLater() {
+        CompletableFuture.runAsync(() -> {
+            try {
+                deletionCandidates.addAll(fileStorage.getAllDataPointers());
+            } catch (IOException e) {
+                LOGGER.error(".collectAllGarbageLater: couldn't list result data files", e);
+            }
+            collectGarbage();
+        });
+    }
+
+    /**
+     * Deletes the result data files that were marked for deletion and aren't referenced by any ComponentResult
+     * anymore. Each check runs in its own transaction. Files that were used recently stay marked and are checked
+     * again with the next run. Errors are only logged.
+     */
+    void collectGarbage() {
+        for (String dataPointer : new ArrayList<>(deletionCandidates)) {
+            try {
+                boolean done = fileStorage.deleteIfUnused(dataPointer, MIN_UNUSED_TIME, () -> jpa.withTransaction(
+                        entityManager -> componentResultDao.countByDataPointer(dataPointer)) > 0);
+                if (done) deletionCandidates.remove(dataPointer);
+            } catch (IOException | RuntimeException e) {
+                deletionCandidates.remove(dataPointer);
+                LOGGER.error(".collectGarbage: couldn't delete result data " + dataPointer, e);
+            }
+        }
+    }
+
+    private ResultDataStorage getStorageForWriting() {
+        return "file".equals(Common.getResultDataStorageType()) ? fileStorage : dbStorage;
+    }
+
+    private ResultDataStorage getStorageForReading(ComponentResult componentResult) {
+        return componentResult.isDataStoredExternally() ? fileStorage : dbStorage;
+    }
+
+}
@@ -0,0 +1,226 @@
+package general.common;
+
+import daos.common.ResultUploadFileDao;
+import models.common.ResultUploadFile;
+import play.Logger;
+import play.db.jpa.JPAApi;
+import utils.common.HashUtils;
+import utils.common.IOUtils;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Index of the uploaded result files (stored in the ResultUploadFile table). The files themselves are stored in the
+ * result uploads directory, but everything that needs to know which files exist and how big they are (quota check,
+ * GUI, exports) asks this index instead of scanning the file system. The index is maintained together with the files:
+ * whenever a file is uploaded or removed it has to go through this class.
+ *
+ * All methods except buildOnce() have to be called within a transaction.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultUploadIndex {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ResultUploadIndex.class);
+
+    private static final Pattern STUDY_RESULT_DIR = Pattern.compile("study-result_(\\d+)");
+
+    private static final Pattern COMPONENT_RESULT_DIR = Pattern.compile("comp-result_(\\d+)");
+
+    private final ResultUploadFileDao resultUploadFileDao;
+    private final IOUtils ioUtils;
+    private final JPAApi jpa;
+
+    @Inject
+    ResultUploadIndex(ResultUploadFileDao resultUploadFileDao, IOUtils ioUtils, JPAApi jpa) {
+        this.resultUploadFileDao = resultUploadFileDao;
+        this.ioUtils = ioUtils;
+        this.jpa = jpa;
+    }
+
+    /**
+     * Adds the given (already stored) file to the index or, if a file with the same name was uploaded before by the
+     * same component result, updates its entry. Size and hash are determined here once.
+     */
+    public ResultUploadFile add(Long studyResultId, Long componentResultId, Path file) throws IOException {
+        String filename = file.getFileName().toString();
+        ResultUploadFile uploadFile = resultUploadFileDao.findByComponentResultIdAndFilename(componentResultId,
+                filename);
+        boolean isNew = uploadFile == null;
+        if (isNew) uploadFile = new ResultUploadFile(studyResultId, componentResultId, filename);
+        uploadFile.setFileSize(Files.size(file));
+        uploadFile.setFileHash(HashUtils.getHash(file, HashUtils.SHA_256));
+        uploadFile.setUploadDate(new Timestamp(System.currentTimeMillis()));
+        if (isNew) resultUploadFileDao.create(uploadFile);
+        else resultUploadFileDao.update(uploadFile);
+        return uploadFile;
+    }
+
+    /**
+     * Returns the size of all files (in bytes) uploaded by the given study result
+     */
+    public long getTotalFileSize(Long studyResultId) {
+        return resultUploadFileDao.sumFileSizeByStudyResultId(studyResultId);
+    }
+
+    public List<ResultUploadFile> getFilesOfComponentResult(Long componentResultId) {
+        return resultUploadFileDao.findAllByComponentResultId(componentResultId);
+    }
+
+    public List<ResultUploadFile> getFilesOfStudyResult(Long studyResultId) {
+        return resultUploadFileDao.findAllByStudyResultId(studyResultId);
+    }
+
+    /**
+     * Returns the files of all given study results at once (ordered by study result, component result and filename)
+     */
+    public List<ResultUploadFile> getFilesOfStudyResults(Collection<Long> studyResultIds) {
+        return resultUploadFileDao.findAllByStudyResultIds(studyResultIds);
+    }
+
+    /**
+     * Returns the files of all given component results at once (ordered by study result, component result and
+     * filename)
+     */
+    public List<ResultUploadFile> getFilesOfComponentResults(Collection<Long> componentResultIds) {
+        return resultUploadFileDao.findAllByComponentResultIds(componentResultIds);
+    }
+
+    /**
+     * Returns the files of all given component results at once, mapped by the component result ID
+     */
+    public Map<Long, List<ResultUploadFile>> getFilesByComponentResultId(Collection<Long> componentResultIds) {
+        return resultUploadFileDao.findAllByComponentResultIds(componentResultIds).stream()
+                .collect(Collectors.groupingBy(ResultUploadFile::getComponentResultId));
+    }
+
+    /**
+     * Returns those of the given study result IDs that have uploaded files
+     */
+    public Set<Long> getStudyResultIdsWithFiles(Collection<Long> studyResultIds) {
+        return resultUploadFileDao.findStudyResultIdsWithFiles(studyResultIds);
+    }
+
+    /**
+     * Removes all uploaded files of the given study result from the file system and the index
+     */
+    public void removeStudyResult(Long studyResultId) throws IOException {
+        resultUploadFileDao.removeAllByStudyResultId(studyResultId);
+        ioUtils.removeResultUploadsDir(studyResultId);
+    }
+
+    /**
+     * Removes all uploaded files of the given component result from the file system and the index
+     */
+    public void removeComponentResult(Long studyResultId, Long componentResultId) throws IOException {
+        resultUploadFileDao.removeAllByComponentResultId(componentResultId);
+        ioUtils.removeResultUploadsDir(studyResultId, componentResultId);
+    }
+
+    /**
+     * Builds the index from the files in the result uploads directory - only once (e.g. with the first start after an
+     * update from a JATOS version without this index). When it's done a marker file ('.index-built') is written into
+     * the result uploads directory. It runs in the background and indexes one study result per transaction. Files
+     * that are already in the index are skipped, and so are files that were written after the start since they were
+     * indexed with their upload. If a transaction fails (e.g. a concurrent upload added the same file) the study result
+     * is tried once more. The returned CompletionStage completes when it's done.
+     */
+    public CompletionStage<Void> buildOnce() {
+        File uploadsDir = new File(Common.getResultUploadsPath());
+        Path marker = getIndexBuiltMarkerPath();
+        if (!uploadsDir.isDirectory() || Files.exists(marker)) return CompletableFuture.completedFuture(null);
+        long startTime = System.currentTimeMillis();
+        return CompletableFuture.runAsync(() -> {
+            File[] studyResultDirs = uploadsDir.listFiles(File::isDirectory);
+            if (studyResultDirs == null) return;
+            LOGGER.info(".buildOnce: building index of result upload files");
+            boolean success = true;
+            for (File studyResultDir : studyResultDirs) {
+                Matcher matcher = STUDY_RESULT_DIR.matcher(studyResultDir.getName());
+                if (!matcher.matches()) continue;
+                Long studyResultId = Long.valueOf(matcher.group(1));
+                success &= indexStudyResultDir(studyResultId, studyResultDir.toPath(), startTime);
+            }
+            if (!success) {
+                LOGGER.warn(".buildOnce: index of result upload files is incomplete - it's tried again with the "
+                        + "next start");
+                return;
+            }
+            try {
+                Files.createFile(marker);
+            } catch (IOException e) {
+                LOGGER.error(".buildOnce: couldn't write " + marker, e);
+            }
+            LOGGER.info(".buildOnce: finished index of result upload files");
+        });
+    }
+
+    private boolean indexStudyResultDir(Long studyResultId, Path studyResultDir, long startTime) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                jpa.withTransaction(() -> indexStudyResultDirInTransaction(studyResultId, studyResultDir, startTime));
+                return true;
+            } catch (Exception e) {
+                if (attempt >= 2) {
+                    LOGGER.error(".buildOnce: couldn't index " + studyResultDir, e);
+                    return false;
+                }
+            }
+        }
+    }
+
+    private void indexStudyResultDirInTransaction(Long studyResultId, Path studyResultDir, long startTime) {
+        try (Stream<Path> componentResultDirs = Files.list(studyResultDir)) {
+            for (Path componentResultDir : (Iterable<Path>) componentResultDirs::iterator) {
+                Matcher matcher = COMPONENT_RESULT_DIR.matcher(componentResultDir.getFileName().toString());
+                if (!matcher.matches() || !Files.isDirectory(componentResultDir)) continue;
+                Long componentResultId = Long.valueOf(matcher.group(1));
+                try (Stream<Path> files = Files.list(componentResultDir)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        if (!Files.isRegularFile(file)
+                                || Files.getLastModifiedTime(file).toMillis() >= startTime
+                                || resultUploadFileDao.findByComponentResultIdAndFilename(componentResultId,
+                                file.getFileName().toString()) != null) {
+                            continue;
+                        }
+                        add(studyResultId, componentResultId, file);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Path getIndexBuiltMarkerPath() {
+        return Paths.get(Common.getResultUploadsPath(), ".index-built");
+    }
+
+    /**
+     * Returns the path of the given uploaded file in the file system
+     */
+    public static Path getPath(ResultUploadFile uploadFile) {
+        return Paths.get(IOUtils.getResultUploadsDir(uploadFile.getStudyResultId(), uploadFile.getComponentResultId()),
+                uploadFile.getFilename());
+    }
+
+}
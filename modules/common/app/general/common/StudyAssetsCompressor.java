@@ -0,0 +1,320 @@
+package general.common;
+
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import com.google.common.collect.ImmutableSet;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+import utils.common.HashUtils;
+import utils.common.IOUtils;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates and finds the compressed variants of study assets files. A gzip variant is stored in the precompression
+ * directory ('jatos.studyAssets.precompression.path') under the SHA-256 hash of the original file's content
+ * ('<hash>.gz'). This way a changed file (new last modified time and new content) gets a new variant and the variant
+ * of the old version is never served again. Identical files (e.g. in different studies) share one variant. The
+ * variants are generated in the background by a single thread: lazily with the first request of a file or for a whole
+ * study assets directory after a study import. Until a variant is ready the file is served uncompressed.
+ * <p>
+ * Since a variant can belong to several files it's not deleted when one of them changes or is deleted. Instead the
+ * last modified time of a variant is its last use (updated at most once per TOUCH_INTERVAL when it's served) and
+ * variants that weren't used for MAX_UNUSED_TIME are deleted by a sweep that runs after the start and then daily. A
+ * deleted variant that is needed again is just generated again.
+ * <p>
+ * Additionally a compressed file that lies next to the original file ('<file>.br' or '<file>.gz') is used if it's not
+ * older than the original file. JATOS can't generate Brotli itself (no encoder in the JDK) - but this way study
+ * authors can still provide Brotli variants.
+ * <p>
+ * Only files of text-based types that are bigger than MIN_SIZE are compressed - images, videos and alike are already
+ * compressed.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class StudyAssetsCompressor {
+
+    private static final Logger.ALogger LOGGER = Logger.of(StudyAssetsCompressor.class);
+
+    public static final String GZIP = "gzip";
+    public static final String BROTLI = "br";
+
+    /**
+     * Files smaller than this (in bytes) are not worth compressing
+     */
+    private static final long MIN_SIZE = 1024;
+
+    private static final Duration SWEEP_INTERVAL = Duration.ofDays(1);
+
+    /**
+     * Variants that weren't served for this time are deleted by the sweep
+     */
+    private static final Duration MAX_UNUSED_TIME = Duration.ofDays(7);
+
+    /**
+     * The last use of a variant (its last modified time) is updated at most once within this time
+     */
+    private static final Duration TOUCH_INTERVAL = Duration.ofDays(1);
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = ImmutableSet.of("html", "htm", "js", "mjs", "json",
+            "css", "svg", "txt", "csv", "tsv", "xml", "md", "map", "wasm", "ttf", "otf", "eot", "ico");
+
+    private final IOUtils ioUtils;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "study-assets-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Hashes of the files whose gzip variant is already generated or scheduled for generation
+     */
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+
+    @Inject
+    StudyAssetsCompressor(IOUtils ioUtils, ActorSystem actorSystem, ApplicationLifecycle applicationLifecycle) {
+        this.ioUtils = ioUtils;
+        Cancellable sweep = actorSystem.scheduler().schedule(Duration.ofMinutes(1), SWEEP_INTERVAL,
+                () -> executor.execute(this::deleteUnusedVariants), actorSystem.dispatcher());
+        applicationLifecycle.addStopHook(() -> {
+            sweep.cancel();
+            executor.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Is it worth to compress this file?
+     */
+    public static boolean isCompressible(Path file, long size) {
+        if (size < MIN_SIZE) return false;
+        String fileName = file.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        return dot != -1 && COMPRESSIBLE_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Returns the variant of the given file with the given encoding (GZIP or BROTLI) if there is one. If the gzip
+     * variant isn't generated yet it's scheduled for generation and an empty Optional is returned.
+     *
+     * @param file         the original study assets file
+     * @param lastModified last modified time of the original file in epoch millis
+     * @param size         size of the original file in bytes
+     * @param hash         SHA-256 hash of the original file's content
+     */
+    public Optional<Variant> getVariant(Path file, long lastModified, long size, String hash, String encoding) {
+        if (!Common.isStudyAssetsPrecompressionEnabled() || !isCompressible(file, size)) return Optional.empty();
+
+        Optional<Variant> sibling = getSibling(file, lastModified, encoding);
+        if (sibling.isPresent() || !encoding.equals(GZIP)) return sibling;
+
+        Path variant = getGzipPath(hash);
+        try {
+            FileTime variantLastModified = Files.getLastModifiedTime(variant);
+            touchIfNecessary(variant, variantLastModified);
+            return Optional.of(new Variant(variant, null));
+        } catch (IOException e) {
+            // Not generated yet (or just deleted by the sweep)
+        }
+        compressLater(file, hash);
+        return Optional.empty();
+    }
+
+    /**
+     * Sets the last modified time of a variant to now (its last use) if it wasn't set within TOUCH_INTERVAL - this way
+     * not every request writes to the file system
+     */
+    private void touchIfNecessary(Path variant, FileTime lastModified) {
+        Instant now = Instant.now();
+        if (lastModified.toInstant().isAfter(now.minus(TOUCH_INTERVAL))) return;
+        try {
+            Files.setLastModifiedTime(variant, FileTime.from(now));
+        } catch (IOException e) {
+            LOGGER.info(".touchIfNecessary: couldn't touch " + variant + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes all gzip variants that weren't used (served or generated) within MAX_UNUSED_TIME
+     */
+    void deleteUnusedVariants() {
+        Path dir = Paths.get(Common.getStudyAssetsPrecompressionPath());
+        if (Files.notExists(dir)) return;
+        Instant threshold = Instant.now().minus(MAX_UNUSED_TIME);
+        int deletedCount = 0;
+        try (DirectoryStream<Path> variants = Files.newDirectoryStream(dir, "*.gz")) {
+            for (Path variant : variants) {
+                try {
+                    if (Files.getLastModifiedTime(variant).toInstant().isAfter(threshold)) continue;
+                    String fileName = variant.getFileName().toString();
+                    known.remove(fileName.substring(0, fileName.length() - ".gz".length()));
+                    Files.deleteIfExists(variant);
+                    deletedCount++;
+                } catch (IOException e) {
+                    LOGGER.info(".deleteUnusedVariants: couldn't delete " + variant + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn(".deleteUnusedVariants: couldn't read " + dir, e);
+        }
+        if (deletedCount > 0) {
+            LOGGER.info(".deleteUnusedVariants: deleted " + deletedCount + " unused compressed study assets files");
+        }
+    }
+
+    /**
+     * Generates the gzip variants of all compressible files in the given study assets directory in the background,
+     * e.g. after a study import
+     */
+    public void compressStudyAssetsDirLater(String dirName) {
+        if (!Common.isStudyAssetsPrecompressionEnabled()) return;
+        Path dir = Paths.get(ioUtils.generateStudyAssetsPath(dirName));
+        executor.execute(() -> {
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(dir)) {
+                files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+            } catch (IOException e) {
+                LOGGER.warn(".compressStudyAssetsDirLater: couldn't read " + dir, e);
+                return;
+            }
+            for (Path file : files) {
+                String hash = null;
+                try {
+                    if (!isCompressible(file, Files.size(file))) continue;
+                    hash = HashUtils.getHash(file, HashUtils.SHA_256);
+                    if (known.add(hash)) compress(file, hash);
+                } catch (IOException e) {
+                    if (hash != null) known.remove(hash);
+                    LOGGER.info(".compressStudyAssetsDirLater: couldn't compress " + file + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void compressLater(Path file, String hash) {
+        if (!known.add(hash)) return;
+        executor.execute(() -> {
+            try {
+                compress(file, hash);
+            } catch (IOException e) {
+                known.remove(hash);
+                LOGGER.info(".compressLater: couldn't compress " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Gzips the file into a temporary file and moves it to its place. The content is hashed while compressing - if
+     * the file changed since it was hashed the variant doesn't belong to this hash and is discarded.
+     */
+    private void compress(Path file, String hash) throws IOException {
+        Path variant = getGzipPath(hash);
+        if (Files.isRegularFile(variant)) return;
+        Files.createDirectories(variant.getParent());
+        Path tmpFile = Files.createTempFile(variant.getParent(), hash, ".tmp");
+        try {
+            MessageDigest digest = getSha256Digest();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmpFile), 65536)) {
+                byte[] buffer = new byte[65536];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            if (!HashUtils.bytesToHex(digest.digest()).equals(hash)) {
+                known.remove(hash);
+                return;
+            }
+            Files.move(tmpFile, variant, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private Optional<Variant> getSibling(Path file, long lastModified, String encoding) {
+        String suffix = encoding.equals(BROTLI) ? ".br" : encoding.equals(GZIP) ? ".gz" : null;
+        if (suffix == null) return Optional.empty();
+        Path sibling = Paths.get(file.toString() + suffix);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(sibling, BasicFileAttributes.class);
+            long siblingLastModified = attributes.lastModifiedTime().toMillis();
+            if (attributes.isRegularFile() && siblingLastModified >= lastModified) {
+                String validator = Long.toHexString(attributes.size()) + "-" + Long.toHexString(siblingLastModified);
+                return Optional.of(new Variant(sibling, validator));
+            }
+        } catch (IOException e) {
+            // Treat it like there is no sibling
+        }
+        return Optional.empty();
+    }
+
+    private static Path getGzipPath(String hash) {
+        return Paths.get(Common.getStudyAssetsPrecompressionPath(), hash + ".gz");
+    }
+
+    /**
+     * A compressed variant of a study assets file
+     */
+    public static class Variant {
+
+        private final Path path;
+        private final String validator;
+
+        Variant(Path path, String validator) {
+            this.path = path;
+            this.validator = validator;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Identifies the version of a variant that lies next to the original file (size and last modified time) - it
+         * can change independently of the original file. Null for generated variants: their content is determined
+         * by the original file's hash.
+         */
+        public String getValidator() {
+            return validator;
+        }
+    }
+
+    private static MessageDigest getSha256Digest() {
+        try {
+            return MessageDigest.getInstance(HashUtils.SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+package general.common;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import models.common.Study;
+import org.hibernate.Session;
+import play.Logger;
+import play.db.jpa.JPAApi;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.transaction.Synchronization;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of Study snapshots (including their components) used by Publix. During a study run the same few
+ * studies are loaded over and over again with every request of every worker - this cache saves those DB queries.
+ *
+ * The cached studies are detached from the persistence context and shared between requests: they must never be
+ * changed and never be merged. Each study has a version that is increased whenever the study or one of its components
+ * is changed (the DAOs call {@link #invalidate(Long)}). A cached snapshot is only used as long as its version is the
+ * current one.
+ *
+ * The cache holds at most MAX_SIZE studies and forgets the ones that weren't used for EXPIRE_AFTER_ACCESS. A removed
+ * study is dropped right away (the DAO calls {@link #remove(Long)}).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class StudyCache {
+
+    private static final Logger.ALogger LOGGER = Logger.of(StudyCache.class);
+
+    private static final int MAX_SIZE = 1000;
+
+    private static final Duration EXPIRE_AFTER_ACCESS = Duration.ofHours(1);
+
+    private final JPAApi jpa;
+
+    /**
+     * Version and snapshot of each study. If an entry is evicted while a request still uses it, the request's snapshot
+     * just goes into the old entry and is lost - a new entry always starts without a snapshot.
+     */
+    private final Cache<Long, Entry> entries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterAccess(EXPIRE_AFTER_ACCESS.toMillis(), TimeUnit.MILLISECONDS)
+            .build();
+
+    @Inject
+    StudyCache(JPAApi jpa) {
+        this.jpa = jpa;
+    }
+
+    /**
+     * Returns the cached snapshot of the study with the given ID. If there is none or if it's outdated the loader is
+     * used to get a new one. The loader has to return a study that is detached and has all needed associations
+     * initialized, or null if the study doesn't exist (null is not cached).
+     */
+    public Study get(Long studyId, Supplier<Study> loader) {
+        Entry entry = getEntry(studyId);
+        // Get the version before loading: if the study is changed meanwhile the snapshot is outdated right away
+        long version = entry.version.get();
+        Snapshot snapshot = entry.snapshot;
+        if (snapshot != null && snapshot.version == version) return snapshot.study;
+
+        Study study = loader.get();
+        if (study != null) entry.snapshot = new Snapshot(version, study);
+        return study;
+    }
+
+    /**
+     * Invalidates the snapshot of the study with the given ID. Since this usually happens within a transaction that
+     * isn't committed yet the study is invalidated again after the transaction completed - otherwise a concurrent
+     * request could cache the old state of the study.
+     */
+    public void invalidate(Long studyId) {
+        if (studyId == null) return;
+        invalidateNow(studyId);
+        afterTransaction(studyId, () -> invalidateNow(studyId));
+    }
+
+    /**
+     * Drops the study with the given ID from the cache, e.g. after it was removed. Like with {@link #invalidate(Long)}
+     * this is done again after the transaction completed.
+     */
+    public void remove(Long studyId) {
+        if (studyId == null) return;
+        removeNow(studyId);
+        afterTransaction(studyId, () -> removeNow(studyId));
+    }
+
+    private void afterTransaction(Long studyId, Runnable runnable) {
+        try {
+            jpa.em().unwrap(Session.class).getTransaction().registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    runnable.run();
+                }
+            });
+        } catch (RuntimeException e) {
+            // No EntityManager or transaction bound to this thread - nothing to wait for
+            LOGGER.debug(".afterTransaction: couldn't register transaction synchronization for study " + studyId);
+        }
+    }
+
+    private void invalidateNow(Long studyId) {
+        Entry entry = getEntry(studyId);
+        entry.version.incrementAndGet();
+        entry.snapshot = null;
+    }
+
+    private void removeNow(Long studyId) {
+        // Invalidate first: a request that still holds the entry must not use its snapshot
+        Entry entry = entries.getIfPresent(studyId);
+        if (entry != null) {
+            entry.version.incrementAndGet();
+            entry.snapshot = null;
+        }
+        entries.invalidate(studyId);
+    }
+
+    private Entry getEntry(Long studyId) {
+        try {
+            return entries.get(studyId, Entry::new);
+        } catch (ExecutionException e) {
+            // Can't happen: creating an Entry doesn't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Number of studies currently in the cache
+     */
+    long size() {
+        entries.cleanUp();
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final AtomicLong version = new AtomicLong();
+        private volatile Snapshot snapshot;
+    }
+
+    private static class Snapshot {
+        private final long version;
+        private final Study study;
+
+        private Snapshot(long version, Study study) {
+            this.version = version;
+            this.study = study;
+        }
+    }
+
+}
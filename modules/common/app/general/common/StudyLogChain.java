@@ -0,0 +1,330 @@
+package general.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import play.Logger;
+import play.libs.Json;
+import utils.common.HashUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Hash chain of a study log: every entry starts with the SHA-256 hash of the entry before ('prevHash'). The hash of
+ * an entry is calculated over its bytes in the study log (without the line break). This way any change to an entry,
+ * and any removed or inserted entry, breaks the chain. The chain continues across the segments of a study log (see
+ * StudyLogSegments). Study logs from older JATOS versions have entries without 'prevHash' - the chain then starts
+ * with the first entry that has one.
+ * <p>
+ * The verifier walks through the study log and checks the chain. It saves a checkpoint ('<study UUID>.log.checkpoint')
+ * with the position and hash of the last verified entry so the next verification only has to hash the entries that
+ * were added since.
+ *
+ * @author Kristian Lange
+ */
+public class StudyLogChain {
+
+    private static final Logger.ALogger LOGGER = Logger.of(StudyLogChain.class);
+
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private static final byte[] PREV_HASH_PREFIX = "{\"prevHash\":\"".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Length of a SHA-256 hash in hex
+     */
+    private static final int HASH_LENGTH = 64;
+
+    static Path getCheckpointPath(Path studyLogPath) {
+        return Paths.get(studyLogPath.toString() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Hash of the entry that starts at the given position in the bytes
+     */
+    static String hash(byte[] entry, int start) {
+        MessageDigest digest = getSha256Digest();
+        digest.update(entry, start, entry.length - start);
+        return HashUtils.bytesToHex(digest.digest());
+    }
+
+    /**
+     * Returns the entry (a JSON object that starts at the given position) with the given hash of the previous entry
+     * added as its first field. If there is no previous entry (prevHash is null) the entry is returned unchanged.
+     */
+    static byte[] chain(byte[] entry, int start, String prevHash) {
+        if (prevHash == null || entry.length <= start || entry[start] != '{') return entry;
+        boolean emptyObject = entry.length > start + 1 && entry[start + 1] == '}';
+        byte[] field = ("\"prevHash\":\"" + prevHash + "\"" + (emptyObject ? "" : ","))
+                .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] chained = new byte[entry.length + field.length];
+        System.arraycopy(entry, 0, chained, 0, start + 1);
+        System.arraycopy(field, 0, chained, start + 1, field.length);
+        System.arraycopy(entry, start + 1, chained, start + 1 + field.length, entry.length - start - 1);
+        return chained;
+    }
+
+    /**
+     * Returns the hash of the last entry of the study log: from the active segment or, if it's empty, from the last
+     * closed segment. Returns null if the study log has no entries. Has to run on the StudyLogWriter's thread.
+     */
+    static String getLastEntryHash(Path studyLogPath, StudyLogIndex.Writer index) throws IOException {
+        StudyLogIndex.Record last = index.getLastRecord();
+        if (last != null) {
+            try (FileChannel log = FileChannel.open(studyLogPath, StandardOpenOption.READ)) {
+                ByteBuffer entry = ByteBuffer.allocate(last.getLength());
+                StudyLogIndex.readFully(log, entry, last.getOffset());
+                return hash(entry.array(), 0);
+            }
+        }
+        List<StudyLogSegments.Segment> segments = StudyLogSegments.getSegments(studyLogPath);
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1).getLastHash();
+    }
+
+    /**
+     * Same as {@link #getLastEntryHash(Path, StudyLogIndex.Writer)} but opens the index itself. The study log must not
+     * be open for writing.
+     */
+    static String getLastEntryHash(Path studyLogPath) throws IOException {
+        try (StudyLogIndex.Writer index = StudyLogIndex.Writer.open(studyLogPath)) {
+            return getLastEntryHash(studyLogPath, index);
+        }
+    }
+
+    /**
+     * Position in a study log: segment number and offset within the (uncompressed) segment. The active segment has
+     * the number following the last closed segment - this way a position stays valid after a rotation.
+     */
+    static class Position {
+
+        private final int segment;
+        private final long offset;
+
+        Position(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        /**
+         * Current end of the study log. Has to run on the StudyLogWriter's thread so no entry is half written.
+         */
+        static Position getEnd(Path studyLogPath) throws IOException {
+            List<StudyLogSegments.Segment> segments = StudyLogSegments.getSegments(studyLogPath);
+            int active = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).getNumber() + 1;
+            return new Position(active, Files.size(studyLogPath));
+        }
+    }
+
+    /**
+     * Result of a verification
+     */
+    public static class VerificationResult {
+
+        private final boolean valid;
+        private final long entries;
+        private final long newlyVerifiedEntries;
+        private final String error;
+
+        private VerificationResult(boolean valid, long entries, long newlyVerifiedEntries, String error) {
+            this.valid = valid;
+            this.entries = entries;
+            this.newlyVerifiedEntries = newlyVerifiedEntries;
+            this.error = error;
+        }
+
+        /**
+         * Is the hash chain intact?
+         */
+        public boolean isValid() {
+            return valid;
+        }
+
+        /**
+         * Number of verified entries in total (including the ones verified in earlier verifications)
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * Number of entries that were hashed in this verification
+         */
+        public long getNewlyVerifiedEntries() {
+            return newlyVerifiedEntries;
+        }
+
+        /**
+         * Describes where the chain is broken (null if it's valid)
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Verifies the hash chain of the study log until the given end position. It starts from the last checkpoint (if
+     * it's still valid) and saves a new checkpoint if the chain is intact.
+     */
+    static VerificationResult verify(Path studyLogPath, Position end) throws IOException {
+        Verifier verifier = loadCheckpoint(studyLogPath, end);
+        Position start = verifier.position;
+        for (int segment = start.segment; segment <= end.segment; segment++) {
+            long from = segment == start.segment ? start.offset : 0;
+            long until = segment == end.segment ? end.offset : Long.MAX_VALUE;
+            if (!verifier.verifySegment(studyLogPath, segment, from, until)) {
+                return new VerificationResult(false, verifier.entries, verifier.newEntries, verifier.error);
+            }
+        }
+        verifier.saveCheckpoint(studyLogPath);
+        return new VerificationResult(true, verifier.entries, verifier.newEntries, null);
+    }
+
+    private static Verifier loadCheckpoint(Path studyLogPath, Position end) {
+        Path checkpointPath = getCheckpointPath(studyLogPath);
+        if (Files.exists(checkpointPath)) {
+            try {
+                JsonNode json = Json.parse(new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8));
+                Position position = new Position(json.get("segment").asInt(), json.get("offset").asLong());
+                boolean valid = position.segment < end.segment
+                        || (position.segment == end.segment && position.offset <= end.offset);
+                if (valid) {
+                    return new Verifier(position, json.path("lastHash").textValue(), json.get("entries").asLong(),
+                            json.get("chainStarted").asBoolean());
+                }
+                LOGGER.info("Checkpoint " + checkpointPath + " doesn't fit the study log. Verify from the start.");
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Couldn't read checkpoint " + checkpointPath + ". Verify from the start.", e);
+            }
+        }
+        return new Verifier(new Position(1, 0), null, 0, false);
+    }
+
+    private static class Verifier {
+
+        private final MessageDigest digest = getSha256Digest();
+        private Position position;
+        private String lastHash;
+        private long entries;
+        private long newEntries = 0;
+        private boolean chainStarted;
+        private String error;
+
+        Verifier(Position position, String lastHash, long entries, boolean chainStarted) {
+            this.position = position;
+            this.lastHash = lastHash;
+            this.entries = entries;
+            this.chainStarted = chainStarted;
+        }
+
+        /**
+         * Verifies the entries of one segment from the offset 'from' until the offset 'until' (or its end). Returns
+         * false if the chain is broken.
+         */
+        boolean verifySegment(Path studyLogPath, int segment, long from, long until) throws IOException {
+            boolean closed = StudyLogSegments.getSegments(studyLogPath).stream()
+                    .anyMatch(s -> s.getNumber() == segment);
+            InputStream raw = closed
+                    ? new GZIPInputStream(Files.newInputStream(StudyLogSegments.getSegmentPath(studyLogPath, segment)))
+                    : Files.newInputStream(studyLogPath);
+            try (InputStream in = new BufferedInputStream(raw)) {
+                long offset = from;
+                StudyLogSegments.skipFully(in, from);
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long lineStart = offset;
+                int b;
+                while (offset < until && (b = in.read()) != -1) {
+                    offset++;
+                    if (b == '\n') {
+                        if (!verifyLine(line, segment, lineStart)) return false;
+                        lineStart = offset;
+                    } else {
+                        line.write(b);
+                    }
+                }
+                if (!closed && until != Long.MAX_VALUE && offset < until) {
+                    throw new IOException("Study log " + studyLogPath + " changed during verification");
+                }
+                if (!verifyLine(line, segment, lineStart)) return false;
+                position = new Position(segment, offset);
+            }
+            return true;
+        }
+
+        private boolean verifyLine(ByteArrayOutputStream line, int segment, long lineStart) {
+            if (line.size() == 0) return true;
+            byte[] entry = line.toByteArray();
+            line.reset();
+            String prevHash = getPrevHash(entry);
+            if (prevHash != null) {
+                if (!prevHash.equals(lastHash)) {
+                    error = "Hash chain broken in segment " + segment + " at offset " + lineStart
+                            + ": entry doesn't match the hash of the entry before";
+                    return false;
+                }
+                chainStarted = true;
+            } else if (chainStarted) {
+                error = "Hash chain broken in segment " + segment + " at offset " + lineStart
+                        + ": entry has no hash of the entry before";
+                return false;
+            }
+            lastHash = HashUtils.bytesToHex(digest.digest(entry));
+            entries++;
+            newEntries++;
+            return true;
+        }
+
+        void saveCheckpoint(Path studyLogPath) throws IOException {
+            ObjectNode json = Json.newObject();
+            json.put("segment", position.segment);
+            json.put("offset", position.offset);
+            json.put("lastHash", lastHash);
+            json.put("entries", entries);
+            json.put("chainStarted", chainStarted);
+            Path checkpointPath = getCheckpointPath(studyLogPath);
+            Path tmpFile = Files.createTempFile(checkpointPath.getParent(), checkpointPath.getFileName().toString(),
+                    ".tmp");
+            try {
+                Files.write(tmpFile, Json.mapper().writeValueAsBytes(json));
+                Files.move(tmpFile, checkpointPath, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the value of 'prevHash' if the entry starts with it, otherwise null
+     */
+    private static String getPrevHash(byte[] entry) {
+        int hashStart = PREV_HASH_PREFIX.length;
+        if (entry.length < hashStart + HASH_LENGTH + 1 || entry[hashStart + HASH_LENGTH] != '"') return null;
+        for (int i = 0; i < hashStart; i++) {
+            if (entry[i] != PREV_HASH_PREFIX[i]) return null;
+        }
+        return new String(entry, hashStart, HASH_LENGTH, StandardCharsets.ISO_8859_1);
+    }
+
+    private static MessageDigest getSha256Digest() {
+        try {
+            return MessageDigest.getInstance(HashUtils.SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,459 @@
+package general.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import play.Logger;
+import play.libs.Json;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Sidecar index of a study log (same file name plus '.idx'). It has one fixed-size record per log entry with the
+ * entry's offset and length in the study log, its timestamp, worker ID and type. Since the records have a fixed size
+ * and the timestamps are in ascending order a time range can be found with a binary search, and the entries can then
+ * be read with positional reads from the study log - without reading the study log from its end or beginning.
+ * <p>
+ * The index is written by the StudyLogWriter together with the entries. If the index is missing or lags behind the
+ * study log (e.g. for study logs from older JATOS versions) the missing part is indexed by scanning the study log
+ * from the last indexed entry on. Entries of concurrent requests can be queued slightly out of timestamp order -
+ * therefore the timestamps in the index are never smaller than the one before.
+ *
+ * @author Kristian Lange
+ */
+public class StudyLogIndex {
+
+    private static final Logger.ALogger LOGGER = Logger.of(StudyLogIndex.class);
+
+    private static final String SUFFIX = ".idx";
+
+    /**
+     * offset (long), length (int), type (int), timestamp (long), worker ID (long)
+     */
+    static final int RECORD_SIZE = 32;
+
+    /**
+     * Number of records read at once by the Reader
+     */
+    private static final int RECORDS_PER_BLOCK = 256;
+
+    /**
+     * Worker ID of entries without a worker
+     */
+    public static final long NO_WORKER = -1;
+
+    /**
+     * Types of study log entries that can be filtered for. They are derived from the entry's 'msg'.
+     */
+    public enum EntryType {
+        STUDY_RUN, RESULT_DATA, RESULT_FILE, OTHER;
+
+        public static EntryType of(String msg) {
+            if (msg == null) return OTHER;
+            if (msg.startsWith("Started study run") || msg.startsWith("Finished study run")
+                    || msg.startsWith("Aborted study run") || msg.startsWith("Finish abandoned study")) {
+                return STUDY_RUN;
+            }
+            if (msg.equals("Stored component result data") || msg.equals("Appended component result data")) {
+                return RESULT_DATA;
+            }
+            if (msg.equals("Uploaded file")) return RESULT_FILE;
+            return OTHER;
+        }
+    }
+
+    public static Path getIndexPath(Path studyLogPath) {
+        return Paths.get(studyLogPath.toString() + SUFFIX);
+    }
+
+    /**
+     * One index record. Records that are not written yet have no position (offset and length are -1).
+     */
+    public static class Record {
+
+        private final long offset;
+        private final int length;
+        private final EntryType type;
+        private final long timestamp;
+        private final long workerId;
+
+        private Record(long offset, int length, EntryType type, long timestamp, long workerId) {
+            this.offset = offset;
+            this.length = length;
+            this.type = type;
+            this.timestamp = timestamp;
+            this.workerId = workerId;
+        }
+
+        public static Record of(EntryType type, long timestamp, long workerId) {
+            return new Record(-1, -1, type, timestamp, workerId);
+        }
+
+        private static Record of(JsonNode json, long offset, int length) {
+            JsonNode msg = json.get("msg");
+            JsonNode timestamp = json.get("timestamp");
+            JsonNode workerId = json.get("workerId");
+            return new Record(offset, length, EntryType.of(msg != null ? msg.asText() : null),
+                    timestamp != null ? timestamp.asLong() : 0, workerId != null ? workerId.asLong() : NO_WORKER);
+        }
+
+        Record withPosition(long offset, int length) {
+            return new Record(offset, length, type, timestamp, workerId);
+        }
+
+        private Record withTimestamp(long timestamp) {
+            return new Record(offset, length, type, timestamp, workerId);
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        private long getEnd() {
+            return offset + length;
+        }
+
+        private void writeTo(ByteBuffer buffer) {
+            buffer.putLong(offset).putInt(length).putInt(type.ordinal()).putLong(timestamp).putLong(workerId);
+        }
+
+        private static Record readFrom(ByteBuffer buffer) {
+            long offset = buffer.getLong();
+            int length = buffer.getInt();
+            int type = buffer.getInt();
+            long timestamp = buffer.getLong();
+            long workerId = buffer.getLong();
+            EntryType entryType = type >= 0 && type < EntryType.values().length ? EntryType.values()[type]
+                    : EntryType.OTHER;
+            return new Record(offset, length, entryType, timestamp, workerId);
+        }
+    }
+
+    /**
+     * Filter for the entries of a study log. Null fields match everything.
+     */
+    public static class Query {
+
+        private final Long from;
+        private final Long to;
+        private final Long workerId;
+        private final Set<EntryType> types;
+
+        /**
+         * @param from     Only entries with a timestamp (epoch millis) equal or after this one
+         * @param to       Only entries with a timestamp (epoch millis) equal or before this one
+         * @param workerId Only entries of this worker
+         * @param types    Only entries of these types
+         */
+        public Query(Long from, Long to, Long workerId, Set<EntryType> types) {
+            this.from = from;
+            this.to = to;
+            this.workerId = workerId;
+            this.types = types != null && !types.isEmpty() ? types : null;
+        }
+
+        /**
+         * Does the time range of the query overlap with the given one?
+         */
+        boolean overlaps(long firstTimestamp, long lastTimestamp) {
+            return (from == null || lastTimestamp >= from) && (to == null || firstTimestamp <= to);
+        }
+
+        private boolean matches(Record record) {
+            return (workerId == null || workerId == record.workerId)
+                    && (types == null || types.contains(record.type));
+        }
+    }
+
+    /**
+     * Writes the index of one study log. Only used by the StudyLogWriter's thread.
+     */
+    static class Writer implements Closeable {
+
+        private final Path indexPath;
+        private FileChannel channel;
+        private long indexedUntil = 0;
+        private long firstTimestamp = 0;
+        private long lastTimestamp = 0;
+        private Record lastRecord;
+
+        private Writer(Path indexPath, FileChannel channel) {
+            this.indexPath = indexPath;
+            this.channel = channel;
+        }
+
+        /**
+         * Opens the index of the given study log and indexes all entries of the study log that are not in the index
+         * yet. If the study log is shorter than the index says (the study log was recreated) the index is rebuilt.
+         */
+        static Writer open(Path studyLogPath) throws IOException {
+            Path indexPath = getIndexPath(studyLogPath);
+            Writer writer = new Writer(indexPath, openChannel(indexPath));
+            try {
+                writer.readLastRecord();
+                writer.catchUp(studyLogPath);
+            } catch (IOException e) {
+                writer.close();
+                throw e;
+            }
+            return writer;
+        }
+
+        private void readLastRecord() throws IOException {
+            long size = channel.size();
+            // Cut off a partially written record
+            if (size % RECORD_SIZE != 0) {
+                size -= size % RECORD_SIZE;
+                channel.truncate(size);
+            }
+            if (size == 0) return;
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            readFully(channel, buffer, 0);
+            firstTimestamp = Record.readFrom(buffer).timestamp;
+            buffer.clear();
+            readFully(channel, buffer, size - RECORD_SIZE);
+            lastRecord = Record.readFrom(buffer);
+            indexedUntil = lastRecord.getEnd();
+            lastTimestamp = lastRecord.timestamp;
+        }
+
+        private static FileChannel openChannel(Path indexPath) throws IOException {
+            return FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        private void catchUp(Path studyLogPath) throws IOException {
+            long logSize = Files.size(studyLogPath);
+            if (logSize < indexedUntil) {
+                LOGGER.info("Study log " + studyLogPath + " changed. Rebuild its index.");
+                rebuild(studyLogPath, logSize);
+                return;
+            }
+            if (logSize > indexedUntil) indexUntil(studyLogPath, logSize);
+        }
+
+        /**
+         * Builds the index anew in a temporary file and then replaces the old index with it in one atomic move - a
+         * Reader that has the old index open keeps reading the old one and never sees a half-built index
+         */
+        private void rebuild(Path studyLogPath, long logSize) throws IOException {
+            channel.close();
+            Path tmpPath = Files.createTempFile(indexPath.getParent(), indexPath.getFileName().toString(), ".tmp");
+            try {
+                channel = openChannel(tmpPath);
+                indexedUntil = 0;
+                firstTimestamp = 0;
+                lastTimestamp = 0;
+                lastRecord = null;
+                indexUntil(studyLogPath, logSize);
+                channel.force(false);
+                channel.close();
+                Files.move(tmpPath, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                channel.close();
+                Files.deleteIfExists(tmpPath);
+            }
+            channel = openChannel(indexPath);
+        }
+
+        private void indexUntil(Path studyLogPath, long logSize) throws IOException {
+            try (FileChannel log = FileChannel.open(studyLogPath, StandardOpenOption.READ)) {
+                log.position(indexedUntil);
+                InputStream in = new BufferedInputStream(Channels.newInputStream(log));
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long position = indexedUntil;
+                long lineStart = position;
+                int b;
+                while (position < logSize && (b = in.read()) != -1) {
+                    position++;
+                    if (b == '\n') {
+                        indexLine(line, lineStart);
+                        lineStart = position;
+                    } else {
+                        line.write(b);
+                    }
+                }
+                indexLine(line, lineStart);
+            }
+        }
+
+        private void indexLine(ByteArrayOutputStream line, long lineStart) throws IOException {
+            if (line.size() == 0) return;
+            String text = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+            Record record;
+            try {
+                record = Record.of(Json.parse(text), lineStart, line.size());
+            } catch (RuntimeException e) {
+                // Still index a broken entry so that it isn't scanned again
+                record = new Record(lineStart, line.size(), EntryType.OTHER, 0, NO_WORKER);
+            }
+            line.reset();
+            write(Collections.singletonList(record));
+        }
+
+        /**
+         * Appends the given records (that must have a position) to the index
+         */
+        void write(List<Record> records) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(records.size() * RECORD_SIZE);
+            for (Record record : records) {
+                lastTimestamp = Math.max(lastTimestamp, record.timestamp);
+                if (firstTimestamp == 0) firstTimestamp = lastTimestamp;
+                lastRecord = record.withTimestamp(lastTimestamp);
+                lastRecord.writeTo(buffer);
+                indexedUntil = record.getEnd();
+            }
+            buffer.flip();
+            long position = channel.size();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        /**
+         * Timestamp of the first entry in the index (0 if the index is empty)
+         */
+        long getFirstTimestamp() {
+            return firstTimestamp;
+        }
+
+        /**
+         * Timestamp of the last entry in the index (0 if the index is empty)
+         */
+        long getLastTimestamp() {
+            return lastTimestamp;
+        }
+
+        /**
+         * The record of the last entry in the index (null if the index is empty)
+         */
+        Record getLastRecord() {
+            return lastRecord;
+        }
+
+        /**
+         * Number of entries in the index
+         */
+        long getCount() throws IOException {
+            return channel.size() / RECORD_SIZE;
+        }
+
+        void force() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the records of an index that match a query, newest first. It finds the time range with a binary search
+     * and reads the records in blocks with positional reads.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel index;
+        private final Query query;
+        private final long lowerBound;
+        private long next;
+
+        private ByteBuffer block;
+        private long blockStart = -1;
+
+        private Reader(FileChannel index, Query query) throws IOException {
+            this.index = index;
+            this.query = query;
+            long count = index.size() / RECORD_SIZE;
+            this.lowerBound = query.from != null ? firstAfter(query.from - 1, count) : 0;
+            this.next = (query.to != null ? firstAfter(query.to, count) : count) - 1;
+        }
+
+        public static Reader open(Path indexPath, Query query) throws IOException {
+            FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ);
+            try {
+                return new Reader(index, query);
+            } catch (IOException e) {
+                index.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the next (older) record matching the query or an empty Optional if there are no more
+         */
+        public Optional<Record> next() throws IOException {
+            while (next >= lowerBound) {
+                Record record = getRecord(next--);
+                if (query.matches(record)) return Optional.of(record);
+            }
+            return Optional.empty();
+        }
+
+        /**
+         * Binary search: index of the first record with a timestamp after the given one
+         */
+        private long firstAfter(long timestamp, long count) throws IOException {
+            long low = 0;
+            long high = count;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (getRecord(mid).timestamp <= timestamp) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private Record getRecord(long i) throws IOException {
+            if (blockStart == -1 || i < blockStart || i >= blockStart + block.limit() / RECORD_SIZE) {
+                // Read the block that ends with the record since we usually go backwards
+                blockStart = Math.max(0, i - RECORDS_PER_BLOCK + 1);
+                long end = Math.min(index.size() / RECORD_SIZE, blockStart + RECORDS_PER_BLOCK);
+                block = ByteBuffer.allocate((int) (end - blockStart) * RECORD_SIZE);
+                readFully(index, block, blockStart * RECORD_SIZE);
+            }
+            block.position((int) (i - blockStart) * RECORD_SIZE);
+            return Record.readFrom(block);
+        }
+
+        @Override
+        public void close() throws IOException {
+            index.close();
+        }
+    }
+
+    /**
+     * Positional read that fills the buffer and flips it
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read == -1) throw new IOException("Unexpected end of file");
+        }
+        buffer.flip();
+    }
+
+}
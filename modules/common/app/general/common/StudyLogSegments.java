@@ -0,0 +1,396 @@
+package general.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.io.IOUtils;
+import play.Logger;
+import play.libs.Json;
+import utils.common.CompressionUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A study log consists of the active segment (the '<study UUID>.log' file, the only one that is written to) and the
+ * closed segments. When the active segment gets bigger than 'jatos.studyLogs.rotation.maxSize' or older than
+ * 'jatos.studyLogs.rotation.maxAge' it is rotated: it's gzipped into a closed segment ('<study UUID>.log.<n>.gz'),
+ * its index is kept as '<study UUID>.log.<n>.idx' (offsets refer to the uncompressed segment), and the segment is
+ * added to the manifest ('<study UUID>.log.manifest'). Then the active segment is replaced by a new empty file - it's
+ * never truncated in place, so readers that still have the old file open can finish reading it.
+ * <p>
+ * The manifest is the list of closed segments with their time range, number of entries, uncompressed size and the
+ * hash of their last entry (to continue the hash chain, see StudyLogChain). It's always replaced atomically. A crash
+ * during a rotation can at worst make the entries of the rotated segment appear twice - they are never lost.
+ * <p>
+ * Rotation and retiring run on the StudyLogWriter's thread, reading can happen anytime.
+ *
+ * @author Kristian Lange
+ */
+public class StudyLogSegments {
+
+    private static final Logger.ALogger LOGGER = Logger.of(StudyLogSegments.class);
+
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    /**
+     * A closed segment as listed in the manifest
+     */
+    static class Segment {
+
+        private final int number;
+        private final long firstTimestamp;
+        private final long lastTimestamp;
+        private final long entries;
+        private final long size;
+        private final String lastHash;
+
+        Segment(int number, long firstTimestamp, long lastTimestamp, long entries, long size, String lastHash) {
+            this.number = number;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+            this.entries = entries;
+            this.size = size;
+            this.lastHash = lastHash;
+        }
+
+        int getNumber() {
+            return number;
+        }
+
+        /**
+         * Hash of the last entry of this segment (see StudyLogChain)
+         */
+        String getLastHash() {
+            return lastHash;
+        }
+
+        private ObjectNode toJson(Path studyLogPath) {
+            ObjectNode json = Json.newObject();
+            json.put("number", number);
+            json.put("file", getSegmentPath(studyLogPath, number).getFileName().toString());
+            json.put("firstTimestamp", firstTimestamp);
+            json.put("lastTimestamp", lastTimestamp);
+            json.put("entries", entries);
+            json.put("size", size);
+            json.put("lastHash", lastHash);
+            return json;
+        }
+
+        private static Segment fromJson(JsonNode json) {
+            return new Segment(json.get("number").asInt(), json.get("firstTimestamp").asLong(),
+                    json.get("lastTimestamp").asLong(), json.get("entries").asLong(), json.get("size").asLong(),
+                    json.path("lastHash").textValue());
+        }
+    }
+
+    static Path getManifestPath(Path studyLogPath) {
+        return Paths.get(studyLogPath.toString() + MANIFEST_SUFFIX);
+    }
+
+    static Path getSegmentPath(Path studyLogPath, int number) {
+        return Paths.get(studyLogPath.toString() + "." + number + ".gz");
+    }
+
+    static Path getSegmentIndexPath(Path studyLogPath, int number) {
+        return Paths.get(studyLogPath.toString() + "." + number + ".idx");
+    }
+
+    /**
+     * Returns the closed segments of the study log from the manifest, oldest first. Returns an empty list if there is
+     * no manifest.
+     */
+    static List<Segment> getSegments(Path studyLogPath) throws IOException {
+        Path manifestPath = getManifestPath(studyLogPath);
+        if (Files.notExists(manifestPath)) return new ArrayList<>();
+        JsonNode manifest = Json.parse(new String(Files.readAllBytes(manifestPath), StandardCharsets.UTF_8));
+        List<Segment> segments = new ArrayList<>();
+        manifest.get("segments").forEach(json -> segments.add(Segment.fromJson(json)));
+        return segments;
+    }
+
+    /**
+     * Returns the files of the closed segments of the study log, oldest first
+     */
+    public static List<Path> getSegmentFiles(Path studyLogPath) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Segment segment : getSegments(studyLogPath)) {
+            files.add(getSegmentPath(studyLogPath, segment.number));
+        }
+        return files;
+    }
+
+    private static void saveManifest(Path studyLogPath, List<Segment> segments) throws IOException {
+        ObjectNode manifest = Json.newObject();
+        ArrayNode segmentsJson = manifest.putArray("segments");
+        segments.forEach(segment -> segmentsJson.add(segment.toJson(studyLogPath)));
+        Path manifestPath = getManifestPath(studyLogPath);
+        Path tmpFile = Files.createTempFile(manifestPath.getParent(), manifestPath.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmpFile, Json.mapper().writeValueAsBytes(manifest));
+            Files.move(tmpFile, manifestPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Closes the active segment of the study log: gzips it into a new closed segment, moves its index, adds the
+     * segment to the manifest and replaces the active segment with a new empty file. The study log must not be open
+     * for writing.
+     *
+     * @param firstTimestamp timestamp of the first entry of the active segment (from its index)
+     * @param lastTimestamp  timestamp of the last entry of the active segment (from its index)
+     * @param entries        number of entries in the active segment
+     * @param lastHash       hash of the last entry of the active segment
+     */
+    static void rotate(Path studyLogPath, long firstTimestamp, long lastTimestamp, long entries, String lastHash)
+            throws IOException {
+        List<Segment> segments = getSegments(studyLogPath);
+        int number = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).number + 1;
+        Path segmentPath = getSegmentPath(studyLogPath, number);
+        long size = Files.size(studyLogPath);
+
+        Path tmpFile = Files.createTempFile(segmentPath.getParent(), segmentPath.getFileName().toString(), ".tmp");
+        try {
+            CompressionUtils.gzip(studyLogPath, tmpFile);
+            Files.move(tmpFile, segmentPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        Files.move(StudyLogIndex.getIndexPath(studyLogPath), getSegmentIndexPath(studyLogPath, number),
+                StandardCopyOption.REPLACE_EXISTING);
+        segments.add(new Segment(number, firstTimestamp, lastTimestamp, entries, size, lastHash));
+        saveManifest(studyLogPath, segments);
+
+        Path emptyFile = Files.createTempFile(studyLogPath.getParent(), studyLogPath.getFileName().toString(), ".tmp");
+        try {
+            Files.move(emptyFile, studyLogPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(emptyFile);
+        }
+        LOGGER.info("Rotated study log " + studyLogPath + " into " + segmentPath);
+    }
+
+    /**
+     * Writes all segments of the study log, oldest first and uncompressed, into one file at retiredPath and deletes
+     * the study log's segments, their indices and the manifest. If there are no closed segments the active segment
+     * is just moved. A missing active segment is skipped. The study log must not be open for writing.
+     */
+    static void retire(Path studyLogPath, Path retiredPath) throws IOException {
+        List<Segment> segments = getSegments(studyLogPath);
+        if (segments.isEmpty()) {
+            if (Files.exists(studyLogPath)) Files.move(studyLogPath, retiredPath);
+            return;
+        }
+
+        Path tmpFile = Files.createTempFile(retiredPath.getParent(), retiredPath.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmpFile)) {
+                for (Segment segment : segments) {
+                    try (InputStream in = new GZIPInputStream(
+                            Files.newInputStream(getSegmentPath(studyLogPath, segment.number)))) {
+                        IOUtils.copy(in, out);
+                    }
+                }
+                if (Files.exists(studyLogPath)) Files.copy(studyLogPath, out);
+            }
+            Files.move(tmpFile, retiredPath);
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+
+        for (Segment segment : segments) {
+            Files.deleteIfExists(getSegmentPath(studyLogPath, segment.number));
+            Files.deleteIfExists(getSegmentIndexPath(studyLogPath, segment.number));
+        }
+        Files.deleteIfExists(getManifestPath(studyLogPath));
+        Files.deleteIfExists(studyLogPath);
+    }
+
+    /**
+     * Moves the closed segments of a study log whose active segment is gone (e.g. it was deleted by hand) into one
+     * retired file ('<study UUID>_<timestamp>.retired') - this way a recreated study log starts a new hash chain and
+     * doesn't get mixed up with the old segments. Does nothing if there are no closed segments. The study log must not
+     * be open for writing.
+     */
+    static void retireOrphanedSegments(Path studyLogPath) throws IOException {
+        if (Files.exists(studyLogPath) || Files.notExists(getManifestPath(studyLogPath))) return;
+        String fileName = studyLogPath.getFileName().toString();
+        String uuid = fileName.substring(0, fileName.length() - ".log".length());
+        Path retiredPath = studyLogPath.resolveSibling(uuid + "_" + Instant.now().toEpochMilli() + ".retired");
+        retire(studyLogPath, retiredPath);
+        LOGGER.info("Moved orphaned segments of study log " + studyLogPath + " to " + retiredPath);
+    }
+
+    static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) throw new IOException("Unexpected end of file");
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Reads the entries of a study log that match a query across all its segments, newest first. It starts with the
+     * active segment and continues with the closed segments whose time range overlaps with the query's.
+     */
+    public static class Reader implements Closeable {
+
+        private final StudyLogIndex.Query query;
+        private final Path studyLogPath;
+        private final Deque<Segment> segments;
+        private SegmentReader current;
+
+        private Reader(Path studyLogPath, StudyLogIndex.Query query, Deque<Segment> segments,
+                SegmentReader current) {
+            this.studyLogPath = studyLogPath;
+            this.query = query;
+            this.segments = segments;
+            this.current = current;
+        }
+
+        /**
+         * Opens the given study log. The index of its active segment has to be up-to-date.
+         */
+        public static Reader open(Path studyLogPath, StudyLogIndex.Query query) throws IOException {
+            Deque<Segment> segments = new ArrayDeque<>();
+            for (Segment segment : getSegments(studyLogPath)) {
+                if (query.overlaps(segment.firstTimestamp, segment.lastTimestamp)) segments.push(segment);
+            }
+            return new Reader(studyLogPath, query, segments, new ActiveSegmentReader(studyLogPath, query));
+        }
+
+        /**
+         * Returns the next (older) entry matching the query or an empty Optional if there are no more
+         */
+        public Optional<byte[]> next() throws IOException {
+            while (current != null) {
+                Optional<byte[]> entry = current.next();
+                if (entry.isPresent()) return entry;
+                current.close();
+                current = null;
+                while (current == null && !segments.isEmpty()) {
+                    Segment segment = segments.pop();
+                    try {
+                        current = new ClosedSegmentReader(studyLogPath, segment.number, query);
+                    } catch (IOException e) {
+                        LOGGER.warn("Couldn't read segment " + segment.number + " of study log " + studyLogPath, e);
+                    }
+                }
+            }
+            return Optional.empty();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) current.close();
+        }
+    }
+
+    private interface SegmentReader extends Closeable {
+
+        Optional<byte[]> next() throws IOException;
+    }
+
+    /**
+     * Reads the entries of the active segment with positional reads
+     */
+    private static class ActiveSegmentReader implements SegmentReader {
+
+        private final FileChannel log;
+        private final StudyLogIndex.Reader index;
+
+        ActiveSegmentReader(Path studyLogPath, StudyLogIndex.Query query) throws IOException {
+            this.log = FileChannel.open(studyLogPath, StandardOpenOption.READ);
+            try {
+                this.index = StudyLogIndex.Reader.open(StudyLogIndex.getIndexPath(studyLogPath), query);
+            } catch (IOException e) {
+                log.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public Optional<byte[]> next() throws IOException {
+            Optional<StudyLogIndex.Record> record = index.next();
+            if (!record.isPresent()) return Optional.empty();
+            ByteBuffer entry = ByteBuffer.allocate(record.get().getLength());
+            StudyLogIndex.readFully(log, entry, record.get().getOffset());
+            return Optional.of(entry.array());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                index.close();
+            } finally {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the entries of a closed (gzipped) segment. A gzip file can only be read from its beginning but the
+     * entries are read newest first - therefore the segment is decompressed once (in one pass) into a temporary file
+     * when the first entry is needed, and the entries are then read from there with positional reads. The
+     * temporary file is deleted when the reader is closed.
+     */
+    private static class ClosedSegmentReader implements SegmentReader {
+
+        private final Path segmentPath;
+        private final StudyLogIndex.Reader index;
+        private FileChannel log;
+
+        ClosedSegmentReader(Path studyLogPath, int number, StudyLogIndex.Query query) throws IOException {
+            this.segmentPath = getSegmentPath(studyLogPath, number);
+            this.index = StudyLogIndex.Reader.open(getSegmentIndexPath(studyLogPath, number), query);
+        }
+
+        @Override
+        public Optional<byte[]> next() throws IOException {
+            Optional<StudyLogIndex.Record> record = index.next();
+            if (!record.isPresent()) return Optional.empty();
+            if (log == null) log = decompress();
+            ByteBuffer entry = ByteBuffer.allocate(record.get().getLength());
+            StudyLogIndex.readFully(log, entry, record.get().getOffset());
+            return Optional.of(entry.array());
+        }
+
+        private FileChannel decompress() throws IOException {
+            Path tmpFile = Files.createTempFile("studyLogSegment", ".log");
+            try {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(segmentPath), 65536)) {
+                    Files.copy(in, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return FileChannel.open(tmpFile, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+            } catch (IOException e) {
+                Files.deleteIfExists(tmpFile);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                index.close();
+            } finally {
+                if (log != null) log.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+package general.common;
+
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Writes the entries of the study logs asynchronously. Callers only put their entries into a lock-free queue and
+ * return right away. A single writer thread drains the queue and writes all entries of one study log that came in
+ * together with one write call (group commit) through a FileChannel that is kept open as long as the study log is
+ * in use. Since there is only one writer and the queue is FIFO, the entries of a study log are written in the order
+ * they were logged.
+ * <p>
+ * The writer thread is started on demand and stops (and closes all open files) after it was idle for a while. If
+ * 'jatos.studyLogs.fsync' is true each group commit is forced to the disk.
+ * <p>
+ * Everything else that touches a study log file (create, move) has to go through {@link #execute} so that it runs
+ * on the writer thread in order with the entries.
+ * <p>
+ * Together with the entries the writer appends their records to the study log's index (see {@link StudyLogIndex}).
+ * After writing it rotates study logs that got too big or too old (see {@link StudyLogSegments}). Since the writer
+ * decides the final order of the entries it's also the one that links them with the hash of the entry before (see
+ * {@link StudyLogChain}).
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class StudyLogWriter {
+
+    private static final Logger.ALogger LOGGER = Logger.of(StudyLogWriter.class);
+
+    /**
+     * Max number of entries that are taken from the queue in one round
+     */
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Max number of study log files that are kept open at the same time
+     */
+    private static final int MAX_OPEN_FILES = 32;
+
+    /**
+     * The writer thread stops after it was idle for this long
+     */
+    private static final Duration IDLE_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * How long callers of execute() and flush() wait at most for the writer thread
+     */
+    private static final long WAIT_TIMEOUT_SECONDS = 30;
+
+    private final long idleTimeoutNanos;
+
+    private final Queue<Task> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private volatile Thread writerThread;
+
+    /**
+     * Open files, least recently used first. Only accessed by the writer thread.
+     */
+    private final Map<Path, OpenLog> openFiles = new LinkedHashMap<Path, OpenLog>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, OpenLog> eldest) {
+            if (size() <= MAX_OPEN_FILES) return false;
+            close(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+    };
+
+    @Inject
+    StudyLogWriter(ApplicationLifecycle applicationLifecycle) {
+        this(applicationLifecycle, IDLE_TIMEOUT);
+    }
+
+    StudyLogWriter(ApplicationLifecycle applicationLifecycle, Duration idleTimeout) {
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        applicationLifecycle.addStopHook(() -> {
+            flush();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Appends the given entry to the study log with the given path and its index record to the study log's index. If
+     * the study log doesn't exist it's created and the entry given by initialEntry is written first.
+     */
+    public void append(Path studyLogPath, byte[] entry, StudyLogIndex.Record indexRecord,
+            Supplier<byte[]> initialEntry) {
+        enqueue(new Entry(studyLogPath, entry, indexRecord, initialEntry));
+    }
+
+    /**
+     * Waits until all entries that were queued before are written and brings the index of the given study log
+     * up-to-date (e.g. for study logs that were written before the index existed)
+     */
+    public void updateIndex(Path studyLogPath) {
+        execute(studyLogPath, () -> {
+            if (Files.notExists(studyLogPath)) return null;
+            try {
+                StudyLogIndex.Writer.open(studyLogPath).close();
+            } catch (IOException e) {
+                LOGGER.error("Study log index couldn't be updated: " + studyLogPath, e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Runs the given action on the writer thread after all entries that were queued before are written and waits
+     * for its result. If a path is given the study log's file is closed before. The action must not log itself.
+     */
+    public <T> T execute(Path studyLogPath, Supplier<T> action) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        enqueue(new Action(studyLogPath, () -> {
+            try {
+                future.complete(action.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }));
+        try {
+            return future.get(WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException("Couldn't access study log " + studyLogPath, e);
+        }
+    }
+
+    /**
+     * Waits until all entries that were queued before are written
+     */
+    public void flush() {
+        execute(null, () -> null);
+    }
+
+    /**
+     * Is the writer thread running?
+     */
+    boolean isRunning() {
+        return running.get();
+    }
+
+    private void enqueue(Task task) {
+        queue.offer(task);
+        if (running.compareAndSet(false, true)) {
+            writerThread = new Thread(this::run, "study-log-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void run() {
+        long idleSince = System.nanoTime();
+        while (true) {
+            List<Task> batch = new ArrayList<>();
+            Task task;
+            while (batch.size() < MAX_BATCH_SIZE && (task = queue.poll()) != null) {
+                batch.add(task);
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    process(batch);
+                } catch (Exception e) {
+                    // Never let the writer thread die - the following entries would never be written
+                    LOGGER.error("Study log entries couldn't be written", e);
+                }
+                idleSince = System.nanoTime();
+                continue;
+            }
+
+            if (System.nanoTime() - idleSince < idleTimeoutNanos) {
+                LockSupport.parkNanos(this, idleTimeoutNanos);
+                continue;
+            }
+
+            // Idle for too long: stop - unless something was queued in the meantime
+            closeAll();
+            running.set(false);
+            if (queue.isEmpty() || !running.compareAndSet(false, true)) return;
+            idleSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Writes consecutive entries of the same study log together and runs the actions in between in order
+     */
+    private void process(List<Task> batch) {
+        Map<Path, List<Entry>> entriesByPath = new LinkedHashMap<>();
+        for (Task task : batch) {
+            if (task instanceof Entry) {
+                Entry entry = (Entry) task;
+                entriesByPath.computeIfAbsent(entry.studyLogPath, p -> new ArrayList<>()).add(entry);
+            } else {
+                // Write everything queued before the action
+                write(entriesByPath);
+                entriesByPath.clear();
+                runAction((Action) task);
+            }
+        }
+        write(entriesByPath);
+    }
+
+    private void write(Map<Path, List<Entry>> entriesByPath) {
+        entriesByPath.forEach((path, entries) -> {
+            try {
+                OpenLog openLog = getOpenLog(path, entries.get(0).initialEntry);
+                ByteBuffer[] buffers = new ByteBuffer[entries.size()];
+                List<StudyLogIndex.Record> records = new ArrayList<>(entries.size());
+                long start = openLog.channel.size();
+                long offset = start;
+                for (int i = 0; i < entries.size(); i++) {
+                    byte[] bytes = entries.get(i).bytes;
+                    // The index and the hash chain refer to the entry without its leading line break
+                    int lineBreak = bytes.length > 0 && bytes[0] == '\n' ? 1 : 0;
+                    bytes = StudyLogChain.chain(bytes, lineBreak, openLog.lastHash);
+                    openLog.lastHash = StudyLogChain.hash(bytes, lineBreak);
+                    buffers[i] = ByteBuffer.wrap(bytes);
+                    records.add(entries.get(i).indexRecord.withPosition(offset + lineBreak, bytes.length - lineBreak));
+                    offset += bytes.length;
+                }
+                long remaining = offset - start;
+                while (remaining > 0) {
+                    remaining -= openLog.channel.write(buffers);
+                }
+                // The index is written after the study log so it never points to entries that don't exist
+                openLog.index.write(records);
+                if (Common.isStudyLogsFsync()) {
+                    openLog.channel.force(false);
+                    openLog.index.force();
+                }
+                if (needsRotation(openLog)) rotate(path, openLog);
+            } catch (IOException e) {
+                LOGGER.error("Study log couldn't be written: " + path, e);
+                close(path, openFiles.remove(path));
+            }
+        });
+    }
+
+    /**
+     * Returns the open study log (and its index) or opens it. Recreates the study log if it doesn't exist (e.g. it was
+     * deleted while it was open): the leftovers of the old study log (closed segments, index and checkpoint) are moved
+     * out of the way first so the new study log starts with a fresh hash chain. Opening the index indexes entries
+     * that aren't in the index yet.
+     */
+    private OpenLog getOpenLog(Path path, Supplier<byte[]> initialEntry) throws IOException {
+        OpenLog openLog = openFiles.get(path);
+        if (Files.notExists(path)) {
+            close(path, openFiles.remove(path));
+            openLog = null;
+            LOGGER.info("Couldn't find study log " + path + ". Create new log file.");
+            Files.createDirectories(path.getParent());
+            StudyLogSegments.retireOrphanedSegments(path);
+            Files.deleteIfExists(StudyLogIndex.getIndexPath(path));
+            Files.deleteIfExists(StudyLogChain.getCheckpointPath(path));
+            Files.write(path, initialEntry.get(), StandardOpenOption.CREATE);
+        }
+        if (openLog == null) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            StudyLogIndex.Writer index = null;
+            try {
+                index = StudyLogIndex.Writer.open(path);
+                openLog = new OpenLog(channel, index, StudyLogChain.getLastEntryHash(path, index));
+            } catch (IOException e) {
+                channel.close();
+                if (index != null) index.close();
+                throw e;
+            }
+            openFiles.put(path, openLog);
+        }
+        return openLog;
+    }
+
+    private boolean needsRotation(OpenLog openLog) throws IOException {
+        long maxSize = Common.getStudyLogsRotationMaxSize();
+        if (maxSize > 0 && openLog.channel.size() >= maxSize) return true;
+        long maxAge = Common.getStudyLogsRotationMaxAge().toMillis();
+        long firstTimestamp = openLog.index.getFirstTimestamp();
+        return maxAge > 0 && firstTimestamp > 0 && System.currentTimeMillis() - firstTimestamp >= maxAge;
+    }
+
+    private void rotate(Path path, OpenLog openLog) throws IOException {
+        long firstTimestamp = openLog.index.getFirstTimestamp();
+        long lastTimestamp = openLog.index.getLastTimestamp();
+        long count = openLog.index.getCount();
+        String lastHash = openLog.lastHash;
+        close(path, openFiles.remove(path));
+        try {
+            StudyLogSegments.rotate(path, firstTimestamp, lastTimestamp, count, lastHash);
+        } catch (IOException e) {
+            LOGGER.error("Study log couldn't be rotated: " + path, e);
+        }
+    }
+
+    private void runAction(Action action) {
+        if (action.studyLogPath != null) close(action.studyLogPath, openFiles.remove(action.studyLogPath));
+        action.runnable.run();
+    }
+
+    private void closeAll() {
+        openFiles.forEach(this::close);
+        openFiles.clear();
+    }
+
+    private void close(Path path, OpenLog openLog) {
+        if (openLog == null) return;
+        try {
+            try {
+                openLog.channel.close();
+            } finally {
+                openLog.index.close();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Study log couldn't be closed: " + path, e);
+        }
+    }
+
+    private interface Task {
+    }
+
+    private static class Entry implements Task {
+
+        private final Path studyLogPath;
+        private final byte[] bytes;
+        private final StudyLogIndex.Record indexRecord;
+        private final Supplier<byte[]> initialEntry;
+
+        Entry(Path studyLogPath, byte[] bytes, StudyLogIndex.Record indexRecord, Supplier<byte[]> initialEntry) {
+            this.studyLogPath = studyLogPath;
+            this.bytes = bytes;
+            this.indexRecord = indexRecord;
+            this.initialEntry = initialEntry;
+        }
+    }
+
+    private static class OpenLog {
+
+        private final FileChannel channel;
+        private final StudyLogIndex.Writer index;
+
+        /**
+         * Hash of the last entry written to this study log
+         */
+        private String lastHash;
+
+        OpenLog(FileChannel channel, StudyLogIndex.Writer index, String lastHash) {
+            this.channel = channel;
+            this.index = index;
+            this.lastHash = lastHash;
+        }
+    }
+
+    private static class Action implements Task {
+
+        private final Path studyLogPath;
+        private final Runnable runnable;
+
+        Action(Path studyLogPath, Runnable runnable) {
+            this.studyLogPath = studyLogPath;
+            this.runnable = runnable;
+        }
+    }
+
+}
@@ -1,29 +1,35 @@
 package general.common;
 
 import akka.NotUsed;
-import akka.actor.ActorRef;
-import akka.actor.Status;
-import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.Compression;
+import akka.stream.javadsl.FileIO;
 import akka.stream.javadsl.Source;
 import akka.util.ByteString;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import models.common.*;
 import models.common.workers.Worker;
-import org.apache.commons.io.input.ReversedLinesFileReader;
 import org.apache.commons.lang3.tuple.Pair;
 import play.Logger;
 import play.libs.Json;
 import utils.common.HashUtils;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * StudyLogger provides logging for JATOS studies. Each study gets it's own log usually created while the study is
@@ -33,7 +39,8 @@ import java.time.Instant;
  * start/stops/aborts - result data storing - NOT logging any user adding/removing
  * <p>
  * Whenever the log entry handles result data a SHA-256 hash of the data is included in the log. If it exports files a
- * SHA-256 hash of the content of the file is included in the log.
+ * SHA-256 hash of the content of the file is included in the log. Each entry also includes the hash of the entry before
+ * so the whole log can be verified (see StudyLogChain).
  * <p>
  * The log uses charset ISO_8859_1.
  *
@@ -62,6 +69,27 @@ public class StudyLogger {
     private static final String NO_DATA = "no data";
     private static final String COMPONENT_UUID = "componentUuid";
 
+    private static final int GUNZIP_CHUNK_SIZE = 64 * 1024;
+
+    private static final String RECREATE_MSG =
+            "Could not find a study log although the study already exists. Create a new one.";
+
+    private final StudyLogWriter studyLogWriter;
+
+    /**
+     * Verifications hash the whole study log the first time - they run on their own threads (at most two at a time)
+     */
+    private final ExecutorService verificationExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "study-log-verifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    StudyLogger(StudyLogWriter studyLogWriter) {
+        this.studyLogWriter = studyLogWriter;
+    }
+
     public String getFilename(Study study) {
         return study.getUuid() + ".log";
     }
@@ -81,17 +109,17 @@ public class StudyLogger {
     public void create(Study study) {
         if (!Common.isStudyLogsEnabled()) return;
         String initialMsg = "Initial entry";
-        create(study, initialMsg);
-    }
-
-    private void recreate(Study study) {
-        if (!Common.isStudyLogsEnabled()) return;
-        String initialMsg = "Could not find a study log although the study already exists. Create a new one.";
-        create(study, initialMsg);
+        Path studyLogPath = Paths.get(getPath(study));
+        studyLogWriter.execute(studyLogPath, () -> {
+            create(study, initialMsg);
+            return null;
+        });
     }
 
+    /**
+     * Creates the study log file. Has to run on the StudyLogWriter's thread.
+     */
     private void create(Study study, String msg) {
-        if (!Common.isStudyLogsEnabled()) return;
         Path studyLogPath = Paths.get(getPath(study));
         try {
             Path studyLogDirPath = Paths.get(Common.getStudyLogsPath());
@@ -100,38 +128,64 @@ public class StudyLogger {
             }
             if (Files.exists(studyLogPath)) {
                 LOGGER.error("A study log with " + studyLogPath + " exists already.");
-                retire(study);
+                retireNow(study);
             }
-
-            ObjectNode jsonObj = Json.newObject();
-            jsonObj.put(MSG, msg);
-            jsonObj.put(TIMESTAMP, Instant.now().toEpochMilli());
-            jsonObj.put(STUDY_UUID, study.getUuid());
-            jsonObj.put(SERVERS_MAC, Common.getMac());
-            jsonObj.put(HASH_FUNCTION, HashUtils.SHA_256);
-            String logEntry = "\n" + Json.mapper().writer().writeValueAsString(jsonObj);
-            byte[] logEntryInBytes = logEntry.getBytes(StandardCharsets.ISO_8859_1);
-            Files.write(studyLogPath, logEntryInBytes, StandardOpenOption.CREATE_NEW);
+            Files.write(studyLogPath, getInitialEntry(study, msg), StandardOpenOption.CREATE_NEW);
         } catch (IOException e) {
             LOGGER.error("Study log couldn't be created: " + studyLogPath, e);
         }
     }
 
+    private byte[] getInitialEntry(Study study, String msg) {
+        ObjectNode jsonObj = Json.newObject();
+        jsonObj.put(MSG, msg);
+        jsonObj.put(TIMESTAMP, Instant.now().toEpochMilli());
+        jsonObj.put(STUDY_UUID, study.getUuid());
+        jsonObj.put(SERVERS_MAC, Common.getMac());
+        jsonObj.put(HASH_FUNCTION, HashUtils.SHA_256);
+        return toLogEntry(jsonObj);
+    }
+
     public String retire(Study study) {
         if (!Common.isStudyLogsEnabled()) return null;
-        log(study, null, "Last entry of the study log", Pair.of(STUDY_UUID, study.getUuid()));
+        return studyLogWriter.execute(Paths.get(getPath(study)), () -> retireNow(study));
+    }
+
+    /**
+     * Writes the last entry and moves the study log (all its segments in one file) to its retired path. Has to run on
+     * the StudyLogWriter's thread.
+     */
+    private String retireNow(Study study) {
         Path logPath = Paths.get(getPath(study));
         Path retiredLogPath = Paths.get(getRetiredPath(study));
-        if (Files.exists(logPath)) {
-            try {
-                Files.move(logPath, retiredLogPath);
-            } catch (IOException e) {
-                LOGGER.error("Study log couldn't be moved from " + logPath + " to " + retiredLogPath, e);
+        try {
+            if (Files.notExists(logPath)) {
+                Files.write(logPath, getInitialEntry(study, RECREATE_MSG), StandardOpenOption.CREATE);
             }
+            ObjectNode jsonObj = Json.newObject();
+            jsonObj.put(MSG, "Last entry of the study log");
+            jsonObj.put(STUDY_UUID, study.getUuid());
+            jsonObj.put(TIMESTAMP, Instant.now().toEpochMilli());
+            byte[] lastEntry = StudyLogChain.chain(toLogEntry(jsonObj), 1, StudyLogChain.getLastEntryHash(logPath));
+            Files.write(logPath, lastEntry, StandardOpenOption.APPEND);
+            StudyLogSegments.retire(logPath, retiredLogPath);
+            // Retired study logs are only downloaded as a whole - they need no index or checkpoint
+            Files.deleteIfExists(StudyLogIndex.getIndexPath(logPath));
+            Files.deleteIfExists(StudyLogChain.getCheckpointPath(logPath));
+        } catch (IOException e) {
+            LOGGER.error("Study log couldn't be moved from " + logPath + " to " + retiredLogPath, e);
         }
         return retiredLogPath.getFileName().toString();
     }
 
+    /**
+     * Waits until all log entries logged so far are written into their study logs
+     */
+    public void flush() {
+        if (!Common.isStudyLogsEnabled()) return;
+        studyLogWriter.flush();
+    }
+
     public void log(Study study, User user, String msg) {
         if (!Common.isStudyLogsEnabled()) return;
         ObjectNode jsonObj = Json.newObject();
@@ -178,10 +232,22 @@ public class StudyLogger {
      * @param file File that will be stored
      */
     public void logResultUploading(Path file, ComponentResult componentResult) throws IOException {
+        if (!Common.isStudyLogsEnabled()) return;
+        if (file == null) return;
+        logResultUploading(file, HashUtils.getHash(file, HashUtils.SHA_256), componentResult);
+    }
+
+    /**
+     * Adds an entry to the study log: adds the given hash of the file, component UUID, and the worker ID. Use this
+     * one if the hash was already calculated (e.g. by the ResultUploadIndex) to avoid reading the file twice.
+     *
+     * @param file     File that was stored
+     * @param fileHash SHA-256 hash of the file
+     */
+    public void logResultUploading(Path file, String fileHash, ComponentResult componentResult) {
         if (!Common.isStudyLogsEnabled()) return;
         if (file == null) return;
         StudyResult studyResult = componentResult.getStudyResult();
-        String fileHash = HashUtils.getHash(file, HashUtils.SHA_256);
 
         ObjectNode jsonObj = Json.newObject();
         jsonObj.put(MSG, "Uploaded file");
@@ -200,10 +266,25 @@ public class StudyLogger {
     public void logResultDataStoring(ComponentResult componentResult) {
         if (!Common.isStudyLogsEnabled()) return;
         if (componentResult == null) return;
+        String resultData = componentResult.getData();
+        logResultDataStoring(componentResult,
+                (resultData != null) ? HashUtils.getHash(resultData, HashUtils.SHA_256) : null);
+    }
+
+    /**
+     * Adds an entry to the study log: adds the given hash of the result data, component UUID, and the worker ID.
+     * Use this one if the hash was already calculated - then the result data don't have to be read again.
+     *
+     * @param componentResult ComponentResults that will be stored
+     * @param resultDataHash  Hash of the stored result data as calculated by HashUtils.getHash(String, SHA_256) or
+     *                        HashUtils.getHashOfTextFile - null if there are no result data
+     */
+    public void logResultDataStoring(ComponentResult componentResult, String resultDataHash) {
+        if (!Common.isStudyLogsEnabled()) return;
+        if (componentResult == null) return;
 
         StudyResult studyResult = componentResult.getStudyResult();
-        String resultDataHash = (componentResult.getData() != null) ? HashUtils.getHash(componentResult.getData(),
-                HashUtils.SHA_256) : NO_DATA;
+        if (resultDataHash == null) resultDataHash = NO_DATA;
         ObjectNode jsonObj = Json.newObject();
         jsonObj.put(MSG, "Stored component result data");
         jsonObj.put(COMPONENT_UUID, componentResult.getComponent().getUuid());
@@ -212,30 +293,105 @@ public class StudyLogger {
         log(studyResult.getStudy(), null, jsonObj);
     }
 
+    /**
+     * Adds an entry to the study log: adds the hash of the appended result data (not of the whole result data) to
+     * the log.
+     *
+     * @param componentResult ComponentResults the result data were appended to
+     * @param appendedData    The appended result data
+     */
+    public void logResultDataAppending(ComponentResult componentResult, String appendedData) {
+        if (!Common.isStudyLogsEnabled()) return;
+        if (componentResult == null) return;
+
+        StudyResult studyResult = componentResult.getStudyResult();
+        String resultDataHash = (appendedData != null) ? HashUtils.getHash(appendedData, HashUtils.SHA_256) : NO_DATA;
+        ObjectNode jsonObj = Json.newObject();
+        jsonObj.put(MSG, "Appended component result data");
+        jsonObj.put(COMPONENT_UUID, componentResult.getComponent().getUuid());
+        jsonObj.put(WORKER_ID, componentResult.getWorkerId());
+        jsonObj.put(DATA_HASH, resultDataHash);
+        log(studyResult.getStudy(), null, jsonObj);
+    }
+
     public void logStudyDescriptionHash(Study study, User user) {
         log(study, user, "Study description changed", Pair.of(STUDY_DESCRIPTION_HASH, study.getDescriptionHash()));
     }
 
     /**
-     * Adds the given jsonObj as an entry to the study
+     * Adds the given jsonObj as an entry to the study log. The entry is written asynchronously by the StudyLogWriter.
+     * If the study log doesn't exist anymore it is recreated.
      */
     private void log(Study study, User user, ObjectNode jsonObj) {
         if (!Common.isStudyLogsEnabled()) return;
-        Path studyLogPath = Paths.get(getPath(study));
-        if (Files.notExists(studyLogPath)) {
-            LOGGER.info("Couldn't find log for study with UUID " + study.getUuid() + " in " + studyLogPath
-                    + ". Create new log file.");
-            recreate(study);
-        }
+        if (user != null) jsonObj.put(USER_NAME, user.getName());
+        long timestamp = Instant.now().toEpochMilli();
+        jsonObj.put(TIMESTAMP, timestamp);
+        StudyLogIndex.EntryType entryType = StudyLogIndex.EntryType.of(jsonObj.path(MSG).asText());
+        long workerId = jsonObj.has(WORKER_ID) ? jsonObj.get(WORKER_ID).asLong() : StudyLogIndex.NO_WORKER;
+        StudyLogIndex.Record indexRecord = StudyLogIndex.Record.of(entryType, timestamp, workerId);
+        studyLogWriter.append(Paths.get(getPath(study)), toLogEntry(jsonObj), indexRecord,
+                () -> getInitialEntry(study, RECREATE_MSG));
+    }
+
+    private byte[] toLogEntry(ObjectNode jsonObj) {
         try {
-            if (user != null) jsonObj.put(USER_NAME, user.getName());
-            jsonObj.put(TIMESTAMP, Instant.now().toEpochMilli());
             String logEntry = "\n" + Json.mapper().writer().writeValueAsString(jsonObj);
-            byte[] logEntryInBytes = logEntry.getBytes(StandardCharsets.ISO_8859_1);
-            Files.write(studyLogPath, logEntryInBytes, StandardOpenOption.APPEND);
-        } catch (IOException e) {
-            LOGGER.error("Study log couldn't be written: " + studyLogPath, e);
+            return logEntry.getBytes(StandardCharsets.ISO_8859_1);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Verifies the hash chain of the study log (see StudyLogChain). Only the entries that were added since the last
+     * verification are hashed. Entries that are logged during the verification are left for the next one.
+     */
+    public StudyLogChain.VerificationResult verify(Study study) throws IOException {
+        Path logPath = Paths.get(getPath(study));
+        if (Files.notExists(logPath)) throw new IOException("Couldn't find study log " + logPath);
+        StudyLogChain.Position end = studyLogWriter.execute(logPath, () -> {
+            try {
+                return StudyLogChain.Position.getEnd(logPath);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return StudyLogChain.verify(logPath, end);
+    }
+
+    /**
+     * Same as {@link #verify(Study)} but runs in the background. The returned CompletionStage fails with an
+     * IOException (wrapped in a CompletionException) if the study log couldn't be read.
+     */
+    public CompletionStage<StudyLogChain.VerificationResult> verifyAsync(Study study) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return verify(study);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, verificationExecutor);
+    }
+
+    /**
+     * Returns the whole study log: all its segments, oldest first and uncompressed
+     */
+    public Source<ByteString, ?> readWholeLogFile(Study study) throws IOException {
+        flush();
+        Path logPath = Paths.get(getPath(study));
+        Source<ByteString, ?> source = Source.empty();
+        for (Path segment : StudyLogSegments.getSegmentFiles(logPath)) {
+            source = source.concat(FileIO.fromPath(segment).via(Compression.gunzip(GUNZIP_CHUNK_SIZE)));
         }
+        return source.concat(FileIO.fromPath(logPath));
+    }
+
+    /**
+     * Returns true if the study log has closed (rotated) segments
+     */
+    public boolean hasClosedSegments(Study study) throws IOException {
+        return !StudyLogSegments.getSegmentFiles(Paths.get(getPath(study))).isEmpty();
     }
 
     /**
@@ -243,46 +399,74 @@ public class StudyLogger {
      * @param entryLimit number of max entries will be read from the log
      */
     public Source<ByteString, ?> readLogFile(Study study, int entryLimit) {
-        // Prepare a chunked text stream (I have no idea what I'm doing here -
-        // https://www.playframework.com/documentation/2.5.x/JavaStream)
-        return Source.<ByteString>actorRef(256, OverflowStrategy.fail()).mapMaterializedValue(
-                sourceActor -> fillSourceWithLogFile(sourceActor, getPath(study), entryLimit));
+        return readLogFile(study, entryLimit, new StudyLogIndex.Query(null, null, null, null));
+    }
+
+    /**
+     * Reads the entries of the study log that match the query, newest first, as a JSON array. It goes through all
+     * segments of the study log (see StudyLogSegments), uses their indices to seek directly to the entries and streams
+     * them with backpressure.
+     *
+     * @param study      the study of which log will be read
+     * @param entryLimit number of max entries will be read from the log
+     * @param query      filters the entries (time range, worker, entry type)
+     */
+    public Source<ByteString, ?> readLogFile(Study study, int entryLimit, StudyLogIndex.Query query) {
+        Path logPath = Paths.get(getPath(study));
+        if (Common.isStudyLogsEnabled()) studyLogWriter.updateIndex(logPath);
+        Source<ByteString, NotUsed> entries = Source.unfoldResource(
+                () -> new LogEntrySource(logPath, query, entryLimit),
+                LogEntrySource::next,
+                LogEntrySource::close);
+        return Source.single(ByteString.fromString("["))
+                .concat(entries)
+                .concat(Source.single(ByteString.fromString("]")));
     }
 
-    private Object fillSourceWithLogFile(ActorRef sourceActor, String filePath, int lineLimit) {
-        File logFile = new File(filePath);
-        sourceActor.tell(ByteString.fromString("["), null);
-        try (ReversedLinesFileReader reader = new ReversedLinesFileReader(logFile, StandardCharsets.ISO_8859_1)) {
-            String nextLine = reader.readLine();
-            int lineNumber = 1;
-            while (hasNextLine(nextLine, lineLimit, lineNumber)) {
-                lineNumber++;
-                String currentLine = nextLine;
-                nextLine = reader.readLine();
-                if (currentLine.trim().isEmpty()) {
-                    // Apparently chunked responses can't handle empty lines
-                    continue;
-                }
-                if (hasNextLine(nextLine, lineLimit, lineNumber)) {
-                    currentLine += ",";
-                }
-                sourceActor.tell(ByteString.fromString(currentLine), null);
+    /**
+     * Turns the entries of a StudyLogIndex.Reader into the elements of a JSON array
+     */
+    private static class LogEntrySource {
+
+        private final StudyLogSegments.Reader reader;
+        private final int entryLimit;
+        private int count = 0;
+        private boolean done = false;
+
+        LogEntrySource(Path logPath, StudyLogIndex.Query query, int entryLimit) {
+            StudyLogSegments.Reader reader = null;
+            try {
+                reader = StudyLogSegments.Reader.open(logPath, query);
+            } catch (IOException e) {
+                LOGGER.error("Couldn't open study log " + logPath);
+            }
+            this.reader = reader;
+            this.entryLimit = entryLimit;
+        }
+
+        Optional<ByteString> next() throws IOException {
+            if (done) return Optional.empty();
+            if (reader == null) {
+                done = true;
+                return Optional.of(ByteString.fromString("\"" + MessagesStrings.COULDNT_OPEN_LOG + "\""));
             }
-            if (nextLine != null) {
-                sourceActor.tell(ByteString.fromString(",\"" + MessagesStrings.LOG_CUT + "\""), null);
+            Optional<byte[]> entry = reader.next();
+            if (!entry.isPresent()) {
+                done = true;
+                return Optional.empty();
             }
-        } catch (Exception e) {
-            sourceActor.tell(ByteString.fromString("\"" + MessagesStrings.COULDNT_OPEN_LOG + "\""), null);
-            LOGGER.error("Couldn't open study log " + filePath);
-        } finally {
-            sourceActor.tell(ByteString.fromString("]"), null);
-            sourceActor.tell(new Status.Success(NotUsed.getInstance()), null);
+            if (entryLimit != -1 && count >= entryLimit) {
+                done = true;
+                return Optional.of(ByteString.fromString(",\"" + MessagesStrings.LOG_CUT + "\""));
+            }
+            ByteString element = ByteString.fromArray(entry.get());
+            if (count++ > 0) element = ByteString.fromString(",").concat(element);
+            return Optional.of(element);
         }
-        return NotUsed.getInstance();
-    }
 
-    private boolean hasNextLine(String nextLine, int lineLimit, int lineNumber) {
-        return nextLine != null && (lineLimit == -1 || lineNumber <= lineLimit);
+        void close() throws IOException {
+            if (reader != null) reader.close();
+        }
     }
 
 }
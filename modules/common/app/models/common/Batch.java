@@ -125,18 +125,25 @@ public class Batch {
      * batch share the same batchSessionData. It's stored as a normal string in
      * the database but jatos.js converts it into JSON. We use versioning to
      * prevent concurrent changes of the data.
+     *
+     * While the batch is running the BatchDispatcher keeps the current batch
+     * session in memory and writes it with BatchDao.updateBatchSession(). It's
+     * never written with an update of the Batch - otherwise an update could
+     * overwrite newer session data with older ones.
      */
     @JsonIgnore
     @Lob
+    @Column(updatable = false)
     private String batchSessionData = "{}";
 
     /**
      * Current version of the batchSessionVersion. With each change of the data
      * it is increased by 1. We use versioning to prevent concurrent changes of
-     * the data.
+     * the data. Like the batchSessionData it's only written with
+     * BatchDao.updateBatchSession().
      */
     @JsonIgnore
-    @Column(nullable = false)
+    @Column(nullable = false, updatable = false)
     private Long batchSessionVersion = 1L;
 
     public Batch() {
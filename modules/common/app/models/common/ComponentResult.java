@@ -1,8 +1,15 @@
 package models.common;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import javax.persistence.*;
 
@@ -13,6 +20,8 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
+import utils.common.CompressionUtils;
+
 /**
  * DB entity of a component result. It's used by JPA and JSON
  * marshaling.
@@ -82,14 +91,75 @@ public class ComponentResult {
     @JoinColumn(name = "studyResult_id", insertable = false, updatable = false, nullable = false)
     private StudyResult studyResult;
 
+    /**
+     * Format in which the result data are stored
+     */
+    public enum DataFormat {
+        PLAIN, // As text in 'data'
+        GZIP // Gzipped (UTF-8) in 'dataCompressed'
+    }
+
+    /**
+     * Result data smaller than this (in bytes) are always stored as PLAIN - compression wouldn't gain much
+     */
+    public static final int MIN_SIZE_FOR_COMPRESSION = 1024;
+
     /**
      * Result data string submitted from the client during running the
      * component. It can be any string and doesn't have to be in JSON format.
+     * Is null if the result data are stored compressed.
      */
     @Lob
     @JsonIgnore
     private String data;
 
+    /**
+     * Result data compressed with gzip. Only used if dataFormat is GZIP.
+     */
+    @Lob
+    @JsonIgnore
+    private byte[] dataCompressed;
+
+    /**
+     * Format marker of the stored result data. Null means PLAIN too, but additionally that compression wasn't tried
+     * yet (result data stored while compression was disabled or before it existed) - ResultDataCompressor only looks
+     * at those. PLAIN means compression was tried and wasn't worth it.
+     */
+    @JsonIgnore
+    @Enumerated(EnumType.STRING)
+    private DataFormat dataFormat;
+
+    /**
+     * Pointer to the result data if they are stored outside of the database by a ResultDataStorage (e.g. a file
+     * path). Null if they are stored in the database.
+     */
+    @JsonIgnore
+    private String dataPointer;
+
+    /**
+     * SHA-256 hash of the result data stored under dataPointer (without appended chunks)
+     */
+    @JsonIgnore
+    private String dataHash;
+
+    /**
+     * Result data that were appended to this ComponentResult (via jatos.appendResultData). They are stored in separate
+     * chunks so appending doesn't have to load and rewrite the whole result data. This relationship is bidirectional.
+     * The chunks are only loaded when the result data are read.
+     */
+    @JsonIgnore
+    @OneToMany(fetch = FetchType.LAZY, mappedBy = "componentResult", cascade = CascadeType.ALL, orphanRemoval = true)
+    @OrderBy("id")
+    private List<ComponentResultChunk> dataChunkList = new ArrayList<>();
+
+    /**
+     * Size of the result data (including all appended chunks) in bytes (UTF-8). It's a running count that is updated
+     * with every submit or append so the max size check doesn't have to load the result data. Is null for component
+     * results that were stored before this field existed - then it's calculated on first use.
+     */
+    @JsonIgnore
+    private Long dataSize;
+
     /**
      * Some message usually set via jatos.startComponent. Max 255 characters. Can be left null.
      */
@@ -154,14 +224,147 @@ public class ComponentResult {
         return this.component;
     }
 
+    /**
+     * Sets the result data (stored as PLAIN) and removes all previously appended chunks
+     */
     public void setData(String data) {
-        this.data = data;
+        setData(data, DataFormat.PLAIN);
     }
 
-    public String getData() {
+    /**
+     * Sets the result data stored in the given format and removes all previously appended chunks
+     */
+    public void setData(String data, DataFormat format) {
+        this.dataChunkList.clear();
+        this.dataSize = data != null ? (long) data.getBytes(StandardCharsets.UTF_8).length : 0L;
+        storeData(data, format);
+    }
+
+    /**
+     * Compresses the stored result data (not the appended chunks) if they are stored as PLAIN. Returns true if they
+     * are compressed afterwards.
+     */
+    public boolean compressData() {
+        if (dataFormat == null && data != null) storeData(data, DataFormat.GZIP);
+        return dataFormat == DataFormat.GZIP;
+    }
+
+    /**
+     * Sets a pointer to result data that are stored outside of the database and removes all result data stored in the
+     * database (including appended chunks)
+     */
+    public void setDataPointer(String dataPointer, String dataHash, long dataSize) {
+        this.dataChunkList.clear();
+        this.data = null;
+        this.dataCompressed = null;
+        this.dataFormat = DataFormat.PLAIN;
+        this.dataPointer = dataPointer;
+        this.dataHash = dataHash;
+        this.dataSize = dataSize;
+    }
+
+    public String getDataPointer() {
+        return this.dataPointer;
+    }
+
+    public String getDataHash() {
+        return this.dataHash;
+    }
+
+    /**
+     * Returns true if the result data are stored outside of the database. Then getData() and getDataAsStream() return
+     * only the appended chunks - use ResultDataStore to get the whole result data.
+     */
+    public boolean isDataStoredExternally() {
+        return this.dataPointer != null;
+    }
+
+    private void storeData(String data, DataFormat format) {
+        this.dataPointer = null;
+        this.dataHash = null;
+        byte[] bytes = data != null ? data.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] compressed = format == DataFormat.GZIP && bytes != null && bytes.length >= MIN_SIZE_FOR_COMPRESSION
+                ? CompressionUtils.gzip(bytes) : null;
+        if (compressed != null && compressed.length < bytes.length) {
+            this.data = null;
+            this.dataCompressed = compressed;
+            this.dataFormat = DataFormat.GZIP;
+        } else {
+            this.data = data;
+            this.dataCompressed = null;
+            // Remember whether compression was tried
+            this.dataFormat = format == DataFormat.GZIP ? DataFormat.PLAIN : null;
+        }
+    }
+
+    /**
+     * Returns the stored result data without the appended chunks (decompressed if necessary)
+     */
+    private String getStoredData() {
+        if (dataFormat == DataFormat.GZIP) return CompressionUtils.gunzipToString(dataCompressed);
         return this.data;
     }
 
+    /**
+     * Returns the whole result data: the submitted data together with all appended chunks. Returns null if there are
+     * no result data at all.
+     */
+    public String getData() {
+        String storedData = getStoredData();
+        if (dataChunkList.isEmpty()) return storedData;
+
+        StringBuilder sb = new StringBuilder();
+        if (storedData != null) sb.append(storedData);
+        dataChunkList.forEach(chunk -> sb.append(chunk.getData()));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the whole result data (UTF-8) as an InputStream - compressed result data are decompressed while the
+     * stream is read. This way a reader that only needs a part of the result data or that writes them somewhere else
+     * doesn't have to hold the whole decompressed result data as a String. Returns null if there are no result data
+     * at all.
+     */
+    public InputStream getDataAsStream() {
+        List<InputStream> streams = new ArrayList<>();
+        if (dataFormat == DataFormat.GZIP) {
+            streams.add(CompressionUtils.gunzipStream(dataCompressed));
+        } else if (data != null) {
+            streams.add(new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)));
+        }
+        dataChunkList.forEach(chunk -> streams.add(
+                new ByteArrayInputStream(chunk.getData().getBytes(StandardCharsets.UTF_8))));
+        if (streams.isEmpty()) return null;
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    public DataFormat getDataFormat() {
+        return dataFormat != null ? dataFormat : DataFormat.PLAIN;
+    }
+
+    public List<ComponentResultChunk> getDataChunkList() {
+        return dataChunkList;
+    }
+
+    public void setDataChunkList(List<ComponentResultChunk> dataChunkList) {
+        this.dataChunkList = dataChunkList;
+    }
+
+    /**
+     * Returns the size of the whole result data in bytes (UTF-8)
+     */
+    public long getDataSize() {
+        if (dataSize == null) {
+            String allData = getData();
+            dataSize = allData != null ? (long) allData.getBytes(StandardCharsets.UTF_8).length : 0L;
+        }
+        return dataSize;
+    }
+
+    public void setDataSize(Long dataSize) {
+        this.dataSize = dataSize;
+    }
+
     public void setMessage(String message) {
         this.message = StringUtils.substring(message, 0, 255);
     }
@@ -0,0 +1,91 @@
+package models.common;
+
+import javax.persistence.*;
+
+/**
+ * DB entity of a chunk of result data that was appended to a ComponentResult (via jatos.appendResultData). Each append
+ * is stored as a separate chunk so the already stored result data don't have to be loaded and rewritten. The chunks
+ * are put together again in ComponentResult.getData().
+ *
+ * @author Kristian Lange
+ */
+@Entity
+@Table(name = "ComponentResultChunk")
+public class ComponentResultChunk {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    /**
+     * ComponentResult that this chunk belongs to. This relationship is bidirectional.
+     */
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "componentResult_id", nullable = false)
+    private ComponentResult componentResult;
+
+    /**
+     * The appended result data
+     */
+    @Lob
+    private String data;
+
+    public ComponentResultChunk() {
+    }
+
+    public ComponentResultChunk(ComponentResult componentResult, String data) {
+        this.componentResult = componentResult;
+        this.data = data;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public ComponentResult getComponentResult() {
+        return componentResult;
+    }
+
+    public void setComponentResult(ComponentResult componentResult) {
+        this.componentResult = componentResult;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public void setData(String data) {
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(id);
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((getId() == null) ? 0 : getId().hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+
+        if (obj == null) return false;
+
+        if (!(obj instanceof ComponentResultChunk)) return false;
+
+        ComponentResultChunk other = (ComponentResultChunk) obj;
+        if (getId() == null) return other.getId() == null;
+        return getId().equals(other.getId());
+    }
+
+}
@@ -55,16 +55,22 @@ public class GroupResult {
      * study is running. All members of this group share the same groupSessionData. It will be deleted after the group
      * is finished. It's stored as a normal string but jatos.js converts it into JSON. We use versioning to prevent
      * concurrent changes of the data. It's initialised with an empty JSON object.
+     *
+     * While the group is running the GroupDispatcher keeps the current group session in memory and writes it with
+     * GroupResultDao.updateGroupSession(). It's never written with an update of the GroupResult - otherwise an update
+     * could overwrite newer session data with older ones.
      */
     @JsonIgnore
     @Lob
+    @Column(updatable = false)
     private String groupSessionData = "{}";
 
     /**
      * Current version of the groupSessionData. With each change of the data it is increased by 1. We use versioning to
-     * prevent concurrent changes of the data.
+     * prevent concurrent changes of the data. Like the groupSessionData it's only written with
+     * GroupResultDao.updateGroupSession().
      */
-    @Column(nullable = false)
+    @Column(nullable = false, updatable = false)
     private Long groupSessionVersion = 1L;
 
     @JsonIgnore
@@ -0,0 +1,137 @@
+package models.common;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+/**
+ * DB entity of a result file that was uploaded by a component run (via jatos.uploadResultFile). It's an index of the
+ * files in the result uploads directory: name, size and hash are stored here so the GUI, the quota check and the
+ * exports don't have to scan the file system. The file itself stays in the file system.
+ *
+ * The study result and component result are referenced only by their IDs (and not with JPA relationships) since
+ * this is only an index to the files and it shouldn't interfere with the removal of results.
+ *
+ * @author Kristian Lange
+ */
+@Entity
+@Table(name = "ResultUploadFile")
+public class ResultUploadFile {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Column(name = "studyResult_id", nullable = false)
+    private Long studyResultId;
+
+    @Column(name = "componentResult_id", nullable = false)
+    private Long componentResultId;
+
+    @Column(nullable = false)
+    private String filename;
+
+    /**
+     * File size in bytes
+     */
+    private long fileSize;
+
+    /**
+     * SHA-256 hash of the file's content (hex)
+     */
+    private String fileHash;
+
+    /**
+     * Time and date of the (last) upload
+     */
+    private Timestamp uploadDate;
+
+    public ResultUploadFile() {
+    }
+
+    public ResultUploadFile(Long studyResultId, Long componentResultId, String filename) {
+        this.studyResultId = studyResultId;
+        this.componentResultId = componentResultId;
+        this.filename = filename;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getStudyResultId() {
+        return studyResultId;
+    }
+
+    public void setStudyResultId(Long studyResultId) {
+        this.studyResultId = studyResultId;
+    }
+
+    public Long getComponentResultId() {
+        return componentResultId;
+    }
+
+    public void setComponentResultId(Long componentResultId) {
+        this.componentResultId = componentResultId;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public void setFileHash(String fileHash) {
+        this.fileHash = fileHash;
+    }
+
+    public Timestamp getUploadDate() {
+        return uploadDate;
+    }
+
+    public void setUploadDate(Timestamp uploadDate) {
+        this.uploadDate = uploadDate;
+    }
+
+    @Override
+    public String toString() {
+        return id + " " + filename;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((getId() == null) ? 0 : getId().hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (!(obj instanceof ResultUploadFile)) return false;
+        ResultUploadFile other = (ResultUploadFile) obj;
+        if (getId() == null) {
+            return other.getId() == null;
+        } else return getId().equals(other.getId());
+    }
+
+}
@@ -41,9 +41,12 @@ public class StudyResult {
 
     /**
      * Time and date when the study was last seen (server time). jatos.js sends a periodic heart beat and the time of
-     * the last one is saved here.
+     * the last one is saved here. It's only written by the HeartbeatAggregator (in batches) and never with an update
+     * of the StudyResult - otherwise an update could overwrite a newer date with an older one. Use
+     * HeartbeatAggregator.getLastSeenDate() to get the up-to-date value.
      */
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy/MM/dd HH:mm:ss")
+    @Column(updatable = false)
     private Timestamp lastSeenDate;
 
     /**
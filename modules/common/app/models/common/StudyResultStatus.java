@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonGetter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.hibernate.annotations.Immutable;
 
 import javax.persistence.*;
 import java.sql.Timestamp;
@@ -12,11 +13,13 @@ import java.util.List;
 
 /**
  * DB Entity and JSON model representing the status of a StudyResult. The status is used in JATOS status view and
- * has limited information of the StudyResult (just to give an overview).
+ * has limited information of the StudyResult (just to give an overview). It's read-only - changes are never written
+ * to the DB.
  *
  * @author Kristian Lange
  */
 @Entity
+@Immutable
 @Table(name = "StudyResult")
 @JsonPropertyOrder(value = { "id", "startDate", "lastSeenDate", "studyState", "userList" })
 public class StudyResultStatus {
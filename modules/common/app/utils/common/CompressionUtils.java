@@ -0,0 +1,78 @@
+package utils.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Utility class that compresses and decompresses data with gzip
+ *
+ * @author Kristian Lange
+ */
+public class CompressionUtils {
+
+    /**
+     * Compresses the given data with gzip
+     */
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(data);
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses the source file with gzip and writes the result into the target file
+     */
+    public static void gzip(Path source, Path target) throws IOException {
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(target))) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Decompresses the given gzipped data and returns them as a UTF-8 string
+     */
+    public static String gunzipToString(byte[] gzippedData) {
+        try (InputStream in = gunzipStream(gzippedData)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(gzippedData.length * 4);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns an InputStream that decompresses the given gzipped data while it's read
+     */
+    public static InputStream gunzipStream(byte[] gzippedData) {
+        try {
+            return new GZIPInputStream(new ByteArrayInputStream(gzippedData));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -2,10 +2,11 @@ package utils.common;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -38,16 +39,31 @@ public class HashUtils {
         }
     }
 
+    /**
+     * Calculates hash of the given bytes with the given hash function. Converts the byte array into an String of
+     * hexadecimal characters.
+     */
+    public static String getHash(byte[] bytes, String hashFunction) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(hashFunction);
+            return bytesToHex(digest.digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Calculates hash for the given file. Converts the byte array into an String of hexadecimal characters.
      */
     public static String getHash(Path file, String hashFunction) throws IOException {
         try {
             MessageDigest digest = MessageDigest.getInstance(hashFunction);
-            try (InputStream is = Files.newInputStream(file);
-                    DigestInputStream dis = new DigestInputStream(is, digest)) {
-                while ((dis.read()) != -1) {}
-
+            try (InputStream is = Files.newInputStream(file)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
             }
             byte[] hashByte = digest.digest();
             return bytesToHex(hashByte);
@@ -56,7 +72,34 @@ public class HashUtils {
         }
     }
 
-    private static String bytesToHex(byte[] hashByte) {
+    /**
+     * Calculates the same hash as getHash(String, String) (same charset handling) but reads the string from the given
+     * UTF-8 text file in chunks. This way big texts don't have to be loaded into memory.
+     */
+    public static String getHashOfTextFile(Path file, String hashFunction) throws IOException {
+        try (Reader reader = new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8)) {
+            MessageDigest digest = MessageDigest.getInstance(hashFunction);
+            char[] buffer = new char[8192];
+            int offset = 0;
+            int read;
+            while ((read = reader.read(buffer, offset, buffer.length - offset)) != -1) {
+                int length = offset + read;
+                // Keep a trailing high surrogate for the next chunk - a surrogate pair must not be split
+                offset = Character.isHighSurrogate(buffer[length - 1]) ? 1 : 0;
+                digest.update(new String(buffer, 0, length - offset).getBytes(StandardCharsets.ISO_8859_1));
+                if (offset == 1) buffer[0] = buffer[length - 1];
+            }
+            if (offset == 1) digest.update(new String(buffer, 0, 1).getBytes(StandardCharsets.ISO_8859_1));
+            return bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Converts the byte array into an String of hexadecimal characters
+     */
+    public static String bytesToHex(byte[] hashByte) {
         StringBuilder sb = new StringBuilder();
         for (byte aHashByte : hashByte) {
             sb.append(Integer.toString((aHashByte & 0xff) + 0x100, 16)
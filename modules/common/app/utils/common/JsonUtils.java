@@ -6,6 +6,9 @@ import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Strings;
+import general.common.HeartbeatAggregator;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
 import models.common.*;
 import models.common.workers.JatosWorker;
 import models.common.workers.Worker;
@@ -16,18 +19,19 @@ import play.Logger.ALogger;
 import play.libs.Json;
 import utils.common.JsonUtils.SidebarStudy.SidebarComponent;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.sql.Timestamp;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Utility class the handles everything around JSON, like marshaling and
@@ -41,9 +45,27 @@ public class JsonUtils {
 
     private static final ALogger LOGGER = Logger.of(JsonUtils.class);
 
+    /**
+     * Same format as StudyResult's lastSeenDate in JSON (JsonObjectMapper uses the default timezone)
+     */
+    private static final DateTimeFormatter LAST_SEEN_DATE_FORMATTER = DateTimeFormatter
+            .ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     public static final String DATA = "data";
     public static final String VERSION = "version";
 
+    private final HeartbeatAggregator heartbeatAggregator;
+    private final ResultUploadIndex resultUploadIndex;
+    private final ResultDataStore resultDataStore;
+
+    @Inject
+    JsonUtils(HeartbeatAggregator heartbeatAggregator, ResultUploadIndex resultUploadIndex,
+            ResultDataStore resultDataStore) {
+        this.heartbeatAggregator = heartbeatAggregator;
+        this.resultUploadIndex = resultUploadIndex;
+        this.resultDataStore = resultDataStore;
+    }
+
     /**
      * Helper class for selectively marshaling an Object to JSON. Only fields of
      * that Object that are annotated with this class will be serialised. The
@@ -186,25 +208,36 @@ public class JsonUtils {
      */
     public String componentResultDataForUI(ComponentResult componentResult) {
         final int MAX_CHAR_PER_RESULT = 1000;
-        String data = componentResult.getData();
-        if (data != null) {
-            // Escape HTML tags and &
-            data = data.replace("&", "&amp").replace("<", "&lt;").replace(">", "&gt;");
-            if (data.length() < MAX_CHAR_PER_RESULT) {
-                return data;
-            } else {
-                return data.substring(0, MAX_CHAR_PER_RESULT) + " ...";
+        // Read only the beginning of the result data - no need to decompress and load all of it
+        String data;
+        boolean truncated;
+        try (InputStream in = resultDataStore.getDataAsStream(componentResult)) {
+            if (in == null) return "none";
+            Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+            char[] buffer = new char[MAX_CHAR_PER_RESULT];
+            int length = 0;
+            int read;
+            while (length < MAX_CHAR_PER_RESULT && (read = reader.read(buffer, length,
+                    MAX_CHAR_PER_RESULT - length)) != -1) {
+                length += read;
             }
-        } else {
+            data = new String(buffer, 0, length);
+            truncated = length == MAX_CHAR_PER_RESULT && reader.read() != -1;
+        } catch (IOException e) {
+            LOGGER.warn(".componentResultDataForUI: couldn't read result data of component result with ID "
+                    + componentResult.getId(), e);
             return "none";
         }
+        // Escape HTML tags and &
+        data = data.replace("&", "&amp").replace("<", "&lt;").replace(">", "&gt;");
+        return truncated ? data + " ..." : data;
     }
 
     /**
      * Returns ObjectNode of the given StudyResult. It contains the worker,
      * study's ID and title, and all ComponentResults.
      */
-    public JsonNode studyResultAsJsonNode(StudyResult studyResult, int componentResultCount) {
+    public JsonNode studyResultAsJsonNode(StudyResult studyResult, int componentResultCount, boolean hasResultFiles) {
         ObjectNode studyResultNode = Json.mapper().valueToTree(studyResult);
 
         // Add worker
@@ -215,25 +248,33 @@ public class JsonUtils {
         studyResultNode.put("studyId", studyResult.getStudy().getId());
         studyResultNode.put("studyTitle", studyResult.getStudy().getTitle());
         studyResultNode.put("batchTitle", studyResult.getBatch().getTitle());
+        // The last seen date might be newer than the one in the DB
+        Timestamp lastSeenDate = heartbeatAggregator.getLastSeenDate(studyResult);
+        if (lastSeenDate != null) {
+            studyResultNode.put("lastSeenDate", LAST_SEEN_DATE_FORMATTER.format(lastSeenDate.toInstant()));
+        }
         String duration;
         if (studyResult.getEndDate() != null) {
             duration = getDurationPretty(studyResult.getStartDate(), studyResult.getEndDate());
         } else {
-            duration = getDurationPretty(studyResult.getStartDate(), studyResult.getLastSeenDate());
+            duration = getDurationPretty(studyResult.getStartDate(), lastSeenDate);
             duration = duration != null ? duration + " (not finished yet)" : "none";
         }
         studyResultNode.put("duration", duration);
         studyResultNode.put("groupResultId", getGroupResultId(studyResult));
         studyResultNode.put("componentResultCount", componentResultCount);
-        studyResultNode.put("hasResultFiles", hasResultUploadFiles(studyResult));
+        studyResultNode.put("hasResultFiles", hasResultFiles);
 
         return studyResultNode;
     }
 
     public JsonNode getComponentResultsByStudyResult(StudyResult studyResult) {
         ArrayNode componentResultsNode = Json.mapper().createArrayNode();
+        Map<Long, List<ResultUploadFile>> uploadFiles = resultUploadIndex.getFilesOfStudyResult(studyResult.getId())
+                .stream().collect(Collectors.groupingBy(ResultUploadFile::getComponentResultId));
         for (ComponentResult componentResult : studyResult.getComponentResultList()) {
-            JsonNode componentResultNode = componentResultAsJsonNode(componentResult, true);
+            JsonNode componentResultNode = componentResultAsJsonNode(componentResult, true,
+                    uploadFiles.getOrDefault(componentResult.getId(), Collections.emptyList()));
             componentResultsNode.add(componentResultNode);
         }
         return componentResultsNode;
@@ -254,9 +295,20 @@ public class JsonUtils {
     }
 
     /**
-     * Returns an ObjectNode of the given ComponentResult.
+     * Returns an ObjectNode of the given ComponentResult. The uploaded result files are taken from the
+     * ResultUploadIndex.
      */
     public JsonNode componentResultAsJsonNode(ComponentResult componentResult, boolean withData) {
+        return componentResultAsJsonNode(componentResult, withData,
+                resultUploadIndex.getFilesOfComponentResult(componentResult.getId()));
+    }
+
+    /**
+     * Returns an ObjectNode of the given ComponentResult with the given uploaded result files (e.g. if they were
+     * fetched for several ComponentResults at once)
+     */
+    public JsonNode componentResultAsJsonNode(ComponentResult componentResult, boolean withData,
+            List<ResultUploadFile> uploadFiles) {
         ObjectNode componentResultNode = Json.mapper().valueToTree(componentResult);
 
         // Add extra variables
@@ -274,54 +326,20 @@ public class JsonUtils {
         if (withData) {
             componentResultNode.put("data", componentResultDataForUI(componentResult));
         }
-        int dataSize = componentResult.getData() != null ?
-                componentResult.getData().getBytes(StandardCharsets.UTF_8).length : 0;
-        componentResultNode.put("dataSize", Helpers.humanReadableByteCountSI(dataSize));
+        componentResultNode.put("dataSize", Helpers.humanReadableByteCountSI(componentResult.getDataSize()));
 
         // Add uploaded result files
         ArrayNode filesNode = componentResultNode.arrayNode();
-        getResultUploadFiles(componentResult).forEach(filesNode::add);
+        uploadFiles.stream().map(JsonUtils::resultUploadFileAsJsonNode).forEach(filesNode::add);
         componentResultNode.set("files", filesNode);
 
         return componentResultNode;
     }
 
-    private List<ObjectNode> getResultUploadFiles(ComponentResult componentResult) {
-        Path dir = Paths.get(
-                IOUtils.getResultUploadsDir(componentResult.getStudyResult().getId(), componentResult.getId()));
-        if (Files.isDirectory(dir)) {
-            try {
-                return Files.list(dir).map(this::getResultUploadFileNode).collect(Collectors.toList());
-            } catch (IOException e) {
-                LOGGER.warn("Cannot open directory " + dir);
-            }
-        }
-        return new ArrayList<>();
-    }
-
-    private ObjectNode getResultUploadFileNode(Path filePath) {
-        String fileSize = null;
-        try {
-            FileChannel fileChannel = FileChannel.open(filePath);
-            fileSize = Helpers.humanReadableByteCountSI(fileChannel.size());
-        } catch (IOException e) {
-            LOGGER.warn("Cannot open file " + filePath);
-        }
+    private static ObjectNode resultUploadFileAsJsonNode(ResultUploadFile uploadFile) {
         return Json.mapper().createObjectNode()
-                .put("name", filePath.getFileName().toString())
-                .put("size", fileSize);
-    }
-
-    private boolean hasResultUploadFiles(StudyResult studyResult) {
-        Path dir = Paths.get(IOUtils.getResultUploadsDir(studyResult.getId()));
-        if (Files.isDirectory(dir)) {
-            try (Stream<Path> entries = Files.list(dir)) {
-                return entries.findFirst().isPresent();
-            } catch (IOException e) {
-                LOGGER.warn("Cannot open directory " + dir);
-            }
-        }
-        return false;
+                .put("name", uploadFile.getFilename())
+                .put("size", Helpers.humanReadableByteCountSI(uploadFile.getFileSize()));
     }
 
     private static String getDurationPretty(Timestamp startDate, Timestamp endDate) {
@@ -1,6 +1,11 @@
 package utils.common;
 
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.google.common.collect.ImmutableSet;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 
 import javax.inject.Singleton;
 import java.io.*;
@@ -9,7 +14,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
@@ -29,6 +39,19 @@ public class ZipUtil {
      */
     private static final String ZIP_FILE_SEPARATOR = "/";
 
+    /**
+     * Size of the chunks that are sent downstream by zipFilesAsSource
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * File extensions of media types that are already compressed. Trying to compress them again only costs CPU.
+     */
+    private static final Set<String> COMPRESSED_FILE_EXTENSIONS = ImmutableSet.of(
+            "png", "jpg", "jpeg", "gif", "webp", "mp4", "m4v", "mov", "mkv", "webm", "ogv", "avi", "mp3", "m4a",
+            "aac", "ogg", "oga", "opus", "flac", "zip", "jzip", "gz", "tgz", "bz2", "xz", "7z", "rar", "docx",
+            "xlsx", "pptx", "odt", "ods");
+
     /**
      * Unzips the given File. Creates a new directory in the system's temp directory and writes the
      * zip's content in there. The method can handle recursive unzipping of sub-directories.
@@ -81,6 +104,97 @@ public class ZipUtil {
         out.close();
     }
 
+    /**
+     * Returns a Source that zips the given files on the fly: the zip is written in chunks directly into the stream
+     * (e.g. a chunked HTTP response) without a temporary file. The next chunk is only zipped when the stream's
+     * consumer requests it (backpressure) - no thread waits for a slow consumer. The files are read on Akka's
+     * dispatcher for blocking IO. Files that are already compressed (e.g. png, mp4, webm) are stored without
+     * compression.
+     *
+     * @param entries Map of zip entry names (with '/' as separator) to the files
+     */
+    public static Source<ByteString, NotUsed> zipFilesAsSource(Map<String, Path> entries) {
+        return Source.unfoldResource(() -> new ZipChunker(entries), ZipChunker::nextChunk, ZipChunker::close);
+    }
+
+    private static boolean isCompressed(String filename) {
+        return COMPRESSED_FILE_EXTENSIONS.contains(FilenameUtils.getExtension(filename).toLowerCase());
+    }
+
+    /**
+     * Zips the files chunk by chunk: every call of nextChunk reads the next part of a file into the ZipOutputStream
+     * and returns the zip bytes that were written so far.
+     */
+    private static class ZipChunker {
+
+        private final Iterator<Map.Entry<String, Path>> entries;
+        private final ChunkOutputStream chunk = new ChunkOutputStream();
+        private final ZipOutputStream out = new ZipOutputStream(chunk);
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private InputStream current;
+        private boolean finished = false;
+
+        ZipChunker(Map<String, Path> entries) {
+            this.entries = entries.entrySet().iterator();
+        }
+
+        /**
+         * Returns the next chunk of the zip or an empty Optional if the zip is complete
+         */
+        Optional<ByteString> nextChunk() throws IOException {
+            while (chunk.size() < CHUNK_SIZE && !finished) {
+                if (current == null) {
+                    openNextEntry();
+                    continue;
+                }
+                int read = current.read(buffer);
+                if (read == -1) {
+                    current.close();
+                    current = null;
+                    out.closeEntry();
+                } else {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return chunk.size() > 0 ? Optional.of(chunk.drain()) : Optional.empty();
+        }
+
+        private void openNextEntry() throws IOException {
+            while (entries.hasNext()) {
+                Map.Entry<String, Path> entry = entries.next();
+                if (!Files.isRegularFile(entry.getValue())) continue;
+                // With java.util.zip a STORED entry needs its CRC before the data, which would mean reading each
+                // file twice. A DEFLATED entry without compression writes the data as stored blocks in one pass.
+                out.setLevel(isCompressed(entry.getKey()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                current = Files.newInputStream(entry.getValue());
+                return;
+            }
+            out.finish();
+            finished = true;
+        }
+
+        void close() throws IOException {
+            try {
+                if (current != null) current.close();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream whose content can be taken out as a ByteString
+     */
+    private static class ChunkOutputStream extends ByteArrayOutputStream {
+
+        ByteString drain() {
+            ByteString bytes = ByteString.fromArray(buf, 0, count);
+            reset();
+            return bytes;
+        }
+    }
+
     private static void addToZip(final ZipOutputStream out, final Path root, final Path file) throws IOException {
         if (Files.isDirectory(file)) {
             addDirToZip(out, root, file);
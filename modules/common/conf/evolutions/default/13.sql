@@ -0,0 +1,18 @@
+# --- Add table 'ComponentResultChunk' for appended result data and column 'dataSize' in ComponentResult table
+
+# --- !Ups
+
+CREATE TABLE `ComponentResultChunk` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `data` longtext,
+  `componentResult_id` bigint(20) NOT NULL,
+  PRIMARY KEY (`id`)
+) DEFAULT CHARSET=utf8;
+
+ALTER TABLE `ComponentResultChunk` ADD KEY `FK_crc_componentResult_id` (`componentResult_id`);
+ALTER TABLE `ComponentResultChunk` ADD CONSTRAINT `FK_crc_componentResult_id` FOREIGN KEY (`componentResult_id`) REFERENCES `ComponentResult` (`id`);
+
+ALTER TABLE `ComponentResult` ADD COLUMN `dataSize` bigint(20) DEFAULT NULL;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,20 @@
+# --- Add table 'ResultUploadFile' as an index of the uploaded result files
+
+# --- !Ups
+
+CREATE TABLE `ResultUploadFile` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `studyResult_id` bigint(20) NOT NULL,
+  `componentResult_id` bigint(20) NOT NULL,
+  `filename` varchar(255) NOT NULL,
+  `fileSize` bigint(20) NOT NULL,
+  `fileHash` varchar(64) DEFAULT NULL,
+  `uploadDate` datetime DEFAULT NULL,
+  PRIMARY KEY (`id`)
+) DEFAULT CHARSET=utf8;
+
+ALTER TABLE `ResultUploadFile` ADD KEY `IDX_ruf_studyResult_id` (`studyResult_id`);
+ALTER TABLE `ResultUploadFile` ADD UNIQUE KEY `UK_ruf_componentResult_id_filename` (`componentResult_id`, `filename`);
+
+# --- !Downs
+# --- not supported
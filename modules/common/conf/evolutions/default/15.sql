@@ -0,0 +1,9 @@
+# --- Add columns 'dataCompressed' and 'dataFormat' to ComponentResult table for compressed result data
+
+# --- !Ups
+
+ALTER TABLE `ComponentResult` ADD COLUMN `dataCompressed` longblob DEFAULT NULL;
+ALTER TABLE `ComponentResult` ADD COLUMN `dataFormat` varchar(10) DEFAULT NULL;
+
+# --- !Downs
+# --- not supported
@@ -0,0 +1,10 @@
+# --- Add columns 'dataPointer' and 'dataHash' to ComponentResult table for result data stored outside the database
+
+# --- !Ups
+
+ALTER TABLE `ComponentResult` ADD COLUMN `dataPointer` varchar(255) DEFAULT NULL;
+ALTER TABLE `ComponentResult` ADD COLUMN `dataHash` varchar(64) DEFAULT NULL;
+ALTER TABLE `ComponentResult` ADD KEY `IDX_cr_dataPointer` (`dataPointer`);
+
+# --- !Downs
+# --- not supported
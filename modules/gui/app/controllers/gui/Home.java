@@ -9,6 +9,7 @@ import daos.common.UserDao;
 import daos.common.worker.WorkerDao;
 import general.common.Common;
 import general.common.JatosUpdater;
+import general.common.MailboxMetrics;
 import models.common.Study;
 import models.common.User;
 import models.common.User.Role;
@@ -216,6 +217,7 @@ public class Home extends Controller {
         map.put("workerCount", workerDao.count());
         map.put("userCount", userDao.count());
         map.put("serverTime", (new SimpleDateFormat("yyyy/MM/dd HH:mm:ss")).format(new Date()));
+        map.put("mailboxDepths", MailboxMetrics.getMailboxDepths());
         return ok(JsonUtils.asJson(map));
     }
 
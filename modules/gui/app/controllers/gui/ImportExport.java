@@ -1,10 +1,6 @@
 package controllers.gui;
 
-import akka.NotUsed;
-import akka.actor.ActorRef;
-import akka.actor.Status;
 import akka.stream.IOResult;
-import akka.stream.OverflowStrategy;
 import akka.stream.javadsl.FileIO;
 import akka.stream.javadsl.Source;
 import akka.util.ByteString;
@@ -20,6 +16,7 @@ import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import exceptions.gui.JatosGuiException;
 import general.common.MessagesStrings;
+import general.common.ResultUploadIndex;
 import general.gui.RequestScopeMessaging;
 import models.common.*;
 import play.Logger;
@@ -39,13 +36,12 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
 /**
@@ -64,18 +60,21 @@ public class ImportExport extends Controller {
     private final AuthenticationService authenticationService;
     private final ImportExportService importExportService;
     private final ResultDataExporter resultDataExporter;
+    private final ResultDataCsvConverter resultDataCsvConverter;
     private final IOUtils ioUtils;
     private final JsonUtils jsonUtils;
     private final StudyDao studyDao;
     private final ComponentDao componentDao;
     private final StudyResultDao studyResultDao;
     private final ComponentResultDao componentResultDao;
+    private final ResultUploadIndex resultUploadIndex;
 
     @Inject
     ImportExport(JatosGuiExceptionThrower jatosGuiExceptionThrower, Checker checker, IOUtils ioUtils,
             JsonUtils jsonUtils, AuthenticationService authenticationService, ImportExportService importExportService,
             ResultDataExporter resultDataStringGenerator, StudyDao studyDao, ComponentDao componentDao,
-            StudyResultDao studyResultDao, ComponentResultDao componentResultDao) {
+            StudyResultDao studyResultDao, ComponentResultDao componentResultDao,
+            ResultUploadIndex resultUploadIndex, ResultDataCsvConverter resultDataCsvConverter) {
         this.jatosGuiExceptionThrower = jatosGuiExceptionThrower;
         this.checker = checker;
         this.jsonUtils = jsonUtils;
@@ -83,10 +82,12 @@ public class ImportExport extends Controller {
         this.authenticationService = authenticationService;
         this.importExportService = importExportService;
         this.resultDataExporter = resultDataStringGenerator;
+        this.resultDataCsvConverter = resultDataCsvConverter;
         this.studyDao = studyDao;
         this.componentDao = componentDao;
         this.studyResultDao = studyResultDao;
         this.componentResultDao = componentResultDao;
+        this.resultUploadIndex = resultUploadIndex;
     }
 
     /**
@@ -269,17 +270,27 @@ public class ImportExport extends Controller {
         List<Long> studyResultIdList = new ArrayList<>();
         request.body().asJson().get("resultIds").forEach(node -> studyResultIdList.add(node.asLong()));
 
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(256, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultDataExporter.byStudyResultIds(sourceActor, studyResultIdList, loggedInUser);
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultDataExporter.byStudyResultIds(studyResultIdList, loggedInUser);
         return ok().chunked(source).as("text/plain; charset=utf-8");
     }
 
+    /**
+     * Ajax request with chunked streaming
+     * <p>
+     * Like exportDataOfStudyResults but returns the result data as CSV (JSON result data are flattened into columns).
+     */
+    @Transactional
+    @Authenticated
+    public Result exportDataOfStudyResultsAsCsv(Http.Request request) {
+        User loggedInUser = authenticationService.getLoggedInUser();
+        List<Long> studyResultIdList = new ArrayList<>();
+        request.body().asJson().get("resultIds").forEach(node -> studyResultIdList.add(node.asLong()));
+
+        Source<ByteString, ?> source = resultDataCsvConverter.asCsv(
+                resultDataExporter.resultDataByStudyResultIds(studyResultIdList, loggedInUser));
+        return ok().chunked(source).as("text/csv; charset=utf-8");
+    }
+
     /**
      * Ajax request with chunked streaming
      * <p>
@@ -293,17 +304,28 @@ public class ImportExport extends Controller {
         List<Long> componentResultIdList = new ArrayList<>();
         request.body().asJson().get("resultIds").forEach(node -> componentResultIdList.add(node.asLong()));
 
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(256, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultDataExporter.byComponentResultIds(sourceActor, componentResultIdList, loggedInUser);
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultDataExporter.byComponentResultIds(componentResultIdList, loggedInUser);
         return ok().chunked(source).as("text/plain; charset=utf-8");
     }
 
+    /**
+     * Ajax request with chunked streaming
+     * <p>
+     * Like exportDataOfComponentResults but returns the result data as CSV (JSON result data are flattened into
+     * columns).
+     */
+    @Transactional
+    @Authenticated
+    public Result exportDataOfComponentResultsAsCsv(Http.Request request) {
+        User loggedInUser = authenticationService.getLoggedInUser();
+        List<Long> componentResultIdList = new ArrayList<>();
+        request.body().asJson().get("resultIds").forEach(node -> componentResultIdList.add(node.asLong()));
+
+        Source<ByteString, ?> source = resultDataCsvConverter.asCsv(
+                resultDataExporter.resultDataByComponentResultIds(componentResultIdList, loggedInUser));
+        return ok().chunked(source).as("text/csv; charset=utf-8");
+    }
+
     @Transactional
     @Authenticated
     public Result downloadSingleResultFile(Long studyId, Long studyResultId, Long componetResultId, String filename)
@@ -327,54 +349,57 @@ public class ImportExport extends Controller {
 
     @Transactional
     @Authenticated
-    public Result exportResultFilesOfStudyResults(Http.Request request) throws IOException, JatosGuiException {
+    public Result exportResultFilesOfStudyResults(Http.Request request) throws JatosGuiException {
         User loggedInUser = authenticationService.getLoggedInUser();
 
-        List<Path> resultFileList = new ArrayList<>();
+        List<Long> studyResultIds = new ArrayList<>();
         try {
             for (JsonNode node : request.body().asJson().get("resultIds")) {
                 Long studyResultId = node.asLong();
                 StudyResult studyResult = studyResultDao.findById(studyResultId);
                 checker.checkStudyResult(studyResult, loggedInUser, false);
-                Path path = Paths.get(IOUtils.getResultUploadsDir(studyResultId));
-                if (Files.exists(path)) resultFileList.add(path);
+                studyResultIds.add(studyResultId);
             }
         } catch (ForbiddenException | BadRequestException e) {
             jatosGuiExceptionThrower.throwAjax(e);
         }
-        if (resultFileList.isEmpty()) return notFound("No result files found");
+        // Entries are named like the upload directories: study-result_<id>/comp-result_<id>/<filename>
+        Map<String, Path> zipEntries = new LinkedHashMap<>();
+        for (ResultUploadFile uploadFile : resultUploadIndex.getFilesOfStudyResults(studyResultIds)) {
+            zipEntries.put("study-result_" + uploadFile.getStudyResultId() + "/comp-result_"
+                    + uploadFile.getComponentResultId() + "/" + uploadFile.getFilename(),
+                    ResultUploadIndex.getPath(uploadFile));
+        }
+        if (zipEntries.isEmpty()) return notFound("No result files found");
 
-        File zipFile = File.createTempFile("resultFiles", "." + IOUtils.ZIP_FILE_SUFFIX);
-        zipFile.deleteOnExit();
-        ZipUtil.zipFiles(resultFileList, zipFile);
-        return okFileStreamed(zipFile, zipFile::delete, "application/zip");
+        return ok().chunked(ZipUtil.zipFilesAsSource(zipEntries)).as("application/zip");
     }
 
     @Transactional
     @Authenticated
-    public Result exportResultFilesOfComponentResults(Http.Request request) throws IOException, JatosGuiException {
+    public Result exportResultFilesOfComponentResults(Http.Request request) throws JatosGuiException {
         User loggedInUser = authenticationService.getLoggedInUser();
 
-        List<Path> resultFileList = new ArrayList<>();
+        List<Long> componentResultIds = new ArrayList<>();
         try {
             for (JsonNode node : request.body().asJson().get("resultIds")) {
                 Long componentResultId = node.asLong();
                 ComponentResult componentResult = componentResultDao.findById(componentResultId);
                 checker.checkComponentResult(componentResult, loggedInUser, false);
-                Path path = Paths.get(IOUtils.getResultUploadsDir(componentResult.getStudyResult().getId(),
-                        componentResultId));
-                if (Files.exists(path)) resultFileList.add(path);
+                componentResultIds.add(componentResultId);
             }
         } catch (ForbiddenException | BadRequestException e) {
             jatosGuiExceptionThrower.throwAjax(e);
         }
-        if (resultFileList.isEmpty()) return notFound("No result files found");
-
-        File zipFile = File.createTempFile("resultFiles", "." + IOUtils.ZIP_FILE_SUFFIX);
-        zipFile.deleteOnExit();
-        ZipUtil.zipFiles(resultFileList, zipFile);
+        // Entries are named like the upload directories: comp-result_<id>/<filename>
+        Map<String, Path> zipEntries = new LinkedHashMap<>();
+        for (ResultUploadFile uploadFile : resultUploadIndex.getFilesOfComponentResults(componentResultIds)) {
+            zipEntries.put("comp-result_" + uploadFile.getComponentResultId() + "/" + uploadFile.getFilename(),
+                    ResultUploadIndex.getPath(uploadFile));
+        }
+        if (zipEntries.isEmpty()) return notFound("No result files found");
 
-        return okFileStreamed(zipFile, zipFile::delete, "application/zip");
+        return ok().chunked(ZipUtil.zipFilesAsSource(zipEntries)).as("application/zip");
     }
 
     /**
@@ -1,6 +1,5 @@
 package controllers.gui;
 
-import akka.stream.javadsl.FileIO;
 import akka.stream.javadsl.Source;
 import akka.util.ByteString;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -13,6 +12,7 @@ import exceptions.gui.ForbiddenException;
 import exceptions.gui.JatosGuiException;
 import exceptions.gui.NotFoundException;
 import general.common.Common;
+import general.common.StudyLogIndex;
 import general.common.StudyLogger;
 import models.common.Component;
 import models.common.Study;
@@ -36,10 +36,14 @@ import utils.common.JsonUtils;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 /**
  * Controller for all actions regarding studies within the JATOS GUI.
@@ -391,12 +395,18 @@ public class Studies extends Controller {
      * @param studyId    study's ID
      * @param entryLimit It cuts the log after the number of lines given in entryLimit
      * @param download   If true streams the whole study log file - if not only until entryLimit
-     * @return Depending on 'download' flag returns the whole study log file - or only part of it (until entryLimit) in
-     * reverse order and 'Transfer-Encoding:chunked'
+     * @param from       Optional: only entries with a timestamp (epoch millis) equal or after this one
+     * @param to         Optional: only entries with a timestamp (epoch millis) equal or before this one
+     * @param workerId   Optional: only entries of this worker
+     * @param type       Optional: only entries of these types, comma separated (study_run, result_data, result_file,
+     *                   other)
+     * @return Depending on 'download' flag returns the whole study log file - or only part of it (until entryLimit and
+     * filtered by from, to, workerId and type) in reverse order and 'Transfer-Encoding:chunked'
      */
     @Transactional
     @Authenticated
-    public Result studyLog(Long studyId, int entryLimit, boolean download) throws JatosGuiException {
+    public Result studyLog(Long studyId, int entryLimit, boolean download, Long from, Long to, Long workerId,
+            String type) throws JatosGuiException {
         Study study = studyDao.findById(studyId);
         User loggedInUser = authenticationService.getLoggedInUser();
         checkStandardForStudy(studyId, study, loggedInUser);
@@ -406,13 +416,58 @@ public class Studies extends Controller {
             if (Files.notExists(studyLogPath)) {
                 return notFound();
             }
-            Source<ByteString, ?> source = FileIO.fromPath(studyLogPath);
-            Optional<Long> contentLength = Optional.of(studyLogPath.toFile().length());
+            Source<ByteString, ?> source = null;
+            Optional<Long> contentLength = Optional.empty();
+            try {
+                source = studyLogger.readWholeLogFile(study);
+                // The size of rotated segments is only known after decompressing them
+                if (!studyLogger.hasClosedSegments(study)) contentLength = Optional.of(studyLogPath.toFile().length());
+            } catch (IOException e) {
+                jatosGuiExceptionThrower.throwAjax(e.getMessage(), Http.Status.INTERNAL_SERVER_ERROR);
+            }
             return new Result(new ResponseHeader(200, Collections.emptyMap()),
                     new HttpEntity.Streamed(source, contentLength, Optional.of("text/plain")));
         } else {
-            return ok().chunked(studyLogger.readLogFile(study, entryLimit));
+            Set<StudyLogIndex.EntryType> types = new HashSet<>();
+            if (type != null) {
+                for (String t : type.split(",")) {
+                    if (t.trim().isEmpty()) continue;
+                    try {
+                        types.add(StudyLogIndex.EntryType.valueOf(t.trim().toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        jatosGuiExceptionThrower.throwAjax("Unknown study log entry type " + t.trim(),
+                                Http.Status.BAD_REQUEST);
+                    }
+                }
+            }
+            StudyLogIndex.Query query = new StudyLogIndex.Query(from, to, workerId, types);
+            return ok().chunked(studyLogger.readLogFile(study, entryLimit, query));
+        }
+    }
+
+    /**
+     * Ajax GET request
+     * <p>
+     * Verifies the hash chain of the study log and returns the result as JSON. Only the entries that were added since
+     * the last verification are hashed. The verification runs in the background (the first one hashes the whole study
+     * log).
+     */
+    @Transactional
+    @Authenticated
+    public CompletionStage<Result> verifyStudyLog(Long studyId) throws JatosGuiException {
+        Study study = studyDao.findById(studyId);
+        User loggedInUser = authenticationService.getLoggedInUser();
+        checkStandardForStudy(studyId, study, loggedInUser);
+
+        if (Files.notExists(Paths.get(studyLogger.getPath(study)))) {
+            return CompletableFuture.completedFuture(notFound());
         }
+        return studyLogger.verifyAsync(study).handle((result, throwable) -> {
+            if (throwable == null) return ok(Json.toJson(result));
+            Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+            if (cause instanceof UncheckedIOException) cause = cause.getCause();
+            return status(Http.Status.INTERNAL_SERVER_ERROR, cause.getMessage());
+        });
     }
 
     /**
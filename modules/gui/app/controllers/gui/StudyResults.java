@@ -1,9 +1,5 @@
 package controllers.gui;
 
-import akka.NotUsed;
-import akka.actor.ActorRef;
-import akka.actor.Status;
-import akka.stream.OverflowStrategy;
 import akka.stream.javadsl.Source;
 import akka.util.ByteString;
 import controllers.gui.actionannotations.AuthenticationAction.Authenticated;
@@ -33,7 +29,6 @@ import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
 
 /**
  * Controller for actions around StudyResults in the JATOS GUI.
@@ -200,14 +195,7 @@ public class StudyResults extends Controller {
             jatosGuiExceptionThrower.throwAjax(e);
         }
 
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(256, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultService.fetchStudyResultsByStudyPaginatedAndWriteIntoActor(sourceActor, study);
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultService.streamStudyResultsByStudy(study);
         return ok().chunked(source).as("text/html; charset=utf-8");
     }
 
@@ -232,29 +220,13 @@ public class StudyResults extends Controller {
 
         Source<ByteString, ?> source;
         if (workerType.isEmpty()) {
-            source = Source.<ByteString>actorRef(256, OverflowStrategy.fail())
-                    .mapMaterializedValue(sourceActor -> {
-                        CompletableFuture.runAsync(() -> {
-                            resultService.fetchStudyResultsByBatchPaginatedAndWriteIntoActor(sourceActor, batch);
-                            sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                        });
-                        return sourceActor;
-                    });
+            source = resultService.streamStudyResultsByBatch(batch);
         } else {
-            source = Source.<ByteString>actorRef(256, OverflowStrategy.fail())
-                    .mapMaterializedValue(sourceActor -> {
-                        CompletableFuture.runAsync(() -> {
-                            resultService.fetchStudyResultsByBatchAndWorkerTypePaginatedAndWriteIntoActor(
-                                    sourceActor, batch, workerType.get());
-                            // If worker type is MT then add MTSandbox on top
-                            if (MTWorker.WORKER_TYPE.equals(workerType.get())) {
-                                resultService.fetchStudyResultsByBatchAndWorkerTypePaginatedAndWriteIntoActor(
-                                        sourceActor, batch, MTSandboxWorker.WORKER_TYPE);
-                            }
-                            sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                        });
-                        return sourceActor;
-                    });
+            // If worker type is MT then add MTSandbox on top
+            String[] workerTypes = MTWorker.WORKER_TYPE.equals(workerType.get())
+                    ? new String[]{workerType.get(), MTSandboxWorker.WORKER_TYPE}
+                    : new String[]{workerType.get()};
+            source = resultService.streamStudyResultsByBatchAndWorkerTypes(batch, workerTypes);
         }
 
         return ok().chunked(source).as("text/html; charset=utf-8");
@@ -278,14 +250,7 @@ public class StudyResults extends Controller {
             jatosGuiExceptionThrower.throwAjax(e);
         }
 
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(256, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultService.fetchStudyResultsByGroupPaginatedAndWriteIntoActor(sourceActor, groupResult);
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultService.streamStudyResultsByGroup(groupResult);
         return ok().chunked(source).as("text/html; charset=utf-8");
     }
 
@@ -305,15 +270,7 @@ public class StudyResults extends Controller {
             jatosGuiExceptionThrower.throwAjax(e);
         }
 
-        Source<ByteString, ?> source = Source.<ByteString>actorRef(256, OverflowStrategy.fail())
-                .mapMaterializedValue(sourceActor -> {
-                    CompletableFuture.runAsync(() -> {
-                        resultService
-                                .fetchStudyResultsByWorkerPaginatedAndWriteIntoActor(sourceActor, worker, loggedInUser);
-                        sourceActor.tell(new Status.Success(NotUsed.getInstance()), ActorRef.noSender());
-                    });
-                    return sourceActor;
-                });
+        Source<ByteString, ?> source = resultService.streamStudyResultsByWorker(worker, loggedInUser);
         return ok().chunked(source).as("text/html; charset=utf-8");
     }
 
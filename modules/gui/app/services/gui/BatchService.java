@@ -183,22 +183,16 @@ public class BatchService {
         return batchSession;
     }
 
+    /**
+     * Writes the given batch session into the batch - but only if the version
+     * is still the current one. A running BatchDispatcher picks up the change
+     * and sends it to all batch members.
+     */
     public boolean updateBatchSession(long batchId, BatchSession batchSession) {
-        Batch currentBatch = batchDao.findById(batchId);
-        if (currentBatch == null ||
-                !batchSession.getVersion().equals(currentBatch.getBatchSessionVersion())) {
-            return false;
-        }
-
-        currentBatch.setBatchSessionVersion(
-                currentBatch.getBatchSessionVersion() + 1);
-        if (Strings.isNullOrEmpty(batchSession.getData())) {
-            currentBatch.setBatchSessionData("{}");
-        } else {
-            currentBatch.setBatchSessionData(batchSession.getData());
-        }
-        batchDao.update(currentBatch);
-        return true;
+        if (batchSession.getVersion() == null) return false;
+        String data = Strings.isNullOrEmpty(batchSession.getData()) ? "{}" : batchSession.getData();
+        return batchDao.updateBatchSession(batchId, data, batchSession.getVersion() + 1,
+                batchSession.getVersion());
     }
 
     /**
@@ -31,21 +31,16 @@ public class GroupService {
         return groupSession;
     }
 
+    /**
+     * Writes the given group session into the GroupResult - but only if the version is still the current one. Unlike
+     * the GroupDispatcher's writes this works for FINISHED groups too. A running GroupDispatcher picks up the change and
+     * sends it to all group members.
+     */
     public boolean updateGroupSession(long groupResultId, GroupSession groupSession) {
-        GroupResult currentGroupResult = groupResultDao.findById(groupResultId);
-        if (currentGroupResult == null ||
-                !groupSession.getVersion().equals(currentGroupResult.getGroupSessionVersion())) {
-            return false;
-        }
-
-        currentGroupResult.setGroupSessionVersion(currentGroupResult.getGroupSessionVersion() + 1);
-        if (Strings.isNullOrEmpty(groupSession.getData())) {
-            currentGroupResult.setGroupSessionData("{}");
-        } else {
-            currentGroupResult.setGroupSessionData(groupSession.getData());
-        }
-        groupResultDao.update(currentGroupResult);
-        return true;
+        if (groupSession.getVersion() == null) return false;
+        String data = Strings.isNullOrEmpty(groupSession.getData()) ? "{}" : groupSession.getData();
+        return groupResultDao.updateGroupSession(groupResultId, data, groupSession.getVersion() + 1,
+                groupSession.getVersion(), true);
     }
 
     public GroupState toggleGroupFixed(GroupResult groupResult, boolean fixed) {
@@ -7,6 +7,7 @@ import daos.common.StudyDao;
 import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import general.common.MessagesStrings;
+import general.common.StudyAssetsCompressor;
 import general.gui.RequestScopeMessaging;
 import models.common.Component;
 import models.common.Study;
@@ -56,13 +57,14 @@ public class ImportExportService {
     private final IOUtils ioUtils;
     private final StudyDao studyDao;
     private final ComponentDao componentDao;
+    private final StudyAssetsCompressor studyAssetsCompressor;
 
     @Inject
     ImportExportService(Application app, Checker checker,
             StudyService studyService, ComponentService componentService,
             JsonUtils jsonUtils, IOUtils ioUtils,
             StudyDao studyDao,
-            ComponentDao componentDao) {
+            ComponentDao componentDao, StudyAssetsCompressor studyAssetsCompressor) {
         this.app = app;
         this.checker = checker;
         this.studyService = studyService;
@@ -71,6 +73,7 @@ public class ImportExportService {
         this.ioUtils = ioUtils;
         this.studyDao = studyDao;
         this.componentDao = componentDao;
+        this.studyAssetsCompressor = studyAssetsCompressor;
     }
 
     public ObjectNode importComponent(Study study, FilePart<?> filePart)
@@ -342,7 +345,8 @@ public class ImportExportService {
 
     /**
      * Deletes current study assets' dir and moves imported study assets' dir
-     * from Java's temp dir to study assets root dir
+     * from Java's temp dir to study assets root dir. Afterwards the study
+     * assets' files are compressed in the background.
      */
     private void moveStudyAssetsDir(File unzippedStudyDir, Study currentStudy,
             String studyAssetsDirName) throws IOException {
@@ -361,6 +365,7 @@ public class ImportExportService {
         } else {
             throw new IOException(MessagesStrings.MORE_THAN_ONE_DIR_IN_ZIP);
         }
+        studyAssetsCompressor.compressStudyAssetsDirLater(studyAssetsDirName);
     }
 
     /**
@@ -0,0 +1,186 @@
+package services.gui;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import play.libs.Json;
+import services.gui.ResultDataExporter.ResultData;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Turns a stream of result data into CSV. Result data in JSON are flattened: nested objects and arrays become
+ * columns with dot-separated names (e.g. 'response.rt' or 'answers.0'). If the result data is an array of objects
+ * (e.g. one object per trial) each object becomes a row. Result data that consist of several JSON values (e.g. appended
+ * result data or JSON lines) get rows for each value. Result data that aren't JSON go into the column 'data'.
+ *
+ * The columns are inferred from the first rows (SCHEMA_ROWS). Fields of later rows that don't fit into these columns
+ * aren't lost: they are put as a JSON object into the last column 'unmappedFields'. This way the rows can be
+ * streamed without holding the whole dataset in memory.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class ResultDataCsvConverter {
+
+    /**
+     * Number of rows that are used to infer the columns
+     */
+    public static final int SCHEMA_ROWS = 100;
+
+    public static final String DATA_COLUMN = "data";
+
+    public static final String UNMAPPED_COLUMN = "unmappedFields";
+
+    private static final List<String> ID_COLUMNS = Arrays.asList("studyResultId", "componentResultId", "componentId");
+
+    private static final String SEPARATOR = ",";
+
+    private static final String LINE_SEPARATOR = "\r\n";
+
+    public Source<ByteString, NotUsed> asCsv(Source<ResultData, NotUsed> resultDataSource) {
+        return resultDataSource
+                .mapConcat(ResultDataCsvConverter::toRows)
+                .prefixAndTail(SCHEMA_ROWS)
+                .flatMapConcat(prefixAndTail -> {
+                    List<Row> firstRows = prefixAndTail.first();
+                    List<String> columns = inferColumns(firstRows);
+                    Set<String> columnSet = new HashSet<>(columns);
+                    return Source.single(header(columns))
+                            .concat(Source.from(firstRows).concat(prefixAndTail.second())
+                                    .map(row -> formatRow(row, columns, columnSet)));
+                });
+    }
+
+    /**
+     * Returns all data columns of the given rows in the order they appear first
+     */
+    static List<String> inferColumns(List<Row> rows) {
+        Set<String> columns = new LinkedHashSet<>();
+        rows.forEach(row -> columns.addAll(row.fields.keySet()));
+        return new ArrayList<>(columns);
+    }
+
+    static List<Row> toRows(ResultData resultData) {
+        List<Row> rows = new ArrayList<>();
+        List<JsonNode> values = parse(resultData.getData());
+        if (values == null || values.isEmpty() || (values.size() == 1 && values.get(0).isValueNode())) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            fields.put(DATA_COLUMN, resultData.getData());
+            rows.add(new Row(resultData, fields));
+            return rows;
+        }
+        for (JsonNode node : values) {
+            if (isArrayOfObjects(node)) {
+                node.forEach(element -> rows.add(new Row(resultData, flatten(element))));
+            } else {
+                rows.add(new Row(resultData, flatten(node)));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Parses all JSON values of the result data - appended result data (jatos.appendResultData) are often several
+     * concatenated JSON values (e.g. JSON lines). Returns null if the result data aren't JSON.
+     */
+    private static List<JsonNode> parse(String data) {
+        if (data == null) return null;
+        try (MappingIterator<JsonNode> iterator = Json.mapper().readerFor(JsonNode.class).readValues(data)) {
+            return iterator.readAll();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isArrayOfObjects(JsonNode node) {
+        if (!node.isArray() || node.size() == 0) return false;
+        for (JsonNode element : node) {
+            if (!element.isObject()) return false;
+        }
+        return true;
+    }
+
+    static Map<String, String> flatten(JsonNode node) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        flatten("", node, fields);
+        return fields;
+    }
+
+    private static void flatten(String path, JsonNode node, Map<String, String> fields) {
+        if (node.isObject()) {
+            node.fields().forEachRemaining(
+                    field -> flatten(joinPath(path, field.getKey()), field.getValue(), fields));
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                flatten(joinPath(path, String.valueOf(i)), node.get(i), fields);
+            }
+        } else {
+            fields.put(path.isEmpty() ? DATA_COLUMN : path, node.isNull() ? "" : node.asText());
+        }
+    }
+
+    private static String joinPath(String path, String key) {
+        return path.isEmpty() ? key : path + "." + key;
+    }
+
+    private static ByteString header(List<String> columns) {
+        List<String> header = new ArrayList<>(ID_COLUMNS);
+        header.addAll(columns);
+        header.add(UNMAPPED_COLUMN);
+        return asLine(header);
+    }
+
+    static ByteString formatRow(Row row, List<String> columns, Set<String> columnSet) {
+        List<String> values = new ArrayList<>();
+        values.add(String.valueOf(row.resultData.getStudyResultId()));
+        values.add(String.valueOf(row.resultData.getComponentResultId()));
+        values.add(String.valueOf(row.resultData.getComponentId()));
+        columns.forEach(column -> values.add(row.fields.get(column)));
+
+        ObjectNode unmapped = Json.newObject();
+        row.fields.forEach((key, value) -> {
+            if (!columnSet.contains(key)) unmapped.put(key, value);
+        });
+        values.add(unmapped.size() > 0 ? unmapped.toString() : null);
+        return asLine(values);
+    }
+
+    private static ByteString asLine(List<String> values) {
+        return ByteString.fromString(values.stream().map(ResultDataCsvConverter::escape)
+                .collect(Collectors.joining(SEPARATOR)) + LINE_SEPARATOR);
+    }
+
+    /**
+     * Escapes a value according to RFC 4180: values with separators, quotes or line breaks are put in quotes and
+     * quotes are doubled. Null becomes an empty value.
+     */
+    static String escape(String value) {
+        if (value == null) return "";
+        if (value.contains(SEPARATOR) || value.contains("\"") || value.contains("\n") || value.contains("\r")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+
+    /**
+     * One CSV row: the flattened fields of the result data (or of one element of it)
+     */
+    static class Row {
+
+        private final ResultData resultData;
+        private final Map<String, String> fields;
+
+        Row(ResultData resultData, Map<String, String> fields) {
+            this.resultData = resultData;
+            this.fields = fields;
+        }
+    }
+
+}
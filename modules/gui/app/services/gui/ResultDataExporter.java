@@ -1,9 +1,13 @@
 package services.gui;
 
-import akka.actor.ActorRef;
+import akka.NotUsed;
+import akka.actor.ActorSystem;
+import akka.stream.javadsl.Source;
 import akka.util.ByteString;
+import com.google.common.collect.Lists;
 import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
+import general.common.ResultDataStore;
 import general.common.StudyLogger;
 import models.common.ComponentResult;
 import models.common.Study;
@@ -14,12 +18,24 @@ import play.db.jpa.JPAApi;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
- * Service class that streams result data to Actor sources.
+ * Service class that streams result data as Akka Streams Sources. The results are fetched in two steps: first the
+ * sizes of the result data are fetched for batches of IDs (without the result data themselves) and the
+ * ComponentResults are grouped into batches of at most MAX_BATCH_DATA_SIZE bytes. Then the result data of these
+ * batches are fetched (one query with IN per batch). This way the memory needed is bounded by the size of the result
+ * data and not by the number of results. A bounded number of batches is fetched in parallel, and the result data are
+ * emitted in the order of the given IDs. The Source is backpressured: batches are only fetched as fast as the
+ * consumer (e.g. a chunked HTTP response) takes the result data. The fetching (blocking JPA transactions) runs on
+ * Akka's bounded dispatcher for blocking IO and not on the common ForkJoinPool.
  *
  * @author Kristian Lange
  */
@@ -28,75 +44,280 @@ public class ResultDataExporter {
 
     private static final Logger.ALogger LOGGER = Logger.of(ResultDataExporter.class);
 
+    /**
+     * Max number of StudyResult IDs per DB query. A StudyResult can have many ComponentResults so it's smaller than
+     * the batch size for ComponentResults.
+     */
+    private static final int STUDY_RESULT_BATCH_SIZE = 20;
+
+    /**
+     * Max number of ComponentResult IDs per DB query
+     */
+    private static final int COMPONENT_RESULT_BATCH_SIZE = 100;
+
+    /**
+     * Max size of the result data (in bytes) that are fetched in one batch. A single result data bigger than this
+     * gets a batch of its own. Result data with an unknown size (stored before the size was recorded) are treated
+     * like they have this size.
+     */
+    static final long MAX_BATCH_DATA_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Max number of batches that are fetched in parallel (each in its own transaction)
+     */
+    private static final int PARALLELISM = 4;
+
+    /**
+     * Akka Streams' dispatcher for blocking IO (bounded thread pool)
+     */
+    private static final String BLOCKING_IO_DISPATCHER = "akka.stream.default-blocking-io-dispatcher";
+
     private final Checker checker;
     private final ComponentResultDao componentResultDao;
     private final StudyResultDao studyResultDao;
     private final StudyLogger studyLogger;
+    private final ResultDataStore resultDataStore;
     private final JPAApi jpaApi;
+    private final Executor blockingExecutor;
 
     @Inject
     ResultDataExporter(Checker checker, ComponentResultDao componentResultDao, StudyResultDao studyResultDao,
-            StudyLogger studyLogger, JPAApi jpaApi) {
+            StudyLogger studyLogger, ResultDataStore resultDataStore, JPAApi jpaApi, ActorSystem actorSystem) {
         this.checker = checker;
         this.componentResultDao = componentResultDao;
         this.studyResultDao = studyResultDao;
         this.studyLogger = studyLogger;
+        this.resultDataStore = resultDataStore;
         this.jpaApi = jpaApi;
+        this.blockingExecutor = actorSystem.dispatchers().lookup(BLOCKING_IO_DISPATCHER);
+    }
+
+    /**
+     * Returns a Source with all result data of the StudyResults that correspond to the IDs (each result data a line).
+     * StudyResults that don't pass the check are left out.
+     */
+    public Source<ByteString, NotUsed> byStudyResultIds(List<Long> studyResultIdList, User user) {
+        return resultDataByStudyResultIds(studyResultIdList, user).map(ResultDataExporter::asLine);
+    }
+
+    /**
+     * Returns a Source with all result data of the ComponentResults that correspond to the IDs (each result data a
+     * line). ComponentResults that don't pass the check are left out.
+     */
+    public Source<ByteString, NotUsed> byComponentResultIds(List<Long> componentResultIdList, User user) {
+        return resultDataByComponentResultIds(componentResultIdList, user).map(ResultDataExporter::asLine);
+    }
+
+    /**
+     * Like byStudyResultIds but returns the result data together with the IDs of their results
+     */
+    public Source<ResultData, NotUsed> resultDataByStudyResultIds(List<Long> studyResultIdList, User user) {
+        return export(studyResultIdList, STUDY_RESULT_BATCH_SIZE, batch -> fetchDataSizesOfStudyResults(batch, user),
+                user);
+    }
+
+    /**
+     * Like byComponentResultIds but returns the result data together with the IDs of their results
+     */
+    public Source<ResultData, NotUsed> resultDataByComponentResultIds(List<Long> componentResultIdList, User user) {
+        return export(componentResultIdList, COMPONENT_RESULT_BATCH_SIZE, this::fetchDataSizesOfComponentResults,
+                user);
+    }
+
+    /**
+     * The export is only logged in the study log if the Source completed - not if it failed or was cancelled (e.g.
+     * the download was aborted). A cancellation completes watchTermination's future normally too, therefore an empty
+     * Source is concatenated that is only materialized after all result data were emitted.
+     */
+    private Source<ResultData, NotUsed> export(List<Long> idList, int batchSize,
+            Function<List<Long>, Map<Long, Long>> dataSizeFetcher, User user) {
+        Set<Study> studies = ConcurrentHashMap.newKeySet();
+        AtomicBoolean completed = new AtomicBoolean(false);
+        // mapAsync emits the batches in their original order even if they are fetched in parallel
+        return Source.from(Lists.partition(idList, batchSize))
+                .mapAsync(PARALLELISM, batch -> CompletableFuture.supplyAsync(
+                        () -> partitionByDataSize(dataSizeFetcher.apply(batch)), blockingExecutor))
+                .mapConcat(batches -> batches)
+                .mapAsync(PARALLELISM, batch -> CompletableFuture.supplyAsync(
+                        () -> fetchResultData(batch, user, studies), blockingExecutor))
+                .mapConcat(resultDataList -> resultDataList)
+                .concat(Source.lazily(() -> {
+                    completed.set(true);
+                    return Source.<ResultData>empty();
+                }))
+                .watchTermination((notUsed, done) -> {
+                    done.thenRun(() -> {
+                        if (completed.get()) {
+                            studies.forEach(study -> studyLogger.log(study, user, "Exported result data to file"));
+                        }
+                    });
+                    return notUsed;
+                });
+    }
+
+    /**
+     * Splits the ComponentResult IDs (in the map's order) into batches of at most MAX_BATCH_DATA_SIZE bytes of result
+     * data and at most COMPONENT_RESULT_BATCH_SIZE ComponentResults
+     *
+     * @param dataSizes result data sizes mapped by ComponentResult IDs (null if unknown)
+     */
+    static List<List<Long>> partitionByDataSize(Map<Long, Long> dataSizes) {
+        List<List<Long>> batches = new ArrayList<>();
+        List<Long> batch = new ArrayList<>();
+        long batchDataSize = 0;
+        for (Map.Entry<Long, Long> entry : dataSizes.entrySet()) {
+            long dataSize = entry.getValue() != null ? entry.getValue() : MAX_BATCH_DATA_SIZE;
+            if (!batch.isEmpty() && (batchDataSize + dataSize > MAX_BATCH_DATA_SIZE
+                    || batch.size() >= COMPONENT_RESULT_BATCH_SIZE)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchDataSize = 0;
+            }
+            batch.add(entry.getKey());
+            batchDataSize += dataSize;
+        }
+        if (!batch.isEmpty()) batches.add(batch);
+        return batches;
     }
 
     /**
-     * Retrieves the StudyResults that correspond to the IDs, checks them and returns all their result data.
+     * Returns the result data sizes of all ComponentResults of the StudyResults (that pass the check) mapped by
+     * ComponentResult IDs in the order of the StudyResult IDs
      */
-    public void byStudyResultIds(ActorRef sourceActor, List<Long> studyResultIdList, User user) {
-        Set<Study> studies = new HashSet<>();
-        for (Long studyResultId : studyResultIdList) {
+    private Map<Long, Long> fetchDataSizesOfStudyResults(List<Long> studyResultIds, User user) {
+        Map<Long, Long> dataSizes = new LinkedHashMap<>();
+        try {
             jpaApi.withTransaction(entityManager -> {
-                try {
-                    StudyResult studyResult = studyResultDao.findById(studyResultId);
-                    if (studyResult != null) {
-                        checker.checkStudyResult(studyResult, user, false);
-                        studies.add(studyResult.getStudy());
-                        studyResult.getComponentResultList().forEach(cr -> tellResultData(sourceActor, cr));
-                    } else {
+                Map<Long, StudyResult> studyResults = studyResultDao.findAllByIds(studyResultIds).stream()
+                        .collect(Collectors.toMap(StudyResult::getId, Function.identity()));
+                List<Long> allowedIds = new ArrayList<>();
+                for (Long studyResultId : studyResultIds) {
+                    StudyResult studyResult = studyResults.get(studyResultId);
+                    if (studyResult == null) {
                         LOGGER.warn("A study result with ID " + studyResultId + " doesn't exist.");
+                        continue;
+                    }
+                    try {
+                        checker.checkStudyResult(studyResult, user, false);
+                        allowedIds.add(studyResultId);
+                    } catch (Exception e) {
+                        LOGGER.warn("Couldn't get result data", e);
                     }
-                } catch (Exception e) {
-                    LOGGER.warn("Couldn't get result data", e);
+                }
+
+                Map<Long, Map<Long, Long>> dataSizesByStudyResult = componentResultDao
+                        .findDataSizesByStudyResultIds(allowedIds);
+                for (Long studyResultId : allowedIds) {
+                    dataSizes.putAll(dataSizesByStudyResult.getOrDefault(studyResultId, Collections.emptyMap()));
                 }
             });
+        } catch (Exception e) {
+            LOGGER.warn("Couldn't get result data", e);
         }
-        studies.forEach(study -> studyLogger.log(study, user, "Exported result data to file"));
+        return dataSizes;
     }
 
     /**
-     * Retrieves the ComponentResults that correspond to the IDs, checks them and returns all their result data.
+     * Returns the result data sizes of the ComponentResults mapped by their IDs in the order of the IDs
      */
-    public void byComponentResultIds(ActorRef sourceActor, List<Long> componentResultIdList, User user) {
-        Set<Study> studies = new HashSet<>();
-        for (Long componentResultId : componentResultIdList) {
+    private Map<Long, Long> fetchDataSizesOfComponentResults(List<Long> componentResultIds) {
+        Map<Long, Long> dataSizes = new LinkedHashMap<>();
+        try {
             jpaApi.withTransaction(entityManager -> {
-                try {
-                    ComponentResult componentResult = componentResultDao.findById(componentResultId);
-                    if (componentResult != null) {
+                Map<Long, Long> unorderedDataSizes = componentResultDao.findDataSizesByIds(componentResultIds);
+                for (Long componentResultId : componentResultIds) {
+                    if (!unorderedDataSizes.containsKey(componentResultId)) {
+                        LOGGER.warn("A component result with ID " + componentResultId + " doesn't exist.");
+                        continue;
+                    }
+                    dataSizes.put(componentResultId, unorderedDataSizes.get(componentResultId));
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.warn("Couldn't get result data", e);
+        }
+        return dataSizes;
+    }
+
+    private List<ResultData> fetchResultData(List<Long> componentResultIds, User user, Set<Study> studies) {
+        List<ResultData> resultDataList = new ArrayList<>();
+        try {
+            jpaApi.withTransaction(entityManager -> {
+                Map<Long, ComponentResult> componentResults = componentResultDao
+                        .findAllByIdsWithData(componentResultIds).stream()
+                        .collect(Collectors.toMap(ComponentResult::getId, Function.identity()));
+                for (Long componentResultId : componentResultIds) {
+                    ComponentResult componentResult = componentResults.get(componentResultId);
+                    if (componentResult == null) continue; // Removed in the meantime
+                    try {
                         checker.checkComponentResult(componentResult, user, false);
                         studies.add(componentResult.getStudyResult().getStudy());
-                        tellResultData(sourceActor, componentResult);
-                    } else {
-                        LOGGER.warn("A component result with ID " + componentResultId + " doesn't exist.");
+                        addResultData(resultDataList, componentResult);
+                    } catch (Exception e) {
+                        LOGGER.warn("Couldn't get result data", e);
                     }
-                } catch (Exception e) {
-                    LOGGER.warn("Couldn't get result data", e);
                 }
             });
+        } catch (Exception e) {
+            LOGGER.warn("Couldn't get result data", e);
         }
-        studies.forEach(study -> studyLogger.log(study, user, "Exported result data to file"));
+        return resultDataList;
     }
 
-    private void tellResultData(ActorRef sourceActor, ComponentResult componentResult) {
-        String resultDataStr = componentResult.getData();
+    /**
+     * The result data are decompressed into a String here (and not streamed with getDataAsStream()) because a
+     * ResultData has to hold the whole result data, e.g. for the CSV conversion that parses them as JSON. The
+     * memory this needs is bounded by MAX_BATCH_DATA_SIZE per batch.
+     */
+    private void addResultData(List<ResultData> resultDataList, ComponentResult componentResult) {
+        String resultDataStr;
+        try {
+            resultDataStr = resultDataStore.getData(componentResult);
+        } catch (IOException e) {
+            LOGGER.warn("Couldn't get result data of component result with ID " + componentResult.getId(), e);
+            return;
+        }
         if (resultDataStr == null) return;
-        ByteString lineToSend = ByteString.fromString(resultDataStr + System.lineSeparator());
-        sourceActor.tell(lineToSend, null);
+        resultDataList.add(new ResultData(componentResult.getStudyResult().getId(), componentResult.getId(),
+                componentResult.getComponent().getId(), resultDataStr));
+    }
+
+    private static ByteString asLine(ResultData resultData) {
+        return ByteString.fromString(resultData.getData() + System.lineSeparator());
+    }
+
+    /**
+     * Result data of one ComponentResult together with the IDs that identify it
+     */
+    public static class ResultData {
+
+        private final Long studyResultId;
+        private final Long componentResultId;
+        private final Long componentId;
+        private final String data;
+
+        public ResultData(Long studyResultId, Long componentResultId, Long componentId, String data) {
+            this.studyResultId = studyResultId;
+            this.componentResultId = componentResultId;
+            this.componentId = componentId;
+            this.data = data;
+        }
+
+        public Long getStudyResultId() {
+            return studyResultId;
+        }
+
+        public Long getComponentResultId() {
+            return componentResultId;
+        }
+
+        public Long getComponentId() {
+            return componentId;
+        }
+
+        public String getData() {
+            return data;
+        }
     }
 
 }
@@ -7,20 +7,23 @@ import daos.common.worker.WorkerDao;
 import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import exceptions.gui.NotFoundException;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
 import general.common.StudyLogger;
 import models.common.*;
 import models.common.workers.Worker;
 import play.Logger;
 import play.Logger.ALogger;
 import play.db.jpa.JPAApi;
-import utils.common.IOUtils;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Service class that removes ComponentResults or StudyResults. It's used by
@@ -41,13 +44,15 @@ public class ResultRemover {
     private final GroupResultDao groupResultDao;
     private final WorkerDao workerDao;
     private final StudyLogger studyLogger;
-    private final IOUtils ioUtils;
+    private final ResultUploadIndex resultUploadIndex;
+    private final ResultDataStore resultDataStore;
 
     @Inject
     ResultRemover(JPAApi jpa, Checker checker, ResultService resultService,
             ComponentResultDao componentResultDao,
             StudyResultDao studyResultDao, GroupResultDao groupResultDao,
-            WorkerDao workerDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            WorkerDao workerDao, StudyLogger studyLogger, ResultUploadIndex resultUploadIndex,
+            ResultDataStore resultDataStore) {
         this.jpa = jpa;
         this.checker = checker;
         this.resultService = resultService;
@@ -56,7 +61,8 @@ public class ResultRemover {
         this.groupResultDao = groupResultDao;
         this.workerDao = workerDao;
         this.studyLogger = studyLogger;
-        this.ioUtils = ioUtils;
+        this.resultUploadIndex = resultUploadIndex;
+        this.resultDataStore = resultDataStore;
     }
 
     /**
@@ -156,11 +162,13 @@ public class ResultRemover {
             studyResultDao.update(studyResult);
             try {
                 // Remove componentResult's upload dir
-                ioUtils.removeResultUploadsDir(studyResult.getId(), componentResult.getId());
+                resultUploadIndex.removeComponentResult(studyResult.getId(), componentResult.getId());
             } catch (IOException e) {
                 LOGGER.error(".removeComponentResult: Couldn't remove upload dir " + componentResult.getId(), e);
             }
             componentResultDao.remove(componentResult);
+            // Remove result data stored outside the database
+            resultDataStore.deleteIfUnreferenced(Collections.singletonList(componentResult.getDataPointer()));
         });
     }
 
@@ -174,6 +182,8 @@ public class ResultRemover {
             StudyResult studyResult = studyResultDao.findById(studyResultId);
 
             // Remove all component results of this study result
+            List<String> dataPointers = studyResult.getComponentResultList().stream()
+                    .map(ComponentResult::getDataPointer).collect(Collectors.toList());
             studyResult.getComponentResultList().forEach(componentResultDao::remove);
 
             // Remove study result from worker
@@ -195,13 +205,16 @@ public class ResultRemover {
 
             try {
                 // Remove studyResult's upload dir
-                ioUtils.removeResultUploadsDir(studyResultId);
+                resultUploadIndex.removeStudyResult(studyResultId);
             } catch (IOException e) {
                 LOGGER.error(".removeStudyResult: Couldn't remove upload dir " + studyResult.getId(), e);
             }
 
             // Remove studyResult
             studyResultDao.remove(studyResult);
+
+            // Remove result data stored outside the database
+            resultDataStore.deleteIfUnreferenced(dataPointers);
         });
 
     }
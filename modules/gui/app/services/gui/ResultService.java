@@ -1,24 +1,35 @@
 package services.gui;
 
-import akka.actor.ActorRef;
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
 import akka.util.ByteString;
 import com.fasterxml.jackson.databind.JsonNode;
 import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
+import daos.common.StudyResultDao.StudyResultRow;
 import exceptions.gui.NotFoundException;
 import general.common.Common;
+import general.common.HeartbeatAggregator;
 import general.common.MessagesStrings;
+import general.common.ResultUploadIndex;
 import models.common.*;
 import models.common.workers.Worker;
+import org.hibernate.Session;
 import play.db.jpa.JPAApi;
 import utils.common.JsonUtils;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Service class around ComponentResults and StudyResults. It's used by controllers or other services.
@@ -32,14 +43,19 @@ public class ResultService {
     private final StudyResultDao studyResultDao;
     private final JsonUtils jsonUtils;
     private final JPAApi jpaApi;
+    private final HeartbeatAggregator heartbeatAggregator;
+    private final ResultUploadIndex resultUploadIndex;
 
     @Inject
     ResultService(ComponentResultDao componentResultDao, StudyResultDao studyResultDao, JsonUtils jsonUtils,
-            JPAApi jpaApi) {
+            JPAApi jpaApi, HeartbeatAggregator heartbeatAggregator,
+            ResultUploadIndex resultUploadIndex) {
         this.componentResultDao = componentResultDao;
         this.studyResultDao = studyResultDao;
         this.jsonUtils = jsonUtils;
         this.jpaApi = jpaApi;
+        this.heartbeatAggregator = heartbeatAggregator;
+        this.resultUploadIndex = resultUploadIndex;
     }
 
     /**
@@ -74,133 +90,150 @@ public class ResultService {
         return studyResultList;
     }
 
-    public void fetchStudyResultsByStudyPaginatedAndWriteIntoActor(ActorRef sourceActor, Study study) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByStudy(study);
-        });
-
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (first + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao.findAllByStudy(study, first, maxDbQuerySize);
-                writeStudyResultsIntoActor(sourceActor, isLastPage, resultList);
-            });
-        }
+    /**
+     * Returns all StudyResults of the study as a Source of JSON (see {@link #streamKeysetPaginated})
+     */
+    public Source<ByteString, NotUsed> streamStudyResultsByStudy(Study study) {
+        return streamKeysetPaginated(Collections.singletonList(
+                (lastId, max) -> studyResultDao.findAllRowsByStudyAfterId(study, lastId, max)),
+                row -> row.getStudyResult().getId(), this::studyResultRowsAsJsonNodes);
     }
 
-    public void fetchStudyResultsByBatchPaginatedAndWriteIntoActor(ActorRef sourceActor, Batch batch) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByBatch(batch);
-        });
+    public Source<ByteString, NotUsed> streamStudyResultsByBatch(Batch batch) {
+        return streamKeysetPaginated(Collections.singletonList(
+                (lastId, max) -> studyResultDao.findAllRowsByBatchAfterId(batch, lastId, max)),
+                row -> row.getStudyResult().getId(), this::studyResultRowsAsJsonNodes);
+    }
 
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (first + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao.findAllByBatch(batch, first, maxDbQuerySize);
-                writeStudyResultsIntoActor(sourceActor, isLastPage, resultList);
-            });
+    /**
+     * Returns all StudyResults of the batch that belong to one of the given worker types (one JSON array content for
+     * all worker types together)
+     */
+    public Source<ByteString, NotUsed> streamStudyResultsByBatchAndWorkerTypes(Batch batch, String... workerTypes) {
+        List<BiFunction<Long, Integer, List<StudyResultRow>>> pageFetchers = new ArrayList<>();
+        for (String workerType : workerTypes) {
+            pageFetchers.add((lastId, max) -> studyResultDao
+                    .findAllRowsByBatchAndWorkerTypeAfterId(batch, workerType, lastId, max));
         }
+        return streamKeysetPaginated(pageFetchers, row -> row.getStudyResult().getId(),
+                this::studyResultRowsAsJsonNodes);
     }
 
-    public void fetchStudyResultsByBatchAndWorkerTypePaginatedAndWriteIntoActor(ActorRef sourceActor, Batch batch,
-            String workerType) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByBatchAndWorkerType(batch, workerType);
-        });
-
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (i + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao
-                        .findAllByBatchAndWorkerType(batch, workerType, first, maxDbQuerySize);
-                writeStudyResultsIntoActor(sourceActor, isLastPage, resultList);
-            });
-        }
+    public Source<ByteString, NotUsed> streamStudyResultsByGroup(GroupResult group) {
+        return streamKeysetPaginated(Collections.singletonList(
+                (lastId, max) -> studyResultDao.findAllRowsByGroupAfterId(group, lastId, max)),
+                row -> row.getStudyResult().getId(), this::studyResultRowsAsJsonNodes);
     }
 
-    public void fetchStudyResultsByGroupPaginatedAndWriteIntoActor(ActorRef sourceActor, GroupResult group) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByGroup(group);
-        });
+    public Source<ByteString, NotUsed> streamStudyResultsByWorker(Worker worker, User user) {
+        return streamKeysetPaginated(Collections.singletonList(
+                (lastId, max) -> studyResultDao.findAllRowsByWorkerAfterId(worker, user, lastId, max)),
+                row -> row.getStudyResult().getId(), this::studyResultRowsAsJsonNodes);
+    }
 
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (i + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao.findAllByGroup(group, first, maxDbQuerySize);
-                writeStudyResultsIntoActor(sourceActor, isLastPage, resultList);
-            });
-        }
+    /**
+     * Returns all ComponentResults (including their result data) of the given component as a Source of JSON
+     */
+    public Source<ByteString, NotUsed> streamComponentResults(Component component) {
+        return streamKeysetPaginated(Collections.singletonList(
+                (lastId, max) -> componentResultDao.findAllByComponentAfterId(component, lastId, max)),
+                ComponentResult::getId, this::componentResultsAsJsonNodes);
     }
 
-    public void fetchStudyResultsByWorkerPaginatedAndWriteIntoActor(ActorRef sourceActor, Worker worker, User user) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return studyResultDao.countByWorker(worker, user);
-        });
+    /**
+     * Turns a page of ComponentResults into JSON. The uploaded result files are looked up for the whole page at once.
+     */
+    private List<JsonNode> componentResultsAsJsonNodes(List<ComponentResult> componentResults) {
+        Map<Long, List<ResultUploadFile>> uploadFiles = resultUploadIndex.getFilesByComponentResultId(
+                componentResults.stream().map(ComponentResult::getId).collect(Collectors.toList()));
+        return componentResults.stream()
+                .map(result -> jsonUtils.componentResultAsJsonNode(result, true,
+                        uploadFiles.getOrDefault(result.getId(), Collections.emptyList())))
+                .collect(Collectors.toList());
+    }
 
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (i + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<StudyResult> resultList = studyResultDao.findAllByWorker(worker, user, first, maxDbQuerySize);
-                writeStudyResultsIntoActor(sourceActor, isLastPage, resultList);
-            });
-        }
+    /**
+     * Turns a page of StudyResultRows into JSON. Whether a StudyResult has uploaded result files is looked up for the
+     * whole page at once.
+     */
+    private List<JsonNode> studyResultRowsAsJsonNodes(List<StudyResultRow> rows) {
+        Set<Long> idsWithFiles = resultUploadIndex.getStudyResultIdsWithFiles(
+                rows.stream().map(row -> row.getStudyResult().getId()).collect(Collectors.toList()));
+        return rows.stream()
+                .map(row -> jsonUtils.studyResultAsJsonNode(row.getStudyResult(), row.getComponentResultCount(),
+                        idsWithFiles.contains(row.getStudyResult().getId())))
+                .collect(Collectors.toList());
     }
 
-    private void writeStudyResultsIntoActor(ActorRef sourceActor, boolean isLastPage, List<StudyResult> resultList) {
-        for (int i = 0; i < resultList.size(); i++) {
-            StudyResult result = resultList.get(i);
-            int componentResultCount = componentResultDao.countByStudyResult(result);
-            JsonNode resultNode = jsonUtils.studyResultAsJsonNode(result, componentResultCount);
-            sourceActor.tell(ByteString.fromString(resultNode.toString()), ActorRef.noSender());
-            boolean isLastResult = (i + 1) >= resultList.size();
-            if (!isLastPage || !isLastResult) {
-                sourceActor.tell(ByteString.fromString(",\n"), ActorRef.noSender());
-            }
-        }
+    /**
+     * Returns a Source that fetches results page by page with keyset pagination (ID greater than the last ID of the
+     * previous page, ordered by ID) and emits each page as JSON (results separated by ",\n"). If there are several
+     * page fetchers they are used one after another. Each page is turned into JSON as a whole (this way additional
+     * data for the rows can be fetched once per page and not once per row). Compared to OFFSET pagination the DB
+     * doesn't have to skip over all previous rows for every page.
+     *
+     * A page is only fetched when the client requested more data (backpressure). Every page is fetched in its own
+     * short read-only transaction - this way no DB connection is held while waiting for a slow client. The pages are
+     * fetched on Akka's dispatcher for blocking IO, so no shared thread pool is blocked. The page size is configured
+     * with jatos.maxResultsDbQuerySize.
+     */
+    private <T> Source<ByteString, NotUsed> streamKeysetPaginated(
+            List<BiFunction<Long, Integer, List<T>>> pageFetchers, Function<T, Long> idGetter,
+            Function<List<T>, List<JsonNode>> pageToJson) {
+        return Source.unfoldResource(() -> new KeysetPager<>(pageFetchers, idGetter, pageToJson),
+                KeysetPager::nextPage, pager -> { });
     }
 
     /**
-     * Retrieves ComponentResult (including their result data) and uses the given Supplier function to fetches them
-     * from the database. It gets up to max results - or if max is not defined it gets all. It also checks the
-     * ComponentResult.
+     * State of a keyset paginated stream of results
      */
-    public void fetchComponentResultsPaginatedAndWriteIntoActor(ActorRef sourceActor, Component component) {
-        int maxDbQuerySize = Common.getMaxResultsDbQuerySize();
-        int resultCount = jpaApi.withTransaction(entityManager -> {
-            return componentResultDao.countByComponent(component);
-        });
-
-        for (int i = 0; i < resultCount; i += maxDbQuerySize) {
-            int first = i;
-            boolean isLastPage = (i + maxDbQuerySize) >= resultCount;
-            jpaApi.withTransaction(entityManager -> {
-                List<ComponentResult> resultList = componentResultDao
-                        .findAllByComponent(component, first, maxDbQuerySize);
-                writeComponentResultIntoActor(sourceActor, isLastPage, resultList);
-            });
+    private class KeysetPager<T> {
+
+        private final List<BiFunction<Long, Integer, List<T>>> pageFetchers;
+        private final Function<T, Long> idGetter;
+        private final Function<List<T>, List<JsonNode>> pageToJson;
+        private final int fetchSize = Common.getMaxResultsDbQuerySize();
+        private int fetcherIndex = 0;
+        private long lastId = 0;
+        private boolean first = true;
+
+        KeysetPager(List<BiFunction<Long, Integer, List<T>>> pageFetchers, Function<T, Long> idGetter,
+                Function<List<T>, List<JsonNode>> pageToJson) {
+            this.pageFetchers = pageFetchers;
+            this.idGetter = idGetter;
+            this.pageToJson = pageToJson;
         }
-    }
 
-    private void writeComponentResultIntoActor(ActorRef sourceActor, boolean isLastPage,
-            List<ComponentResult> resultList) {
-        for (int j = 0; j < resultList.size(); j++) {
-            ComponentResult result = resultList.get(j);
-            JsonNode resultNode = jsonUtils.componentResultAsJsonNode(result, true);
-            sourceActor.tell(ByteString.fromString(resultNode.toString()), ActorRef.noSender());
-            boolean isLastResult = (j + 1) >= resultList.size();
-            if (!isLastPage || !isLastResult) {
-                sourceActor.tell(ByteString.fromString(",\n"), ActorRef.noSender());
+        /**
+         * Returns the next non-empty page as JSON or an empty Optional if there are no more results
+         */
+        Optional<ByteString> nextPage() {
+            while (fetcherIndex < pageFetchers.size()) {
+                BiFunction<Long, Integer, List<T>> pageFetcher = pageFetchers.get(fetcherIndex);
+                String json = jpaApi.withTransaction(entityManager -> {
+                    entityManager.unwrap(Session.class).setDefaultReadOnly(true);
+                    List<T> page = pageFetcher.apply(lastId, fetchSize);
+                    if (page.size() < fetchSize) {
+                        fetcherIndex++;
+                        lastId = 0;
+                    } else {
+                        lastId = idGetter.apply(page.get(page.size() - 1));
+                    }
+                    return toJson(pageToJson.apply(page));
+                });
+                if (!json.isEmpty()) return Optional.of(ByteString.fromString(json));
             }
+            return Optional.empty();
+        }
+
+        private String toJson(List<JsonNode> resultNodes) {
+            StringBuilder sb = new StringBuilder();
+            for (JsonNode resultNode : resultNodes) {
+                if (!first) sb.append(",\n");
+                first = false;
+                sb.append(resultNode.toString());
+            }
+            return sb.toString();
         }
     }
 
@@ -212,6 +245,7 @@ public class ResultService {
 
         List<StudyResultStatus> lastUnfinishedStudyResults = studyResultDao.findLastUnfinished(5);
         fillUsers(lastUnfinishedStudyResults);
+        fillLastSeenDates(lastUnfinishedStudyResults);
         studyResultStatus.put("lastUnfinishedStudyResults", lastUnfinishedStudyResults);
 
         List<StudyResultStatus> lastFinishedStudyResults = studyResultDao.findLastFinished(5);
@@ -221,6 +255,15 @@ public class ResultService {
         return studyResultStatus;
     }
 
+    /**
+     * Sets the last seen dates from heartbeats that aren't written to the DB yet
+     */
+    private void fillLastSeenDates(List<StudyResultStatus> studyResultStatusList) {
+        for (StudyResultStatus srs : studyResultStatusList) {
+            srs.setLastSeenDate(heartbeatAggregator.getLastSeenDate(srs.getId(), srs.getLastSeenDate()));
+        }
+    }
+
     /**
      * Adds the user's name and username to the given list of StudyResultStatus
      */
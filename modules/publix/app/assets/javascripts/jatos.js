@@ -712,6 +712,11 @@ var jatos = {};
 					callFunctionIfExist(onJatosBatchSession, patch.path, patch.op);
 				});
 				break;
+			case "SESSION_RELOADED":
+				// Batch session was changed outside of the batch channel
+				// (e.g. in JATOS' GUI) and the whole session data were sent
+				callFunctionIfExist(onJatosBatchSession, "/", "replace");
+				break;
 			case "SESSION_ACK":
 				if (batchSessionTimeouts.hasOwnProperty(batchMsg.id)) {
 					batchSessionTimeouts[batchMsg.id].cancel();
@@ -1687,6 +1692,12 @@ var jatos = {};
 				});
 				callFunctionIfExist(groupChannelCallbacks.onUpdate);
 				break;
+			case "SESSION_RELOADED":
+				// Group session was changed outside of the group channel
+				// (e.g. in JATOS' GUI) and the whole session data were sent
+				callFunctionIfExist(groupChannelCallbacks.onGroupSession, "/", "replace");
+				callFunctionIfExist(groupChannelCallbacks.onUpdate);
+				break;
 			case "FIXED":
 				// The group is now fixed (no new members)
 				if (groupFixedTimeout) {
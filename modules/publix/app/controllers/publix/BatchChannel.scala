@@ -18,12 +18,15 @@ import services.publix.idcookie.IdCookieService
 import services.publix.workers._
 import services.publix.{PublixUtils, StudyAuthorisation}
 
-import scala.concurrent.Await
 import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
 
 /**
   * Abstract class that handles opening of the batch channel. It has concrete implementations for
   * each worker type.
+  *
+  * The communication with the BatchDispatcherRegistry and the BatchDispatchers is done with Futures - no request
+  * thread is blocked while waiting for an actor's answer.
   */
 abstract class BatchChannel[A <: Worker](components: ControllerComponents,
                                          publixUtils: PublixUtils[A],
@@ -50,12 +53,15 @@ abstract class BatchChannel[A <: Worker](components: ControllerComponents,
     */
   implicit val timeout: Timeout = 30.seconds
 
+  private implicit def executionContext: ExecutionContext = system.dispatcher
+
   /**
-    * HTTP endpoint that opens a batch channel and returns a Akka stream Flow that will be turned
-    * into WebSocket. In case of an error/problem an PublixException is thrown.
+    * HTTP endpoint that opens a batch channel and returns a Future with an Akka stream Flow that
+    * will be turned into WebSocket. The checks are done right away (has to be called within a
+    * transaction) and in case of an error/problem an PublixException is thrown.
     */
   @throws(classOf[PublixException])
-  def open(studyId: Long, studyResultId: Long): Flow[Any, Nothing, _] = {
+  def open(studyId: Long, studyResultId: Long): Future[Flow[Any, Nothing, _]] = {
     logger.info(s".open: studyId $studyId, studyResultId $studyResultId")
     val idCookie = idCookieService.getIdCookie(studyResultId)
     val worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId)
@@ -63,34 +69,37 @@ abstract class BatchChannel[A <: Worker](components: ControllerComponents,
     val batch = publixUtils.retrieveBatch(idCookie.getBatchId)
     studyAuthorisation.checkWorkerAllowedToDoStudy(worker, study, batch)
     val studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId)
+    openChannel(batch.getId, studyResult.getId)
+  }
 
-    // Get the BatchDispatcher that will handle this batch.
-    val batchDispatcher = getOrCreateBatchDispatcher(batch.getId)
-    // If this BatchDispatcher already has a batch channel for this
-    // StudyResult, close the old one before opening a new one.
-    closeBatchChannel(studyResult.getId, batchDispatcher)
-    ActorFlow.actorRef { out => BatchChannelActor.props(out, studyResult.getId, batchDispatcher) }
+  /**
+    * Gets the BatchDispatcher that will handle this batch and returns the Flow of the new batch
+    * channel. If this BatchDispatcher already has a batch channel for this StudyResult, the old
+    * one is closed before the new one is opened. Doesn't block.
+    */
+  def openChannel(batchId: Long, studyResultId: Long): Future[Flow[Any, Nothing, _]] = {
+    for {
+      batchDispatcher <- getOrCreateBatchDispatcher(batchId)
+      _ <- closeBatchChannel(studyResultId, batchDispatcher)
+    } yield ActorFlow.actorRef { out => BatchChannelActor.props(out, studyResultId, batchDispatcher) }
   }
 
   /**
-    * Asks the BatchDispatcherRegistry to get or create a batch dispatcher for the given ID. It
-    * waits until it receives an answer. The answer is an ActorRef (to a BatchDispatcher).
+    * Asks the BatchDispatcherRegistry to get or create a batch dispatcher for the given ID. The
+    * answer is an ActorRef (to a BatchDispatcher).
     */
-  private def getOrCreateBatchDispatcher(batchId: Long): ActorRef = {
-    val future = batchDispatcherRegistry ? GetOrCreate(batchId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne].dispatcher
+  private def getOrCreateBatchDispatcher(batchId: Long): Future[ActorRef] = {
+    (batchDispatcherRegistry ? GetOrCreate(batchId)).mapTo[ItsThisOne].map(_.dispatcher)
   }
 
   /**
     * Closes the batch channel that belongs to the given study result ID and is managed by the
-    * given BatchDispatcher. Waits until it receives a result from the BatchDispatcher actor. It
-    * returns true if the BatchChannel was managed by the BatchDispatcher and was successfully
-    * removed from the BatchDispatcher, false otherwise (it was probably never managed by the
-    * dispatcher).
+    * given BatchDispatcher. The Future's result is true if the BatchChannel was managed by the
+    * BatchDispatcher and was successfully removed from the BatchDispatcher, false otherwise (it
+    * was probably never managed by the dispatcher).
     */
-  private def closeBatchChannel(studyResultId: Long, batchDispatcher: ActorRef) = {
-    val future = batchDispatcher ? PoisonChannel(studyResultId)
-    Await.result(future, timeout.duration).asInstanceOf[Boolean]
+  private def closeBatchChannel(studyResultId: Long, batchDispatcher: ActorRef): Future[Boolean] = {
+    (batchDispatcher ? PoisonChannel(studyResultId)).mapTo[Boolean]
   }
 
 }
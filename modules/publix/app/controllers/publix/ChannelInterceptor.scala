@@ -1,11 +1,16 @@
 package controllers.publix
 
+import akka.stream.scaladsl.Flow
+import controllers.publix.ChannelInterceptor.jsonInMessageOutTransformer
 import controllers.publix.actionannotation.PublixAccessLoggingAction.PublixAccessLogging
 import exceptions.publix.{BadRequestPublixException, ForbiddenPublixException, NotFoundPublixException, PublixException}
 import javax.inject.{Inject, Singleton}
 import models.common.workers._
 import play.api.Logger
-import play.api.libs.json.JsValue
+import play.api.http.websocket._
+import play.api.libs.json.{JsValue, Json}
+import play.api.libs.streams.AkkaStreams
+import play.api.mvc.WebSocket.MessageFlowTransformer
 import play.api.mvc._
 import play.core.j.JavaHelpers
 import play.db.jpa.JPAApi
@@ -13,7 +18,8 @@ import play.libs.concurrent.HttpExecutionContext
 import services.publix.idcookie.IdCookieService
 
 import scala.compat.java8.FunctionConverters.asJavaSupplier
-import scala.concurrent.Future
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.control.NonFatal
 
 /**
   * This class intercepts a request before it gets to the BatchChannel or GroupChannel. It has
@@ -38,6 +44,7 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
                                    generalSingleGroupChannel: GeneralSingleGroupChannel,
                                    generalMultipleGroupChannel: GeneralMultipleGroupChannel,
                                    mTGroupChannel: MTGroupChannel)
+                                  (implicit executionContext: ExecutionContext)
   extends AbstractController(components) {
 
   private val logger: Logger = Logger(this.getClass)
@@ -54,50 +61,36 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
     * @return WebSocket that transports JSON strings.
     */
   def openBatch(studyId: Long, studyResultId: Long): WebSocket =
-    WebSocket.acceptOrResult[JsValue, JsValue] { request =>
-
-      Future.successful({
-        // Set Http.Context used in Play with Java. Needed by IdCookieService
-        play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
-        val idCookie = idCookieService.getIdCookie(studyResultId)
+    WebSocket.acceptOrResult[JsValue, Message] { request =>
+      // Set Http.Context used in Play with Java. Needed by IdCookieService
+      play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
+      val idCookie = idCookieService.getIdCookie(studyResultId)
 
-        jpa.withTransaction(asJavaSupplier(() =>
-          try {
-            idCookie.getWorkerType match {
-              case JatosWorker.WORKER_TYPE =>
-                Right(jatosBatchChannel.open(studyId, studyResultId))
-              case PersonalSingleWorker.WORKER_TYPE =>
-                Right(personalSingleBatchChannel.open(studyId, studyResultId))
-              case PersonalMultipleWorker.WORKER_TYPE =>
-                Right(personalMultipleBatchChannel.open(studyId, studyResultId))
-              case GeneralSingleWorker.WORKER_TYPE =>
-                Right(generalSingleBatchChannel.open(studyId, studyResultId))
-              case GeneralMultipleWorker.WORKER_TYPE =>
-                Right(generalMultipleBatchChannel.open(studyId, studyResultId))
-              case MTSandboxWorker.WORKER_TYPE =>
-                Right(mTBatchChannel.open(studyId, studyResultId))
-              case MTWorker.WORKER_TYPE =>
-                Right(mTBatchChannel.open(studyId, studyResultId))
-              case _ => Left(Results.BadRequest)
-            }
-          } catch {
-            // Due to returning a WebSocket we can't throw a PublixExceptions like
-            // with other publix endpoints
-            case e: NotFoundPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.NotFound)
-            case e: ForbiddenPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.Forbidden)
-            case e: BadRequestPublixException =>
-              logger.info(s".open: ${e.getMessage}")
-              Left(Results.BadRequest)
-            case e: Exception =>
-              logger.error(".open: Exception during opening of batch channel", e)
-              Left(Results.InternalServerError)
+      try {
+        // Only the checks need a transaction - the actual opening happens asynchronously
+        val flowFuture = jpa.withTransaction(asJavaSupplier(() =>
+          idCookie.getWorkerType match {
+            case JatosWorker.WORKER_TYPE =>
+              Some(jatosBatchChannel.open(studyId, studyResultId))
+            case PersonalSingleWorker.WORKER_TYPE =>
+              Some(personalSingleBatchChannel.open(studyId, studyResultId))
+            case PersonalMultipleWorker.WORKER_TYPE =>
+              Some(personalMultipleBatchChannel.open(studyId, studyResultId))
+            case GeneralSingleWorker.WORKER_TYPE =>
+              Some(generalSingleBatchChannel.open(studyId, studyResultId))
+            case GeneralMultipleWorker.WORKER_TYPE =>
+              Some(generalMultipleBatchChannel.open(studyId, studyResultId))
+            case MTSandboxWorker.WORKER_TYPE =>
+              Some(mTBatchChannel.open(studyId, studyResultId))
+            case MTWorker.WORKER_TYPE =>
+              Some(mTBatchChannel.open(studyId, studyResultId))
+            case _ => None
           }
         ))
-      })
+        toWebSocketResult(flowFuture, "open", "batch")
+      } catch {
+        case e: Exception => Future.successful(exceptionToResult("open", "batch")(e))
+      }
     }
 
   /**
@@ -113,72 +106,93 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
     * @return WebSocket that transfers JSON
     */
   def joinGroup(studyId: Long, studyResultId: Long): WebSocket =
-    WebSocket.acceptOrResult[JsValue, JsValue] {
+    WebSocket.acceptOrResult[JsValue, Message] {
       request =>
+        // Set Http.Context used in Play with Java. Needed by IdCookieService
+        play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
+        val idCookie = idCookieService.getIdCookie(studyResultId)
 
-        Future.successful({
-          // Set Http.Context used in Play with Java. Needed by IdCookieService
-          play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
-          val idCookie = idCookieService.getIdCookie(studyResultId)
-
-          try {
-            idCookie.getWorkerType match {
-              case JatosWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  jatosGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(jatosGroupChannel.open(studyResult))
-              case PersonalSingleWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  personalSingleGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(personalSingleGroupChannel.open(studyResult))
-              case PersonalMultipleWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  personalMultipleGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(personalMultipleGroupChannel.open(studyResult))
-              case GeneralSingleWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  generalSingleGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(generalSingleGroupChannel.open(studyResult))
-              case GeneralMultipleWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  generalMultipleGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(generalMultipleGroupChannel.open(studyResult))
-              case MTSandboxWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  mTGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(mTGroupChannel.open(studyResult))
-              case MTWorker.WORKER_TYPE =>
-                val studyResult = jpa.withTransaction(asJavaSupplier(() =>
-                  mTGroupChannel.join(studyId, studyResultId)
-                ))
-                Right(mTGroupChannel.open(studyResult))
-              case _ => Left(Results.BadRequest)
-            }
-          } catch {
-            // Due to returning a WebSocket we can't throw a PublixExceptions like
-            // with other publix endpoints
-            case e: NotFoundPublixException =>
-              logger.info(s".join: ${e.getMessage}")
-              Left(Results.NotFound)
-            case e: ForbiddenPublixException =>
-              logger.info(s".join: ${e.getMessage}")
-              Left(Results.Forbidden)
-            case e: BadRequestPublixException =>
-              logger.info(s".join: ${e.getMessage}")
-              Left(Results.BadRequest)
-            case e: Exception =>
-              logger.error(".join: Exception during opening of group channel", e)
-              Left(Results.InternalServerError)
+        try {
+          // Joining needs a transaction - the actual opening of the group channel happens asynchronously
+          val flowFuture = idCookie.getWorkerType match {
+            case JatosWorker.WORKER_TYPE =>
+              val studyResult = jpa.withTransaction(asJavaSupplier(() =>
+                jatosGroupChannel.join(studyId, studyResultId)
+              ))
+              Some(jatosGroupChannel.open(studyResult))
+            case PersonalSingleWorker.WORKER_TYPE =>
+              val studyResult = jpa.withTransaction(asJavaSupplier(() =>
+                personalSingleGroupChannel.join(studyId, studyResultId)
+              ))
+              Some(personalSingleGroupChannel.open(studyResult))
+            case PersonalMultipleWorker.WORKER_TYPE =>
+              val studyResult = jpa.withTransaction(asJavaSupplier(() =>
+                personalMultipleGroupChannel.join(studyId, studyResultId)
+              ))
+              Some(personalMultipleGroupChannel.open(studyResult))
+            case GeneralSingleWorker.WORKER_TYPE =>
+              val studyResult = jpa.withTransaction(asJavaSupplier(() =>
+                generalSingleGroupChannel.join(studyId, studyResultId)
+              ))
+              Some(generalSingleGroupChannel.open(studyResult))
+            case GeneralMultipleWorker.WORKER_TYPE =>
+              val studyResult = jpa.withTransaction(asJavaSupplier(() =>
+                generalMultipleGroupChannel.join(studyId, studyResultId)
+              ))
+              Some(generalMultipleGroupChannel.open(studyResult))
+            case MTSandboxWorker.WORKER_TYPE =>
+              val studyResult = jpa.withTransaction(asJavaSupplier(() =>
+                mTGroupChannel.join(studyId, studyResultId)
+              ))
+              Some(mTGroupChannel.open(studyResult))
+            case MTWorker.WORKER_TYPE =>
+              val studyResult = jpa.withTransaction(asJavaSupplier(() =>
+                mTGroupChannel.join(studyId, studyResultId)
+              ))
+              Some(mTGroupChannel.open(studyResult))
+            case _ => None
           }
-        })
+          toWebSocketResult(flowFuture, "join", "group")
+        } catch {
+          case e: Exception => Future.successful(exceptionToResult("join", "group")(e))
+        }
     }
 
+  /**
+    * Turns the Future with the channel's Flow into the Future that WebSocket.acceptOrResult expects. No Flow means
+    * unknown worker type.
+    */
+  private def toWebSocketResult(flowFuture: Option[Future[Flow[Any, Nothing, _]]], method: String,
+                                channelType: String): Future[Either[Result, Flow[JsValue, Message, _]]] = {
+    flowFuture match {
+      case Some(future) =>
+        future.map(flow => Right(flow): Either[Result, Flow[JsValue, Message, _]])
+          .recover { case e: Exception => exceptionToResult(method, channelType)(e) }
+      case None => Future.successful(Left(Results.BadRequest))
+    }
+  }
+
+  /**
+    * Due to returning a WebSocket we can't throw a PublixExceptions like with other publix endpoints
+    */
+  private def exceptionToResult(method: String,
+                                channelType: String)(e: Exception): Either[Result, Flow[JsValue, Message, _]] = {
+    e match {
+      case e: NotFoundPublixException =>
+        logger.info(s".$method: ${e.getMessage}")
+        Left(Results.NotFound)
+      case e: ForbiddenPublixException =>
+        logger.info(s".$method: ${e.getMessage}")
+        Left(Results.Forbidden)
+      case e: BadRequestPublixException =>
+        logger.info(s".$method: ${e.getMessage}")
+        Left(Results.BadRequest)
+      case e: Exception =>
+        logger.error(s".$method: Exception during opening of $channelType channel", e)
+        Left(Results.InternalServerError)
+    }
+  }
+
   /**
     * HTTP type: Ajax GET request
     *
@@ -262,3 +276,29 @@ class ChannelInterceptor @Inject()(components: ControllerComponents,
   }
 
 }
+
+object ChannelInterceptor {
+
+  /**
+    * Transforms the channel's Flow into a WebSocket Flow: messages coming from the client are parsed into JSON (like
+    * Play's default JSON transformer does), but messages going to the client are already serialised by the
+    * dispatchers (ChannelOutMsg) and are passed through unchanged - this way a broadcast is serialised only once
+    * instead of once for every channel.
+    */
+  implicit val jsonInMessageOutTransformer: MessageFlowTransformer[JsValue, Message] =
+    new MessageFlowTransformer[JsValue, Message] {
+      def transform(flow: Flow[JsValue, Message, _]): Flow[Message, Message, _] = {
+        AkkaStreams.bypassWith[Message, JsValue, Message](Flow[Message].collect {
+          case BinaryMessage(data) => closeOnException(Json.parse(data.iterator.asInputStream))
+          case TextMessage(text) => closeOnException(Json.parse(text))
+        })(flow)
+      }
+    }
+
+  private def closeOnException[T](block: => T): Either[T, Message] = try {
+    Left(block)
+  } catch {
+    case NonFatal(_) => Right(CloseMessage(Some(CloseCodes.Unacceptable), "Unable to parse json message"))
+  }
+
+}
@@ -15,16 +15,22 @@ import models.common.{GroupResult, StudyResult}
 import play.api.Logger
 import play.api.libs.streams.ActorFlow
 import play.api.mvc._
-import services.publix.idcookie.IdCookieService
+import services.publix.idcookie.{IdCookieModel, IdCookieService}
 import services.publix.workers._
-import services.publix.{PublixErrorMessages, PublixUtils, StudyAuthorisation}
+import services.publix.{BatchLocks, PublixErrorMessages, PublixUtils, StudyAuthorisation}
 
-import scala.concurrent.Await
 import scala.concurrent.duration._
+import scala.concurrent.{Await, ExecutionContext, Future}
+import scala.util.control.NonFatal
 
 /**
   * Abstract class that handles opening of the group channel. It has concrete implementations for
   * each worker type.
+  *
+  * Opening a group channel is done with Futures - no request thread is blocked while waiting for an actor's answer.
+  * Joining, leaving and reassigning (which block on the database anyway) wait for the GroupDispatchers while they hold
+  * the batch lock: this way the JOINED and LEFT messages reach the GroupDispatchers in the same order as the group
+  * assignments happened.
   */
 abstract class GroupChannel[A <: Worker](components: ControllerComponents,
                                          publixUtils: PublixUtils[A],
@@ -49,19 +55,30 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
   @Inject
   var groupAdministration: GroupAdministration = _
 
+  @Inject
+  var batchLocks: BatchLocks = _
+
   /**
     * Time to wait for an answer after asking an Akka actor
     */
   implicit val timeout: Timeout = 30.seconds
 
+  private implicit def executionContext: ExecutionContext = system.dispatcher
+
   /**
     * Joins a group but doesn't open the group channel. In case of an error/problem an PublixException is thrown.
-    * Synchronized to prevent race conditions with group members joining, leaving, reassigning.
+    * Locked per batch to prevent race conditions with group members joining, leaving, reassigning.
     */
   @throws(classOf[PublixException])
-  def join(studyId: Long, studyResultId: Long): StudyResult = synchronized {
+  def join(studyId: Long, studyResultId: Long): StudyResult = {
     logger.info(s".join: studyId $studyId, studyResultId $studyResultId")
     val idCookie = idCookieService.getIdCookie(studyResultId)
+    withBatchLock(idCookie.getBatchId) {
+      joinLocked(studyId, studyResultId, idCookie)
+    }
+  }
+
+  private def joinLocked(studyId: Long, studyResultId: Long, idCookie: IdCookieModel): StudyResult = {
     val worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId)
     val study = publixUtils.retrieveStudy(studyId)
     val batch = publixUtils.retrieveBatch(idCookie.getBatchId)
@@ -89,31 +106,43 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
   }
 
   /**
-    * Opens a group channel and returns a Akka stream Flow that will be turned into WebSocket. In
-    * case of an error/problem an PublixException is thrown.
+    * Opens a group channel and returns a Future with an Akka stream Flow that will be turned into
+    * WebSocket. Doesn't block.
     */
-  @throws(classOf[PublixException])
-  def open(studyResult: StudyResult): Flow[Any, Nothing, _] = {
+  def open(studyResult: StudyResult): Future[Flow[Any, Nothing, _]] = {
     logger.info(s".open: studyResultId ${studyResult.getId}")
     val groupResult: GroupResult = studyResult.getActiveGroupResult
-    // Get the GroupDispatcher that will handle this GroupResult.
-    val groupDispatcher = getOrCreateDispatcher(groupResult.getId)
-    // If this GroupDispatcher already has a group channel for this
-    // StudyResult, close the old one before opening a new one.
-    closeGroupChannelBlocking(studyResult.getId, groupDispatcher)
-    ActorFlow.actorRef { out => GroupChannelActor.props(out, studyResult.getId, groupDispatcher) }
+    openChannel(groupResult.getId, studyResult.getId)
+  }
+
+  /**
+    * Gets the GroupDispatcher that will handle this GroupResult and returns the Flow of the new
+    * group channel. If this GroupDispatcher already has a group channel for this StudyResult, the
+    * old one is closed before the new one is opened. Doesn't block.
+    */
+  def openChannel(groupResultId: Long, studyResultId: Long): Future[Flow[Any, Nothing, _]] = {
+    for {
+      groupDispatcher <- getOrCreateDispatcher(groupResultId)
+      _ <- closeGroupChannel(studyResultId, groupDispatcher)
+    } yield ActorFlow.actorRef { out => GroupChannelActor.props(out, studyResultId, groupDispatcher) }
   }
 
   /**
     * Tries to reassign this study run (specified by study result ID) to a different group. If the
     * reassignment was successful an Ok is returned. If it was unsuccessful a Forbidden is returned.
-    * In case of an error/problem an PublixException is thrown. Synchronized to prevent race conditions with group
+    * In case of an error/problem an PublixException is thrown. Locked per batch to prevent race conditions with group
     * members joining, leaving, reassigning.
     */
   @throws(classOf[PublixException])
-  def reassign(studyId: Long, studyResultId: Long): Result = synchronized {
+  def reassign(studyId: Long, studyResultId: Long): Result = {
     logger.info(s".reassign: studyId $studyId, studyResultId $studyResultId")
     val idCookie = idCookieService.getIdCookie(studyResultId)
+    withBatchLock(idCookie.getBatchId) {
+      reassignLocked(studyId, studyResultId, idCookie)
+    }
+  }
+
+  private def reassignLocked(studyId: Long, studyResultId: Long, idCookie: IdCookieModel): Result = {
     val worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId)
     val study = publixUtils.retrieveStudy(studyId)
     val batch = publixUtils.retrieveBatch(idCookie.getBatchId)
@@ -141,13 +170,19 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
   }
 
   /**
-    * Let this study run (specified by the study result ID) leave the group that it joined before. Synchronized to
+    * Let this study run (specified by the study result ID) leave the group that it joined before. Locked per batch to
     * prevent race conditions with group members joining, leaving, reassigning.
     */
   @throws(classOf[PublixException])
-  def leave(studyId: Long, studyResultId: Long): Result = synchronized {
+  def leave(studyId: Long, studyResultId: Long): Result = {
     logger.info(s".leave: studyId $studyId, studyResultId $studyResultId")
     val idCookie = idCookieService.getIdCookie(studyResultId)
+    withBatchLock(idCookie.getBatchId) {
+      leaveLocked(studyId, studyResultId, idCookie)
+    }
+  }
+
+  private def leaveLocked(studyId: Long, studyResultId: Long, idCookie: IdCookieModel): Result = {
     val worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId)
     val study = publixUtils.retrieveStudy(studyId)
     val batch = publixUtils.retrieveBatch(idCookie.getBatchId)
@@ -165,13 +200,25 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
     Ok(" ") // jQuery.ajax cannot handle empty responses
   }
 
+  /**
+    * Runs the given block while holding the lock of the given batch. Group assignments in different batches don't
+    * block each other.
+    */
+  private def withBatchLock[T](batchId: Long)(block: => T): T = {
+    val lock = batchLocks.get(batchId)
+    lock.lock()
+    try block
+    finally lock.unlock()
+  }
+
   /**
     * Closes the group channel which includes sending a left message to all group members and leaves the GroupResult.
+    * Locked per batch (the lock is reentrant, so it can be called from within leave).
     */
   def closeGroupChannelAndLeaveGroup(studyResult: StudyResult): Unit = {
     val groupResult = studyResult.getActiveGroupResult
     val study = studyResult.getStudy
-    if (study.isGroupStudy && groupResult != null) {
+    if (study.isGroupStudy && groupResult != null) withBatchLock(studyResult.getBatch.getId) {
       groupAdministration.leave(studyResult)
       closeGroupChannel(studyResult, groupResult)
     }
@@ -185,23 +232,21 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
     * the process of leaving a GroupResult.
     */
   private def closeGroupChannel(studyResult: StudyResult, groupResult: GroupResult): Unit = {
-    val groupDispatcherOption = getDispatcher(groupResult.getId)
-    if (groupDispatcherOption.isDefined) {
-      groupDispatcherOption.get ! PoisonChannel(studyResult.getId)
-      sendLeftMsg(studyResult, groupResult)
+    val studyResultId = studyResult.getId
+    awaitDispatcher(getDispatcher(groupResult.getId), groupResult.getId).foreach { groupDispatcher =>
+      groupDispatcher ! PoisonChannel(studyResultId)
+      groupDispatcher ! LeftGroup(studyResultId)
     }
   }
 
   /**
     * Closes the group channel that belongs to the given StudyResult and is managed by the given
-    * GroupDispatcher. Waits (and blocks) until it receives a result from the GroupDispatcher actor.
-    * It returns true if the GroupChannelActor was managed by the GroupDispatcher and was
-    * successfully removed from the GroupDispatcher - false otherwise (it was probably never managed
-    * by the dispatcher).
+    * GroupDispatcher. The Future's result is true if the GroupChannelActor was managed by the
+    * GroupDispatcher and was successfully removed from the GroupDispatcher - false otherwise (it
+    * was probably never managed by the dispatcher).
     */
-  private def closeGroupChannelBlocking(studyResultId: Long, groupDispatcher: ActorRef): Boolean = {
-    val future = groupDispatcher ? PoisonChannel(studyResultId)
-    Await.result(future, timeout.duration).asInstanceOf[Boolean]
+  private def closeGroupChannel(studyResultId: Long, groupDispatcher: ActorRef): Future[Boolean] = {
+    (groupDispatcher ? PoisonChannel(studyResultId)).mapTo[Boolean]
   }
 
   /**
@@ -211,56 +256,69 @@ abstract class GroupChannel[A <: Worker](components: ControllerComponents,
   private def sendJoinedMsg(studyResult: StudyResult): Unit = {
     val groupResult = studyResult.getActiveGroupResult
     if (groupResult != null) {
-      val groupDispatcherOption = getDispatcher(groupResult.getId)
-      if (groupDispatcherOption.isDefined)
-        groupDispatcherOption.get ! JoinedGroup(studyResult.getId)
+      val studyResultId = studyResult.getId
+      awaitDispatcher(getDispatcher(groupResult.getId), groupResult.getId).foreach(_ ! JoinedGroup(studyResultId))
     }
   }
 
   /**
-    * Sends a message to each member of the GroupResult that this member (specified by StudyResult)
-    * has left the GroupResult.
+    * Get the GroupDispatcher to this GroupResult. The answer is an Option of an ActorRef (to a
+    * GroupDispatcher).
     */
-  private def sendLeftMsg(studyResult: StudyResult, groupResult: GroupResult): Unit = {
-    if (groupResult != null) {
-      val groupDispatcherOption = getDispatcher(groupResult.getId)
-      if (groupDispatcherOption.isDefined)
-        groupDispatcherOption.get ! LeftGroup(studyResult.getId)
-    }
+  private def getDispatcher(groupResultId: Long): Future[Option[ActorRef]] = {
+    (groupDispatcherRegistry ? Get(groupResultId)).mapTo[ItsThisOne].map(_.groupDispatcherOption)
   }
 
   /**
-    * Get the GroupDispatcher to this GroupResult. The answer is an ActorRef (to a GroupDispatcher).
+    * Asks the GroupDispatcherRegistry to get or create a group dispatcher for the given ID. The
+    * answer is an ActorRef (to a GroupDispatcher).
     */
-  private def getDispatcher(groupResultId: Long): Option[ActorRef] = {
-    val future = groupDispatcherRegistry ? Get(groupResultId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne]
-        .groupDispatcherOption
+  private def getOrCreateDispatcher(groupResultId: Long): Future[ActorRef] = {
+    (groupDispatcherRegistry ? GetOrCreate(groupResultId)).mapTo[ItsThisOne].map(_.groupDispatcherOption.get)
   }
 
   /**
-    * Asks the GroupDispatcherRegistry to get or create a group dispatcher for the given ID. It
-    * waits until it receives an answer. The answer is an ActorRef (to a GroupDispatcher).
+    * Waits for the answer of the GroupDispatcherRegistry. Only used while holding the batch lock (see class doc). If
+    * the GroupDispatcher couldn't be got it's logged and None is returned - the group assignment in the database is
+    * already done.
     */
-  private def getOrCreateDispatcher(groupResultId: Long): ActorRef = {
-    val future = groupDispatcherRegistry ? GetOrCreate(groupResultId)
-    Await.result(future, timeout.duration).asInstanceOf[ItsThisOne]
-        .groupDispatcherOption.get
+  private def awaitDispatcher(dispatcherFuture: Future[Option[ActorRef]], groupResultId: Long): Option[ActorRef] = {
+    try Await.result(dispatcherFuture, timeout.duration)
+    catch {
+      case NonFatal(e) =>
+        logger.error(s".awaitDispatcher: couldn't get GroupDispatcher of group result $groupResultId", e)
+        None
+    }
   }
 
   /**
     * Reassigns the given group channel that is associated with the given StudyResult. It moves the group channel from
-    * the current GroupDispatcher to a different one that is associated with the given GroupResult.
+    * the current GroupDispatcher to a different one that is associated with the given GroupResult. Both dispatchers
+    * are asked for at the same time and the messages are sent while the batch lock is still held.
     */
   def reassignGroupChannel(studyResult: StudyResult,
                            currentGroupResult: GroupResult,
                            differentGroupResult: GroupResult): Unit = {
-    val currentDispatcher = getDispatcher(currentGroupResult.getId).get
+    val studyResultId = studyResult.getId
+    val currentDispatcherFuture = getDispatcher(currentGroupResult.getId)
     // Get or create, because if the dispatcher was empty it was shutdown and has to be recreated
-    val differentDispatcher = getOrCreateDispatcher(differentGroupResult.getId)
-    currentDispatcher ! ReassignChannel(studyResult.getId, differentDispatcher)
-    currentDispatcher ! GroupDispatcher.LeftGroup(studyResult.getId())
-    differentDispatcher ! JoinedGroup(studyResult.getId)
+    val differentDispatcherFuture = getOrCreateDispatcher(differentGroupResult.getId).map(Option(_))
+    val currentDispatcherOption = awaitDispatcher(currentDispatcherFuture, currentGroupResult.getId)
+    val differentDispatcherOption = awaitDispatcher(differentDispatcherFuture, differentGroupResult.getId)
+    differentDispatcherOption.foreach { differentDispatcher =>
+      currentDispatcherOption.foreach { currentDispatcher =>
+        currentDispatcher ! ReassignChannel(studyResultId, differentDispatcher)
+        currentDispatcher ! GroupDispatcher.LeftGroup(studyResultId)
+      }
+      differentDispatcher ! JoinedGroup(studyResultId)
+    }
+    if (differentDispatcherOption.isEmpty) {
+      // The channel can't be moved - close it so the member reconnects to its new group
+      currentDispatcherOption.foreach { currentDispatcher =>
+        currentDispatcher ! PoisonChannel(studyResultId)
+        currentDispatcher ! GroupDispatcher.LeftGroup(studyResultId)
+      }
+    }
   }
 
 }
@@ -1,11 +1,15 @@
 package controllers.publix;
 
+import controllers.publix.ResultDataBodyParser.ResultDataBody;
 import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
 import exceptions.publix.ForbiddenNonLinearFlowException;
 import exceptions.publix.ForbiddenReloadException;
 import exceptions.publix.PublixException;
 import general.common.Common;
+import general.common.HeartbeatAggregator;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
 import general.common.StudyLogger;
 import models.common.*;
 import models.common.ComponentResult.ComponentState;
@@ -24,6 +28,7 @@ import services.publix.PublixUtils;
 import services.publix.StudyAuthorisation;
 import services.publix.idcookie.IdCookieModel;
 import services.publix.idcookie.IdCookieService;
+import utils.common.HashUtils;
 import utils.common.Helpers;
 import utils.common.IOUtils;
 import utils.common.JsonUtils;
@@ -31,7 +36,6 @@ import utils.common.JsonUtils;
 import javax.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.sql.Timestamp;
 import java.util.Date;
@@ -63,12 +67,17 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
     protected final StudyResultDao studyResultDao;
     protected final StudyLogger studyLogger;
     protected final IOUtils ioUtils;
+    protected final HeartbeatAggregator heartbeatAggregator;
+    protected final ResultUploadIndex resultUploadIndex;
+    protected final ResultDataStore resultDataStore;
 
     public Publix(JPAApi jpa, PublixUtils<T> publixUtils,
             StudyAuthorisation<T> studyAuthorisation, GroupChannel<T> groupChannel,
             IdCookieService idCookieService, PublixErrorMessages errorMessages,
             StudyAssets studyAssets, JsonUtils jsonUtils, ComponentResultDao componentResultDao,
-            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils,
+            HeartbeatAggregator heartbeatAggregator, ResultUploadIndex resultUploadIndex,
+            ResultDataStore resultDataStore) {
         this.jpa = jpa;
         this.publixUtils = publixUtils;
         this.studyAuthorisation = studyAuthorisation;
@@ -81,6 +90,9 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
         this.studyResultDao = studyResultDao;
         this.studyLogger = studyLogger;
         this.ioUtils = ioUtils;
+        this.heartbeatAggregator = heartbeatAggregator;
+        this.resultUploadIndex = resultUploadIndex;
+        this.resultDataStore = resultDataStore;
     }
 
     @Override
@@ -161,8 +173,7 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
         Study study = publixUtils.retrieveStudy(studyId);
         T worker = publixUtils.retrieveTypedWorker(idCookie.getWorkerId());
         StudyResult studyResult = publixUtils.retrieveStudyResult(worker, study, studyResultId);
-        studyResult.setLastSeenDate(new Timestamp(new Date().getTime()));
-        studyResultDao.update(studyResult);
+        heartbeatAggregator.heartbeat(studyResult.getId(), new Timestamp(new Date().getTime()));
         return ok(" "); // jQuery.ajax cannot handle empty responses
     }
 
@@ -202,26 +213,40 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
             return forbidden("Impossible to put result data to component result");
         }
 
-        String postedResultData = request().body().asText();
-        String resultData;
-        if (append) {
-            String currentResultData = componentResult.get().getData();
-            resultData = currentResultData != null ? currentResultData + postedResultData : postedResultData;
-        } else {
-            resultData = postedResultData;
-        }
+        // The body parser already streamed the result data into a temporary file and checked the max size
+        ResultDataBody postedResultData = request().body().as(ResultDataBody.class);
+        try {
+            long resultDataSize = append
+                    ? componentResult.get().getDataSize() + postedResultData.getSize()
+                    : postedResultData.getSize();
+            if (resultDataSize > Common.getResultDataMaxSize()) {
+                String maxSize = Helpers.humanReadableByteCountSI(Common.getResultDataMaxSize());
+                LOGGER.info(".submitOrAppendResultData: " + "studyResultId " + studyResult.getId() + ", "
+                        + "componentId " + component.getId() + " - " + "Result data size exceeds allowed " + maxSize);
+                return badRequest(
+                        "Result data size exceeds allowed " + maxSize + ". Consider using result files instead.");
+            }
 
-        if (resultData.getBytes(StandardCharsets.UTF_8).length > Common.getResultDataMaxSize()) {
-            String maxSize = Helpers.humanReadableByteCountSI(Common.getResultDataMaxSize());
-            LOGGER.info(".submitOrAppendResultData: " + "studyResultId " + studyResult.getId() + ", "
-                    + "componentId " + component.getId() + " - " + "Result data size exceeds allowed " + maxSize);
-            return badRequest("Result data size exceeds allowed " + maxSize + ". Consider using result files instead.");
+            componentResult.get().setComponentState(ComponentState.RESULTDATA_POSTED);
+            if (append) {
+                String appendedData = postedResultData.asString();
+                componentResultDao.appendData(componentResult.get(), appendedData);
+                studyLogger.logResultDataAppending(componentResult.get(), appendedData);
+            } else {
+                // Hash for the study log has to be calculated before the file is handed over to the storage
+                String resultDataLogHash = HashUtils.getHashOfTextFile(postedResultData.getFile(), HashUtils.SHA_256);
+                resultDataStore.store(componentResult.get(), postedResultData.getFile(), postedResultData.getSize(),
+                        postedResultData.getHash());
+                componentResultDao.update(componentResult.get());
+                studyLogger.logResultDataStoring(componentResult.get(), resultDataLogHash);
+            }
+        } catch (IOException e) {
+            LOGGER.error(".submitOrAppendResultData: " + "studyResultId " + studyResult.getId() + ", "
+                    + "componentId " + component.getId() + " - " + "Storing result data failed", e);
+            return internalServerError("Storing result data failed");
+        } finally {
+            postedResultData.delete();
         }
-
-        componentResult.get().setData(resultData);
-        componentResult.get().setComponentState(ComponentState.RESULTDATA_POSTED);
-        componentResultDao.update(componentResult.get());
-        studyLogger.logResultDataStoring(componentResult.get());
         return ok(" "); // jQuery.ajax cannot handle empty responses
     }
 
@@ -260,7 +285,7 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
                 LOGGER.info(getLogForUploadResultFile(studyResult, component, filename, "File size too large"));
                 return badRequest("File size too large");
             }
-            if (ioUtils.getResultUploadDirSize(studyResultId) > Common.getResultUploadsLimitPerStudyRun()) {
+            if (resultUploadIndex.getTotalFileSize(studyResultId) > Common.getResultUploadsLimitPerStudyRun()) {
                 LOGGER.info(getLogForUploadResultFile(studyResult, component, filename,
                         "Reached max file size limit per study run"));
                 return badRequest("Reached max file size limit per study run");
@@ -273,7 +298,9 @@ public abstract class Publix<T extends Worker> extends Controller implements IPu
             Path destFile = ioUtils.getResultUploadFileSecurely(
                     studyResultId, componentResult.get().getId(), filename).toPath();
             tmpFile.moveFileTo(destFile, true);
-            studyLogger.logResultUploading(destFile, componentResult.get());
+            ResultUploadFile uploadFile = resultUploadIndex.add(studyResultId, componentResult.get().getId(),
+                    destFile);
+            studyLogger.logResultUploading(destFile, uploadFile.getFileHash(), componentResult.get());
         } catch (IOException e) {
             LOGGER.info(getLogForUploadResultFile(studyResult, component, filename, "File upload failed"));
             return badRequest("File upload failed");
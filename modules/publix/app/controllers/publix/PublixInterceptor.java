@@ -7,6 +7,7 @@ import exceptions.publix.PublixException;
 import models.common.workers.*;
 import play.Application;
 import play.db.jpa.Transactional;
+import play.mvc.BodyParser;
 import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.Result;
@@ -169,6 +170,7 @@ public class PublixInterceptor extends Controller implements IPublix {
 
     @Override
     @Transactional
+    @BodyParser.Of(StudySessionDataBodyParser.class)
     public Result setStudySessionData(Long studyId, Long studyResultId) throws PublixException {
         Result result;
         switch (getWorkerTypeFromIdCookie(studyResultId)) {
@@ -243,6 +245,7 @@ public class PublixInterceptor extends Controller implements IPublix {
 
     @Override
     @Transactional
+    @BodyParser.Of(ResultDataBodyParser.class)
     public Result submitResultData(Long studyId, Long componentId, Long studyResultId)
             throws PublixException {
         Result result;
@@ -281,6 +284,7 @@ public class PublixInterceptor extends Controller implements IPublix {
 
     @Override
     @Transactional
+    @BodyParser.Of(ResultDataBodyParser.class)
     public Result appendResultData(Long studyId, Long componentId, Long studyResultId)
             throws PublixException {
         Result result;
@@ -0,0 +1,182 @@
+package controllers.publix;
+
+import akka.NotUsed;
+import akka.stream.IOResult;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.util.ByteString;
+import general.common.Common;
+import play.Logger;
+import play.libs.F;
+import play.libs.Files.TemporaryFile;
+import play.libs.Files.TemporaryFileCreator;
+import play.libs.streams.Accumulator;
+import play.mvc.BodyParser;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+import utils.common.HashUtils;
+import utils.common.Helpers;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * Body parser for result data. Instead of buffering the whole request body in memory it streams the body into a
+ * temporary file and calculates its size and SHA-256 hash on the way. The max result data size
+ * (jatos.resultData.maxSize) is enforced while streaming: requests with a too large Content-Length are rejected
+ * right away and bodies without one are aborted as soon as they exceed the limit. Both get a 413 (Request Entity Too
+ * Large).
+ *
+ * @author Kristian Lange
+ */
+public class ResultDataBodyParser implements BodyParser<ResultDataBodyParser.ResultDataBody> {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ResultDataBodyParser.class);
+
+    private final TemporaryFileCreator temporaryFileCreator;
+    private final Executor executor;
+
+    @Inject
+    ResultDataBodyParser(TemporaryFileCreator temporaryFileCreator, Executor executor) {
+        this.temporaryFileCreator = temporaryFileCreator;
+        this.executor = executor;
+    }
+
+    @Override
+    public Accumulator<ByteString, F.Either<Result, ResultDataBody>> apply(Http.RequestHeader request) {
+        long maxSize = Common.getResultDataMaxSize();
+        Optional<Long> contentLength = getContentLength(request);
+        if (contentLength.isPresent() && contentLength.get() > maxSize) {
+            return Accumulator.done(F.Either.Left(tooLarge(maxSize)));
+        }
+
+        TemporaryFile tmpFile = temporaryFileCreator.create("resultData", ".tmp");
+        MessageDigest digest = getSha256Digest();
+        long[] size = {0};
+        Flow<ByteString, ByteString, NotUsed> limitAndHash = Flow.<ByteString>create().map(bytes -> {
+            size[0] += bytes.size();
+            if (size[0] > maxSize) throw new MaxSizeExceededException();
+            for (ByteBuffer byteBuffer : bytes.getByteBuffers()) {
+                digest.update(byteBuffer);
+            }
+            return bytes;
+        });
+        Sink<ByteString, CompletionStage<IOResult>> sink = limitAndHash
+                .toMat(FileIO.toPath(tmpFile.path()), Keep.right());
+
+        return Accumulator.fromSink(sink)
+                .map(ioResult -> {
+                    if (ioResult.wasSuccessful()) {
+                        return F.Either.<Result, ResultDataBody>Right(new ResultDataBody(tmpFile.path(), size[0],
+                                HashUtils.bytesToHex(digest.digest())));
+                    }
+                    return handleFailure(ioResult.getError(), tmpFile, maxSize);
+                }, executor)
+                .recover(e -> handleFailure(e, tmpFile, maxSize), executor);
+    }
+
+    private F.Either<Result, ResultDataBody> handleFailure(Throwable e, TemporaryFile tmpFile, long maxSize) {
+        tmpFile.path().toFile().delete();
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof MaxSizeExceededException) {
+            return F.Either.Left(tooLarge(maxSize));
+        }
+        LOGGER.info(".handleFailure: couldn't read result data from request body", cause);
+        return F.Either.Left(Results.badRequest("Couldn't read result data"));
+    }
+
+    private static Optional<Long> getContentLength(Http.RequestHeader request) {
+        try {
+            return request.getHeaders().get(Http.HeaderNames.CONTENT_LENGTH).map(Long::parseLong);
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Result tooLarge(long maxSize) {
+        String maxSizeStr = Helpers.humanReadableByteCountSI(maxSize);
+        return Results.status(Http.Status.REQUEST_ENTITY_TOO_LARGE,
+                "Result data size exceeds allowed " + maxSizeStr + ". Consider using result files instead.");
+    }
+
+    private static MessageDigest getSha256Digest() {
+        try {
+            return MessageDigest.getInstance(HashUtils.SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Thrown within the stream when the body gets larger than allowed
+     */
+    private static class MaxSizeExceededException extends RuntimeException {
+    }
+
+    /**
+     * Result data of a request: stored in a temporary file together with their size and SHA-256 hash. The temporary
+     * file should be deleted (or moved) after use.
+     */
+    public static class ResultDataBody {
+
+        private final Path file;
+        private final long size;
+        private final String hash;
+
+        ResultDataBody(Path file, long size, String hash) {
+            this.file = file;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * Size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * SHA-256 hash of the bytes
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Reads the whole result data (UTF-8) as a String
+         */
+        public String asString() throws IOException {
+            return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Deletes the temporary file if it still exists
+         */
+        public void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.warn(".delete: couldn't delete temporary result data file " + file, e);
+            }
+        }
+    }
+
+}
@@ -3,21 +3,30 @@ package controllers.publix
 import java.io.{File, IOException}
 import java.net.URLDecoder
 import java.nio.charset.StandardCharsets
+import java.nio.file.Path
+import java.time.format.DateTimeFormatter
+import java.time.{Instant, ZoneOffset, ZonedDateTime}
+import java.util.Locale
+import java.util.concurrent.CompletionException
 
 import daos.common.{ComponentDao, StudyDao}
 import exceptions.publix.{ForbiddenPublixException, NotFoundPublixException, PublixException}
-import general.common.{Common, MessagesStrings}
+import general.common.{Common, MessagesStrings, StudyAssetsCompressor}
 import javax.inject.{Inject, Singleton}
 import play.api.Logger
 import play.api.mvc._
 import play.core.j.JavaHelpers
 import play.db.jpa.JPAApi
-import services.publix.PublixErrorMessages
+import services.publix.{PublixErrorMessages, StudyAssetFileCache}
 import services.publix.idcookie.IdCookieService
 import utils.common.{Helpers, IOUtils}
 
 import scala.compat.java8.FunctionConverters.asJavaSupplier
+import scala.compat.java8.FutureConverters
+import scala.compat.java8.OptionConverters.toScala
 import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.Future
+import scala.util.Try
 import scala.util.matching.Regex
 
 /**
@@ -32,7 +41,8 @@ class StudyAssets @Inject()(components: ControllerComponents,
                             idCookieService: IdCookieService,
                             jpa: JPAApi,
                             studyDao: StudyDao,
-                            assets: Assets) extends AbstractController(components) {
+                            assets: Assets,
+                            studyAssetFileCache: StudyAssetFileCache) extends AbstractController(components) {
 
   private val logger: Logger = Logger(this.getClass)
 
@@ -45,6 +55,9 @@ class StudyAssets @Inject()(components: ControllerComponents,
 
   val jatosPublixPattern: Regex = "(.*)(jatos-publix/javascripts/)(.*)".r
 
+  private val HTTP_DATE_FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH)
+    .withZone(ZoneOffset.UTC)
+
   /**
     * Returns the study asset file that belongs to the study with the given study ID
     * and has the given relative path within the study assets folder. In difference to
@@ -68,9 +81,10 @@ class StudyAssets @Inject()(components: ControllerComponents,
 
   /**
     * Action called while routing. Translates the given file path from the URL into a file path
-    * of the OS's file system and returns the file.
+    * of the OS's file system and returns the file. If the file's ETag has to be calculated first
+    * (hashing) this happens off the request thread.
     */
-  def viaAssetsPath(urlPath: String): Action[AnyContent] = Action { request =>
+  def viaAssetsPath(urlPath: String): Action[AnyContent] = Action.async { request =>
     // Set Http.Context used in Play with Java. Needed by IdCookieService
     play.mvc.Http.Context.current.set(play.core.j.JavaHelpers.createJavaContext(request, JavaHelpers.createContextComponents()))
 
@@ -78,30 +92,100 @@ class StudyAssets @Inject()(components: ControllerComponents,
     val filePath = urlDecodedPath.replace(URL_PATH_SEPARATOR, File.separator)
     try {
       checkProperAssets(urlPath) // Windows needs URL path
-      val file = ioUtils.getExistingFileSecurely(Common.getStudyAssetsRootPath, filePath)
-      logger.debug(s".viaAssetsPath: loading file ${file.getPath}.")
-      if (request.headers.hasHeader(RANGE)) {
-        // Support range requests (needed for videos in Safari)
-        // https://www.playframework.com/documentation/2.7.x/AssetsOverview#Range-requests-support
-        RangeResult.ofFile(file, request.headers.get(RANGE), Option.empty)
-      } else {
-        Ok.sendFile(file, true).withHeaders("Cache-Control" -> "private")
-      }
+      FutureConverters.toScala(studyAssetFileCache.get(filePath))
+        .map(fileInfo => sendFile(request, fileInfo))
+        .recover {
+          case _: IOException => fileNotFound(request, filePath)
+          case e: CompletionException if e.getCause.isInstanceOf[IOException] => fileNotFound(request, filePath)
+        }
     } catch {
       case e: PublixException =>
         val errorMsg = e.getMessage
         logger.info(".viaAssetsPath: " + errorMsg)
-        if (Helpers.isAjax) Forbidden(errorMsg)
-        else Forbidden(views.html.publix.error.render(errorMsg))
+        if (Helpers.isAjax(request)) Future.successful(Forbidden(errorMsg))
+        else Future.successful(Forbidden(views.html.publix.error.render(errorMsg)))
       case _: IOException =>
-        logger.info(s".viaAssetsPath: failed loading from path ${Common.getStudyAssetsRootPath}" +
-          s"${File.separator}$filePath")
-        val errorMsg = s"Resource '$filePath' couldn't be found."
-        if (Helpers.isAjax) NotFound(errorMsg)
-        else NotFound(views.html.publix.error.render(errorMsg))
+        Future.successful(fileNotFound(request, filePath))
     }
   }
 
+  private def sendFile(request: RequestHeader, fileInfo: StudyAssetFileCache.FileInfo): Result = {
+    logger.debug(s".viaAssetsPath: loading file ${fileInfo.getPath}.")
+    // Browsers have to revalidate (ETag) but can reuse the file if it didn't change
+    def cacheHeaders(etag: String) = Seq(
+      CACHE_CONTROL -> "private, no-cache",
+      ETAG -> etag,
+      LAST_MODIFIED -> HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(fileInfo.getLastModified))) ++
+      (if (StudyAssetsCompressor.isCompressible(fileInfo.getPath, fileInfo.getSize))
+        Seq(VARY -> ACCEPT_ENCODING) else Seq.empty)
+    val fileName: Path => Option[String] = _ => Some(fileInfo.getPath.getFileName.toString)
+    findCompressedVariant(request, fileInfo) match {
+      case Some((encoding, variant)) =>
+        // Compressed variant with the content type of the original file
+        val etag = fileInfo.getEtag(encoding, variant)
+        val headers = cacheHeaders(etag)
+        if (isNotModified(request, etag, fileInfo.getLastModified)) {
+          NotModified.withHeaders(headers: _*)
+        } else {
+          Ok.sendPath(variant.getPath, inline = true, fileName).withHeaders(headers :+ (CONTENT_ENCODING -> encoding): _*)
+        }
+      case None =>
+        val headers = cacheHeaders(fileInfo.getEtag)
+        if (isNotModified(request, fileInfo.getEtag, fileInfo.getLastModified)) {
+          NotModified.withHeaders(headers: _*)
+        } else if (request.headers.hasHeader(RANGE)) {
+          // Support range requests (needed for videos in Safari)
+          // https://www.playframework.com/documentation/2.7.x/AssetsOverview#Range-requests-support
+          RangeResult.ofPath(fileInfo.getPath, request.headers.get(RANGE), Option.empty).withHeaders(headers: _*)
+        } else {
+          // Streams the file from the disk without loading it into memory
+          Ok.sendPath(fileInfo.getPath, inline = true).withHeaders(headers: _*)
+        }
+    }
+  }
+
+  private def fileNotFound(request: RequestHeader, filePath: String): Result = {
+    logger.info(s".viaAssetsPath: failed loading from path ${Common.getStudyAssetsRootPath}" +
+      s"${File.separator}$filePath")
+    val errorMsg = s"Resource '$filePath' couldn't be found."
+    if (Helpers.isAjax(request)) NotFound(errorMsg)
+    else NotFound(views.html.publix.error.render(errorMsg))
+  }
+
+  /**
+    * Conditional GET: If-None-Match is compared with the ETag of the served representation and only if it's not
+    * there If-Modified-Since with the file's last modified time (in seconds precision like the HTTP date)
+    */
+  private def isNotModified(request: RequestHeader, etag: String, lastModified: Long): Boolean =
+    request.headers.get(IF_NONE_MATCH) match {
+      case Some(ifNoneMatch) =>
+        ifNoneMatch.split(",").map(_.trim).exists(tag => tag == "*" || tag == etag || tag == "W/" + etag)
+      case None =>
+        request.headers.get(IF_MODIFIED_SINCE)
+          .flatMap(date => Try(ZonedDateTime.parse(date, HTTP_DATE_FORMAT).toInstant).toOption)
+          .exists(since => lastModified / 1000 <= since.getEpochSecond)
+    }
+
+  /**
+    * Returns the content encoding and a compressed variant of the file that the browser accepts (Brotli
+    * preferred over gzip). Range requests always get the original file since the ranges refer to it.
+    */
+  private def findCompressedVariant(request: RequestHeader, fileInfo: StudyAssetFileCache.FileInfo)
+  : Option[(String, StudyAssetsCompressor.Variant)] =
+    if (request.headers.hasHeader(RANGE)) None
+    else Seq(StudyAssetsCompressor.BROTLI, StudyAssetsCompressor.GZIP).view
+      .filter(encoding => acceptsEncoding(request, encoding))
+      .flatMap(encoding => toScala(studyAssetFileCache.getVariant(fileInfo, encoding)).map(encoding -> _))
+      .headOption
+
+  /**
+    * Is the encoding listed in the request's Accept-Encoding header (and not with q=0)?
+    */
+  private def acceptsEncoding(request: RequestHeader, encoding: String): Boolean =
+    request.headers.getAll(ACCEPT_ENCODING).flatMap(_.split(",")).map(_.split(";").map(_.trim)).exists { parts =>
+      parts(0).equalsIgnoreCase(encoding) && !parts.drop(1).exists(_.replace(" ", "").matches("q=0(\\.0*)?"))
+    }
+
   /**
     * Throws a ForbiddenPublixException if this request is not allowed to access the study assets
     * given in the URL path. It compares the study assets that are within the given filePath with
@@ -0,0 +1,23 @@
+package controllers.publix;
+
+import general.common.Common;
+import play.http.HttpErrorHandler;
+import play.mvc.BodyParser;
+
+import javax.inject.Inject;
+
+/**
+ * Text body parser for the study session data. Unlike the default text parser (limited by
+ * play.http.parser.maxMemoryBuffer) it accepts only bodies up to the max result data size
+ * (jatos.resultData.maxSize) and answers bigger ones with a 413 (Request Entity Too Large).
+ *
+ * @author Kristian Lange
+ */
+public class StudySessionDataBodyParser extends BodyParser.TolerantText {
+
+    @Inject
+    StudySessionDataBodyParser(HttpErrorHandler errorHandler) {
+        super(Common.getResultDataMaxSize(), errorHandler);
+    }
+
+}
@@ -7,6 +7,9 @@ import controllers.publix.StudyAssets;
 import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
 import exceptions.publix.PublixException;
+import general.common.HeartbeatAggregator;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
 import general.common.StudyLogger;
 import models.common.Batch;
 import models.common.Component;
@@ -58,10 +61,13 @@ public class GeneralMultiplePublix extends Publix<GeneralMultipleWorker> impleme
             PersonalMultipleErrorMessages errorMessages,
             StudyAssets studyAssets, JsonUtils jsonUtils,
             ComponentResultDao componentResultDao,
-            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils,
+            HeartbeatAggregator heartbeatAggregator,
+            ResultUploadIndex resultUploadIndex, ResultDataStore resultDataStore) {
         super(jpa, publixUtils, studyAuthorisation,
                 groupChannel, idCookieService, errorMessages, studyAssets,
-                jsonUtils, componentResultDao, studyResultDao, studyLogger, ioUtils);
+                jsonUtils, componentResultDao, studyResultDao, studyLogger, ioUtils, heartbeatAggregator,
+                resultUploadIndex, resultDataStore);
         this.publixUtils = publixUtils;
         this.studyAuthorisation = studyAuthorisation;
         this.resultCreator = resultCreator;
@@ -8,6 +8,9 @@ import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
 import exceptions.publix.InternalServerErrorPublixException;
 import exceptions.publix.PublixException;
+import general.common.HeartbeatAggregator;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
 import general.common.StudyLogger;
 import models.common.Batch;
 import models.common.Component;
@@ -62,10 +65,13 @@ public class GeneralSinglePublix extends Publix<GeneralSingleWorker> implements
             GeneralSingleCookieService generalSingleCookieService,
             GeneralSingleErrorMessages errorMessages, StudyAssets studyAssets,
             JsonUtils jsonUtils, ComponentResultDao componentResultDao,
-            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils,
+            HeartbeatAggregator heartbeatAggregator,
+            ResultUploadIndex resultUploadIndex, ResultDataStore resultDataStore) {
         super(jpa, publixUtils, studyAuthorisation, groupChannel,
                 idCookieService, errorMessages, studyAssets,
-                jsonUtils, componentResultDao, studyResultDao, studyLogger, ioUtils);
+                jsonUtils, componentResultDao, studyResultDao, studyLogger, ioUtils, heartbeatAggregator,
+                resultUploadIndex, resultDataStore);
         this.publixUtils = publixUtils;
         this.studyAuthorisation = studyAuthorisation;
         this.resultCreator = resultCreator;
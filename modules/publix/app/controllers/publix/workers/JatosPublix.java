@@ -8,6 +8,9 @@ import daos.common.ComponentResultDao;
 import daos.common.StudyResultDao;
 import exceptions.publix.*;
 import general.common.Common;
+import general.common.HeartbeatAggregator;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
 import general.common.StudyLogger;
 import models.common.*;
 import models.common.workers.JatosWorker;
@@ -92,10 +95,13 @@ public class JatosPublix extends Publix<JatosWorker> implements IPublix {
             IdCookieService idCookieService, JatosErrorMessages errorMessages,
             StudyAssets studyAssets, JsonUtils jsonUtils,
             ComponentResultDao componentResultDao,
-            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            StudyResultDao studyResultDao, StudyLogger studyLogger, IOUtils ioUtils,
+            HeartbeatAggregator heartbeatAggregator,
+            ResultUploadIndex resultUploadIndex, ResultDataStore resultDataStore) {
         super(jpa, publixUtils, studyAuthorisation, groupChannel,
                 idCookieService, errorMessages, studyAssets, jsonUtils,
-                componentResultDao, studyResultDao, studyLogger, ioUtils);
+                componentResultDao, studyResultDao, studyLogger, ioUtils, heartbeatAggregator,
+                resultUploadIndex, resultDataStore);
         this.publixUtils = publixUtils;
         this.studyAuthorisation = studyAuthorisation;
         this.resultCreator = resultCreator;
@@ -1,5 +1,6 @@
 package general.publix;
 
+import akka.routing.FromConfig;
 import batch.BatchDispatcher;
 import batch.BatchDispatcherRegistry;
 import com.google.inject.AbstractModule;
@@ -50,8 +51,11 @@ public class PublixGuiceModule extends AbstractModule implements AkkaGuiceSuppor
 		}).to(MTPublixUtils.class);
 
 		// Config which Akka actors should be handled by Guice
-		bindActor(GroupDispatcherRegistry.class, "group-dispatcher-registry-actor");
-		bindActor(BatchDispatcherRegistry.class, "batch-dispatcher-registry-actor");
+		// The registries are pools of shards configured in akka.actor.deployment (application.conf)
+		bindActor(GroupDispatcherRegistry.class, "group-dispatcher-registry-actor",
+				props -> FromConfig.getInstance().props(props.withMailbox("metered-mailbox")));
+		bindActor(BatchDispatcherRegistry.class, "batch-dispatcher-registry-actor",
+				props -> FromConfig.getInstance().props(props.withMailbox("metered-mailbox")));
 		bindActorFactory(BatchDispatcher.class, BatchDispatcher.Factory.class);
 		bindActorFactory(GroupDispatcher.class, GroupDispatcher.Factory.class);
 	}
@@ -0,0 +1,34 @@
+package services.publix;
+
+import com.google.common.util.concurrent.Striped;
+
+import javax.inject.Singleton;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Striped locks that are used to serialize group assignments (join, reassign, leave) within a batch. Only group
+ * members of the same batch can end up in the same group, so independent batches can form their groups in parallel.
+ * Study runs of different worker types in the same batch share the same lock. Different batches may share a stripe
+ * too - this only costs some parallelism but never correctness. The batch's OpenGroups (GroupMatchmaker) are only used
+ * while holding its lock.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class BatchLocks {
+
+    /**
+     * Number of stripes: the max number of batches that can do group assignments in parallel
+     */
+    private static final int STRIPES = 64;
+
+    private final Striped<Lock> locks = Striped.lock(STRIPES);
+
+    /**
+     * Returns the lock for the batch with the given ID
+     */
+    public Lock get(Long batchId) {
+        return locks.get(batchId);
+    }
+
+}
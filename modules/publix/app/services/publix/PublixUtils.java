@@ -3,6 +3,9 @@ package services.publix;
 import daos.common.*;
 import daos.common.worker.WorkerDao;
 import exceptions.publix.*;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
+import general.common.StudyCache;
 import general.common.StudyLogger;
 import group.GroupAdministration;
 import models.common.*;
@@ -19,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 
 /**
@@ -43,6 +47,10 @@ public abstract class PublixUtils<T extends Worker> {
     private final BatchDao batchDao;
     private final StudyLogger studyLogger;
     private final IOUtils ioUtils;
+    private final StudyCache studyCache;
+    private final ResultUploadIndex resultUploadIndex;
+    private final ResultDataStore resultDataStore;
+    private final BatchLocks batchLocks;
 
     public PublixUtils(ResultCreator resultCreator,
             IdCookieService idCookieService,
@@ -50,7 +58,9 @@ public abstract class PublixUtils<T extends Worker> {
             PublixErrorMessages errorMessages, StudyDao studyDao,
             StudyResultDao studyResultDao, ComponentDao componentDao,
             ComponentResultDao componentResultDao, WorkerDao workerDao,
-            BatchDao batchDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            BatchDao batchDao, StudyLogger studyLogger, IOUtils ioUtils,
+            StudyCache studyCache, ResultUploadIndex resultUploadIndex, ResultDataStore resultDataStore,
+            BatchLocks batchLocks) {
         this.resultCreator = resultCreator;
         this.idCookieService = idCookieService;
         this.groupAdministration = groupAdministration;
@@ -63,6 +73,10 @@ public abstract class PublixUtils<T extends Worker> {
         this.batchDao = batchDao;
         this.studyLogger = studyLogger;
         this.ioUtils = ioUtils;
+        this.studyCache = studyCache;
+        this.resultUploadIndex = resultUploadIndex;
+        this.resultDataStore = resultDataStore;
+        this.batchLocks = batchLocks;
     }
 
     /**
@@ -157,15 +171,18 @@ public abstract class PublixUtils<T extends Worker> {
         finishAllComponentResults(studyResult);
 
         // Clear all data and set ABORTED for all(!) ComponentResults
+        List<String> dataPointers = new ArrayList<>();
         for (ComponentResult componentResult : studyResult.getComponentResultList()) {
+            dataPointers.add(componentResult.getDataPointer());
             componentResult.setData(null);
             componentResult.setComponentState(ComponentState.ABORTED);
             componentResultDao.update(componentResult);
         }
+        resultDataStore.deleteIfUnreferenced(dataPointers);
 
         // Remove all uploaded result files
         try {
-            ioUtils.removeResultUploadsDir(studyResult.getId());
+            resultUploadIndex.removeStudyResult(studyResult.getId());
         } catch (IOException e) {
             LOGGER.error("Cannot delete result upload files (srid " + studyResult.getId() + "): " + e.getMessage());
         }
@@ -240,7 +257,7 @@ public abstract class PublixUtils<T extends Worker> {
             StudyResult abandonedStudyResult = studyResultDao.findById(abandonedStudyResultId);
             // If the abandoned study result isn't done, finish it.
             if (abandonedStudyResult != null && !PublixHelpers.studyDone(abandonedStudyResult)) {
-                groupAdministration.leave(abandonedStudyResult);
+                leaveGroup(abandonedStudyResult);
                 finishStudyResult(false, PublixErrorMessages.ABANDONED_STUDY_BY_COOKIE,
                         abandonedStudyResult);
                 studyLogger.log(abandonedStudyResult.getStudy(), "Finish abandoned study",
@@ -250,6 +267,20 @@ public abstract class PublixUtils<T extends Worker> {
         }
     }
 
+    /**
+     * Leaves the group of the given StudyResult while holding the batch's lock (serializes it with the other group
+     * assignments of this batch)
+     */
+    private void leaveGroup(StudyResult studyResult) {
+        Lock lock = batchLocks.get(studyResult.getBatch().getId());
+        lock.lock();
+        try {
+            groupAdministration.leave(studyResult);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public StudyResult retrieveStudyResult(Worker worker, Study study, Long studyResultId)
             throws ForbiddenPublixException, BadRequestPublixException {
         if (studyResultId == null) {
@@ -359,7 +390,11 @@ public abstract class PublixUtils<T extends Worker> {
      */
     public Component retrieveComponent(Study study, Long componentId)
             throws NotFoundPublixException, BadRequestPublixException, ForbiddenPublixException {
-        Component component = componentDao.findById(componentId);
+        // Try the study's components first (usually a cached study) before asking the DB
+        Component component = study.getComponentList().stream()
+                .filter(c -> c.getId().equals(componentId))
+                .findFirst()
+                .orElseGet(() -> componentDao.findById(componentId));
         if (component == null) {
             throw new NotFoundPublixException(PublixErrorMessages
                     .componentNotExist(study.getId(), componentId));
@@ -395,9 +430,12 @@ public abstract class PublixUtils<T extends Worker> {
     /**
      * Returns the study corresponding to the given study ID. It throws an
      * NotFoundPublixException if there is no such study.
+     *
+     * The study is taken from the StudyCache: it's a detached snapshot that is
+     * shared between requests and therefore must never be changed.
      */
     public Study retrieveStudy(Long studyId) throws NotFoundPublixException {
-        Study study = studyDao.findById(studyId);
+        Study study = studyCache.get(studyId, () -> studyDao.findByIdDetached(studyId));
         if (study == null) {
             throw new NotFoundPublixException(
                     PublixErrorMessages.studyNotExist(studyId));
@@ -435,8 +473,9 @@ public abstract class PublixUtils<T extends Worker> {
     public Batch retrieveBatchByIdOrDefault(Long batchId, Study study)
             throws NotFoundPublixException {
         if (batchId == -1) {
-            // The default batch is always the first one in study's batch list
-            return study.getDefaultBatch();
+            // The default batch is always the first one in study's batch list. Get it
+            // from the DB since the study might be a detached snapshot.
+            return retrieveBatch(study.getDefaultBatch().getId());
         } else {
             return retrieveBatch(batchId);
         }
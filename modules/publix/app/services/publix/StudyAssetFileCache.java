@@ -0,0 +1,194 @@
+package services.publix;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import general.common.Common;
+import general.common.MessagesStrings;
+import general.common.StudyAssetsCompressor;
+import play.inject.ApplicationLifecycle;
+import utils.common.HashUtils;
+import utils.common.IOUtils;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+/**
+ * Caches what is needed to serve a study assets file: its resolved and checked path in the file system and its
+ * strong ETag. With every request the file's last modified time and size are compared with the cached ones (one stat
+ * of the file) - only if one of them changed the ETag is calculated again. This way the path check and the ETag
+ * calculation don't happen for every request and unchanged files can be answered with a 304 (Not Modified).
+ * <p>
+ * The ETag of a compressible file (see StudyAssetsCompressor) is the SHA-256 of its content - it's needed anyway as
+ * the key of the file's compressed variant. The hashing runs in the background on a small thread pool and concurrent
+ * requests of the same file version wait for the same hashing. All other files (e.g. big videos and images that are
+ * requested in ranges) get a cheap ETag that is calculated from the file's key (inode), size and last modified time,
+ * so they are never read as a whole just to get the ETag.
+ *
+ * @author Kristian Lange
+ */
+@Singleton
+public class StudyAssetFileCache {
+
+    /**
+     * Max number of files kept in the cache
+     */
+    private static final int MAX_SIZE = 10000;
+
+    private final IOUtils ioUtils;
+    private final StudyAssetsCompressor studyAssetsCompressor;
+
+    private final Cache<String, FileInfo> cache = CacheBuilder.newBuilder().maximumSize(MAX_SIZE).build();
+
+    /**
+     * Hashings that are in progress - the key is the file path together with the last modified time and size of the
+     * file version that is hashed
+     */
+    private final ConcurrentMap<String, CompletableFuture<FileInfo>> hashings = new ConcurrentHashMap<>();
+
+    private final ExecutorService hashingExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "study-assets-hasher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Inject
+    StudyAssetFileCache(IOUtils ioUtils, StudyAssetsCompressor studyAssetsCompressor,
+            ApplicationLifecycle applicationLifecycle) {
+        this.ioUtils = ioUtils;
+        this.studyAssetsCompressor = studyAssetsCompressor;
+        applicationLifecycle.addStopHook(() -> {
+            hashingExecutor.shutdownNow();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Returns the FileInfo of the file with the given path (relative to the study assets root directory and with the
+     * OS's file separator). The returned CompletionStage is already completed unless the file has to be hashed.
+     *
+     * @throws IOException if the file doesn't exist, is a directory or the path points outside of the study assets
+     *                     root directory
+     */
+    public CompletionStage<FileInfo> get(String filePath) throws IOException {
+        FileInfo cached = cache.getIfPresent(filePath);
+        Path path = cached != null ? cached.path
+                : ioUtils.getExistingFileSecurely(Common.getStudyAssetsRootPath(), filePath).toPath();
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            cache.invalidate(filePath);
+            throw e;
+        }
+        if (!attributes.isRegularFile()) {
+            cache.invalidate(filePath);
+            throw new IOException(MessagesStrings.FILE_NOT_EXIST_OR_DIR);
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+        if (cached != null && cached.lastModified == lastModified && cached.size == size) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        if (!StudyAssetsCompressor.isCompressible(path, size)) {
+            String validator = HashUtils.getHash(attributes.fileKey() + "-" + size + "-" + lastModified,
+                    HashUtils.SHA_256);
+            FileInfo fileInfo = new FileInfo(path, lastModified, size, validator);
+            cache.put(filePath, fileInfo);
+            return CompletableFuture.completedFuture(fileInfo);
+        }
+
+        String key = filePath + "-" + lastModified + "-" + size;
+        CompletableFuture<FileInfo> hashing = hashings.computeIfAbsent(key, k -> {
+            CompletableFuture<FileInfo> future = new CompletableFuture<>();
+            hashingExecutor.execute(() -> {
+                try {
+                    future.complete(hash(filePath, path, lastModified, size));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+            return future;
+        });
+        hashing.whenComplete((fileInfo, e) -> hashings.remove(key, hashing));
+        return hashing;
+    }
+
+    private FileInfo hash(String filePath, Path path, long lastModified, long size) throws IOException {
+        String hash = HashUtils.getHash(path, HashUtils.SHA_256);
+        FileInfo fileInfo = new FileInfo(path, lastModified, size, hash);
+        cache.put(filePath, fileInfo);
+        return fileInfo;
+    }
+
+    /**
+     * Returns the compressed variant of the file with the given content encoding ('gzip' or 'br') if there is one. If
+     * it isn't there yet it might be generated in the background for the next request.
+     */
+    public Optional<StudyAssetsCompressor.Variant> getVariant(FileInfo fileInfo, String encoding) {
+        return studyAssetsCompressor.getVariant(fileInfo.path, fileInfo.lastModified, fileInfo.size, fileInfo.hash,
+                encoding);
+    }
+
+    /**
+     * Path, last modified time, size and ETag of a study assets file
+     */
+    public static class FileInfo {
+
+        private final Path path;
+        private final long lastModified;
+        private final long size;
+        private final String hash;
+
+        FileInfo(Path path, long lastModified, long size, String hash) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Last modified time in epoch millis
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Strong ETag (quoted): the SHA-256 of the file's content if it's compressible, otherwise a hash of its file
+         * key, size and last modified time
+         */
+        public String getEtag() {
+            return "\"" + hash + "\"";
+        }
+
+        /**
+         * Strong ETag (quoted) of the file's compressed variant with the given content encoding - every
+         * representation needs its own ETag. A variant that lies next to the file can change on its own, so its
+         * validator is part of the ETag.
+         */
+        public String getEtag(String encoding, StudyAssetsCompressor.Variant variant) {
+            String validator = variant.getValidator() != null ? "-" + variant.getValidator() : "";
+            return "\"" + hash + "-" + encoding + validator + "\"";
+        }
+    }
+
+}
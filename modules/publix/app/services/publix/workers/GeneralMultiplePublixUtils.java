@@ -4,11 +4,15 @@ import controllers.publix.workers.GeneralMultiplePublix;
 import daos.common.*;
 import daos.common.worker.WorkerDao;
 import exceptions.publix.ForbiddenPublixException;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
+import general.common.StudyCache;
 import general.common.StudyLogger;
 import group.GroupAdministration;
 import models.common.workers.GeneralMultipleWorker;
 import models.common.workers.Worker;
 import play.mvc.Http;
+import services.publix.BatchLocks;
 import services.publix.PublixUtils;
 import services.publix.ResultCreator;
 import services.publix.idcookie.IdCookieService;
@@ -34,10 +38,13 @@ public class GeneralMultiplePublixUtils extends PublixUtils<GeneralMultipleWorke
             GeneralMultipleErrorMessages errorMessages, StudyDao studyDao,
             StudyResultDao studyResultDao, ComponentDao componentDao,
             ComponentResultDao componentResultDao, WorkerDao workerDao,
-            BatchDao batchDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            BatchDao batchDao, StudyLogger studyLogger, IOUtils ioUtils,
+            StudyCache studyCache, ResultUploadIndex resultUploadIndex, ResultDataStore resultDataStore,
+            BatchLocks batchLocks) {
         super(resultCreator, idCookieService, groupAdministration,
                 errorMessages, studyDao, studyResultDao, componentDao,
-                componentResultDao, workerDao, batchDao, studyLogger, ioUtils);
+                componentResultDao, workerDao, batchDao, studyLogger, ioUtils, studyCache,
+                resultUploadIndex, resultDataStore, batchLocks);
     }
 
     @Override
@@ -7,12 +7,16 @@ import daos.common.*;
 import daos.common.worker.WorkerDao;
 import exceptions.publix.BadRequestPublixException;
 import exceptions.publix.ForbiddenPublixException;
+import general.common.ResultDataStore;
+import general.common.ResultUploadIndex;
+import general.common.StudyCache;
 import general.common.StudyLogger;
 import group.GroupAdministration;
 import models.common.User;
 import models.common.workers.JatosWorker;
 import models.common.workers.Worker;
 import play.mvc.Http;
+import services.publix.BatchLocks;
 import services.publix.PublixUtils;
 import services.publix.ResultCreator;
 import services.publix.idcookie.IdCookieService;
@@ -42,10 +46,13 @@ public class JatosPublixUtils extends PublixUtils<JatosWorker> {
             JatosErrorMessages errorMessages, UserDao userDao,
             StudyDao studyDao, StudyResultDao studyResultDao,
             ComponentDao componentDao, ComponentResultDao componentResultDao,
-            WorkerDao workerDao, BatchDao batchDao, StudyLogger studyLogger, IOUtils ioUtils) {
+            WorkerDao workerDao, BatchDao batchDao, StudyLogger studyLogger, IOUtils ioUtils,
+            StudyCache studyCache, ResultUploadIndex resultUploadIndex, ResultDataStore resultDataStore,
+            BatchLocks batchLocks) {
         super(resultCreator, idCookieService, groupAdministration,
                 errorMessages, studyDao, studyResultDao, componentDao,
-                componentResultDao, workerDao, batchDao, studyLogger, ioUtils);
+                componentResultDao, workerDao, batchDao, studyLogger, ioUtils, studyCache,
+                resultUploadIndex, resultDataStore, batchLocks);
         this.errorMessages = errorMessages;
         this.userDao = userDao;
     }
@@ -1,20 +1,20 @@
 package batch
 
 import batch.BatchDispatcher.{BatchAction, BatchActionJsonKey, BatchMsg, TellWhom}
-import com.google.common.base.Strings
 import daos.common.BatchDao
-import gnieh.diffson.playJson._
+import general.SessionDocument
 import javax.inject.{Inject, Singleton}
-import models.common.Batch
 import play.api.Logger
 import play.api.libs.json.Reads._
-import play.api.libs.json.{JsObject, JsValue, Json}
+import play.api.libs.json.{JsObject, Json}
 import play.db.jpa.JPAApi
 
 import scala.compat.java8.FunctionConverters.asJavaSupplier
 
 /**
-  * Handles batch action messages received by a BatchDispatcher from a client via a batch channel.
+  * Handles batch action messages received by a BatchDispatcher from a client via a batch channel. The batch session
+  * is applied to the BatchDispatcher's in-memory SessionDocument - loading it from and writing it to the database
+  * happens separately (write-behind).
   *
   * @author Kristian Lange
   */
@@ -30,11 +30,11 @@ class BatchActionHandler @Inject()(jpa: JPAApi,
     * 'action' in their JSON. The only action handled here is the a patch for the batch session.
     * The function returns BatchMsges that will be send out to the batch members.
     */
-  def handleActionMsg(actionMsg: BatchMsg, batchId: Long): List[BatchMsg] = {
+  def handleActionMsg(actionMsg: BatchMsg, batchId: Long, session: SessionDocument): List[BatchMsg] = {
     val actionValue = (actionMsg.json \ BatchActionJsonKey.Action.toString).as[String]
     val action = BatchAction.withName(actionValue)
     action match {
-      case BatchAction.Session => handlePatch(actionMsg.json, batchId)
+      case BatchAction.Session => handlePatch(actionMsg.json, batchId, session)
       case _ =>
         List(msgBuilder.buildError(s"Unknown action $action", TellWhom.SenderOnly))
     }
@@ -43,72 +43,69 @@ class BatchActionHandler @Inject()(jpa: JPAApi,
   /**
     * Applies JSON Patch for the batch session and tells everyone in the batch
     */
-  private def handlePatch(json: JsObject, batchId: Long): List[BatchMsg] = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      val batch = batchDao.findById(batchId)
-      if (batch == null) {
-        val errorMsg = s"Couldn't find batch with ID $batchId in database."
-        List(msgBuilder.buildError(errorMsg, TellWhom.SenderOnly))
-      }
-
-      val sessionActionId = (json \ BatchActionJsonKey.SessionActionId.toString).as[Long]
-      val clientsVersion = (json \ BatchActionJsonKey.SessionVersion.toString).as[Long]
-      val versioning = (json \ BatchActionJsonKey.SessionVersioning.toString).as[Boolean]
-      try {
-        val patches = (json \ BatchActionJsonKey.SessionPatches.toString).get
-        val patchedSessionData = patchSessionData(patches, batch)
+  private def handlePatch(json: JsObject, batchId: Long, session: SessionDocument): List[BatchMsg] = {
+    val sessionActionId = (json \ BatchActionJsonKey.SessionActionId.toString).as[Long]
+    val clientsVersion = (json \ BatchActionJsonKey.SessionVersion.toString).as[Long]
+    val versioning = (json \ BatchActionJsonKey.SessionVersioning.toString).as[Boolean]
+    try {
+      val patches = (json \ BatchActionJsonKey.SessionPatches.toString).get
+      val success = session.checkVersionAndPatch(patches, clientsVersion, versioning)
+      if (logger.isDebugEnabled) {
         logger.debug(s".handlePatch: batchId $batchId, " +
           s"clientsVersion $clientsVersion, versioning $versioning, batchSessionPatch ${Json.stringify(patches)}, " +
-          s"updatedSessionData ${Json.stringify(patchedSessionData)}")
-
-        val success = checkVersionAndPersistSessionData(patchedSessionData, batch, clientsVersion, versioning)
-        if (success) {
-          val msg1 = msgBuilder.buildSessionPatch(batch, patches, TellWhom.All)
-          val msg2 = msgBuilder.buildSimple(batch, BatchAction.SessionAck, sessionActionId, TellWhom.SenderOnly)
-          List(msg1, msg2)
-        } else {
-          List(msgBuilder.buildSimple(batch, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
-        }
-
-      } catch {
-        case e: Exception =>
-          logger.warn(s".handlePatch: batchId $batchId, json ${Json.stringify(json)}, " +
-            s"${e.getClass.getName}: ${e.getMessage}")
-          List(msgBuilder.buildSimple(batch, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
+          s"updatedSessionData $session")
       }
-    }))
-  }
 
-  private def patchSessionData(patches: JsValue, batch: Batch): JsValue = {
-    val currentSessionData =
-      if (!Strings.isNullOrEmpty(batch.getBatchSessionData))
-        Json.parse(batch.getBatchSessionData)
-      else Json.obj()
+      if (success) {
+        val msg1 = msgBuilder.buildSessionPatch(batchId, session, patches, TellWhom.All)
+        val msg2 = msgBuilder.buildSimple(batchId, session, BatchAction.SessionAck, sessionActionId,
+          TellWhom.SenderOnly)
+        List(msg1, msg2)
+      } else {
+        List(msgBuilder.buildSimple(batchId, session, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
+      }
 
-    // Fix for gnieh.diffson JsonPatch for "remove" and "/" - clear all session data
-    // Assumes the 'remove' operation is in the first JSON patch
-    if ((patches \ 0 \ "op").as[String] == "remove" && (patches \ 0 \ "path").as[String] == "/") {
-      return Json.obj()
+    } catch {
+      case e: Exception =>
+        logger.warn(s".handlePatch: batchId $batchId, json ${Json.stringify(json)}, " +
+          s"${e.getClass.getName}: ${e.getMessage}")
+        List(msgBuilder.buildSimple(batchId, session, BatchAction.SessionFail, sessionActionId, TellWhom.SenderOnly))
     }
+  }
 
-    JsonPatch.apply(patches)(currentSessionData)
+  /**
+    * Loads the batch session of the batch with the given ID from the database. Returns None if the batch doesn't
+    * exist.
+    */
+  def loadSession(batchId: Long): Option[SessionDocument] = {
+    jpa.withTransaction(asJavaSupplier(() => {
+      val batch = batchDao.findById(batchId)
+      if (batch == null) None
+      else Some(SessionDocument(batch.getBatchSessionData, batch.getBatchSessionVersion))
+    }))
   }
 
   /**
-    * Persists the given sessionData in the Batch and increases the batchSessionVersion by 1 - but only if the stored
-    * version is equal to the received one or versioning is turned off. Returns true if this was successful -
-    * otherwise false.
+    * Writes the batch session to the database - but only if the stored version is still the one that was last loaded
+    * or persisted (otherwise the batch session was changed outside of the batch channel, e.g. in the GUI). Returns
+    * true if this was successful - otherwise false.
     */
-  private def checkVersionAndPersistSessionData(sessionData: JsValue, batch: Batch,
-                                                version: Long,
-                                                versioning: Boolean): Boolean = {
-    if (batch != null && sessionData != null && (!versioning || batch.getBatchSessionVersion == version)) {
-      batch.setBatchSessionData(sessionData.toString)
-      batch.setBatchSessionVersion(batch.getBatchSessionVersion + 1L)
-      batchDao.update(batch)
-      return true
-    }
-    false
+  def persistSession(batchId: Long, session: SessionDocument): Boolean = {
+    val success = jpa.withTransaction(asJavaSupplier(() => {
+      batchDao.updateBatchSession(batchId, session.toString, session.version, session.persistedVersion)
+    }))
+    if (success) session.persistedVersion = session.version
+    success
+  }
+
+  /**
+    * Returns true if the batch session version in the database is still the one that was last loaded or persisted
+    */
+  def isSessionUpToDate(batchId: Long, session: SessionDocument): Boolean = {
+    jpa.withTransaction(asJavaSupplier(() => {
+      val storedVersion = batchDao.findBatchSessionVersion(batchId)
+      storedVersion != null && storedVersion == session.persistedVersion
+    }))
   }
 
 }
@@ -2,7 +2,9 @@ package batch
 
 import akka.actor.{Actor, ActorRef, PoisonPill, Props}
 import batch.BatchDispatcher._
+import general.ChannelOutMsg
 import javax.inject.Inject
+import play.api.http.websocket.TextMessage
 import play.api.libs.json.{JsObject, Json}
 
 /**
@@ -25,6 +27,8 @@ import play.api.libs.json.{JsObject, Json}
 object BatchChannelActor {
   def props(out: ActorRef, studyResultId: Long, batchDispatcher: ActorRef) =
     Props(new BatchChannelActor(out, studyResultId, batchDispatcher))
+
+  private val Pong: TextMessage = ChannelOutMsg(Json.obj("heartbeat" -> "pong")).message
 }
 
 class BatchChannelActor @Inject()(out: ActorRef,
@@ -35,20 +39,18 @@ class BatchChannelActor @Inject()(out: ActorRef,
 
   override def postStop() = batchDispatcher ! UnregisterChannel(studyResultId)
 
-  val pong = Json.obj("heartbeat" -> "pong")
-
   def receive = {
     case msg: JsObject if msg.keys.contains("heartbeat") =>
       // If we receive a heartbeat ping, answer directly with a pong
-      out ! pong
+      out ! BatchChannelActor.Pong
     case msg: JsObject =>
       // If we receive an JSON object (can only come from the client), wrap it in a
       // BatchMsg and forward it to the BatchDispatcher
       batchDispatcher ! BatchMsg(msg)
-    case msg: BatchMsg =>
-      // If we receive a BatchMsg (can only come from the BatchDispatcher),
-      // send the unwrapped JSON to the client
-      out ! msg.json
+    case msg: ChannelOutMsg =>
+      // If we receive a ChannelOutMsg (can only come from the BatchDispatcher),
+      // send the already serialised message to the client
+      out ! msg.message
     case _: PoisonChannel =>
       // Kill this batch channel
       self ! PoisonPill
@@ -1,16 +1,20 @@
 package batch
 
+import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 
-import akka.actor.{Actor, ActorRef, PoisonPill}
+import akka.actor.{Actor, ActorRef, PoisonPill, Timers}
 import batch.BatchDispatcher.TellWhom.TellWhom
 import batch.BatchDispatcher._
 import batch.BatchDispatcherRegistry.Unregister
 import com.google.inject.assistedinject.Assisted
-import general.ChannelRegistry
+import general.common.Common
+import general.{ChannelOutMsg, ChannelRegistry, SessionDocument}
 import play.api.Logger
 import play.api.libs.json.{JsObject, Json}
 
+import scala.concurrent.duration.FiniteDuration
+
 /**
   * A BatchDispatcher is an Akka Actor responsible for distributing messages (BatchMsg) within a
   * batch.
@@ -28,6 +32,11 @@ import play.api.libs.json.{JsObject, Json}
   * batch. These messages are essentially JSON Patches after RFC 6902 and used to describe
   * changes in the batch session data. The session data are stored and persisted with the Batch.
   *
+  * While a BatchDispatcher is alive it keeps the batch session in memory (SessionDocument) and applies the patches
+  * there. The session is written to the database periodically (if it changed), after a certain number of versions,
+  * and when the dispatcher stops. If the batch session was changed outside of the batch channel (e.g. in the GUI) the
+  * dispatcher reloads it and sends it to all members.
+  *
   * @author Kristian Lange (2017)
   */
 object BatchDispatcher {
@@ -56,6 +65,11 @@ object BatchDispatcher {
     */
   case class PoisonChannel(studyResultId: Long)
 
+  /**
+    * Message a BatchDispatcher sends itself periodically to write the batch session to the database
+    */
+  case object FlushSession
+
   object TellWhom extends Enumeration {
     type TellWhom = Value
     val All, SenderOnly, Unknown = Value
@@ -93,6 +107,7 @@ object BatchDispatcher {
     val Session = Value("SESSION") // Signals this message contains a batch session update
     val SessionAck = Value("SESSION_ACK") // Signals that the session update was successful
     val SessionFail = Value("SESSION_FAIL") // Signals that the session update failed
+    val SessionReloaded = Value("SESSION_RELOADED") // Signals that the session was changed outside the batch channel
     val Error = Value("ERROR") // Used to send an error back to the sender
   }
 
@@ -107,30 +122,50 @@ object BatchDispatcher {
 class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
                                 @Assisted actionHandler: BatchActionHandler,
                                 @Assisted actionMsgBuilder: BatchActionMsgBuilder,
-                                @Assisted batchId: Long) extends Actor {
+                                @Assisted batchId: Long) extends Actor with Timers {
 
   private val logger: Logger = Logger(this.getClass)
 
   private val channelRegistry = new ChannelRegistry
 
-  override def postStop() = dispatcherRegistry ! Unregister(batchId)
+  /**
+    * In-memory batch session - loaded from the database with the first registered channel
+    */
+  private var session: Option[SessionDocument] = None
+
+  override def preStart(): Unit = {
+    val interval = FiniteDuration(Common.getChannelSessionFlushInterval.toMillis, TimeUnit.MILLISECONDS)
+    timers.startPeriodicTimer(FlushSession, FlushSession, interval)
+  }
+
+  override def postStop() = {
+    flushSession()
+    dispatcherRegistry ! Unregister(batchId)
+  }
 
   def receive = {
     case actionMsg: BatchMsg => handleActionMsg(actionMsg)
     case RegisterChannel(studyResultId: Long) => registerChannel(studyResultId)
     case UnregisterChannel(studyResultId: Long) => unregisterChannel(studyResultId)
     case p: PoisonChannel => poisonChannel(p)
+    case FlushSession => flushSession()
   }
 
   /**
     * Handles batch actions originating from a client
     */
   private def handleActionMsg(actionMsg: BatchMsg) = {
-    logger.debug(s".handleActionMsg: batchId $batchId, " +
-        s"studyResultId ${channelRegistry.getStudyResult(sender).get}, " +
-        s"actionMsg ${Json.stringify(actionMsg.json)}")
-    val msgList = actionHandler.handleActionMsg(actionMsg, batchId)
-    tellActionMsg(msgList)
+    if (logger.isDebugEnabled) {
+      logger.debug(s".handleActionMsg: batchId $batchId, " +
+          s"studyResultId ${channelRegistry.getStudyResult(sender).get}, " +
+          s"actionMsg ${Json.stringify(actionMsg.json)}")
+    }
+    getSession match {
+      case Some(s) =>
+        tellActionMsg(actionHandler.handleActionMsg(actionMsg, batchId, s))
+        if (s.unpersistedVersions >= Common.getChannelSessionFlushAfterVersions) flushSession()
+      case None => tellActionMsg(List(buildBatchNotFoundError()))
+    }
   }
 
   /**
@@ -139,8 +174,46 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   private def registerChannel(studyResultId: Long) = {
     logger.debug(s".registerChannel: batchId $batchId, studyResultId $studyResultId")
     channelRegistry.register(studyResultId, sender)
-    tellActionMsg(List(actionMsgBuilder.buildSessionData(
-      batchId, BatchAction.Opened, TellWhom.SenderOnly)))
+    val msg = getSession match {
+      case Some(s) => actionMsgBuilder.buildSessionData(batchId, s, BatchAction.Opened, TellWhom.SenderOnly)
+      case None => buildBatchNotFoundError()
+    }
+    tellActionMsg(List(msg))
+  }
+
+  private def getSession: Option[SessionDocument] = {
+    if (session.isEmpty) session = actionHandler.loadSession(batchId)
+    session
+  }
+
+  private def buildBatchNotFoundError() =
+    actionMsgBuilder.buildError(s"Couldn't find batch with ID $batchId in database.", TellWhom.SenderOnly)
+
+  /**
+    * Writes the in-memory batch session to the database if it changed since the last time. If the batch session in the
+    * database was changed meanwhile by someone else (e.g. in the GUI) the session is reloaded from the database and
+    * sent to all members - the in-memory changes since the last flush are lost in this case.
+    */
+  private def flushSession(): Unit = {
+    if (session.isEmpty) return
+    try {
+      val s = session.get
+      val upToDate =
+        if (s.isDirty) actionHandler.persistSession(batchId, s)
+        else actionHandler.isSessionUpToDate(batchId, s)
+      if (!upToDate) reloadSession()
+    } catch {
+      case e: Exception =>
+        logger.error(s".flushSession: couldn't write batch session of batch $batchId", e)
+    }
+  }
+
+  private def reloadSession(): Unit = {
+    logger.info(s".reloadSession: batch session of batch $batchId was changed outside of the batch channel")
+    session = actionHandler.loadSession(batchId)
+    if (session.isDefined) {
+      tellAll(actionMsgBuilder.buildSessionData(batchId, session.get, BatchAction.SessionReloaded, TellWhom.All))
+    }
   }
 
   /**
@@ -189,12 +262,14 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   }
 
   /**
-    * Sends the message to everyone in batch channelRegistry.
+    * Sends the message to everyone in batch channelRegistry. The message is serialised only once and the same
+    * ChannelOutMsg is sent to all channels.
     */
   private def tellAll(msg: BatchMsg) = {
-    logger.debug(s".tellAll: batchId $batchId, msg ${Json.stringify(msg.json)}")
+    val outMsg = ChannelOutMsg(msg.json)
+    logger.debug(s".tellAll: batchId $batchId, msg ${outMsg.message.data}")
     for (actorRef <- channelRegistry.getAllChannels) {
-      actorRef ! msg
+      actorRef ! outMsg
     }
   }
 
@@ -202,8 +277,9 @@ class BatchDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     * Sends the message only to the sender.
     */
   private def tellSenderOnly(msg: BatchMsg) = {
-    logger.debug(s".tellSenderOnly: batchId $batchId, msg ${Json.stringify(msg.json)}")
-    sender ! msg
+    val outMsg = ChannelOutMsg(msg.json)
+    logger.debug(s".tellSenderOnly: batchId $batchId, msg ${outMsg.message.data}")
+    sender ! outMsg
   }
 
   /**
@@ -2,8 +2,9 @@ package batch
 
 import akka.actor.SupervisorStrategy.Resume
 import akka.actor.{Actor, ActorRef, ActorSystem, OneForOneStrategy}
+import akka.routing.ConsistentHashingRouter.ConsistentHashable
 import batch.BatchDispatcherRegistry.{GetOrCreate, ItsThisOne, Unregister}
-import javax.inject.{Inject, Singleton}
+import javax.inject.Inject
 import play.api.Logger
 import play.api.libs.concurrent.InjectedActorSupport
 
@@ -13,6 +14,10 @@ import scala.concurrent.duration._
 /**
   * A BatchDispatcherRegistry is an Akka Actor that keeps track of all BatchDispatcher Actors.
   *
+  * The registry is sharded: it runs as a consistent-hashing pool (configured in akka.actor.deployment) and each shard
+  * keeps track of the BatchDispatchers of a part of the batch IDs. Therefore all messages sent to the registry have
+  * to be ConsistentHashable by the batch ID.
+  *
   * @author Kristian Lange (2017)
   */
 object BatchDispatcherRegistry {
@@ -23,7 +28,9 @@ object BatchDispatcherRegistry {
     * Used by the BatchChannel service to ask which BatchDispatcher actor manages a particular
     * batch. If it doesn't exist, create a new one.
     */
-  case class GetOrCreate(batchId: Long) extends RegistryProtocol
+  case class GetOrCreate(batchId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = batchId
+  }
 
   /**
     * Used to answer the BatchChannel service which BatchDispatcher actor manages a particular
@@ -34,11 +41,12 @@ object BatchDispatcherRegistry {
   /**
     * Used by a BatchDispatcher to unregister itself from this registry
     */
-  case class Unregister(batchId: Long) extends RegistryProtocol
+  case class Unregister(batchId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = batchId
+  }
 
 }
 
-@Singleton
 class BatchDispatcherRegistry @Inject()(actorSystem: ActorSystem,
                                         dispatcherFactory: BatchDispatcher.Factory,
                                         actionHandler: BatchActionHandler,
@@ -58,7 +66,7 @@ class BatchDispatcherRegistry @Inject()(actorSystem: ActorSystem,
     }
 
   /**
-    * Contains the dispatchers that are currently registered. Maps the an ID to the ActorRef.
+    * Contains the dispatchers of this shard that are currently registered. Maps the an ID to the ActorRef.
     */
   private val dispatcherMap = mutable.HashMap[Long, ActorRef]()
 
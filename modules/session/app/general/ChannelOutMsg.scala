@@ -0,0 +1,20 @@
+package general
+
+import play.api.http.websocket.TextMessage
+import play.api.libs.json.{JsValue, Json}
+
+/**
+  * Message a dispatcher (BatchDispatcher or GroupDispatcher) sends to its channel actors. It contains the message
+  * already in the form that is sent out via the WebSocket. This way a message that is sent to many channels (e.g. a
+  * session patch) is serialised only once by the dispatcher - and not once in every channel. TextMessage is
+  * immutable and can be shared between the channel actors.
+  *
+  * @author Kristian Lange
+  */
+case class ChannelOutMsg(message: TextMessage)
+
+object ChannelOutMsg {
+
+  def apply(json: JsValue): ChannelOutMsg = new ChannelOutMsg(TextMessage(Json.stringify(json)))
+
+}
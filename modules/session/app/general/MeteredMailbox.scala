@@ -0,0 +1,43 @@
+package general
+
+import java.util.function.IntSupplier
+
+import akka.actor.{ActorRef, ActorSystem}
+import akka.dispatch.{MailboxType, MessageQueue, ProducesMessageQueue, UnboundedMailbox}
+import com.typesafe.config.Config
+import general.common.MailboxMetrics
+
+/**
+  * Unbounded mailbox that reports its number of messages to the MailboxMetrics. It's configured in application.conf
+  * as 'metered-mailbox' and can be used with Props.withMailbox.
+  *
+  * @author Kristian Lange
+  */
+class MeteredMailbox(settings: ActorSystem.Settings, config: Config)
+  extends MailboxType with ProducesMessageQueue[UnboundedMailbox.MessageQueue] {
+
+  override def create(owner: Option[ActorRef], system: Option[ActorSystem]): MessageQueue = {
+    owner match {
+      case Some(actorRef) => new MeteredMailbox.MeteredMessageQueue(actorRef.path.toStringWithoutAddress)
+      case None => new UnboundedMailbox.MessageQueue
+    }
+  }
+
+}
+
+object MeteredMailbox {
+
+  class MeteredMessageQueue(actorPath: String) extends UnboundedMailbox.MessageQueue {
+
+    MailboxMetrics.register(actorPath, new IntSupplier {
+      override def getAsInt: Int = numberOfMessages
+    })
+
+    override def cleanUp(owner: ActorRef, deadLetters: MessageQueue): Unit = {
+      MailboxMetrics.unregister(actorPath)
+      super.cleanUp(owner, deadLetters)
+    }
+
+  }
+
+}
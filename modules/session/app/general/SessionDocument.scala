@@ -0,0 +1,77 @@
+package general
+
+import com.google.common.base.Strings
+import gnieh.diffson.playJson._
+import play.api.Logger
+import play.api.libs.json.{JsValue, Json}
+
+/**
+  * In-memory session data (batch or group session) together with its version. While a dispatcher is alive its
+  * SessionDocument is the source of truth: patches are applied here and the document is written to the database only
+  * from time to time (write-behind). The persistedVersion is the version that was last written to or loaded from the
+  * database.
+  *
+  * Not thread-safe - it's meant to be owned by a single dispatcher actor.
+  *
+  * @author Kristian Lange
+  */
+class SessionDocument(var data: JsValue, var version: Long) {
+
+  var persistedVersion: Long = version
+
+  /**
+    * True if the document has changes that are not yet written to the database
+    */
+  def isDirty: Boolean = version != persistedVersion
+
+  /**
+    * Number of versions that are not yet written to the database
+    */
+  def unpersistedVersions: Long = version - persistedVersion
+
+  /**
+    * Applies the JSON patches and increases the version by 1 - but only if the given version is equal to the current
+    * one or versioning is turned off. Returns true if this was successful - otherwise false. Throws an Exception if the
+    * patches can't be applied.
+    */
+  def checkVersionAndPatch(patches: JsValue, clientsVersion: Long, versioning: Boolean): Boolean = {
+    if (versioning && version != clientsVersion) return false
+    data = SessionDocument.patch(patches, data)
+    version += 1L
+    true
+  }
+
+  override def toString: String = Json.stringify(data)
+
+}
+
+object SessionDocument {
+
+  private val logger: Logger = Logger(this.getClass)
+
+  /**
+    * Creates a SessionDocument from the session data as stored in the database
+    */
+  def apply(dataStr: String, version: Long): SessionDocument = new SessionDocument(parse(dataStr), version)
+
+  private def parse(dataStr: String): JsValue = {
+    if (Strings.isNullOrEmpty(dataStr)) return Json.obj()
+    try Json.parse(dataStr)
+    catch {
+      case e: Exception =>
+        logger.error(s".parse: invalid session data in DB - $dataStr, error: ${e.getMessage}")
+        Json.obj()
+    }
+  }
+
+  private def patch(patches: JsValue, sessionData: JsValue): JsValue = {
+    // Fix for gnieh.diffson JsonPatch for "remove" and "/" - clear all session data
+    // Assumes the 'remove' operation is in the first JSON patch
+    if ((patches \ 0 \ "op").as[String] == "remove" && (patches \ 0 \ "path").as[String] == "/") {
+      return Json.obj()
+    }
+
+    JsonPatch.apply(patches)(sessionData)
+  }
+
+}
@@ -1,16 +1,16 @@
 package group
 
-import com.google.common.base.Strings
 import daos.common.GroupResultDao
-import gnieh.diffson.playJson._
+import general.SessionDocument
 import group.GroupDispatcher.{GroupAction, GroupActionJsonKey, GroupMsg, TellWhom}
 import javax.inject.{Inject, Singleton}
-import models.common.GroupResult
 import models.common.GroupResult.GroupState
 import play.api.Logger
-import play.api.libs.json.{JsObject, JsValue, Json}
+import play.api.libs.json.{JsObject, Json}
 import play.db.jpa.JPAApi
 
+import scala.collection.JavaConverters._
+import scala.collection.mutable
 import scala.compat.java8.FunctionConverters.asJavaSupplier
 
 /**
@@ -18,6 +18,9 @@ import scala.compat.java8.FunctionConverters.asJavaSupplier
   * contains an 'action' field. It was received by an GroupDispatcher and comes from a client via
   * a GroupChannelActor.
   *
+  * Group session patches are applied to the GroupDispatcher's in-memory GroupView - loading the view from and writing
+  * the group session to the database happens separately (write-behind).
+  *
   * @author Kristian Lange (2017)
   */
 @Singleton
@@ -33,14 +36,16 @@ class GroupActionHandler @Inject()(jpa: JPAApi,
     * session, or 2) the msg to fix the group. The function returns GroupMsges that will be send
     * out to the group members.
     */
-  def handleActionMsg(msg: GroupMsg, groupResultId: Long, studyResultId: Long): List[GroupMsg] = {
-    logger.debug(s".handleActionMsg: groupResultId $groupResultId, studyResultId $studyResultId, " +
-      s"jsonNode ${Json.stringify(msg.json)}")
+  def handleActionMsg(msg: GroupMsg, groupResultId: Long, studyResultId: Long, view: GroupView): List[GroupMsg] = {
+    if (logger.isDebugEnabled) {
+      logger.debug(s".handleActionMsg: groupResultId $groupResultId, studyResultId $studyResultId, " +
+        s"jsonNode ${Json.stringify(msg.json)}")
+    }
     val actionValue = (msg.json \ GroupActionJsonKey.Action.toString).as[String]
     val action = GroupAction.withName(actionValue)
     action match {
-      case GroupAction.Session => handlePatch(msg.json, groupResultId, studyResultId)
-      case GroupAction.Fixed => handleActionFix(groupResultId);
+      case GroupAction.Session => handlePatch(msg.json, groupResultId, studyResultId, view)
+      case GroupAction.Fixed => handleActionFix(groupResultId, view);
       case _ =>
         List(msgBuilder.buildError(groupResultId, s"Unknown action $action", TellWhom.SenderOnly))
     }
@@ -49,84 +54,50 @@ class GroupActionHandler @Inject()(jpa: JPAApi,
   /**
     * Applies the patch to the group session
     */
-  private def handlePatch(json: JsObject, groupResultId: Long, studyResultId: Long): List[GroupMsg] = {
-    jpa.withTransaction(asJavaSupplier(() => {
-      val groupResult = groupResultDao.findById(groupResultId)
-      if (groupResult == null) {
-        val errorMsg = s"Couldn't find group result with ID $groupResultId in database."
-        List(msgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly))
-      }
-
-      val sessionActionId = (json \ GroupActionJsonKey.SessionActionId.toString).as[Long]
-      val clientsVersion = (json \ GroupActionJsonKey.SessionVersion.toString).as[Long]
-      val versioning = (json \ GroupActionJsonKey.SessionVersioning.toString).as[Boolean]
-      try {
-        val patches = (json \ GroupActionJsonKey.SessionPatches.toString).get
-        val patchedSessionData = patchSessionData(patches, groupResult)
+  private def handlePatch(json: JsObject, groupResultId: Long, studyResultId: Long,
+                          view: GroupView): List[GroupMsg] = {
+    val sessionActionId = (json \ GroupActionJsonKey.SessionActionId.toString).as[Long]
+    val clientsVersion = (json \ GroupActionJsonKey.SessionVersion.toString).as[Long]
+    val versioning = (json \ GroupActionJsonKey.SessionVersioning.toString).as[Boolean]
+    try {
+      val patches = (json \ GroupActionJsonKey.SessionPatches.toString).get
+      val success = view.session.checkVersionAndPatch(patches, clientsVersion, versioning)
+      if (logger.isDebugEnabled) {
         logger.debug(s".handlePatch: groupResultId $groupResultId, " +
           s"clientsVersion $clientsVersion, versioning $versioning, groupSessionPatch ${Json.stringify(patches)}, " +
-          s"updatedSessionData ${Json.stringify(patchedSessionData)}")
-
-        val success = checkVersionAndPersistSessionData(patchedSessionData, groupResult, clientsVersion, versioning)
-        if (success) {
-          val msg1 = msgBuilder.buildSessionPatch(groupResult, studyResultId, patches, TellWhom.All)
-          val msg2 = msgBuilder.buildSimple(groupResult, GroupAction.SessionAck, Some(sessionActionId), TellWhom.SenderOnly)
-          List(msg1, msg2)
-        } else {
-          List(msgBuilder.buildSimple(groupResult, GroupAction.SessionFail, Some(sessionActionId), TellWhom.SenderOnly))
-        }
-      } catch {
-        case e: Exception =>
-          logger.warn(s".handlePatch: groupResultId $groupResultId, json ${Json.stringify(json)}," +
-            s" ${e.getClass.getName}: ${e.getMessage}")
-          List(msgBuilder.buildSimple(groupResult, GroupAction.SessionFail, Some(sessionActionId), TellWhom.SenderOnly))
+          s"updatedSessionData ${view.session}")
       }
-    }))
-  }
-
-  private def patchSessionData(patches: JsValue, groupResult: GroupResult): JsValue = {
-    val currentSessionData =
-      if (!Strings.isNullOrEmpty(groupResult.getGroupSessionData))
-        Json.parse(groupResult.getGroupSessionData)
-      else Json.obj()
-
-    // Fix for gnieh.diffson JsonPatch for "remove" and "/" - clear session data
-    // Assumes the 'remove' operation is in the first JSON patch
-    if ((patches \ 0 \ "op").as[String] == "remove" && (patches \ 0 \ "path").as[String] == "/") {
-      return Json.obj()
-    }
-
-    JsonPatch.apply(patches)(currentSessionData)
-  }
 
-  /**
-    * Persists the given sessionData in the GroupResult and increases the groupSessionVersion by 1 - but only if the
-    * stored version is equal to the received one or versioning is turned off. Returns true if this was successful -
-    * otherwise false.
-    */
-  private def checkVersionAndPersistSessionData(sessionData: JsValue, groupResult: GroupResult,
-                                                version: Long,
-                                                versioning: Boolean): Boolean = {
-    if (groupResult != null && sessionData != null && (!versioning || groupResult.getGroupSessionVersion == version)) {
-      groupResult.setGroupSessionData(sessionData.toString)
-      groupResult.setGroupSessionVersion(groupResult.getGroupSessionVersion + 1L)
-      groupResultDao.update(groupResult)
-      return true
+      if (success) {
+        val msg1 = msgBuilder.buildSessionPatch(groupResultId, view, studyResultId, patches, TellWhom.All)
+        val msg2 = msgBuilder.buildSimple(groupResultId, view, GroupAction.SessionAck, Some(sessionActionId),
+          TellWhom.SenderOnly)
+        List(msg1, msg2)
+      } else {
+        List(msgBuilder.buildSimple(groupResultId, view, GroupAction.SessionFail, Some(sessionActionId),
+          TellWhom.SenderOnly))
+      }
+    } catch {
+      case e: Exception =>
+        logger.warn(s".handlePatch: groupResultId $groupResultId, json ${Json.stringify(json)}," +
+          s" ${e.getClass.getName}: ${e.getMessage}")
+        List(msgBuilder.buildSimple(groupResultId, view, GroupAction.SessionFail, Some(sessionActionId),
+          TellWhom.SenderOnly))
     }
-    false
   }
 
   /**
     * Changes state of GroupResult to FIXED and sends an update to all group
-    * members
+    * members. The group state is persisted right away since it decides whether new members can join.
     */
-  private def handleActionFix(groupResultId: Long) = {
+  private def handleActionFix(groupResultId: Long, view: GroupView) = {
     jpa.withTransaction(asJavaSupplier(() => {
       val groupResult = groupResultDao.findById(groupResultId)
       if (groupResult != null) {
         groupResult.setGroupState(GroupState.FIXED)
         groupResultDao.update(groupResult)
-        List(msgBuilder.buildSimple(groupResult, GroupAction.Fixed, None, TellWhom.SenderOnly))
+        view.groupState = GroupState.FIXED
+        List(msgBuilder.buildSimple(groupResultId, view, GroupAction.Fixed, None, TellWhom.SenderOnly))
       } else {
         val errorMsg = s"Couldn't find group result with ID $groupResultId in database."
         List(msgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly))
@@ -134,4 +105,34 @@ class GroupActionHandler @Inject()(jpa: JPAApi,
     }))
   }
 
+  /**
+    * Loads the GroupView (group state, active members, group session) of the GroupResult with the given ID from the
+    * database. Returns None if the GroupResult doesn't exist.
+    */
+  def loadView(groupResultId: Long): Option[GroupView] = {
+    jpa.withTransaction(asJavaSupplier(() => {
+      val groupResult = groupResultDao.findById(groupResultId)
+      if (groupResult == null) None
+      else {
+        val members = mutable.LinkedHashSet[Long]()
+        groupResult.getActiveMemberList.asScala.foreach(sr => members += sr.getId.longValue)
+        val session = SessionDocument(groupResult.getGroupSessionData, groupResult.getGroupSessionVersion)
+        Some(new GroupView(groupResult.getGroupState, members, session))
+      }
+    }))
+  }
+
+  /**
+    * Writes the group session to the database - but only if the stored version is still the one that was last loaded
+    * or persisted (otherwise the group session was changed outside of the group channel, e.g. in the GUI). Returns
+    * true if this was successful - otherwise false.
+    */
+  def persistSession(groupResultId: Long, session: SessionDocument): Boolean = {
+    val success = jpa.withTransaction(asJavaSupplier(() => {
+      groupResultDao.updateGroupSession(groupResultId, session.toString, session.version, session.persistedVersion)
+    }))
+    if (success) session.persistedVersion = session.version
+    success
+  }
+
 }
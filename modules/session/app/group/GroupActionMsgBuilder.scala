@@ -1,27 +1,21 @@
 package group
 
-import daos.common.GroupResultDao
 import general.ChannelRegistry
 import group.GroupDispatcher.GroupAction.GroupAction
 import group.GroupDispatcher.TellWhom.TellWhom
 import group.GroupDispatcher._
-import javax.inject.{Inject, Singleton}
-import models.common.GroupResult
+import javax.inject.Singleton
 import play.api.Logger
 import play.api.libs.json._
-import play.db.jpa.JPAApi
-
-import scala.collection.JavaConverters._
-import scala.compat.java8.FunctionConverters.asJavaSupplier
-
 
 /**
-  * Utility class that builds GroupMsgs. So it mostly handles the JSON creation.
+  * Utility class that builds GroupMsgs. So it mostly handles the JSON creation. The group data are taken from the
+  * GroupDispatcher's in-memory GroupView.
   *
   * @author Kristian Lange
   */
 @Singleton
-class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDao) {
+class GroupActionMsgBuilder {
 
   private val logger: Logger = Logger(this.getClass)
 
@@ -39,13 +33,14 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
   /**
     * Builds a simple GroupMsg with the action, group result ID, and the session version
     */
-  def buildSimple(groupResult: GroupResult, action: GroupAction, sessionActionId: Option[Long], tellWhom: TellWhom): GroupMsg = {
-    logger.debug(s".buildSimple: groupResult ${groupResult.getId}")
+  def buildSimple(groupResultId: Long, view: GroupView, action: GroupAction, sessionActionId: Option[Long],
+                  tellWhom: TellWhom): GroupMsg = {
+    logger.debug(s".buildSimple: groupResult $groupResultId")
     var json = Json.obj(
       GroupActionJsonKey.Action.toString -> action.toString,
-      GroupActionJsonKey.GroupResultId.toString -> groupResult.getId.toString,
-      GroupActionJsonKey.GroupState.toString -> groupResult.getGroupState.name,
-      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(groupResult.getGroupSessionVersion)))
+      GroupActionJsonKey.GroupResultId.toString -> groupResultId.toString,
+      GroupActionJsonKey.GroupState.toString -> view.groupState.name,
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(view.session.version)))
     if (sessionActionId.isDefined) {
       json = json + (GroupActionJsonKey.SessionActionId.toString -> JsNumber(BigDecimal(sessionActionId.get)))
     }
@@ -55,50 +50,49 @@ class GroupActionMsgBuilder @Inject()(jpa: JPAApi, groupResultDao: GroupResultDa
   /**
     * Builds a GroupMsg with or without session data but always with session version
     */
-  def build(groupResultId: Long, studyResultId: Long, registry: ChannelRegistry,
+  def build(groupResultId: Long, view: GroupView, studyResultId: Long, registry: ChannelRegistry,
             includeSessionData: Boolean, action: GroupAction, tellWhom: TellWhom): GroupMsg = {
-    // The current group data are persisted in a GroupResult entity.
-    // The GroupResult determines who is member of the group - and not the group registry.
-    jpa.withTransaction(asJavaSupplier(() => {
-      logger.debug(s".build: groupResultId $groupResultId, studyResultId $studyResultId, action " +
-        s"$action , tellWhom ${tellWhom.toString}")
-      val groupResult = groupResultDao.findById(groupResultId)
-      if (groupResult != null)
-        buildAction(groupResult, studyResultId, registry, includeSessionData, action, tellWhom)
-      else
-        buildError(groupResultId, s"Couldn't find group result with ID $groupResultId in database" +
-          s".", TellWhom.SenderOnly)
-    }))
+    logger.debug(s".build: groupResultId $groupResultId, studyResultId $studyResultId, action " +
+      s"$action , tellWhom ${tellWhom.toString}")
+    val members = JsArray(view.members.map(id => JsString(id.toString)).toSeq)
+    val channels = JsArray(registry.getAllStudyResultIds.map(id => JsString(id.toString)).toSeq)
+    var json = Json.obj(
+      GroupActionJsonKey.Action.toString -> action.toString,
+      GroupActionJsonKey.MemberId.toString -> studyResultId.toString,
+      GroupActionJsonKey.GroupResultId.toString -> groupResultId.toString,
+      GroupActionJsonKey.GroupState.toString -> view.groupState.name,
+      GroupActionJsonKey.Members.toString -> members,
+      GroupActionJsonKey.Channels.toString -> channels,
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(view.session.version)))
+    if (includeSessionData)
+      json = json + (GroupActionJsonKey.SessionData.toString -> view.session.data)
+    GroupMsg(json, tellWhom)
   }
 
   /**
-    * Builds a GroupMsg with the group session patch and version
+    * Builds a GroupMsg with the whole group session data and version
     */
-  def buildSessionPatch(groupResult: GroupResult, studyResultId: Long, patches: JsValue, tellWhom: TellWhom): GroupMsg = {
-    logger.debug(s".buildSessionPatch: groupResultId ${groupResult.getId}, studyResultId $studyResultId")
+  def buildSessionData(groupResultId: Long, view: GroupView, action: GroupAction, tellWhom: TellWhom): GroupMsg = {
+    logger.debug(s".buildSessionData: groupResultId $groupResultId, action $action")
     val json = Json.obj(
-      GroupActionJsonKey.Action.toString -> GroupAction.Session.toString,
-      GroupActionJsonKey.SessionPatches.toString -> patches,
-      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(groupResult.getGroupSessionVersion)))
+      GroupActionJsonKey.Action.toString -> action.toString,
+      GroupActionJsonKey.GroupResultId.toString -> groupResultId.toString,
+      GroupActionJsonKey.GroupState.toString -> view.groupState.name,
+      GroupActionJsonKey.SessionData.toString -> view.session.data,
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(view.session.version)))
     GroupMsg(json, tellWhom)
   }
 
-  private def buildAction(groupResult: GroupResult, studyResultId: Long, registry: ChannelRegistry,
-                          includeSessionData: Boolean, action: GroupAction, tellWhom: TellWhom): GroupMsg = {
-    val members = JsArray(
-      groupResult.getActiveMemberList.asScala.map(sr => JsString(sr.getId.toString)).toSeq
-    )
-    val channels = JsArray(registry.getAllStudyResultIds.map(id => JsString(id.toString)).toSeq)
-    var json = Json.obj(
-      GroupActionJsonKey.Action.toString -> action.toString,
-      GroupActionJsonKey.MemberId.toString -> studyResultId.toString,
-      GroupActionJsonKey.GroupResultId.toString -> groupResult.getId.toString,
-      GroupActionJsonKey.GroupState.toString -> groupResult.getGroupState.name,
-      GroupActionJsonKey.Members.toString -> members,
-      GroupActionJsonKey.Channels.toString -> channels,
-      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(groupResult.getGroupSessionVersion)))
-    if (includeSessionData)
-      json = json + (GroupActionJsonKey.SessionData.toString -> Json.parse(groupResult.getGroupSessionData))
+  /**
+    * Builds a GroupMsg with the group session patch and version
+    */
+  def buildSessionPatch(groupResultId: Long, view: GroupView, studyResultId: Long, patches: JsValue,
+                        tellWhom: TellWhom): GroupMsg = {
+    logger.debug(s".buildSessionPatch: groupResultId $groupResultId, studyResultId $studyResultId")
+    val json = Json.obj(
+      GroupActionJsonKey.Action.toString -> GroupAction.Session.toString,
+      GroupActionJsonKey.SessionPatches.toString -> patches,
+      GroupActionJsonKey.SessionVersion.toString -> JsNumber(BigDecimal(view.session.version)))
     GroupMsg(json, tellWhom)
   }
 
@@ -4,12 +4,14 @@ import java.sql.Timestamp
 import java.util.Date
 
 import daos.common.{GroupResultDao, StudyResultDao}
+import general.common.GroupMatchmaker
+import general.common.GroupMatchmaker.OpenGroups
 import javax.inject.{Inject, Singleton}
 import models.common.GroupResult.GroupState
 import models.common.{Batch, GroupResult, StudyResult}
 import play.db.jpa.JPAApi
 
-import scala.collection.JavaConverters._
+import scala.annotation.tailrec
 import scala.compat.java8.FunctionConverters.asJavaSupplier
 
 /**
@@ -19,25 +21,32 @@ import scala.compat.java8.FunctionConverters.asJavaSupplier
   * All group members exchange messages via WebSockets that are called group channels in JATOS. The message dispatching
   * system is implemented with Akka.
   *
+  * Open groups are found with the GroupMatchmaker's in-memory index instead of a locking query over all GroupResults
+  * of the batch. All group assignments of a batch (join, reassign, leave) have to be serialized by the caller with the
+  * batch's lock (BatchLocks) - assignments in different batches don't block each other. The batch's OpenGroups are only
+  * used while holding this lock.
+  *
   * @author Kristian Lange (2015 - 2019)
   */
 @Singleton
 class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
                                     groupResultDao: GroupResultDao,
+                                    groupMatchmaker: GroupMatchmaker,
                                     jpa: JPAApi) {
 
   /**
     * Joins the a GroupResult or create a new one. Persists changes.
     *
-    * Looks in the database whether we have an incomplete GroupResult (state STARTED, maxActiveMember not reached,
-    * maxTotalMembers not reached). If there is none, create a new GroupResult.
+    * Looks in the open groups of the batch whether we have an incomplete GroupResult (state STARTED, maxActiveMember
+    * not reached, maxTotalMembers not reached). If there is none, create a new GroupResult.
+    *
+    * Has to be called while holding the batch's lock.
     */
   def join(studyResult: StudyResult, batch: Batch): GroupResult = {
+    val openGroups = groupMatchmaker.get(batch.getId)
     jpa.withTransaction(asJavaSupplier(() => {
-      val allGroupMaxNotReached = groupResultDao.findAllMaxNotReached(batch)
-      val groupMaxNotReached =
-        if (allGroupMaxNotReached.isEmpty) groupResultDao.create(new GroupResult(batch))
-        else allGroupMaxNotReached.get(0)
+      val groupMaxNotReached = findGroupMaxNotReached(openGroups, batch, null)
+          .getOrElse(groupResultDao.create(new GroupResult(batch)))
 
       groupMaxNotReached.addActiveMember(studyResult)
       studyResult.setActiveGroupResult(groupMaxNotReached)
@@ -49,6 +58,8 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
 
   /**
     * Leaves the group that this studyResult is member of. Moves the given StudyResult in its group result into history.
+    *
+    * Has to be called while holding the batch's lock.
     */
   def leave(studyResult: StudyResult): Unit = {
     val groupResult = studyResult.getActiveGroupResult
@@ -77,8 +88,10 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
   /**
     * Reassigns this StudyResult to a different GroupResult if possible.
     *
-    * Looks in the database whether we have other incomplete GroupResult. If there are more than one, it returns the
-    * one with the most active members. If there is no other GroupResult it returns an error msg.
+    * Looks in the open groups of the batch whether we have other incomplete GroupResult. If there are more than one,
+    * it returns the one with the most active members. If there is no other GroupResult it returns an error msg.
+    *
+    * Has to be called while holding the batch's lock.
     *
     * @return Either with String if error or a GroupResult if success
     */
@@ -88,32 +101,55 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
       return Left(s"The study result with ID ${studyResult.getId} isn't member in any group.")
     }
 
+    val openGroups = groupMatchmaker.get(batch.getId)
     // We need this transaction here because later on in the GroupDispatcher the updated data are needed
     val differentGroupResult = jpa.withTransaction(asJavaSupplier(() => {
-      val allGroupMaxNotReached = groupResultDao.findAllMaxNotReached(batch).asScala
       // Don't reassign to the same group again
-      allGroupMaxNotReached -= currentGroupResult
-      if (allGroupMaxNotReached.isEmpty) {
+      val differentGroupResult = findGroupMaxNotReached(openGroups, batch, currentGroupResult.getId)
+      if (differentGroupResult.isEmpty) {
         // No other possible group result found
         return Left(s"Couldn't reassign the study result with ID ${studyResult.getId} to any other group.")
       }
 
       // Found a possible group: put into active members of new group - do not put into history members of old group
-      val differentGroupResult = allGroupMaxNotReached.head
       currentGroupResult.removeActiveMember(studyResult)
-      differentGroupResult.addActiveMember(studyResult)
-      studyResult.setActiveGroupResult(differentGroupResult)
+      differentGroupResult.get.addActiveMember(studyResult)
+      studyResult.setActiveGroupResult(differentGroupResult.get)
 
       groupResultDao.update(currentGroupResult)
-      groupResultDao.update(differentGroupResult)
+      groupResultDao.update(differentGroupResult.get)
       studyResultDao.update(studyResult)
-      differentGroupResult
+      differentGroupResult.get
     }))
 
     checkAndFinishGroup(currentGroupResult)
     Right(differentGroupResult)
   }
 
+  /**
+    * Finds the first group in the batch's open groups that hasn't reached maxActiveMembers and maxTotalMembers. The
+    * index is loaded from the database if this is the first group assignment in this batch. Since the index might be
+    * outdated (e.g. a rolled back transaction) the picked group is checked against the database - if it differs the
+    * index is corrected and the search starts again.
+    *
+    * Has to be called while holding the batch's lock and within a transaction.
+    */
+  @tailrec
+  private def findGroupMaxNotReached(openGroups: OpenGroups, batch: Batch,
+                                     excludedId: java.lang.Long): Option[GroupResult] = {
+    if (!openGroups.isLoaded) openGroups.load(groupResultDao.findAllStartedByBatch(batch))
+
+    val candidateId = openGroups.findFirstMaxNotReached(batch, excludedId)
+    if (!candidateId.isPresent) return None
+
+    val candidate = groupResultDao.findById(candidateId.get)
+    if (candidate != null && openGroups.isUpToDate(candidate)) return Some(candidate)
+
+    if (candidate == null) openGroups.remove(candidateId.get)
+    else openGroups.update(candidate)
+    findGroupMaxNotReached(openGroups, batch, excludedId)
+  }
+
   /**
     * Checks if a GroupResult should be put in state FINISHED and does it. A group is finished if it has no
     * more active members and the max number of members is reached.
@@ -131,9 +167,9 @@ class GroupAdministration @Inject()(studyResultDao: StudyResultDao,
     jpa.withTransaction(asJavaSupplier(() => {
       groupResult.setGroupState(GroupState.FINISHED)
       groupResult.setEndDate(new Timestamp(new Date().getTime))
-      // All session data are temporarily and have to be deleted when the group is finished
-      groupResult.setGroupSessionData(null)
       groupResultDao.update(groupResult)
+      // All session data are temporarily and have to be deleted when the group is finished
+      groupResultDao.removeGroupSessionData(groupResult)
     }))
   }
 
@@ -2,7 +2,9 @@ package group
 
 import javax.inject.Inject
 import akka.actor.{Actor, ActorRef, PoisonPill, Props}
+import general.ChannelOutMsg
 import group.GroupDispatcher._
+import play.api.http.websocket.TextMessage
 import play.api.libs.json.{JsObject, Json}
 
 /**
@@ -26,14 +28,14 @@ import play.api.libs.json.{JsObject, Json}
 object GroupChannelActor {
   def props(out: ActorRef, studyResultId: Long, groupDispatcher: ActorRef): Props =
     Props(new GroupChannelActor(out, studyResultId, groupDispatcher))
+
+  private val Pong: TextMessage = ChannelOutMsg(Json.obj("heartbeat" -> "pong")).message
 }
 
 class GroupChannelActor @Inject()(out: ActorRef,
                                   studyResultId: Long,
                                   var groupDispatcher: ActorRef) extends Actor {
 
-  val pong = Json.obj("heartbeat" -> "pong")
-
   override def preStart() = groupDispatcher ! RegisterChannel(studyResultId)
 
   override def postStop() = groupDispatcher ! UnregisterChannel(studyResultId)
@@ -41,15 +43,15 @@ class GroupChannelActor @Inject()(out: ActorRef,
   def receive = {
     case msg: JsObject if msg.keys.contains("heartbeat") =>
       // If we receive a heartbeat ping, answer directly with a pong
-      out ! pong
+      out ! GroupChannelActor.Pong
     case json: JsObject =>
       // If we receive a JsonNode (only from the client) wrap it in a GroupMsg and forward it to
       // the GroupDispatcher
       groupDispatcher ! GroupMsg(json)
-    case msg: GroupMsg =>
-      // If we receive a GroupMsg (only from the GroupDispatcher) send the wrapped JsonNode to
-      // the client
-      out ! msg.json
+    case msg: ChannelOutMsg =>
+      // If we receive a ChannelOutMsg (only from the GroupDispatcher) send the already serialised
+      // message to the client
+      out ! msg.message
     case rc: ReassignChannel =>
       // This group channel has to reassign to a different dispatcher
       groupDispatcher ! UnregisterChannel(studyResultId)
@@ -1,16 +1,22 @@
 package group
 
-import akka.actor.{Actor, ActorRef, PoisonPill}
+import java.util.concurrent.TimeUnit
+
+import akka.actor.{Actor, ActorRef, PoisonPill, Timers}
 import com.google.inject.assistedinject.Assisted
-import general.ChannelRegistry
+import general.{ChannelOutMsg, ChannelRegistry}
+import general.common.Common
 import group.GroupDispatcher.TellWhom.TellWhom
 import group.GroupDispatcher._
 import group.GroupDispatcherRegistry.Unregister
 import javax.inject.Inject
+import models.common.GroupResult.GroupState
 import play.api.Logger
 import play.api.libs.json.Reads._
 import play.api.libs.json.{JsObject, Json}
 
+import scala.concurrent.duration.FiniteDuration
+
 /**
   * A GroupDispatcher is an Akka Actor responsible for distributing messages (GroupMsg) within a
   * group. Thus it is the central class handling a group.
@@ -37,6 +43,13 @@ import play.api.libs.json.{JsObject, Json}
   * The group session patches are JSON Patches after RFC 6902 and used to describe changes in the
   * group session data. The session data are stored in the GroupResult.
   *
+  * While a GroupDispatcher is alive it keeps an in-memory GroupView of its GroupResult (group state, members, group
+  * session) and builds all group action messages from it. Patches are applied to the in-memory group session which is
+  * written to the database periodically (if it changed), after a certain number of versions, and when the
+  * dispatcher stops. With the same period the group state and the members are refreshed from the database and, if
+  * the group session was changed outside of the group channel (e.g. in the GUI), it's reloaded and sent to all
+  * members.
+  *
   * @author Kristian Lange (2015, 2017)
   */
 object GroupDispatcher {
@@ -85,6 +98,12 @@ object GroupDispatcher {
     */
   case class PoisonChannel(studyResultId: Long)
 
+  /**
+    * Message a GroupDispatcher sends itself periodically to write the group session to the database and refresh its
+    * GroupView
+    */
+  case object FlushSession
+
 
   object TellWhom extends Enumeration {
     type TellWhom = Value
@@ -100,6 +119,7 @@ object GroupDispatcher {
     val Session = Value("SESSION") // Signals this message contains a group session update
     val SessionAck = Value("SESSION_ACK") // Signals that the session update was successful
     val SessionFail = Value("SESSION_FAIL") // Signals that the session update failed
+    val SessionReloaded = Value("SESSION_RELOADED") // Signals that the session was changed outside the group channel
     val Fixed = Value("FIXED") // Signals that this group is now fixed (no new members)
     val Error = Value("ERROR") // Used to send an error back to the sender
   }
@@ -152,13 +172,26 @@ object GroupDispatcher {
 class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
                                 @Assisted actionHandler: GroupActionHandler,
                                 @Assisted actionMsgBuilder: GroupActionMsgBuilder,
-                                @Assisted groupResultId: Long) extends Actor {
+                                @Assisted groupResultId: Long) extends Actor with Timers {
 
   private val logger: Logger = Logger(this.getClass)
 
   private val channelRegistry = new ChannelRegistry
 
-  override def postStop() = dispatcherRegistry ! Unregister(groupResultId)
+  /**
+    * In-memory view of the GroupResult - loaded from the database with the first message that needs it
+    */
+  private var view: Option[GroupView] = None
+
+  override def preStart(): Unit = {
+    val interval = FiniteDuration(Common.getChannelSessionFlushInterval.toMillis, TimeUnit.MILLISECONDS)
+    timers.startPeriodicTimer(FlushSession, FlushSession, interval)
+  }
+
+  override def postStop() = {
+    flushSession(refresh = false)
+    dispatcherRegistry ! Unregister(groupResultId)
+  }
 
   def receive = {
     case groupMsg: GroupMsg =>
@@ -182,6 +215,9 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     case p: PoisonChannel =>
       // Comes from GroupChannel service: close a group channel
       poisonChannel(p)
+    case FlushSession =>
+      // Write the group session to the database and refresh the view
+      flushSession(refresh = true)
   }
 
   /**
@@ -190,14 +226,22 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     * broadcast msg to everyone in the group.
     */
   private def handleGroupMsg(msg: GroupMsg) = {
-    logger.debug(s".handleGroupMsg: groupResultId $groupResultId, groupMsg " +
-        s"${Json.stringify(msg.json)}")
+    if (logger.isDebugEnabled) {
+      logger.debug(s".handleGroupMsg: groupResultId $groupResultId, groupMsg " +
+          s"${Json.stringify(msg.json)}")
+    }
 
     if (msg.json.keys.contains(GroupActionJsonKey.Action.toString)) {
       // We have a group action message
       val studyResultId = channelRegistry.getStudyResult(sender).get
-      val msgList = actionHandler.handleActionMsg(msg, groupResultId, studyResultId)
-      tellActionMsg(msgList)
+      getView match {
+        case Some(v) =>
+          tellActionMsg(actionHandler.handleActionMsg(msg, groupResultId, studyResultId, v))
+          if (v.session.unpersistedVersions >= Common.getChannelSessionFlushAfterVersions) {
+            flushSession(refresh = false)
+          }
+        case None => tellActionMsg(List(buildGroupResultNotFoundError()))
+      }
 
     } else if (msg.json.keys.contains(GroupActionJsonKey.Recipient.toString)) {
       // We have a message intended for only one recipient (direct msg)
@@ -219,11 +263,15 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   private def registerChannel(studyResultId: Long) = {
     logger.debug(s".registerChannel: groupResultId $groupResultId, studyResultId $studyResultId")
     channelRegistry.register(studyResultId, sender)
-    val msg1 = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, true, GroupAction.Opened, TellWhom.SenderOnly)
-    val msg2 = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, false, GroupAction.Opened, TellWhom.AllButSender)
-    tellActionMsg(List(msg1, msg2))
+    getView match {
+      case Some(v) =>
+        val msg1 = actionMsgBuilder.build(groupResultId, v, studyResultId,
+          channelRegistry, true, GroupAction.Opened, TellWhom.SenderOnly)
+        val msg2 = actionMsgBuilder.build(groupResultId, v, studyResultId,
+          channelRegistry, false, GroupAction.Opened, TellWhom.AllButSender)
+        tellActionMsg(List(msg1, msg2))
+      case None => tellActionMsg(List(buildGroupResultNotFoundError()))
+    }
   }
 
   /**
@@ -238,9 +286,8 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     if (channelRegistry.containsStudyResult(studyResultId)
         && channelRegistry.getChannel(studyResultId).get == sender) {
       channelRegistry.unregister(studyResultId)
-      val msg = actionMsgBuilder.build(groupResultId, studyResultId,
-        channelRegistry, false, GroupAction.Closed, TellWhom.AllButSender)
-      tellActionMsg(List(msg))
+      getView.foreach(v => tellActionMsg(List(actionMsgBuilder.build(groupResultId, v, studyResultId,
+        channelRegistry, false, GroupAction.Closed, TellWhom.AllButSender))))
     }
 
     // Tell this dispatcher to kill itself if it has no more members
@@ -288,9 +335,11 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def joined(studyResultId: Long) {
     logger.debug(s".joined: groupResultId $groupResultId studyResultId $studyResultId")
-    val msg = actionMsgBuilder.build(groupResultId, studyResultId,
-      channelRegistry, false, GroupAction.Joined, TellWhom.AllButSender)
-    tellAllButSender(msg)
+    getView.foreach(v => {
+      v.members += studyResultId
+      tellAllButSender(actionMsgBuilder.build(groupResultId, v, studyResultId,
+        channelRegistry, false, GroupAction.Joined, TellWhom.AllButSender))
+    })
   }
 
   /**
@@ -299,21 +348,75 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
     */
   private def left(studyResultId: Long) = {
     logger.debug(s".left: groupResultId $groupResultId, studyResultId $studyResultId")
-    val msg = actionMsgBuilder.build(groupResultId, studyResultId, channelRegistry, false,
-      GroupAction.Left, TellWhom.AllButSender)
-    tellAllButSender(msg)
+    getView.foreach(v => {
+      v.members -= studyResultId
+      tellAllButSender(actionMsgBuilder.build(groupResultId, v, studyResultId, channelRegistry, false,
+        GroupAction.Left, TellWhom.AllButSender))
+    })
+  }
+
+  private def getView: Option[GroupView] = {
+    if (view.isEmpty) view = actionHandler.loadView(groupResultId)
+    view
+  }
+
+  private def buildGroupResultNotFoundError() = actionMsgBuilder.buildError(groupResultId,
+    s"Couldn't find group result with ID $groupResultId in database.", TellWhom.SenderOnly)
+
+  /**
+    * Writes the in-memory group session to the database if it changed since the last time. If refresh is true the
+    * group state and members are reloaded from the database afterwards. If the group session in the database was
+    * changed meanwhile by someone else (e.g. in the GUI) the session is reloaded from the database and sent to all
+    * members - the in-memory changes since the last flush are lost in this case.
+    *
+    * The group session of a FINISHED group isn't written any more (it was deleted when the group was finished): the
+    * in-memory changes are dropped and the periodic flush is stopped.
+    */
+  private def flushSession(refresh: Boolean): Unit = {
+    if (view.isEmpty) return
+    try {
+      val v = view.get
+      val persisted = !v.session.isDirty ||
+          (v.groupState != GroupState.FINISHED && actionHandler.persistSession(groupResultId, v.session))
+      if (refresh || !persisted) refreshView(v)
+    } catch {
+      case e: Exception =>
+        logger.error(s".flushSession: couldn't write group session of group result $groupResultId", e)
+    }
+  }
+
+  private def refreshView(current: GroupView): Unit = {
+    view = actionHandler.loadView(groupResultId)
+    if (view.isEmpty) return
+
+    val v = view.get
+    if (v.groupState == GroupState.FINISHED) {
+      // Keep the session from the database: a FINISHED group's session can't be written and mustn't stay dirty
+      if (current.session.isDirty) {
+        logger.info(s".refreshView: dropped unpersisted group session of finished group result $groupResultId")
+      }
+      timers.cancel(FlushSession)
+    } else if (v.session.version == current.session.persistedVersion) {
+      // Session wasn't changed by someone else: keep the in-memory one (might have patches since the flush)
+      v.session = current.session
+    } else {
+      logger.info(s".refreshView: group session of group result $groupResultId was changed outside of the group " +
+        s"channel")
+      tellAll(actionMsgBuilder.buildSessionData(groupResultId, v, GroupAction.SessionReloaded, TellWhom.All))
+    }
   }
 
   /**
     * Sends the message only to the recipient specified by the given study result ID.
     */
   private def tellRecipientOnly(msg: GroupMsg, recipientStudyResultId: Long) {
-    logger.debug(s".tellRecipientOnly: groupResultId $groupResultId, recipientStudyResultId " +
-        s"$recipientStudyResultId, msg ${Json.stringify(msg.json)}")
     val groupChannel = channelRegistry.getChannel(recipientStudyResultId)
-    if (groupChannel.isDefined)
-      groupChannel.get ! msg
-    else {
+    if (groupChannel.isDefined) {
+      val outMsg = ChannelOutMsg(msg.json)
+      logger.debug(s".tellRecipientOnly: groupResultId $groupResultId, recipientStudyResultId " +
+          s"$recipientStudyResultId, msg ${outMsg.message.data}")
+      groupChannel.get ! outMsg
+    } else {
       val errorMsg = s"Recipient $recipientStudyResultId isn't member of this group."
       logger.debug(s".tellRecipientOnly: groupResultId $groupResultId, errorMsg $errorMsg")
       val groupMsg = actionMsgBuilder.buildError(groupResultId, errorMsg, TellWhom.SenderOnly)
@@ -333,30 +436,35 @@ class GroupDispatcher @Inject()(@Assisted dispatcherRegistry: ActorRef,
   }
 
   /**
-    * Sends the message to everyone in channelRegistry.
+    * Sends the message to everyone in channelRegistry. The message is serialised only once and the same
+    * ChannelOutMsg is sent to all channels.
     */
   private def tellAll(msg: GroupMsg) = {
-    logger.debug(s".tellAll: groupResultId $groupResultId, msg ${Json.stringify(msg.json)}")
+    val outMsg = ChannelOutMsg(msg.json)
+    logger.debug(s".tellAll: groupResultId $groupResultId, msg ${outMsg.message.data}")
     for (actorRef <- channelRegistry.getAllChannels)
-      actorRef ! msg
+      actorRef ! outMsg
   }
 
   /**
-    * Sends the message to everyone in the group registry except the sender of this message.
+    * Sends the message to everyone in the group registry except the sender of this message. The message is
+    * serialised only once.
     */
   private def tellAllButSender(msg: GroupMsg) = {
+    val outMsg = ChannelOutMsg(msg.json)
     logger.debug(s".tellAllButSender: groupResultId $groupResultId, " +
-        s"msg ${Json.stringify(msg.json)}")
+        s"msg ${outMsg.message.data}")
     for (actorRef <- channelRegistry.getAllChannels)
-      if (actorRef != sender) actorRef ! msg
+      if (actorRef != sender) actorRef ! outMsg
   }
 
   /**
     * Sends the message only to the sender.
     */
   private def tellSenderOnly(msg: GroupMsg) = {
-    logger.debug(s".tellSenderOnly: groupResultId $groupResultId, msg ${Json.stringify(msg.json)}")
-    sender ! msg
+    val outMsg = ChannelOutMsg(msg.json)
+    logger.debug(s".tellSenderOnly: groupResultId $groupResultId, msg ${outMsg.message.data}")
+    sender ! outMsg
   }
 
   /**
@@ -2,8 +2,9 @@ package group
 
 import akka.actor.SupervisorStrategy.Resume
 import akka.actor.{Actor, ActorRef, ActorSystem, OneForOneStrategy}
+import akka.routing.ConsistentHashingRouter.ConsistentHashable
 import group.GroupDispatcherRegistry.{Get, GetOrCreate, ItsThisOne, Unregister}
-import javax.inject.{Inject, Singleton}
+import javax.inject.Inject
 import play.api.Logger
 import play.api.libs.concurrent.InjectedActorSupport
 
@@ -15,6 +16,10 @@ import scala.language.postfixOps
   * A GroupDispatcherRegistry is an Akka Actor keeps track of all
   * GroupDispatchers Actors.
   *
+  * The registry is sharded: it runs as a consistent-hashing pool (configured in akka.actor.deployment) and each shard
+  * keeps track of the GroupDispatchers of a part of the group result IDs. Therefore all messages sent to the registry
+  * have to be ConsistentHashable by the group result ID.
+  *
   * @author Kristian Lange (2015, 2017)
   */
 object GroupDispatcherRegistry {
@@ -25,13 +30,17 @@ object GroupDispatcherRegistry {
     * Used by the GroupChannel service to ask which GroupDispatcher actor manages a particular
     * group (specified by the group result ID).
     */
-  case class Get(groupResultId: Long) extends RegistryProtocol
+  case class Get(groupResultId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = groupResultId
+  }
 
   /**
     * Used by the GroupChannel service to ask which GroupDispatcher actor manages a particular
     * group (specified by the group result ID). If it doesn't exist, create a new one.
     */
-  case class GetOrCreate(groupResultId: Long) extends RegistryProtocol
+  case class GetOrCreate(groupResultId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = groupResultId
+  }
 
   /**
     * Used to answer the GroupChannel service which GroupDispatcher manages a particular group.
@@ -41,11 +50,12 @@ object GroupDispatcherRegistry {
   /**
     * Used by a GroupDispatcher to unregister itself from this registry
     */
-  case class Unregister(groupResultId: Long) extends RegistryProtocol
+  case class Unregister(groupResultId: Long) extends RegistryProtocol with ConsistentHashable {
+    override def consistentHashKey: Any = groupResultId
+  }
 
 }
 
-@Singleton
 class GroupDispatcherRegistry @Inject()(actorSystem: ActorSystem,
                                         dispatcherFactory: GroupDispatcher.Factory,
                                         actionHandler: GroupActionHandler,
@@ -65,7 +75,7 @@ class GroupDispatcherRegistry @Inject()(actorSystem: ActorSystem,
     }
 
   /**
-    * Contains the dispatchers that are currently registered. Maps the an ID to the ActorRef.
+    * Contains the dispatchers of this shard that are currently registered. Maps the an ID to the ActorRef.
     */
   private val dispatcherMap = mutable.HashMap[Long, ActorRef]()
 
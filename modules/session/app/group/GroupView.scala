@@ -0,0 +1,21 @@
+package group
+
+import general.SessionDocument
+import models.common.GroupResult.GroupState
+
+import scala.collection.mutable
+
+/**
+  * In-memory view of a GroupResult that is owned by the GroupDispatcher: the group state, the active members
+  * (identified by their study result IDs), and the group session. The group session is changed only here and written
+  * to the database from time to time (write-behind). The group state and the members are persisted by the
+  * GroupAdministration - the view is updated by the JoinedGroup and LeftGroup messages and refreshed periodically from
+  * the database.
+  *
+  * Not thread-safe - it's meant to be owned by a single GroupDispatcher.
+  *
+  * @author Kristian Lange
+  */
+class GroupView(var groupState: GroupState,
+                val members: mutable.LinkedHashSet[Long],
+                var session: SessionDocument)
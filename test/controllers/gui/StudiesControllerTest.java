@@ -1,5 +1,6 @@
 package controllers.gui;
 
+import akka.stream.Materializer;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Guice;
@@ -7,8 +8,10 @@ import com.google.inject.Injector;
 import daos.common.StudyDao;
 import general.TestHelper;
 import general.common.MessagesStrings;
+import general.common.StudyLogger;
 import models.common.Study;
 import models.common.User;
+import models.common.workers.Worker;
 import models.gui.StudyProperties;
 import org.junit.After;
 import org.junit.Before;
@@ -30,6 +33,7 @@ import utils.common.JsonUtils;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -64,6 +68,12 @@ public class StudiesControllerTest {
     @Inject
     private IOUtils ioUtils;
 
+    @Inject
+    private StudyLogger studyLogger;
+
+    @Inject
+    private Materializer materializer;
+
     @Before
     public void startApp() throws Exception {
         fakeApplication = Helpers.fakeApplication();
@@ -612,13 +622,72 @@ public class StudiesControllerTest {
                 .method("GET")
                 .session(session)
                 .remoteAddress(TestHelper.WWW_EXAMPLE_COM)
-                .uri(controllers.gui.routes.Studies.studyLog(study.getId(), 100, false).url());
+                .uri(controllers.gui.routes.Studies.studyLog(study.getId(), 100, false, null, null, null, null).url());
         Result result = route(fakeApplication, request);
 
         assertThat(result.status()).isEqualTo(OK);
         assertThat(result.body()).isNotNull();
     }
 
+    /**
+     * Tests Studies.studyLog() with the filter parameters from, to, workerId and type
+     */
+    @Test
+    public void callStudyLogFiltered() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Worker worker = testHelper.getAdmin().getWorker();
+        studyLogger.log(study, "Started study run with Jatos worker", worker);
+        studyLogger.log(study, testHelper.getAdmin(), "bla bla bla");
+        studyLogger.log(study, "Finished study run", worker);
+        studyLogger.flush();
+        long now = Instant.now().toEpochMilli();
+
+        // Filter by worker and type: newest first
+        JsonNode entries = getStudyLog(study, null, null, worker.getId(), "study_run");
+        assertThat(entries.size()).isEqualTo(2);
+        assertThat(entries.get(0).get("msg").asText()).startsWith("Finished study run");
+        assertThat(entries.get(1).get("msg").asText()).startsWith("Started study run");
+
+        // Several types (case insensitive)
+        entries = getStudyLog(study, null, null, null, "STUDY_RUN, other");
+        assertThat(entries.size()).isEqualTo(getStudyLog(study, null, null, null, null).size());
+
+        // Filter by time range
+        entries = getStudyLog(study, 0L, now, null, null);
+        assertThat(entries.size()).isEqualTo(getStudyLog(study, null, null, null, null).size());
+        assertThat(getStudyLog(study, now + 1, null, null, null).size()).isEqualTo(0);
+        assertThat(getStudyLog(study, null, 0L, null, null).size()).isEqualTo(0);
+    }
+
+    /**
+     * Tests Studies.studyLog() with an unknown entry type
+     */
+    @Test
+    public void callStudyLogUnknownType() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Http.Session session = testHelper.mockSessionCookieandCache(testHelper.getAdmin());
+
+        RequestBuilder request = new RequestBuilder()
+                .method("GET")
+                .session(session)
+                .remoteAddress(TestHelper.WWW_EXAMPLE_COM)
+                .uri(controllers.gui.routes.Studies.studyLog(study.getId(), -1, false, null, null, null, "foo").url());
+        testHelper.assertJatosGuiException(request, Http.Status.BAD_REQUEST, "Unknown study log entry type foo");
+    }
+
+    private JsonNode getStudyLog(Study study, Long from, Long to, Long workerId, String type) {
+        Http.Session session = testHelper.mockSessionCookieandCache(testHelper.getAdmin());
+        RequestBuilder request = new RequestBuilder()
+                .method("GET")
+                .session(session)
+                .remoteAddress(TestHelper.WWW_EXAMPLE_COM)
+                .uri(controllers.gui.routes.Studies.studyLog(study.getId(), -1, false, from, to, workerId, type)
+                        .url());
+        Result result = route(fakeApplication, request);
+        assertThat(result.status()).isEqualTo(OK);
+        return Json.parse(contentAsString(result, materializer));
+    }
+
     /**
      * Tests Studies.studyLog()
      */
@@ -631,7 +700,7 @@ public class StudiesControllerTest {
                 .method("GET")
                 .session(session)
                 .remoteAddress(TestHelper.WWW_EXAMPLE_COM)
-                .uri(controllers.gui.routes.Studies.studyLog(study.getId(), -1, true).url());
+                .uri(controllers.gui.routes.Studies.studyLog(study.getId(), -1, true, null, null, null, null).url());
         Result result = route(fakeApplication, request);
 
         assertThat(result.status()).isEqualTo(OK);
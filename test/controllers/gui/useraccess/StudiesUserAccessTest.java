@@ -187,7 +187,7 @@ public class StudiesUserAccessTest {
     @Test
     public void callStudyLog() {
         Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
-        Call call = routes.Studies.studyLog(study.getId(), 100, false);
+        Call call = routes.Studies.studyLog(study.getId(), 100, false, null, null, null, null);
         userAccessTestHelpers.checkDeniedAccessAndRedirectToLogin(call);
         userAccessTestHelpers.checkNotTheRightUserForStudy(call, study.getId(), Helpers.GET);
         userAccessTestHelpers.checkAccessGranted(call, Helpers.GET, testHelper.getAdmin());
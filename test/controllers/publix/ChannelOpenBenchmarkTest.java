@@ -0,0 +1,159 @@
+package controllers.publix;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.scaladsl.Flow;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import general.TestHelper;
+import general.common.MailboxMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.Logger;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import scala.compat.java8.FutureConverters;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Benchmark for the opening of batch and group channels: opens 5000 channels (getting or creating the dispatcher,
+ * closing an old channel of the same study run and materializing the channel's Flow like a WebSocket would). All
+ * opens are issued by one thread: since the open path doesn't block they are all in flight at the same time. A channel
+ * counts as open when it received its first message from its dispatcher (sent when the channel registered).
+ *
+ * @author Kristian Lange
+ */
+public class ChannelOpenBenchmarkTest {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ChannelOpenBenchmarkTest.class);
+
+    private static final int CHANNELS = 5000;
+
+    private static final int DISPATCHERS = 50;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JatosBatchChannel batchChannel;
+
+    @Inject
+    private JatosGroupChannel groupChannel;
+
+    @Inject
+    private Materializer materializer;
+
+    /**
+     * Completing one of these closes its channel (the WebSocket's client side)
+     */
+    private final ConcurrentLinkedQueue<CompletableFuture<Optional<Object>>> channelClosers =
+            new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        Injector injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        channelClosers.forEach(closer -> closer.complete(Optional.empty()));
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void checkOpenBatchChannelsConcurrently() throws Exception {
+        long millis = openConcurrently(i -> FutureConverters.toJava(batchChannel.openChannel(i % DISPATCHERS, i))
+                .thenApply(ChannelOpenBenchmarkTest::asChannelFlow));
+        LOGGER.info("Opened " + CHANNELS + " batch channels in " + millis + " ms");
+    }
+
+    @Test
+    public void checkOpenGroupChannelsConcurrently() throws Exception {
+        long millis = openConcurrently(i -> FutureConverters.toJava(groupChannel.openChannel(i % DISPATCHERS, i))
+                .thenApply(ChannelOpenBenchmarkTest::asChannelFlow));
+        LOGGER.info("Opened " + CHANNELS + " group channels in " + millis + " ms");
+    }
+
+    @Test
+    public void checkRegistryShardsAreMetered() throws Exception {
+        FutureConverters.toJava(batchChannel.openChannel(1L, 1L)).toCompletableFuture().get(1, TimeUnit.MINUTES);
+        FutureConverters.toJava(groupChannel.openChannel(1L, 1L)).toCompletableFuture().get(1, TimeUnit.MINUTES);
+
+        Map<String, Integer> depths = MailboxMetrics.getMailboxDepths();
+        assertThat(depths.keySet().stream()
+                .filter(path -> path.startsWith("/user/batch-dispatcher-registry-actor/")).count()).isGreaterThan(1);
+        assertThat(depths.keySet().stream()
+                .filter(path -> path.startsWith("/user/group-dispatcher-registry-actor/")).count()).isGreaterThan(1);
+    }
+
+    /**
+     * Issues CHANNELS opens from the calling thread, materializes every opened channel and waits until all of them
+     * received their first message. Returns the duration in ms.
+     */
+    private long openConcurrently(LongFunction<CompletionStage<Flow<Object, Object, ?>>> open) throws Exception {
+        long start = System.nanoTime();
+        List<CompletableFuture<Object>> firstMessages = new ArrayList<>();
+        int openedWhileIssuing = 0;
+        for (long i = 1; i <= CHANNELS; i++) {
+            CompletableFuture<Flow<Object, Object, ?>> opening = open.apply(i).toCompletableFuture();
+            if (opening.isDone()) openedWhileIssuing++;
+            firstMessages.add(opening.thenCompose(this::materialize).toCompletableFuture());
+        }
+        // A blocking open would only return already opened channels
+        assertThat(openedWhileIssuing).isLessThan(CHANNELS);
+
+        CompletableFuture.allOf(firstMessages.toArray(new CompletableFuture[0])).get(1, TimeUnit.MINUTES);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        for (CompletableFuture<Object> firstMessage : firstMessages) {
+            assertThat(firstMessage.isCompletedExceptionally()).isFalse();
+            assertThat(firstMessage.get()).isNotNull();
+        }
+        return millis;
+    }
+
+    /**
+     * Runs the channel's Flow like a WebSocket would (the client side stays open until the test ends). Returns the
+     * first message the channel sends.
+     */
+    private CompletionStage<Object> materialize(Flow<Object, Object, ?> channelFlow) {
+        CompletableFuture<Object> firstMessage = new CompletableFuture<>();
+        CompletableFuture<Optional<Object>> closer = Source.<Object>maybe()
+                .via(channelFlow)
+                .to(Sink.foreach(firstMessage::complete))
+                .run(materializer);
+        channelClosers.add(closer);
+        return firstMessage;
+    }
+
+    /**
+     * A channel's Flow never emits anything typed (Nothing in Scala) - for Java it's a Flow of Objects
+     */
+    @SuppressWarnings("unchecked")
+    private static Flow<Object, Object, ?> asChannelFlow(Flow<Object, ?, ?> flow) {
+        return (Flow<Object, Object, ?>) (Flow) flow;
+    }
+
+}
@@ -0,0 +1,218 @@
+package controllers.publix;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import controllers.publix.ResultDataBodyParser.ResultDataBody;
+import general.TestHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import play.libs.F;
+import play.libs.Files.TemporaryFile;
+import play.libs.Files.TemporaryFileCreator;
+import play.mvc.Http;
+import play.mvc.Result;
+import utils.common.HashUtils;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests ResultDataBodyParser: streaming into a temporary file, the SHA-256 hash, the max size (413) and the cleanup of
+ * the temporary file
+ *
+ * @author Kristian Lange
+ */
+public class ResultDataBodyParserTest {
+
+    private static final int MAX_SIZE = 1000;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private TemporaryFileCreator temporaryFileCreator;
+
+    @Inject
+    private Materializer materializer;
+
+    private RecordingTemporaryFileCreator recordingTemporaryFileCreator;
+
+    private ResultDataBodyParser resultDataBodyParser;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()))
+                .configure("jatos.resultData.maxSize", MAX_SIZE + "B");
+        Injector injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+
+        recordingTemporaryFileCreator = new RecordingTemporaryFileCreator(temporaryFileCreator);
+        resultDataBodyParser = new ResultDataBodyParser(recordingTemporaryFileCreator, Runnable::run);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        for (TemporaryFile tmpFile : recordingTemporaryFileCreator.created) {
+            Files.deleteIfExists(tmpFile.path());
+        }
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void checkParse() throws Exception {
+        List<String> chunks = Arrays.asList("{\"foo\":", "\"bar äöü\"", "}");
+        String data = String.join("", chunks);
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+
+        F.Either<Result, ResultDataBody> either = parse(request(bytes.length), chunks);
+
+        assertThat(either.right.isPresent()).isTrue();
+        ResultDataBody body = either.right.get();
+        assertThat(body.asString()).isEqualTo(data);
+        assertThat(body.getSize()).isEqualTo(bytes.length);
+        assertThat(body.getHash()).isEqualTo(HashUtils.getHash(bytes, HashUtils.SHA_256));
+
+        // The temporary file is deleted by the caller after use
+        assertThat(body.getFile()).isEqualTo(recordingTemporaryFileCreator.created.get(0).path());
+        body.delete();
+        assertThat(Files.exists(body.getFile())).isFalse();
+    }
+
+    @Test
+    public void checkParseEmptyBody() throws Exception {
+        F.Either<Result, ResultDataBody> either = parse(request(0), Collections.emptyList());
+
+        assertThat(either.right.isPresent()).isTrue();
+        assertThat(either.right.get().getSize()).isEqualTo(0);
+        assertThat(either.right.get().getHash()).isEqualTo(HashUtils.getHash(new byte[0], HashUtils.SHA_256));
+        either.right.get().delete();
+    }
+
+    @Test
+    public void checkContentLengthTooLarge() throws Exception {
+        F.Either<Result, ResultDataBody> either = parse(request(MAX_SIZE + 1), Collections.singletonList("a"));
+
+        // Rejected right away: the body isn't even read
+        assertThat(either.left.isPresent()).isTrue();
+        assertThat(either.left.get().status()).isEqualTo(Http.Status.REQUEST_ENTITY_TOO_LARGE);
+        assertThat(recordingTemporaryFileCreator.created).isEmpty();
+    }
+
+    @Test
+    public void checkStreamedBodyTooLarge() throws Exception {
+        // Without a Content-Length the body is aborted as soon as it exceeds the max size
+        List<String> chunks = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            chunks.add(String.format("%0100d", i));
+        }
+
+        F.Either<Result, ResultDataBody> either = parse(request(null), chunks);
+
+        assertThat(either.left.isPresent()).isTrue();
+        assertThat(either.left.get().status()).isEqualTo(Http.Status.REQUEST_ENTITY_TOO_LARGE);
+        checkTemporaryFilesDeleted();
+    }
+
+    @Test
+    public void checkBodyOfMaxSize() throws Exception {
+        List<String> chunks = Arrays.asList(String.format("%0500d", 1), String.format("%0500d", 2));
+
+        F.Either<Result, ResultDataBody> either = parse(request(null), chunks);
+
+        assertThat(either.right.isPresent()).isTrue();
+        assertThat(either.right.get().getSize()).isEqualTo(MAX_SIZE);
+        either.right.get().delete();
+    }
+
+    @Test
+    public void checkBrokenStream() throws Exception {
+        F.Either<Result, ResultDataBody> either = resultDataBodyParser.apply(request(null))
+                .run(Source.<ByteString>failed(new IOException("connection reset")), materializer)
+                .toCompletableFuture().get(1, TimeUnit.MINUTES);
+
+        assertThat(either.left.isPresent()).isTrue();
+        assertThat(either.left.get().status()).isEqualTo(Http.Status.BAD_REQUEST);
+        checkTemporaryFilesDeleted();
+    }
+
+    private F.Either<Result, ResultDataBody> parse(Http.RequestHeader request, List<String> chunks)
+            throws Exception {
+        List<ByteString> byteStrings = new ArrayList<>();
+        chunks.forEach(chunk -> byteStrings.add(ByteString.fromString(chunk, StandardCharsets.UTF_8)));
+        return resultDataBodyParser.apply(request)
+                .run(Source.from(byteStrings), materializer)
+                .toCompletableFuture().get(1, TimeUnit.MINUTES);
+    }
+
+    private static Http.RequestHeader request(Integer contentLength) {
+        Http.RequestBuilder builder = new Http.RequestBuilder().method("POST");
+        if (contentLength != null) builder.header(Http.HeaderNames.CONTENT_LENGTH, contentLength.toString());
+        return builder.build();
+    }
+
+    private void checkTemporaryFilesDeleted() {
+        assertThat(recordingTemporaryFileCreator.created).hasSize(1);
+        for (TemporaryFile tmpFile : recordingTemporaryFileCreator.created) {
+            assertThat(Files.exists(tmpFile.path())).isFalse();
+        }
+    }
+
+    /**
+     * Remembers all temporary files it created
+     */
+    private static class RecordingTemporaryFileCreator implements TemporaryFileCreator {
+
+        private final TemporaryFileCreator delegate;
+        private final List<TemporaryFile> created = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingTemporaryFileCreator(TemporaryFileCreator delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public TemporaryFile create(String prefix, String suffix) {
+            TemporaryFile tmpFile = delegate.create(prefix, suffix);
+            created.add(tmpFile);
+            return tmpFile;
+        }
+
+        @Override
+        public TemporaryFile create(Path path) {
+            TemporaryFile tmpFile = delegate.create(path);
+            created.add(tmpFile);
+            return tmpFile;
+        }
+
+        @Override
+        public boolean delete(TemporaryFile temporaryFile) {
+            return delegate.delete(temporaryFile);
+        }
+
+        @Override
+        public play.api.libs.Files.TemporaryFileCreator asScala() {
+            return delegate.asScala();
+        }
+    }
+
+}
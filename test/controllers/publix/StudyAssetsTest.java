@@ -12,6 +12,8 @@ import general.common.Common;
 import general.common.MessagesStrings;
 import models.common.Study;
 import models.common.User;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.fest.assertions.Fail;
 import org.junit.After;
 import org.junit.Before;
@@ -32,11 +34,19 @@ import services.gui.StudyService;
 import services.gui.UserService;
 
 import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
 
 import static org.fest.assertions.Assertions.assertThat;
+import static play.mvc.Http.HeaderNames.*;
 import static play.mvc.Http.Status.*;
 import static play.test.Helpers.*;
 
@@ -89,6 +99,7 @@ public class StudyAssetsTest {
 
         Helpers.stop(fakeApplication);
         testHelper.removeStudyAssetsRootDir();
+        FileUtils.deleteDirectory(new File(Common.getStudyAssetsPrecompressionPath()));
     }
 
     @Test
@@ -149,6 +160,103 @@ public class StudyAssetsTest {
         assertThat(result.status()).isEqualTo(OK);
     }
 
+    @Test
+    public void testViaAssetsPathNotModified() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+
+        Result startStudyResult = startStudy(study);
+        Cookie idCookie = startStudyResult.cookie("JATOS_IDS_0");
+
+        Call call = controllers.publix.routes.StudyAssets.viaAssetsPath(study.getDirName() + "/"
+                + study.getFirstComponent().get().getHtmlFilePath());
+        RequestBuilder request =
+                new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie);
+        Result result = route(fakeApplication, request);
+        assertThat(result.status()).isEqualTo(OK);
+        String etag = result.header(ETAG).get();
+        assertThat(etag).startsWith("\"");
+        assertThat(result.header(LAST_MODIFIED).isPresent()).isTrue();
+
+        // Same ETag: 304 without body
+        request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                .header(IF_NONE_MATCH, etag);
+        result = route(fakeApplication, request);
+        assertThat(result.status()).isEqualTo(NOT_MODIFIED);
+        assertThat(result.header(ETAG).get()).isEqualTo(etag);
+
+        // Different ETag: whole file
+        request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                .header(IF_NONE_MATCH, "\"foo\"");
+        result = route(fakeApplication, request);
+        assertThat(result.status()).isEqualTo(OK);
+    }
+
+    @Test
+    public void testViaAssetsPathCompressed() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Path studyAssetsDir = Paths.get(Common.getStudyAssetsRootPath(), study.getDirName());
+        Path jsFile = studyAssetsDir.resolve("compressible.js");
+        StringBuilder js = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            js.append("console.log('compress me ").append(i).append("');\n");
+        }
+        Files.write(jsFile, js.toString().getBytes(StandardCharsets.UTF_8));
+
+        Result startStudyResult = startStudy(study);
+        Cookie idCookie = startStudyResult.cookie("JATOS_IDS_0");
+        Call call = controllers.publix.routes.StudyAssets.viaAssetsPath(study.getDirName() + "/compressible.js");
+
+        // The gzip variant is generated in the background - until then the file is served uncompressed
+        Result result = null;
+        for (int i = 0; i < 50; i++) {
+            RequestBuilder request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                    .header(ACCEPT_ENCODING, "gzip, deflate");
+            result = route(fakeApplication, request);
+            assertThat(result.status()).isEqualTo(OK);
+            if (result.header(CONTENT_ENCODING).isPresent()) break;
+            Thread.sleep(100);
+        }
+        assertThat(result.header(CONTENT_ENCODING).get()).isEqualTo("gzip");
+        assertThat(result.header(VARY).get()).isEqualTo(ACCEPT_ENCODING);
+        assertThat(result.contentType().get()).contains("javascript");
+        String gzipEtag = result.header(ETAG).get();
+        byte[] compressed = Helpers.contentAsBytes(result, materializer).toArray();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertThat(new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8)).isEqualTo(js.toString());
+        }
+
+        // Each representation has its own ETag
+        RequestBuilder request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                .header(ACCEPT_ENCODING, "gzip").header(IF_NONE_MATCH, gzipEtag);
+        assertThat(route(fakeApplication, request).status()).isEqualTo(NOT_MODIFIED);
+        request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                .header(IF_NONE_MATCH, gzipEtag);
+        result = route(fakeApplication, request);
+        assertThat(result.status()).isEqualTo(OK);
+        assertThat(result.header(CONTENT_ENCODING).isPresent()).isFalse();
+        assertThat(result.header(ETAG).get()).isNotEqualTo(gzipEtag);
+
+        // A Brotli file next to the asset is preferred - but not if the browser doesn't accept it
+        Files.write(Paths.get(jsFile + ".br"), new byte[]{1, 2, 3});
+        request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                .header(ACCEPT_ENCODING, "gzip, br");
+        assertThat(route(fakeApplication, request).header(CONTENT_ENCODING).get()).isEqualTo("br");
+        request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                .header(ACCEPT_ENCODING, "gzip, br;q=0");
+        assertThat(route(fakeApplication, request).header(CONTENT_ENCODING).get()).isEqualTo("gzip");
+
+        // A changed Brotli file gets a new ETag even though the asset itself didn't change
+        request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                .header(ACCEPT_ENCODING, "br");
+        String brEtag = route(fakeApplication, request).header(ETAG).get();
+        Files.write(Paths.get(jsFile + ".br"), new byte[]{1, 2, 3, 4});
+        request = new RequestBuilder().method(Helpers.GET).uri(call.url()).cookie(idCookie)
+                .header(ACCEPT_ENCODING, "br").header(IF_NONE_MATCH, brEtag);
+        result = route(fakeApplication, request);
+        assertThat(result.status()).isEqualTo(OK);
+        assertThat(result.header(ETAG).get()).isNotEqualTo(brEtag);
+    }
+
     @Test
     public void testViaAssetsPathNotFound() {
         Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
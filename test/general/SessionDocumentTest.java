@@ -0,0 +1,53 @@
+package general;
+
+import org.junit.Test;
+import play.api.libs.json.JsValue;
+import play.api.libs.json.Json;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests SessionDocument
+ *
+ * @author Kristian Lange
+ */
+public class SessionDocumentTest {
+
+    @Test
+    public void checkPatchAndVersioning() {
+        SessionDocument session = SessionDocument.apply("{\"a\":1}", 3L);
+        assertThat(session.isDirty()).isFalse();
+
+        JsValue patches = Json.parse("[{\"op\":\"add\",\"path\":\"/b\",\"value\":2}]");
+        assertThat(session.checkVersionAndPatch(patches, 3L, true)).isTrue();
+        assertThat(session.version()).isEqualTo(4L);
+        assertThat(session.toString()).isEqualTo("{\"a\":1,\"b\":2}");
+        assertThat(session.isDirty()).isTrue();
+        assertThat(session.unpersistedVersions()).isEqualTo(1L);
+
+        // Outdated version is rejected if versioning is on ...
+        assertThat(session.checkVersionAndPatch(patches, 3L, true)).isFalse();
+        assertThat(session.version()).isEqualTo(4L);
+        // ... but not if it's off
+        assertThat(session.checkVersionAndPatch(patches, 3L, false)).isTrue();
+        assertThat(session.version()).isEqualTo(5L);
+
+        session.persistedVersion_$eq(session.version());
+        assertThat(session.isDirty()).isFalse();
+    }
+
+    @Test
+    public void checkRemoveAll() {
+        SessionDocument session = SessionDocument.apply("{\"a\":1}", 1L);
+        JsValue patches = Json.parse("[{\"op\":\"remove\",\"path\":\"/\"}]");
+        assertThat(session.checkVersionAndPatch(patches, 1L, true)).isTrue();
+        assertThat(session.toString()).isEqualTo("{}");
+    }
+
+    @Test
+    public void checkInvalidStoredData() {
+        assertThat(SessionDocument.apply(null, 1L).toString()).isEqualTo("{}");
+        assertThat(SessionDocument.apply("{invalid", 1L).toString()).isEqualTo("{}");
+    }
+
+}
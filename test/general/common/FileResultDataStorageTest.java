@@ -0,0 +1,127 @@
+package general.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import models.common.ComponentResult;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import utils.common.HashUtils;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests FileResultDataStorage
+ *
+ * @author Kristian Lange
+ */
+public class FileResultDataStorageTest {
+
+    @Inject
+    private FileResultDataStorage fileResultDataStorage;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        Injector injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        FileUtils.deleteDirectory(new File(Common.getResultDataStoragePath()));
+    }
+
+    @Test
+    public void checkStoreReadDelete() throws IOException {
+        String data = "{\"rt\":[100,200,300],\"text\":\"Grüße\"}";
+        byte[] dataBytes = data.getBytes(StandardCharsets.UTF_8);
+        String dataHash = HashUtils.getHash(dataBytes, HashUtils.SHA_256);
+
+        ComponentResult componentResult1 = new ComponentResult();
+        fileResultDataStorage.store(componentResult1, writeTmpFile(dataBytes), dataBytes.length, dataHash);
+        assertThat(componentResult1.isDataStoredExternally()).isTrue();
+        assertThat(componentResult1.getDataHash()).isEqualTo(dataHash);
+        assertThat(componentResult1.getDataSize()).isEqualTo(dataBytes.length);
+        assertThat(Files.exists(Paths.get(Common.getResultDataStoragePath(), componentResult1.getDataPointer())))
+                .isTrue();
+        assertThat(read(componentResult1)).isEqualTo(data);
+
+        // Identical result data are stored only once
+        ComponentResult componentResult2 = new ComponentResult();
+        fileResultDataStorage.store(componentResult2, writeTmpFile(dataBytes), dataBytes.length, dataHash);
+        assertThat(componentResult2.getDataPointer()).isEqualTo(componentResult1.getDataPointer());
+
+        fileResultDataStorage.delete(componentResult1.getDataPointer());
+        assertThat(Files.exists(Paths.get(Common.getResultDataStoragePath(), componentResult1.getDataPointer())))
+                .isFalse();
+    }
+
+    @Test
+    public void checkDeleteIfUnused() throws IOException {
+        byte[] dataBytes = "{\"rt\":[100,200,300]}".getBytes(StandardCharsets.UTF_8);
+        String dataHash = HashUtils.getHash(dataBytes, HashUtils.SHA_256);
+        ComponentResult componentResult = new ComponentResult();
+        fileResultDataStorage.store(componentResult, writeTmpFile(dataBytes), dataBytes.length, dataHash);
+        String dataPointer = componentResult.getDataPointer();
+        Path file = Paths.get(Common.getResultDataStoragePath(), dataPointer);
+        assertThat(fileResultDataStorage.getAllDataPointers()).containsOnly(dataPointer);
+
+        // Just stored: too early to decide
+        assertThat(fileResultDataStorage.deleteIfUnused(dataPointer, Duration.ofHours(1), () -> false)).isFalse();
+        assertThat(Files.exists(file)).isTrue();
+
+        // Not used for a while but still referenced
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+        assertThat(fileResultDataStorage.deleteIfUnused(dataPointer, Duration.ofHours(1), () -> true)).isTrue();
+        assertThat(Files.exists(file)).isTrue();
+
+        // Storing identical result data marks the file as used again
+        fileResultDataStorage.store(new ComponentResult(), writeTmpFile(dataBytes), dataBytes.length, dataHash);
+        assertThat(fileResultDataStorage.deleteIfUnused(dataPointer, Duration.ofHours(1), () -> false)).isFalse();
+        assertThat(Files.exists(file)).isTrue();
+
+        // Not used for a while and not referenced
+        Files.setLastModifiedTime(file, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+        assertThat(fileResultDataStorage.deleteIfUnused(dataPointer, Duration.ofHours(1), () -> false)).isTrue();
+        assertThat(Files.exists(file)).isFalse();
+    }
+
+    @Test(expected = IOException.class)
+    public void checkDeleteOutsideOfStorage() throws IOException {
+        fileResultDataStorage.delete("../../some_file");
+    }
+
+    private Path writeTmpFile(byte[] bytes) throws IOException {
+        Path tmpFile = Files.createTempFile("resultData", ".tmp");
+        tmpFile.toFile().deleteOnExit();
+        return Files.write(tmpFile, bytes);
+    }
+
+    private String read(ComponentResult componentResult) throws IOException {
+        try (InputStream in = fileResultDataStorage.read(componentResult)) {
+            return new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+}
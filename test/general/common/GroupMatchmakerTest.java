@@ -0,0 +1,120 @@
+package general.common;
+
+import general.common.GroupMatchmaker.OpenGroups;
+import models.common.Batch;
+import models.common.GroupResult;
+import models.common.GroupResult.GroupState;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests GroupMatchmaker
+ *
+ * @author Kristian Lange
+ */
+public class GroupMatchmakerTest {
+
+    @Test
+    public void checkFindFirstMaxNotReached() {
+        Batch batch = createBatch(1L, 3, 5);
+        OpenGroups openGroups = new OpenGroups();
+        openGroups.load(Arrays.asList(
+                createGroupResult(batch, 1L, 1, 0),
+                createGroupResult(batch, 2L, 2, 0),
+                createGroupResult(batch, 3L, 2, 1),
+                createGroupResult(batch, 4L, 3, 0)));
+
+        // Group 4 is full, group 3 has the most active and history members
+        assertThat(openGroups.findFirstMaxNotReached(batch, null).get()).isEqualTo(3L);
+        // Excluded group is skipped
+        assertThat(openGroups.findFirstMaxNotReached(batch, 3L).get()).isEqualTo(2L);
+
+        // Group 3 reaches maxTotalMembers
+        openGroups.update(createGroupResult(batch, 3L, 2, 3));
+        assertThat(openGroups.findFirstMaxNotReached(batch, null).get()).isEqualTo(2L);
+
+        // Limits are always taken from the batch
+        batch.setMaxActiveMembers(null);
+        batch.setMaxTotalMembers(null);
+        assertThat(openGroups.findFirstMaxNotReached(batch, null).get()).isEqualTo(4L);
+    }
+
+    @Test
+    public void checkUpdateAndIsUpToDate() {
+        Batch batch = createBatch(1L, null, null);
+        OpenGroups openGroups = new OpenGroups();
+        openGroups.load(Arrays.asList(createGroupResult(batch, 1L, 1, 0)));
+
+        assertThat(openGroups.isUpToDate(createGroupResult(batch, 1L, 1, 0))).isTrue();
+        assertThat(openGroups.isUpToDate(createGroupResult(batch, 1L, 2, 0))).isFalse();
+        assertThat(openGroups.isUpToDate(createGroupResult(batch, 2L, 1, 0))).isFalse();
+
+        // A group that isn't STARTED any more is removed from the index
+        GroupResult fixed = createGroupResult(batch, 1L, 1, 0);
+        fixed.setGroupState(GroupState.FIXED);
+        openGroups.update(fixed);
+        assertThat(openGroups.size()).isEqualTo(0);
+        assertThat(openGroups.findFirstMaxNotReached(batch, null).isPresent()).isFalse();
+
+        // And put back if it's STARTED again
+        openGroups.update(createGroupResult(batch, 1L, 1, 0));
+        assertThat(openGroups.findFirstMaxNotReached(batch, null).get()).isEqualTo(1L);
+    }
+
+    @Test
+    public void checkMatchmakerIgnoresBatchesNotLoaded() {
+        GroupMatchmaker groupMatchmaker = new GroupMatchmaker();
+        Batch batch = createBatch(1L, null, null);
+
+        groupMatchmaker.update(createGroupResult(batch, 1L, 1, 0));
+        assertThat(groupMatchmaker.get(1L).isLoaded()).isFalse();
+        assertThat(groupMatchmaker.get(1L).size()).isEqualTo(0);
+
+        groupMatchmaker.get(1L).load(Arrays.asList());
+        groupMatchmaker.update(createGroupResult(batch, 1L, 1, 0));
+        assertThat(groupMatchmaker.get(1L).size()).isEqualTo(1);
+
+        groupMatchmaker.remove(createGroupResult(batch, 1L, 1, 0));
+        assertThat(groupMatchmaker.get(1L).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void checkQueuedChangesAreAppliedOnUse() {
+        GroupMatchmaker groupMatchmaker = new GroupMatchmaker();
+        Batch batch = createBatch(1L, null, null);
+        groupMatchmaker.get(1L).load(Arrays.asList(createGroupResult(batch, 1L, 1, 0)));
+
+        // A change from outside the batch's lock (e.g. the GUI fixes the group) is applied by the next search
+        GroupResult fixed = createGroupResult(batch, 1L, 1, 0);
+        fixed.setGroupState(GroupState.FIXED);
+        groupMatchmaker.update(fixed);
+        assertThat(groupMatchmaker.get(1L).findFirstMaxNotReached(batch, null).isPresent()).isFalse();
+
+        // Changes are applied in the order they were queued
+        groupMatchmaker.update(createGroupResult(batch, 1L, 1, 0));
+        groupMatchmaker.update(createGroupResult(batch, 2L, 2, 0));
+        groupMatchmaker.remove(createGroupResult(batch, 2L, 2, 0));
+        assertThat(groupMatchmaker.get(1L).findFirstMaxNotReached(batch, null).get()).isEqualTo(1L);
+        assertThat(groupMatchmaker.get(1L).size()).isEqualTo(1);
+    }
+
+    private Batch createBatch(Long id, Integer maxActiveMembers, Integer maxTotalMembers) {
+        Batch batch = new Batch();
+        batch.setId(id);
+        batch.setMaxActiveMembers(maxActiveMembers);
+        batch.setMaxTotalMembers(maxTotalMembers);
+        return batch;
+    }
+
+    private GroupResult createGroupResult(Batch batch, Long id, int activeMemberCount, int historyMemberCount) {
+        GroupResult groupResult = new GroupResult(batch);
+        groupResult.setId(id);
+        groupResult.setActiveMemberCount(activeMemberCount);
+        groupResult.setHistoryMemberCount(historyMemberCount);
+        return groupResult;
+    }
+
+}
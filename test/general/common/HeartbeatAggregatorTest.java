@@ -0,0 +1,100 @@
+package general.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.StudyResultDao;
+import general.TestHelper;
+import models.common.Study;
+import models.common.StudyResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import services.gui.ResultTestHelper;
+
+import javax.inject.Inject;
+import java.sql.Timestamp;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests HeartbeatAggregator
+ *
+ * @author Kristian Lange
+ */
+public class HeartbeatAggregatorTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private ResultTestHelper resultTestHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private StudyResultDao studyResultDao;
+
+    @Inject
+    private HeartbeatAggregator heartbeatAggregator;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void checkHeartbeatAndFlush() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+        long studyResultId = ids.get(0);
+
+        Timestamp first = new Timestamp(1000000000L);
+        Timestamp second = new Timestamp(2000000000L);
+        heartbeatAggregator.heartbeat(studyResultId, second);
+        // An older heartbeat must not overwrite a newer one
+        heartbeatAggregator.heartbeat(studyResultId, first);
+
+        // Before the flush the DB doesn't have the last seen date but the aggregator does
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            assertThat(studyResult.getLastSeenDate()).isNull();
+            assertThat(heartbeatAggregator.getLastSeenDate(studyResult)).isEqualTo(second);
+        });
+
+        heartbeatAggregator.flush();
+
+        // After the flush it's in the DB
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(studyResultId);
+            assertThat(studyResult.getLastSeenDate()).isEqualTo(second);
+            assertThat(heartbeatAggregator.getLastSeenDate(studyResult)).isEqualTo(second);
+        });
+
+        // The other StudyResult wasn't touched
+        jpaApi.withTransaction(() -> {
+            StudyResult studyResult = studyResultDao.findById(ids.get(1));
+            assertThat(heartbeatAggregator.getLastSeenDate(studyResult)).isNull();
+        });
+    }
+
+}
@@ -0,0 +1,129 @@
+package general.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.ComponentResultDao;
+import general.TestHelper;
+import models.common.ComponentResult;
+import models.common.ComponentResult.DataFormat;
+import models.common.Study;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import services.gui.ResultTestHelper;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests the result data compression of ComponentResult and ResultDataCompressor
+ *
+ * @author Kristian Lange
+ */
+public class ResultDataCompressorTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private ResultTestHelper resultTestHelper;
+
+    @Inject
+    private ResultDataCompressor resultDataCompressor;
+
+    @Inject
+    private ComponentResultDao componentResultDao;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()))
+                .configure("jatos.resultData.compression.enabled", true);
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+    }
+
+    @Test
+    public void checkCompressAndDecompress() throws IOException {
+        String data = compressibleData();
+        ComponentResult componentResult = new ComponentResult();
+        componentResult.setData(data, DataFormat.GZIP);
+        assertThat(componentResult.getDataFormat()).isEqualTo(DataFormat.GZIP);
+        assertThat(componentResult.getDataSize()).isEqualTo(data.length());
+        assertThat(componentResult.getData()).isEqualTo(data);
+        try (InputStream in = componentResult.getDataAsStream()) {
+            assertThat(IOUtils.toString(in, StandardCharsets.UTF_8)).isEqualTo(data);
+        }
+
+        // Small result data aren't compressed
+        componentResult.setData("{\"rt\":100}", DataFormat.GZIP);
+        assertThat(componentResult.getDataFormat()).isEqualTo(DataFormat.PLAIN);
+        assertThat(componentResult.getData()).isEqualTo("{\"rt\":100}");
+    }
+
+    @Test
+    public void checkCompressStoredData() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> componentResultIds = resultTestHelper.createTwoComponentResults(study.getId());
+        String data = compressibleData();
+
+        // Result data stored before compression was enabled: one big and one small without a data size (legacy)
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult1 = componentResultDao.findById(componentResultIds.get(0));
+            componentResult1.setData(data);
+            componentResult1.getStudyResult().setEndDate(new Timestamp(System.currentTimeMillis()));
+            ComponentResult componentResult2 = componentResultDao.findById(componentResultIds.get(1));
+            componentResult2.setData("{\"rt\":100}");
+            componentResult2.setDataSize(null);
+        });
+
+        resultDataCompressor.compressStoredDataIfEnabled().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult1 = componentResultDao.findById(componentResultIds.get(0));
+            assertThat(componentResult1.getDataFormat()).isEqualTo(DataFormat.GZIP);
+            assertThat(componentResult1.getData()).isEqualTo(data);
+            ComponentResult componentResult2 = componentResultDao.findById(componentResultIds.get(1));
+            assertThat(componentResult2.getData()).isEqualTo("{\"rt\":100}");
+
+            // Both were tried and aren't read again with the next start
+            assertThat(componentResultDao.findAllWithPlainDataOfFinishedStudyResultsAfterId(0,
+                    ComponentResult.MIN_SIZE_FOR_COMPRESSION, 100)).isEmpty();
+        });
+    }
+
+    private String compressibleData() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            if (i > 0) sb.append(',');
+            sb.append("{\"trial\":").append(i).append(",\"rt\":").append(300 + i % 7).append('}');
+        }
+        return sb.append(']').toString();
+    }
+
+}
@@ -0,0 +1,163 @@
+package general.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import general.TestHelper;
+import models.common.ResultUploadFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import utils.common.HashUtils;
+import utils.common.IOUtils;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests ResultUploadIndex
+ *
+ * @author Kristian Lange
+ */
+public class ResultUploadIndexTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private IOUtils ioUtils;
+
+    @Inject
+    private ResultUploadIndex resultUploadIndex;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        jpaApi.withTransaction(() -> {
+            try {
+                resultUploadIndex.removeStudyResult(1L);
+                resultUploadIndex.removeStudyResult(2L);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Files.deleteIfExists(ResultUploadIndex.getIndexBuiltMarkerPath());
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void checkAddAndRemove() throws IOException {
+        Path file1 = uploadFile(1L, 11L, "example.png");
+        Path file2 = uploadFile(1L, 12L, "example.png");
+
+        jpaApi.withTransaction(() -> {
+            try {
+                ResultUploadFile uploadFile = resultUploadIndex.add(1L, 11L, file1);
+                resultUploadIndex.add(1L, 12L, file2);
+                assertThat(uploadFile.getFilename()).isEqualTo("example.png");
+                assertThat(uploadFile.getFileSize()).isEqualTo(Files.size(file1));
+                assertThat(uploadFile.getFileHash()).isEqualTo(HashUtils.getHash(file1, HashUtils.SHA_256));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        jpaApi.withTransaction(() -> {
+            try {
+                // Uploading the same file again doesn't add a second entry
+                resultUploadIndex.add(1L, 11L, file1);
+
+                assertThat(resultUploadIndex.getFilesOfStudyResult(1L)).hasSize(2);
+                assertThat(resultUploadIndex.getTotalFileSize(1L)).isEqualTo(Files.size(file1) + Files.size(file2));
+                assertThat(resultUploadIndex.getStudyResultIdsWithFiles(Arrays.asList(1L, 2L))).containsOnly(1L);
+
+                resultUploadIndex.removeComponentResult(1L, 11L);
+                List<ResultUploadFile> files = resultUploadIndex.getFilesOfStudyResult(1L);
+                assertThat(files).hasSize(1);
+                assertThat(files.get(0).getComponentResultId()).isEqualTo(12L);
+                assertThat(Files.exists(file1)).isFalse();
+
+                resultUploadIndex.removeStudyResult(1L);
+                assertThat(resultUploadIndex.getTotalFileSize(1L)).isEqualTo(0L);
+                assertThat(Files.exists(file2)).isFalse();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    public void checkBuildOnce() throws Exception {
+        Path file1 = uploadFile(1L, 11L, "example.png");
+        Path file2 = uploadFile(1L, 11L, "example2.png");
+        Path file3 = uploadFile(2L, 21L, "example.png");
+        // Files written before the start (the index is only built from older files)
+        FileTime beforeStart = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+        for (Path file : Arrays.asList(file1, file2, file3)) {
+            Files.setLastModifiedTime(file, beforeStart);
+        }
+        Files.deleteIfExists(ResultUploadIndex.getIndexBuiltMarkerPath());
+
+        // One file is already in the index: it's skipped and not added a second time
+        jpaApi.withTransaction(() -> {
+            try {
+                resultUploadIndex.add(1L, 11L, file1);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        resultUploadIndex.buildOnce().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        jpaApi.withTransaction(() -> {
+            assertThat(resultUploadIndex.getFilesOfStudyResult(1L)).hasSize(2);
+            assertThat(resultUploadIndex.getFilesOfStudyResult(2L)).hasSize(1);
+        });
+        assertThat(Files.exists(ResultUploadIndex.getIndexBuiltMarkerPath())).isTrue();
+
+        // Only once: a file that isn't in the index isn't added by a second build
+        Path file4 = uploadFile(2L, 22L, "example.png");
+        Files.setLastModifiedTime(file4, beforeStart);
+        resultUploadIndex.buildOnce().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        jpaApi.withTransaction(() -> {
+            assertThat(resultUploadIndex.getFilesOfStudyResult(2L)).hasSize(1);
+        });
+    }
+
+    private Path uploadFile(Long studyResultId, Long componentResultId, String filename) throws IOException {
+        File destFile = ioUtils.getResultUploadFileSecurely(studyResultId, componentResultId, filename);
+        return Files.copy(Paths.get("test/resources/example.png"), destFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
@@ -0,0 +1,62 @@
+package general.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests StudyAssetsCompressor
+ *
+ * @author Kristian Lange
+ */
+public class StudyAssetsCompressorTest {
+
+    @Inject
+    private StudyAssetsCompressor studyAssetsCompressor;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        Injector injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        FileUtils.deleteDirectory(new File(Common.getStudyAssetsPrecompressionPath()));
+    }
+
+    @Test
+    public void checkDeleteUnusedVariants() throws Exception {
+        Path dir = Files.createDirectories(Paths.get(Common.getStudyAssetsPrecompressionPath()));
+        Path usedVariant = Files.write(dir.resolve("aaaa.gz"), new byte[]{1, 2, 3});
+        Path unusedVariant = Files.write(dir.resolve("bbbb.gz"), new byte[]{1, 2, 3});
+        Files.setLastModifiedTime(unusedVariant, FileTime.from(Instant.now().minus(Duration.ofDays(30))));
+
+        studyAssetsCompressor.deleteUnusedVariants();
+
+        assertThat(Files.exists(usedVariant)).isTrue();
+        assertThat(Files.exists(unusedVariant)).isFalse();
+    }
+
+}
@@ -0,0 +1,98 @@
+package general.common;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.StudyDao;
+import general.TestHelper;
+import models.common.Study;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests StudyCache
+ *
+ * @author Kristian Lange
+ */
+public class StudyCacheTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private StudyDao studyDao;
+
+    @Inject
+    private StudyCache studyCache;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void checkGetAndInvalidate() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        AtomicInteger loads = new AtomicInteger();
+
+        Study cached = get(study.getId(), loads);
+        assertThat(cached.getId()).isEqualTo(study.getId());
+        assertThat(get(study.getId(), loads)).isSameAs(cached);
+        assertThat(loads.get()).isEqualTo(1);
+
+        // An update of the study invalidates the snapshot
+        jpaApi.withTransaction(() -> studyDao.update(studyDao.findById(study.getId())));
+        assertThat(get(study.getId(), loads)).isNotSameAs(cached);
+        assertThat(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void checkRemovedStudyIsDropped() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        AtomicInteger loads = new AtomicInteger();
+        get(study.getId(), loads);
+        assertThat(studyCache.size()).isEqualTo(1);
+
+        testHelper.removeStudy(study.getId());
+        assertThat(studyCache.size()).isEqualTo(0);
+
+        // A removed study isn't cached
+        assertThat(get(study.getId(), loads)).isNull();
+        assertThat(get(study.getId(), loads)).isNull();
+        assertThat(loads.get()).isEqualTo(3);
+    }
+
+    private Study get(Long studyId, AtomicInteger loads) {
+        return jpaApi.withTransaction(() -> studyCache.get(studyId, () -> {
+            loads.incrementAndGet();
+            return studyDao.findByIdDetached(studyId);
+        }));
+    }
+
+}
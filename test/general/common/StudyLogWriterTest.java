@@ -0,0 +1,193 @@
+package general.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.inject.ApplicationLifecycle;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import play.libs.Json;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests StudyLogWriter: the order of concurrently appended entries, the order of execute() and flush() relative to
+ * the entries and the stop of the writer thread when it's idle
+ *
+ * @author Kristian Lange
+ */
+public class StudyLogWriterTest {
+
+    private static final int THREADS = 8;
+
+    private static final int ENTRIES_PER_THREAD = 500;
+
+    private static final Supplier<byte[]> INITIAL_ENTRY =
+            () -> "\n{\"msg\":\"Initial entry\"}".getBytes(StandardCharsets.ISO_8859_1);
+
+    @Inject
+    private StudyLogWriter studyLogWriter;
+
+    @Inject
+    private ApplicationLifecycle applicationLifecycle;
+
+    private Path tmpDir;
+
+    private Path logPath;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        Injector injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+        tmpDir = Files.createTempDirectory("studyLogWriterTest");
+        logPath = tmpDir.resolve("study.log");
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up - closes the study log after all entries are written
+        studyLogWriter.execute(logPath, () -> null);
+        FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+
+    @Test
+    public void checkConcurrentAppends() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < ENTRIES_PER_THREAD; i++) {
+                        append(studyLogWriter, "{\"thread\":" + thread + ",\"seq\":" + i + "}");
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdown();
+        }
+        studyLogWriter.flush();
+
+        List<String> lines = readLines();
+        assertThat(lines).hasSize(THREADS * ENTRIES_PER_THREAD + 1);
+        assertThat(lines.get(0)).contains("Initial entry");
+
+        // The entries of each thread are written in the order they were appended, none is lost
+        int[] nextSeq = new int[THREADS];
+        for (String line : lines.subList(1, lines.size())) {
+            JsonNode json = Json.parse(line);
+            int thread = json.get("thread").asInt();
+            assertThat(json.get("seq").asInt()).isEqualTo(nextSeq[thread]);
+            nextSeq[thread]++;
+        }
+        for (int seq : nextSeq) assertThat(seq).isEqualTo(ENTRIES_PER_THREAD);
+
+        // Each entry is linked with the one that was written before it
+        checkChain(lines);
+
+        // The index has a record for every entry
+        studyLogWriter.updateIndex(logPath);
+        assertThat(Files.size(StudyLogIndex.getIndexPath(logPath)))
+                .isEqualTo((long) lines.size() * StudyLogIndex.RECORD_SIZE);
+    }
+
+    @Test
+    public void checkExecuteAndFlushAfterQueuedEntries() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            append(studyLogWriter, "{\"seq\":" + i + "}");
+        }
+
+        // The action sees all entries that were appended before and runs on the writer thread
+        String[] threadName = new String[1];
+        int lineCount = studyLogWriter.execute(logPath, () -> {
+            threadName[0] = Thread.currentThread().getName();
+            return readLines().size();
+        });
+        assertThat(lineCount).isEqualTo(1001);
+        assertThat(threadName[0]).isEqualTo("study-log-writer");
+
+        // An entry appended after the action is written after it: the file was closed and is opened again
+        append(studyLogWriter, "{\"seq\":1000}");
+        studyLogWriter.flush();
+        List<String> lines = readLines();
+        assertThat(lines).hasSize(1002);
+        assertThat(Json.parse(lines.get(lines.size() - 1)).get("seq").asInt()).isEqualTo(1000);
+        checkChain(lines);
+    }
+
+    @Test
+    public void checkIdleStopAndRestart() throws Exception {
+        StudyLogWriter writer = new StudyLogWriter(applicationLifecycle, Duration.ofMillis(100));
+        append(writer, "{\"seq\":0}");
+        writer.flush();
+
+        // The writer thread stops after it was idle
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (writer.isRunning() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(writer.isRunning()).isFalse();
+
+        // And is started again with the next entry that then continues the study log and its hash chain
+        append(writer, "{\"seq\":1}");
+        writer.flush();
+        List<String> lines = readLines();
+        assertThat(lines).hasSize(3);
+        assertThat(Json.parse(lines.get(2)).get("seq").asInt()).isEqualTo(1);
+        checkChain(lines);
+    }
+
+    private void append(StudyLogWriter writer, String json) {
+        writer.append(logPath, ("\n" + json).getBytes(StandardCharsets.ISO_8859_1),
+                StudyLogIndex.Record.of(StudyLogIndex.EntryType.OTHER, System.currentTimeMillis(),
+                        StudyLogIndex.NO_WORKER),
+                INITIAL_ENTRY);
+    }
+
+    private List<String> readLines() {
+        try {
+            return Files.readAllLines(logPath, StandardCharsets.ISO_8859_1).stream()
+                    .filter(line -> !line.isEmpty()).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void checkChain(List<String> lines) {
+        for (int i = 1; i < lines.size(); i++) {
+            String prevHash = StudyLogChain.hash(lines.get(i - 1).getBytes(StandardCharsets.ISO_8859_1), 0);
+            assertThat(Json.parse(lines.get(i)).get("prevHash").asText()).isEqualTo(prevHash);
+        }
+    }
+
+}
@@ -20,10 +20,19 @@ import utils.common.HashUtils;
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.fest.assertions.Assertions.assertThat;
 
@@ -88,6 +97,7 @@ public class StudyLoggerTest {
 
         // Write something into the log
         studyLogger.log(study, testHelper.getAdmin(), "bla bla bla");
+        studyLogger.flush();
 
         // Check that the log is recreated
         assertThat(Files.isReadable(studyLogPath)).isTrue();
@@ -131,6 +141,7 @@ public class StudyLoggerTest {
         studyLogger.log(study, user, "bir bir bir", Pair.of("birkey", "birvalue"));
 
         // Check they wrote something into the log
+        studyLogger.flush();
         List<String> content = Files.readAllLines(logPath);
         // First line is always empty, second line is the initial msg, third line is study created, fourth line is
         // study description
@@ -160,6 +171,7 @@ public class StudyLoggerTest {
 
         studyLogger.logResultDataStoring(componentResult);
 
+        studyLogger.flush();
         Path logPath = Paths.get(studyLogger.getPath(study));
         List<String> content = Files.readAllLines(logPath);
         JsonNode json = Json.parse(content.get(content.size() - 1)); // get last line from log
@@ -189,6 +201,7 @@ public class StudyLoggerTest {
 
         studyLogger.logResultUploading(uploadedFile, componentResult);
 
+        studyLogger.flush();
         Path logPath = Paths.get(studyLogger.getPath(study));
         List<String> content = Files.readAllLines(logPath);
         JsonNode json = Json.parse(content.get(content.size() - 1)); // get last line from log
@@ -205,7 +218,274 @@ public class StudyLoggerTest {
         assertThat(json.get("fileHash").asText()).isEqualTo(HashUtils.getHash(uploadedFile, HashUtils.SHA_256));
     }
 
+    @Test
+    public void checkIndexedRead() throws IOException {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Path logPath = Paths.get(studyLogger.getPath(study));
+        Worker worker = testHelper.getAdmin().getWorker();
+
+        studyLogger.log(study, "Started study run with Jatos worker", worker);
+        studyLogger.log(study, testHelper.getAdmin(), "bla bla bla");
+        studyLogger.log(study, "Finished study run", worker);
+
+        // Index is written together with the entries
+        studyLogger.flush();
+        assertThat(Files.size(StudyLogIndex.getIndexPath(logPath)) % StudyLogIndex.RECORD_SIZE).isEqualTo(0);
+
+        // Filter by type and worker: newest first
+        StudyLogIndex.Query query = new StudyLogIndex.Query(null, null, worker.getId(),
+                Collections.singleton(StudyLogIndex.EntryType.STUDY_RUN));
+        List<String> entries = readWithIndex(logPath, query);
+        assertThat(entries.size()).isEqualTo(2);
+        assertThat(entries.get(0)).contains("Finished study run");
+        assertThat(entries.get(1)).contains("Started study run");
+
+        // Filter by time range: everything until now, nothing after now
+        long now = Instant.now().toEpochMilli();
+        assertThat(readWithIndex(logPath, new StudyLogIndex.Query(0L, now, null, null)))
+                .isEqualTo(readAllEntriesNewestFirst(logPath));
+        assertThat(readWithIndex(logPath, new StudyLogIndex.Query(now + 1, null, null, null))).isEmpty();
+
+        // A deleted index is rebuilt from the study log
+        Files.delete(StudyLogIndex.getIndexPath(logPath));
+        assertThat(readWithIndex(logPath, query)).isEqualTo(entries);
+    }
+
+    @Test
+    public void checkIndexRebuildDoesNotDisturbReader() throws IOException {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Path logPath = Paths.get(studyLogger.getPath(study));
+        Path indexPath = StudyLogIndex.getIndexPath(logPath);
+        StudyLogWriter studyLogWriter = injector.getInstance(StudyLogWriter.class);
+
+        studyLogger.log(study, testHelper.getAdmin(), "bla bla bla");
+        studyLogger.log(study, testHelper.getAdmin(), "foo foo foo");
+        studyLogWriter.updateIndex(logPath);
+        StudyLogIndex.Query all = new StudyLogIndex.Query(null, null, null, null);
+
+        try (StudyLogIndex.Reader reader = StudyLogIndex.Reader.open(indexPath, all)) {
+            // Cut the study log down to its initial entry (the first line is empty): the index has to be rebuilt
+            studyLogWriter.execute(logPath, () -> {
+                try {
+                    String initialEntry = Files.readAllLines(logPath, StandardCharsets.ISO_8859_1).get(1);
+                    Files.write(logPath, ("\n" + initialEntry).getBytes(StandardCharsets.ISO_8859_1));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+            studyLogWriter.updateIndex(logPath);
+
+            // The reader that was opened before still reads the complete old index
+            int count = 0;
+            while (reader.next().isPresent()) count++;
+            assertThat(count).isEqualTo(3);
+        }
+
+        // The new index has only the initial entry and no temporary file is left
+        assertThat(Files.size(indexPath)).isEqualTo(StudyLogIndex.RECORD_SIZE);
+        List<String> entries = readWithIndex(logPath, all);
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0)).contains("Initial entry");
+        try (Stream<Path> files = Files.list(logPath.getParent())) {
+            assertThat(files.filter(file -> file.toString().endsWith(".tmp")).count()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void checkRotation() throws IOException {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Path logPath = Paths.get(studyLogger.getPath(study));
+        User user = testHelper.getAdmin();
+
+        studyLogger.log(study, user, "bla bla bla");
+        rotate(logPath);
+        studyLogger.log(study, user, "foo foo foo");
+        rotate(logPath);
+        studyLogger.log(study, user, "bar bar bar");
+        studyLogger.flush();
+
+        // Two gzipped segments in the manifest and an active segment with only the last entry
+        assertThat(StudyLogSegments.getSegmentFiles(logPath)).hasSize(2);
+        assertThat(Files.exists(StudyLogSegments.getSegmentPath(logPath, 1))).isTrue();
+        assertThat(Files.exists(StudyLogSegments.getSegmentPath(logPath, 2))).isTrue();
+        assertThat(readAllEntriesNewestFirst(logPath)).hasSize(1);
+
+        // Reading goes across all segments, newest first
+        List<String> entries = readWithIndex(logPath, new StudyLogIndex.Query(null, null, null, null));
+        assertThat(entries.get(0)).contains("bar bar bar");
+        assertThat(entries.get(1)).contains("foo foo foo");
+        assertThat(entries.get(2)).contains("bla bla bla");
+        // First entry is the initial one
+        assertThat(entries.get(entries.size() - 1)).contains("Initial entry");
+
+        // Retiring writes all segments into one file and removes the segments
+        String retiredLogFilename = studyLogger.retire(study);
+        Path retiredLogPath = Paths.get(Common.getStudyLogsPath(), retiredLogFilename);
+        List<String> retiredEntries = readAllEntriesNewestFirst(retiredLogPath);
+        assertThat(retiredEntries.subList(1, retiredEntries.size())).isEqualTo(entries);
+        assertThat(Files.notExists(logPath)).isTrue();
+        assertThat(Files.notExists(StudyLogSegments.getManifestPath(logPath))).isTrue();
+        assertThat(Files.notExists(StudyLogSegments.getSegmentPath(logPath, 1))).isTrue();
+    }
+
+    @Test
+    public void checkRotationByWriter() throws IOException {
+        // Restart with a small max size so the writer rotates by itself
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()))
+                .configure("jatos.studyLogs.rotation.maxSize", 2048);
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Path logPath = Paths.get(studyLogger.getPath(study));
+        User user = testHelper.getAdmin();
+
+        for (int i = 0; i < 50; i++) {
+            studyLogger.log(study, user, "entry " + i);
+        }
+        studyLogger.flush();
+
+        assertThat(studyLogger.hasClosedSegments(study)).isTrue();
+        assertThat(StudyLogSegments.getSegmentFiles(logPath).size()).isGreaterThan(1);
+        assertThat(Files.size(logPath)).isLessThan(2048);
+
+        // No entry is lost or duplicated and they are still in order
+        List<String> entries = readWithIndex(logPath, new StudyLogIndex.Query(null, null, null, null));
+        List<String> messages = entries.stream()
+                .map(entry -> Json.parse(entry).get("msg"))
+                .filter(msg -> msg != null && msg.asText().startsWith("entry "))
+                .map(JsonNode::asText)
+                .collect(Collectors.toList());
+        Collections.reverse(messages);
+        assertThat(messages).hasSize(50);
+        for (int i = 0; i < 50; i++) {
+            assertThat(messages.get(i)).isEqualTo("entry " + i);
+        }
+        assertThat(entries.get(entries.size() - 1)).contains("Initial entry");
+        assertThat(studyLogger.verify(study).isValid()).isTrue();
+    }
+
+    @Test
+    public void checkHashChain() throws IOException {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Path logPath = Paths.get(studyLogger.getPath(study));
+        User user = testHelper.getAdmin();
+
+        studyLogger.log(study, user, "bla bla bla");
+        studyLogger.log(study, user, "foo foo foo");
+        studyLogger.flush();
+
+        // Each entry has the hash of the entry before
+        List<String> content = Files.readAllLines(logPath, StandardCharsets.ISO_8859_1);
+        for (int i = 2; i < content.size(); i++) {
+            JsonNode json = Json.parse(content.get(i));
+            assertThat(json.get("prevHash").asText()).isEqualTo(HashUtils.getHash(content.get(i - 1),
+                    HashUtils.SHA_256));
+        }
+
+        StudyLogChain.VerificationResult result = studyLogger.verify(study);
+        assertThat(result.isValid()).isTrue();
+        assertThat(result.getEntries()).isEqualTo(content.size() - 1);
+
+        // The chain continues across a rotation and only the new entries are verified
+        rotate(logPath);
+        studyLogger.log(study, user, "bar bar bar");
+        studyLogger.flush();
+        result = studyLogger.verify(study);
+        assertThat(result.isValid()).isTrue();
+        assertThat(result.getNewlyVerifiedEntries()).isEqualTo(1);
+        assertThat(result.getEntries()).isEqualTo(content.size());
+    }
+
+    @Test
+    public void checkHashChainBroken() throws IOException {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Path logPath = Paths.get(studyLogger.getPath(study));
+        User user = testHelper.getAdmin();
+
+        studyLogger.log(study, user, "bla bla bla");
+        studyLogger.log(study, user, "foo foo foo");
+        studyLogger.flush();
+
+        // Change an entry
+        String content = new String(Files.readAllBytes(logPath), StandardCharsets.ISO_8859_1);
+        Files.write(logPath, content.replace("bla bla bla", "blu blu blu").getBytes(StandardCharsets.ISO_8859_1));
+
+        StudyLogChain.VerificationResult result = studyLogger.verify(study);
+        assertThat(result.isValid()).isFalse();
+        assertThat(result.getError()).contains("doesn't match");
+    }
+
+    @Test
+    public void checkHashChainAfterRecreation() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Path logPath = Paths.get(studyLogger.getPath(study));
+        User user = testHelper.getAdmin();
+
+        studyLogger.log(study, user, "bla bla bla");
+        studyLogger.flush();
+        rotate(logPath);
+        studyLogger.log(study, user, "foo foo foo");
+        studyLogger.flush();
+        assertThat(studyLogger.verifyAsync(study).toCompletableFuture().get(10, TimeUnit.SECONDS).isValid())
+                .isTrue();
+
+        // Delete the active segment: the study log is recreated with the next entry and starts a new hash chain
+        Files.delete(logPath);
+        studyLogger.log(study, user, "new chain");
+        studyLogger.flush();
+
+        assertThat(studyLogger.hasClosedSegments(study)).isFalse();
+        assertThat(Files.exists(StudyLogChain.getCheckpointPath(logPath))).isFalse();
+        try (Stream<Path> files = Files.list(logPath.getParent())) {
+            assertThat(files.anyMatch(file -> file.getFileName().toString().startsWith(study.getUuid() + "_")
+                    && file.getFileName().toString().endsWith(".retired"))).isTrue();
+        }
+        StudyLogChain.VerificationResult result = studyLogger.verifyAsync(study).toCompletableFuture()
+                .get(10, TimeUnit.SECONDS);
+        assertThat(result.isValid()).isTrue();
+        assertThat(result.getEntries()).isEqualTo(2);
+    }
+
+    private void rotate(Path logPath) {
+        injector.getInstance(StudyLogWriter.class).execute(logPath, () -> {
+            try {
+                StudyLogIndex.Writer index = StudyLogIndex.Writer.open(logPath);
+                long count = index.getCount();
+                String lastHash = StudyLogChain.getLastEntryHash(logPath, index);
+                index.close();
+                StudyLogSegments.rotate(logPath, index.getFirstTimestamp(), index.getLastTimestamp(), count,
+                        lastHash);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+    }
+
+    private List<String> readWithIndex(Path logPath, StudyLogIndex.Query query) throws IOException {
+        injector.getInstance(StudyLogWriter.class).updateIndex(logPath);
+        List<String> entries = new ArrayList<>();
+        try (StudyLogSegments.Reader reader = StudyLogSegments.Reader.open(logPath, query)) {
+            Optional<byte[]> entry;
+            while ((entry = reader.next()).isPresent()) {
+                entries.add(new String(entry.get(), StandardCharsets.ISO_8859_1));
+            }
+        }
+        return entries;
+    }
+
+    private List<String> readAllEntriesNewestFirst(Path logPath) throws IOException {
+        List<String> entries = Files.readAllLines(logPath, StandardCharsets.ISO_8859_1).stream()
+                .filter(line -> !line.isEmpty()).collect(Collectors.toList());
+        Collections.reverse(entries);
+        return entries;
+    }
+
     private void checkInitEntry(Study study) throws IOException {
+        studyLogger.flush();
         Path logPath = Paths.get(studyLogger.getPath(study));
         List<String> content = Files.readAllLines(logPath);
         JsonNode json = Json.parse(content.get(1)); // First line is empty, second line is init msg
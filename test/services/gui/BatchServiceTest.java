@@ -12,6 +12,8 @@ import models.common.Batch;
 import models.common.Study;
 import models.common.User;
 import models.common.workers.*;
+import models.gui.BatchProperties;
+import models.gui.BatchSession;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -24,6 +26,11 @@ import play.inject.guice.GuiceApplicationLoader;
 import javax.inject.Inject;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.fest.assertions.Assertions.assertThat;
 
@@ -240,4 +247,78 @@ public class BatchServiceTest {
 
     }
 
+    /**
+     * A GUI edit of a batch that was loaded before a BatchDispatcher flushed the batch session must not roll the batch
+     * session back
+     */
+    @Test
+    public void checkBatchEditDoesNotOverwriteFlushedBatchSession() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = study.getDefaultBatch().getId();
+
+        CountDownLatch loaded = new CountDownLatch(1);
+        CountDownLatch flushed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // GUI: loads the batch, waits for the flush and then saves its changes
+            Future<?> guiEdit = executor.submit(() -> jpaApi.withTransaction(() -> {
+                Batch batch = batchDao.findById(batchId);
+                BatchProperties props = batchService.bindToProperties(batch);
+                props.setTitle("Edited title");
+                loaded.countDown();
+                try {
+                    flushed.await(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                batchService.updateBatch(batch, props);
+            }));
+
+            // BatchDispatcher: flushes its batch session meanwhile
+            assertThat(loaded.await(1, TimeUnit.MINUTES)).isTrue();
+            assertThat(jpaApi.withTransaction(() ->
+                    batchDao.updateBatchSession(batchId, "{\"a\":1}", 2L, 1L))).isTrue();
+            flushed.countDown();
+            guiEdit.get(1, TimeUnit.MINUTES);
+        } finally {
+            flushed.countDown();
+            executor.shutdown();
+        }
+
+        jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(batchId);
+            assertThat(batch.getTitle()).isEqualTo("Edited title");
+            assertThat(batch.getBatchSessionVersion()).isEqualTo(2L);
+            assertThat(batch.getBatchSessionData()).isEqualTo("{\"a\":1}");
+        });
+    }
+
+    /**
+     * Tests BatchService.updateBatchSession(): only written if the version is still the current one
+     */
+    @Test
+    public void checkUpdateBatchSession() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        Long batchId = study.getDefaultBatch().getId();
+
+        assertThat(jpaApi.withTransaction(() ->
+                batchService.updateBatchSession(batchId, batchSession(1L, "{\"a\":1}")))).isTrue();
+        // Outdated version, e.g. the BatchDispatcher flushed meanwhile
+        assertThat(jpaApi.withTransaction(() ->
+                batchService.updateBatchSession(batchId, batchSession(1L, "{\"b\":2}")))).isFalse();
+
+        jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(batchId);
+            assertThat(batch.getBatchSessionVersion()).isEqualTo(2L);
+            assertThat(batch.getBatchSessionData()).isEqualTo("{\"a\":1}");
+        });
+    }
+
+    private static BatchSession batchSession(Long version, String data) {
+        BatchSession batchSession = new BatchSession();
+        batchSession.setVersion(version);
+        batchSession.setData(data);
+        return batchSession;
+    }
+
 }
@@ -0,0 +1,127 @@
+package services.gui;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.BatchDao;
+import daos.common.GroupResultDao;
+import general.TestHelper;
+import models.common.Batch;
+import models.common.GroupResult;
+import models.common.GroupResult.GroupState;
+import models.common.Study;
+import models.gui.GroupSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests GroupService
+ *
+ * @author Kristian Lange
+ */
+public class GroupServiceTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private BatchDao batchDao;
+
+    @Inject
+    private GroupResultDao groupResultDao;
+
+    @Inject
+    private GroupService groupService;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void checkUpdateGroupSession() {
+        long groupResultId = createGroupResult(GroupState.STARTED);
+
+        assertThat(jpaApi.withTransaction(() ->
+                groupService.updateGroupSession(groupResultId, groupSession(1L, "{\"a\":1}")))).isTrue();
+        checkGroupSession(groupResultId, 2L, "{\"a\":1}");
+
+        // Outdated version
+        assertThat(jpaApi.withTransaction(() ->
+                groupService.updateGroupSession(groupResultId, groupSession(1L, "{\"b\":2}")))).isFalse();
+        checkGroupSession(groupResultId, 2L, "{\"a\":1}");
+
+        // Empty data are stored as an empty object
+        assertThat(jpaApi.withTransaction(() ->
+                groupService.updateGroupSession(groupResultId, groupSession(2L, "")))).isTrue();
+        checkGroupSession(groupResultId, 3L, "{}");
+    }
+
+    /**
+     * The GroupDispatcher's write of the group session skips FINISHED groups - an edit in the GUI doesn't
+     */
+    @Test
+    public void checkUpdateGroupSessionOfFinishedGroup() {
+        long groupResultId = createGroupResult(GroupState.FINISHED);
+
+        assertThat(jpaApi.withTransaction(() ->
+                groupResultDao.updateGroupSession(groupResultId, "{\"a\":1}", 2L, 1L))).isFalse();
+        checkGroupSession(groupResultId, 1L, "{}");
+
+        assertThat(jpaApi.withTransaction(() ->
+                groupService.updateGroupSession(groupResultId, groupSession(1L, "{\"a\":1}")))).isTrue();
+        checkGroupSession(groupResultId, 2L, "{\"a\":1}");
+    }
+
+    private long createGroupResult(GroupState groupState) {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        return jpaApi.withTransaction(() -> {
+            Batch batch = batchDao.findById(study.getDefaultBatch().getId());
+            GroupResult groupResult = new GroupResult(batch);
+            groupResult.setGroupState(groupState);
+            groupResultDao.create(groupResult);
+            return groupResult.getId();
+        });
+    }
+
+    private void checkGroupSession(long groupResultId, Long version, String data) {
+        jpaApi.withTransaction(() -> {
+            GroupResult groupResult = groupResultDao.findById(groupResultId);
+            assertThat(groupResult.getGroupSessionVersion()).isEqualTo(version);
+            assertThat(groupResult.getGroupSessionData()).isEqualTo(data);
+        });
+    }
+
+    private static GroupSession groupSession(Long version, String data) {
+        GroupSession groupSession = new GroupSession();
+        groupSession.setVersion(version);
+        groupSession.setData(data);
+        return groupSession;
+    }
+
+}
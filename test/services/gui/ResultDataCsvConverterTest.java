@@ -0,0 +1,92 @@
+package services.gui;
+
+import org.junit.Test;
+import play.libs.Json;
+import services.gui.ResultDataCsvConverter.Row;
+import services.gui.ResultDataExporter.ResultData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests ResultDataCsvConverter
+ *
+ * @author Kristian Lange
+ */
+public class ResultDataCsvConverterTest {
+
+    @Test
+    public void checkFlatten() {
+        Map<String, String> fields = ResultDataCsvConverter.flatten(
+                Json.parse("{\"a\":1,\"b\":{\"c\":\"x\",\"d\":[true,null]}}"));
+        assertThat(new ArrayList<>(fields.keySet())).containsExactly("a", "b.c", "b.d.0", "b.d.1");
+        assertThat(fields.get("a")).isEqualTo("1");
+        assertThat(fields.get("b.c")).isEqualTo("x");
+        assertThat(fields.get("b.d.0")).isEqualTo("true");
+        assertThat(fields.get("b.d.1")).isEqualTo("");
+    }
+
+    @Test
+    public void checkToRows() {
+        // Array of objects: one row per object
+        List<Row> rows = ResultDataCsvConverter.toRows(
+                new ResultData(1L, 2L, 3L, "[{\"rt\":100},{\"rt\":200,\"key\":\"f\"}]"));
+        assertThat(rows).hasSize(2);
+        assertThat(ResultDataCsvConverter.inferColumns(rows)).containsExactly("rt", "key");
+
+        // Not JSON: everything in the data column
+        rows = ResultDataCsvConverter.toRows(new ResultData(1L, 2L, 3L, "no, JSON"));
+        assertThat(rows).hasSize(1);
+        assertThat(ResultDataCsvConverter.inferColumns(rows)).containsExactly(ResultDataCsvConverter.DATA_COLUMN);
+    }
+
+    @Test
+    public void checkToRowsConcatenatedValues() {
+        // Appended result data: concatenated objects - one row per object
+        List<Row> rows = ResultDataCsvConverter.toRows(new ResultData(1L, 2L, 3L, "{\"a\":1}{\"a\":2}"));
+        assertThat(rows).hasSize(2);
+        assertThat(ResultDataCsvConverter.formatRow(rows.get(1), Arrays.asList("a"), new HashSet<>(Arrays.asList("a")))
+                .utf8String()).isEqualTo("1,2,3,2,\r\n");
+
+        // JSON lines, one of them an array of objects
+        rows = ResultDataCsvConverter.toRows(
+                new ResultData(1L, 2L, 3L, "{\"a\":1}\n{\"a\":2,\"b\":\"x\"}\n[{\"a\":3},{\"a\":4}]\n"));
+        assertThat(rows).hasSize(4);
+        assertThat(ResultDataCsvConverter.inferColumns(rows)).containsExactly("a", "b");
+
+        // Only partly JSON: everything in the data column
+        String data = "{\"a\":1}\nno JSON";
+        rows = ResultDataCsvConverter.toRows(new ResultData(1L, 2L, 3L, data));
+        assertThat(rows).hasSize(1);
+        assertThat(ResultDataCsvConverter.formatRow(rows.get(0), Arrays.asList(ResultDataCsvConverter.DATA_COLUMN),
+                new HashSet<>(Arrays.asList(ResultDataCsvConverter.DATA_COLUMN))).utf8String())
+                .isEqualTo("1,2,3,\"{\"\"a\"\":1}\nno JSON\"\r\n");
+    }
+
+    @Test
+    public void checkFormatRow() {
+        List<String> columns = Arrays.asList("rt", "text");
+        Row row = ResultDataCsvConverter.toRows(
+                new ResultData(1L, 2L, 3L, "{\"rt\":100,\"text\":\"say \\\"hi\\\", bye\",\"extra\":\"e\"}")).get(0);
+
+        String line = ResultDataCsvConverter.formatRow(row, columns, new HashSet<>(columns)).utf8String();
+
+        // Field 'extra' isn't in the columns and goes into the unmapped column as JSON
+        assertThat(line).isEqualTo("1,2,3,100,\"say \"\"hi\"\", bye\",\"{\"\"extra\"\":\"\"e\"\"}\"\r\n");
+    }
+
+    @Test
+    public void checkEscape() {
+        assertThat(ResultDataCsvConverter.escape(null)).isEqualTo("");
+        assertThat(ResultDataCsvConverter.escape("plain")).isEqualTo("plain");
+        assertThat(ResultDataCsvConverter.escape("a,b")).isEqualTo("\"a,b\"");
+        assertThat(ResultDataCsvConverter.escape("a\nb")).isEqualTo("\"a\nb\"");
+        assertThat(ResultDataCsvConverter.escape("a\"b")).isEqualTo("\"a\"\"b\"");
+    }
+
+}
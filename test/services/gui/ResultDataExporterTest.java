@@ -0,0 +1,166 @@
+package services.gui;
+
+import akka.stream.Materializer;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.UserDao;
+import general.TestHelper;
+import general.common.StudyLogger;
+import models.common.Study;
+import models.common.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests ResultDataExporter
+ *
+ * @author Kristian Lange
+ */
+public class ResultDataExporterTest {
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private ResultTestHelper resultTestHelper;
+
+    @Inject
+    private ResultDataExporter resultDataExporter;
+
+    @Inject
+    private UserDao userDao;
+
+    @Inject
+    private StudyLogger studyLogger;
+
+    @Inject
+    private Materializer materializer;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void checkByStudyResultIds() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+        User admin = jpaApi.withTransaction(() -> userDao.findByUsername(UserService.ADMIN_USERNAME));
+
+        // Reversed order and a not existing ID: the data are in the order of the IDs, the not existing one is left out
+        List<Long> idList = new ArrayList<>(Arrays.asList(ids.get(1), 9999L, ids.get(0)));
+        String data = runExport(resultDataExporter.byStudyResultIds(idList, admin));
+
+        assertThat(data).isEqualTo("First ComponentResult's data of the second StudyResult." + System.lineSeparator()
+                + "Second ComponentResult's data of the second StudyResult." + System.lineSeparator()
+                + "First ComponentResult's data of the first StudyResult." + System.lineSeparator()
+                + "Second ComponentResult's data of the first StudyResult." + System.lineSeparator());
+    }
+
+    @Test
+    public void checkByStudyResultIdsWrongUser() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+        User testUser = testHelper.createAndPersistUser(TestHelper.BLA_EMAIL, "Bla", "bla");
+
+        // The user isn't a member of the study: no result data
+        String data = runExport(resultDataExporter.byStudyResultIds(ids, testUser));
+        assertThat(data).isEmpty();
+    }
+
+    @Test
+    public void checkByComponentResultIdsEmpty() throws Exception {
+        User admin = jpaApi.withTransaction(() -> userDao.findByUsername(UserService.ADMIN_USERNAME));
+        String data = runExport(resultDataExporter.byComponentResultIds(Collections.emptyList(), admin));
+        assertThat(data).isEmpty();
+    }
+
+    @Test
+    public void checkPartitionByDataSize() {
+        Map<Long, Long> dataSizes = new LinkedHashMap<>();
+        long max = ResultDataExporter.MAX_BATCH_DATA_SIZE;
+        dataSizes.put(1L, max / 2);
+        dataSizes.put(2L, max / 2);
+        dataSizes.put(3L, 10L);
+        dataSizes.put(4L, max * 2); // Bigger than a batch
+        dataSizes.put(5L, null); // Unknown size
+        dataSizes.put(6L, 10L);
+        dataSizes.put(7L, 10L);
+
+        List<List<Long>> batches = ResultDataExporter.partitionByDataSize(dataSizes);
+        assertThat(batches).isEqualTo(Arrays.asList(Arrays.asList(1L, 2L), Collections.singletonList(3L),
+                Collections.singletonList(4L), Collections.singletonList(5L), Arrays.asList(6L, 7L)));
+
+        // Never more than 100 ComponentResults in a batch
+        Map<Long, Long> manyDataSizes = new LinkedHashMap<>();
+        for (long i = 0; i < 250; i++) {
+            manyDataSizes.put(i, 1L);
+        }
+        batches = ResultDataExporter.partitionByDataSize(manyDataSizes);
+        assertThat(batches).hasSize(3);
+        assertThat(batches.get(2)).hasSize(50);
+    }
+
+    @Test
+    public void checkExportOnlyLoggedIfCompleted() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+        User admin = jpaApi.withTransaction(() -> userDao.findByUsername(UserService.ADMIN_USERNAME));
+        Path logPath = Paths.get(studyLogger.getPath(study));
+
+        // Cancelled after the first result data
+        runExport(resultDataExporter.byStudyResultIds(ids, admin).take(1));
+        studyLogger.flush();
+        assertThat(new String(Files.readAllBytes(logPath), StandardCharsets.UTF_8))
+                .doesNotContain("Exported result data");
+
+        runExport(resultDataExporter.byStudyResultIds(ids, admin));
+        studyLogger.flush();
+        assertThat(new String(Files.readAllBytes(logPath), StandardCharsets.UTF_8)).contains("Exported result data");
+    }
+
+    private String runExport(Source<ByteString, ?> source) throws Exception {
+        return source.runFold(ByteString.empty(), ByteString::concat, materializer)
+                .toCompletableFuture().get(10, TimeUnit.SECONDS).utf8String();
+    }
+
+}
@@ -0,0 +1,141 @@
+package services.gui;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import daos.common.StudyResultDao;
+import daos.common.StudyResultDao.StudyResultRow;
+import daos.common.UserDao;
+import general.TestHelper;
+import models.common.Study;
+import models.common.StudyResult;
+import models.common.User;
+import org.hibernate.Session;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.Logger;
+import play.db.jpa.JPAApi;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+
+import javax.inject.Inject;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Benchmark that compares OFFSET pagination with keyset pagination for fetching 100k StudyResults of one study. Both
+ * fetch every page in its own read-only transaction like ResultService does. It only logs the timings.
+ *
+ * It's opt-in since it takes a while: run it with the system property jatos.benchmark=true, e.g.
+ * sbt -Djatos.benchmark=true "testOnly services.gui.ResultPaginationBenchmarkTest"
+ *
+ * @author Kristian Lange
+ */
+public class ResultPaginationBenchmarkTest {
+
+    private static final Logger.ALogger LOGGER = Logger.of(ResultPaginationBenchmarkTest.class);
+
+    private static final int RESULTS = 100_000;
+
+    private static final int PAGE_SIZE = 500;
+
+    private Injector injector;
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private JPAApi jpaApi;
+
+    @Inject
+    private StudyResultDao studyResultDao;
+
+    @Inject
+    private UserDao userDao;
+
+    @Before
+    public void startApp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("jatos.benchmark"));
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up (nothing to do if the benchmark was skipped)
+        if (testHelper == null) return;
+        testHelper.removeAllStudies();
+        testHelper.removeStudyAssetsRootDir();
+        testHelper.removeAllStudyLogs();
+    }
+
+    @Test
+    public void compareOffsetAndKeysetPagination() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+        createStudyResults(study);
+
+        long start = System.nanoTime();
+        int offsetCount = fetchWithOffsetPagination(study);
+        long offsetMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        int keysetCount = fetchWithKeysetPagination(study);
+        long keysetMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        LOGGER.info("Fetched " + RESULTS + " study results: OFFSET pagination " + offsetMillis
+                + " ms, keyset pagination " + keysetMillis + " ms");
+        assertThat(offsetCount).isEqualTo(RESULTS);
+        assertThat(keysetCount).isEqualTo(RESULTS);
+    }
+
+    private void createStudyResults(Study study) {
+        for (int i = 0; i < RESULTS; i += 1000) {
+            jpaApi.withTransaction(entityManager -> {
+                User admin = userDao.findByUsername(UserService.ADMIN_USERNAME);
+                Study s = entityManager.find(Study.class, study.getId());
+                for (int j = 0; j < 1000; j++) {
+                    entityManager.persist(new StudyResult(s, s.getDefaultBatch(), admin.getWorker()));
+                }
+            });
+        }
+    }
+
+    private int fetchWithOffsetPagination(Study study) {
+        int count = 0;
+        for (int first = 0; first < RESULTS; first += PAGE_SIZE) {
+            int f = first;
+            count += jpaApi.withTransaction(entityManager -> {
+                entityManager.unwrap(Session.class).setDefaultReadOnly(true);
+                return studyResultDao.findAllByStudy(study, f, PAGE_SIZE).size();
+            });
+        }
+        return count;
+    }
+
+    private int fetchWithKeysetPagination(Study study) {
+        int count = 0;
+        long lastId = 0;
+        while (true) {
+            long afterId = lastId;
+            List<StudyResultRow> page = jpaApi.withTransaction(entityManager -> {
+                entityManager.unwrap(Session.class).setDefaultReadOnly(true);
+                return studyResultDao.findAllRowsByStudyAfterId(study, afterId, PAGE_SIZE);
+            });
+            for (StudyResultRow row : page) {
+                // Keyset pagination returns every result exactly once in ascending ID order
+                assertThat(row.getStudyResult().getId()).isGreaterThan(lastId);
+                lastId = row.getStudyResult().getId();
+            }
+            count += page.size();
+            if (page.size() < PAGE_SIZE) return count;
+        }
+    }
+
+}
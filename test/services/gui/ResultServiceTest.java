@@ -1,12 +1,17 @@
 package services.gui;
 
+import akka.stream.Materializer;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import daos.common.StudyResultDao;
+import daos.common.StudyResultDao.StudyResultRow;
 import daos.common.UserDao;
 import exceptions.gui.BadRequestException;
 import exceptions.gui.ForbiddenException;
 import exceptions.gui.NotFoundException;
 import general.TestHelper;
+import general.common.Common;
 import general.common.MessagesStrings;
 import models.common.ComponentResult;
 import models.common.Study;
@@ -22,10 +27,12 @@ import play.Environment;
 import play.db.jpa.JPAApi;
 import play.inject.guice.GuiceApplicationBuilder;
 import play.inject.guice.GuiceApplicationLoader;
+import play.libs.Json;
 
 import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.fest.assertions.Assertions.assertThat;
@@ -57,6 +64,12 @@ public class ResultServiceTest {
     @Inject
     private UserDao userDao;
 
+    @Inject
+    private StudyResultDao studyResultDao;
+
+    @Inject
+    private Materializer materializer;
+
     @Before
     public void startApp() throws Exception {
         GuiceApplicationBuilder builder = new GuiceApplicationLoader()
@@ -86,6 +99,53 @@ public class ResultServiceTest {
         assertThat(resultIdList.contains(3L));
     }
 
+    @Test
+    public void checkFindAllRowsByStudyAfterId() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+
+        List<Long> ids = resultTestHelper.createTwoStudyResults(study.getId());
+
+        jpaApi.withTransaction(() -> {
+            List<StudyResultRow> rows = studyResultDao.findAllRowsByStudyAfterId(study, 0, 10);
+            assertThat(rows.stream().map(row -> row.getStudyResult().getId()).collect(Collectors.toList()))
+                    .isEqualTo(ids);
+            rows.forEach(row -> assertThat(row.getComponentResultCount()).isEqualTo(2));
+
+            // Next page (keyset pagination) starts after the first result
+            rows = studyResultDao.findAllRowsByStudyAfterId(study, ids.get(0), 10);
+            assertThat(rows.size()).isEqualTo(1);
+            assertThat(rows.get(0).getStudyResult().getId()).isEqualTo(ids.get(1));
+        });
+    }
+
+    @Test
+    public void checkStreamStudyResultsByStudy() throws Exception {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+
+        // More than two pages (page size is jatos.maxResultsDbQuerySize)
+        int count = Common.getMaxResultsDbQuerySize() * 2 + 10;
+        jpaApi.withTransaction(entityManager -> {
+            User admin = userDao.findByUsername(UserService.ADMIN_USERNAME);
+            Study s = entityManager.find(Study.class, study.getId());
+            for (int i = 0; i < count; i++) {
+                entityManager.persist(new StudyResult(s, s.getDefaultBatch(), admin.getWorker()));
+            }
+        });
+
+        String json = resultService.streamStudyResultsByStudy(study)
+                .runFold("", (acc, bytes) -> acc + bytes.utf8String(), materializer)
+                .toCompletableFuture().get(30, TimeUnit.SECONDS);
+        JsonNode results = Json.parse("[" + json + "]");
+
+        // Every result exactly once in ascending ID order
+        assertThat(results.size()).isEqualTo(count);
+        long lastId = 0;
+        for (JsonNode result : results) {
+            assertThat(result.get("id").asLong()).isGreaterThan(lastId);
+            lastId = result.get("id").asLong();
+        }
+    }
+
     @Test
     public void checkCheckComponentResults() {
         Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
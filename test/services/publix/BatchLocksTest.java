@@ -0,0 +1,145 @@
+package services.publix;
+
+import org.junit.Assume;
+import org.junit.Test;
+import play.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests BatchLocks. The throughput benchmark is opt-in: run it with the system property jatos.benchmark=true.
+ *
+ * @author Kristian Lange
+ */
+public class BatchLocksTest {
+
+    private static final Logger.ALogger LOGGER = Logger.of(BatchLocksTest.class);
+
+    private static final int THREADS = 16;
+
+    private static final int JOINS = 800;
+
+    @Test
+    public void checkSameBatchSameLock() {
+        BatchLocks batchLocks = new BatchLocks();
+        assertThat(batchLocks.get(1L)).isSameAs(batchLocks.get(1L));
+    }
+
+    @Test
+    public void checkMutualExclusionWithinBatch() throws Exception {
+        BatchLocks batchLocks = new BatchLocks();
+        AtomicBoolean inCriticalSection = new AtomicBoolean(false);
+        AtomicBoolean overlapped = new AtomicBoolean(false);
+
+        runJoins(batchLocks, 1, () -> {
+            if (!inCriticalSection.compareAndSet(false, true)) overlapped.set(true);
+            sleep(1);
+            inCriticalSection.set(false);
+        });
+
+        assertThat(overlapped.get()).isFalse();
+    }
+
+    @Test
+    public void checkDifferentBatchesLockInParallel() throws Exception {
+        BatchLocks batchLocks = new BatchLocks();
+        // Different batches may share a stripe - pick one that doesn't share it with batch 1
+        long otherBatchId = 2L;
+        while (batchLocks.get(otherBatchId) == batchLocks.get(1L)) otherBatchId++;
+        Lock otherLock = batchLocks.get(otherBatchId);
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> holder = executor.submit(() -> {
+                Lock lock = batchLocks.get(1L);
+                lock.lock();
+                try {
+                    locked.countDown();
+                    release.await(1, TimeUnit.MINUTES);
+                } finally {
+                    lock.unlock();
+                }
+                return null;
+            });
+            assertThat(locked.await(1, TimeUnit.MINUTES)).isTrue();
+
+            // While batch 1 is locked by the other thread the other batch can be locked (with a single global lock
+            // it couldn't)
+            boolean acquired = otherLock.tryLock(10, TimeUnit.SECONDS);
+            try {
+                assertThat(acquired).isTrue();
+            } finally {
+                if (acquired) otherLock.unlock();
+            }
+
+            // But batch 1 itself can't
+            Lock lock = batchLocks.get(1L);
+            assertThat(lock.tryLock()).isFalse();
+
+            release.countDown();
+            holder.get(1, TimeUnit.MINUTES);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Logs the time of JOINS simulated group joins (1 ms each) spread over 1, 2, 4, 8 and 16 batches. Joins in
+     * different batches run in parallel, so the time should go down with more batches. Nothing is asserted since the
+     * timings depend on the machine.
+     */
+    @Test
+    public void benchmarkThroughputByBatchCount() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("jatos.benchmark"));
+        BatchLocks batchLocks = new BatchLocks();
+        for (int batchCount = 1; batchCount <= THREADS; batchCount *= 2) {
+            long start = System.nanoTime();
+            runJoins(batchLocks, batchCount, () -> sleep(1));
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            LOGGER.info(JOINS + " joins in " + batchCount + " batches: " + millis + " ms");
+        }
+    }
+
+    /**
+     * Runs JOINS simulated group joins with THREADS threads, spread evenly over the given number of batches
+     */
+    private void runJoins(BatchLocks batchLocks, int batchCount, Runnable criticalSection) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < JOINS; i++) {
+                long batchId = i % batchCount;
+                futures.add(executor.submit(() -> {
+                    Lock lock = batchLocks.get(batchId);
+                    lock.lock();
+                    try {
+                        criticalSection.run();
+                    } finally {
+                        lock.unlock();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -168,6 +168,33 @@ public abstract class PublixUtilsTest<T extends Worker> {
         });
     }
 
+    /**
+     * Test ComponentResultDao.appendData(): appended data are part of the result data right away (same transaction)
+     * and after a reload
+     */
+    @Test
+    public void checkAppendData() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+
+        long studyResultId = createStudyResultAndStartFirstComponent(study);
+
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = studyResultDao.findById(studyResultId).getComponentResultList().get(0);
+            componentResult.setData("foo");
+            componentResultDao.update(componentResult);
+            componentResultDao.appendData(componentResult, " bar");
+            componentResultDao.appendData(componentResult, " baz");
+            assertThat(componentResult.getData()).isEqualTo("foo bar baz");
+            assertThat(componentResult.getDataSize()).isEqualTo(11);
+        });
+
+        jpaApi.withTransaction(() -> {
+            ComponentResult componentResult = studyResultDao.findById(studyResultId).getComponentResultList().get(0);
+            assertThat(componentResult.getData()).isEqualTo("foo bar baz");
+            assertThat(componentResult.getDataChunkList()).hasSize(2);
+        });
+    }
+
     /**
      * Test PublixUtils.startComponent(): after starting a second component in
      * the same study run, the first component result should be finished
@@ -1129,6 +1156,41 @@ public abstract class PublixUtilsTest<T extends Worker> {
         });
     }
 
+    /**
+     * Test PublixUtils.retrieveStudy(): the study is cached but a changed
+     * study has to be retrieved in its new state
+     */
+    @Test
+    public void checkRetrieveStudyAfterChange() {
+        Study study = testHelper.createAndPersistExampleStudyForAdmin(injector);
+
+        jpaApi.withTransaction(() -> {
+            try {
+                Study retrievedStudy = publixUtils.retrieveStudy(study.getId());
+                assertThat(retrievedStudy.getTitle()).isEqualTo(study.getTitle());
+                // Second call gets the same cached study
+                assertThat(publixUtils.retrieveStudy(study.getId())).isSameAs(retrievedStudy);
+            } catch (NotFoundPublixException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        jpaApi.withTransaction(() -> {
+            Study s = studyDao.findById(study.getId());
+            s.setTitle("Changed title");
+            studyDao.update(s);
+        });
+
+        jpaApi.withTransaction(() -> {
+            try {
+                Study retrievedStudy = publixUtils.retrieveStudy(study.getId());
+                assertThat(retrievedStudy.getTitle()).isEqualTo("Changed title");
+            } catch (NotFoundPublixException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
     /**
      * Test PublixUtils.retrieveStudy(): if a study with this ID doesn't exist
      * in DB a NotFoundPublixException should be thrown
@@ -0,0 +1,106 @@
+package services.publix;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import general.TestHelper;
+import general.common.Common;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import play.ApplicationLoader;
+import play.Environment;
+import play.inject.guice.GuiceApplicationBuilder;
+import play.inject.guice.GuiceApplicationLoader;
+import utils.common.HashUtils;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests StudyAssetFileCache
+ *
+ * @author Kristian Lange
+ */
+public class StudyAssetFileCacheTest {
+
+    @Inject
+    private TestHelper testHelper;
+
+    @Inject
+    private StudyAssetFileCache studyAssetFileCache;
+
+    private Path dir;
+
+    @Before
+    public void startApp() throws Exception {
+        GuiceApplicationBuilder builder = new GuiceApplicationLoader()
+                .builder(new ApplicationLoader.Context(Environment.simple()));
+        Injector injector = Guice.createInjector(builder.applicationModule());
+        injector.injectMembers(this);
+        dir = Files.createDirectories(Paths.get(Common.getStudyAssetsRootPath(), "fileCacheTest"));
+    }
+
+    @After
+    public void stopApp() throws Exception {
+        // Clean up
+        testHelper.removeStudyAssetsRootDir();
+    }
+
+    @Test
+    public void checkCompressibleFileIsHashedOnce() throws Exception {
+        StringBuilder js = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            js.append("console.log('hash me ").append(i).append("');\n");
+        }
+        byte[] content = js.toString().getBytes(StandardCharsets.UTF_8);
+        Files.write(dir.resolve("script.js"), content);
+        String filePath = "fileCacheTest" + File.separator + "script.js";
+
+        // Concurrent requests of the same file version wait for the same hashing
+        List<CompletableFuture<StudyAssetFileCache.FileInfo>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(studyAssetFileCache.get(filePath).toCompletableFuture());
+        }
+        StudyAssetFileCache.FileInfo fileInfo = futures.get(0).get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<StudyAssetFileCache.FileInfo> future : futures) {
+            assertThat(future.get(10, TimeUnit.SECONDS).getEtag()).isEqualTo(fileInfo.getEtag());
+        }
+        assertThat(fileInfo.getEtag()).isEqualTo("\"" + HashUtils.getHash(content, HashUtils.SHA_256) + "\"");
+
+        // Cached now
+        assertThat(studyAssetFileCache.get(filePath).toCompletableFuture().isDone()).isTrue();
+    }
+
+    @Test
+    public void checkOtherFileIsNotHashed() throws Exception {
+        byte[] content = new byte[100 * 1024];
+        new Random(1).nextBytes(content);
+        Path video = Files.write(dir.resolve("video.mp4"), content);
+        String filePath = "fileCacheTest" + File.separator + "video.mp4";
+
+        // The ETag is there right away and isn't the content's hash
+        CompletableFuture<StudyAssetFileCache.FileInfo> future = studyAssetFileCache.get(filePath)
+                .toCompletableFuture();
+        assertThat(future.isDone()).isTrue();
+        String etag = future.get().getEtag();
+        assertThat(etag).isNotEqualTo("\"" + HashUtils.getHash(content, HashUtils.SHA_256) + "\"");
+        assertThat(studyAssetFileCache.get(filePath).toCompletableFuture().get().getEtag()).isEqualTo(etag);
+
+        // A changed file gets a new ETag
+        Files.setLastModifiedTime(video, FileTime.fromMillis(Files.getLastModifiedTime(video).toMillis() + 2000));
+        assertThat(studyAssetFileCache.get(filePath).toCompletableFuture().get().getEtag()).isNotEqualTo(etag);
+    }
+
+}
@@ -0,0 +1,84 @@
+package utils.common;
+
+import akka.actor.ActorSystem;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.util.ByteString;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+/**
+ * Tests ZipUtil
+ *
+ * @author Kristian Lange
+ */
+public class ZipUtilTest {
+
+    private ActorSystem actorSystem;
+    private Materializer materializer;
+    private Path tmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        actorSystem = ActorSystem.create();
+        materializer = ActorMaterializer.create(actorSystem);
+        tmpDir = Files.createTempDirectory("zipUtilTest");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(tmpDir.toFile());
+        actorSystem.terminate();
+    }
+
+    @Test
+    public void checkZipFilesAsSource() throws Exception {
+        // Bigger than one chunk and not compressible
+        byte[] image = new byte[200 * 1024];
+        new Random(1).nextBytes(image);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+
+        Map<String, Path> entries = new LinkedHashMap<>();
+        entries.put("data/text.txt", Files.write(tmpDir.resolve("text.txt"),
+                text.toString().getBytes(StandardCharsets.UTF_8)));
+        entries.put("data/image.png", Files.write(tmpDir.resolve("image.png"), image));
+        entries.put("data/missing.txt", tmpDir.resolve("missing.txt"));
+
+        ByteString zip = ZipUtil.zipFilesAsSource(entries)
+                .runFold(ByteString.empty(), ByteString::concat, materializer)
+                .toCompletableFuture().get(30, TimeUnit.SECONDS);
+
+        // Missing files are skipped
+        Map<String, byte[]> unzipped = new HashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toArray()))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                unzipped.put(entry.getName(), IOUtils.toByteArray(in));
+            }
+        }
+        assertThat(unzipped.keySet()).containsOnly("data/text.txt", "data/image.png");
+        assertThat(new String(unzipped.get("data/text.txt"), StandardCharsets.UTF_8)).isEqualTo(text.toString());
+        assertThat(unzipped.get("data/image.png")).isEqualTo(image);
+    }
+
+}